@@ -11,7 +11,7 @@ import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
-import java.util.ArrayList;
+import java.util.Arrays;
 
 import javax.swing.ButtonGroup;
 import javax.swing.JLabel;
@@ -20,6 +20,7 @@ import javax.swing.JPanel;
 import javax.swing.JRadioButton;
 import javax.swing.JSlider;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
@@ -52,7 +53,15 @@ public class Canvas extends JPanel {
 
     public CanvasClient canvasClient = null;
 
-    private ArrayList<String> pointList;
+    // points of the line being drawn are sent to the server this often,
+    // the other users of the board see the line as it is drawn
+    private static final int STROKE_BATCH_MILLIS = 20;
+    // x and y of the points in the line currently being drawn not sent yet,
+    // one after the other
+    private int[] points;
+    private int pointCount;
+    // sends the points not sent yet while the line is being drawn
+    private Timer strokeTimer;
     /**
      * Make a canvas.
      * @param width width in pixels
@@ -168,7 +177,17 @@ public class Canvas extends JPanel {
         this.add(penSizeLabel);
 
         //Stores the points in the line currently being drawn
-        pointList = new ArrayList<String>();
+        points = new int[64];
+        pointCount = 0;
+        strokeTimer = new Timer(STROKE_BATCH_MILLIS, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                if (pointCount == 0) return;
+                canvasClient.sendStrokeAppendRequest(points, pointCount);
+                // the request keeps the array
+                points = new int[64];
+                pointCount = 0;
+            }
+        });
 
         canvasClient = client;
 
@@ -284,6 +303,23 @@ public class Canvas extends JPanel {
         this.repaint();
     }
 
+    /**
+     * Draw an image sent by the server (part of a board's keyframe) with its
+     * upper-left corner at (x, y), in pixels relative to the upper-left
+     * corner of the drawing buffer.
+     * 
+     * @param image - image to draw
+     * @param x - to x
+     * @param y - to y
+     */
+    public void drawImage(Image image, int x, int y) {
+        Graphics2D g = (Graphics2D) drawingBuffer.getGraphics();
+        g.drawImage(image, x, y, null);
+        // IMPORTANT!  every time we draw on the internal drawing buffer, we
+        // have to notify Swing to repaint this component on the screen.
+        this.repaint();
+    }
+
     /**
      * Add the mouse listener that supports the user's freehand drawing.
      */
@@ -304,13 +340,19 @@ public class Canvas extends JPanel {
 
         /**
          * When mouse button is pressed down, start drawing. 
-         * Add the current point to the list of Points.
+         * Send the first point to the server as the beginning of a stroke,
+         * the points after it are sent every STROKE_BATCH_MILLIS
          */
         public void mousePressed(MouseEvent e) {
             lastX = e.getX();
             lastY = e.getY();
-            pointList = new ArrayList<String>();
-            pointList.add(new Point(lastX,lastY).toString());
+            pointCount = 0;
+            addPoint(lastX, lastY);
+            canvasClient.sendStrokeBeginRequest(colorString(), currentPenSize, points, pointCount);
+            // the request keeps the array
+            points = new int[64];
+            pointCount = 0;
+            strokeTimer.start();
         }
 
         /**
@@ -324,15 +366,27 @@ public class Canvas extends JPanel {
             drawLineSegment(lastX, lastY, x, y, true);
             lastX = x;
             lastY = y;
-            pointList.add(new Point(lastX,lastY).toString());
+            addPoint(lastX, lastY);
 
         }
 
         /**
-         * Send a free draw request to the server.
-         * Then reset the pointList
+         * Send the end of the stroke to the server, with the points not sent yet.
+         * Then reset the points
          */
         public void mouseReleased(MouseEvent e) { 
+            strokeTimer.stop();
+            canvasClient.sendStrokeEndRequest(points, pointCount);
+            // reset the points after mouse has been released, the request
+            // keeps the array
+            points = new int[64];
+            pointCount = 0;
+        }
+
+        /**
+         * @return name of the color being drawn with, as sent to the server
+         */
+        private String colorString() {
             String colorString = "";
             switch(color){
             case BLACK: colorString = "black"; break;
@@ -345,9 +399,19 @@ public class Canvas extends JPanel {
             if (eraserState) {
                 colorString = "white";
             }
-            canvasClient.sendFreeDrawRequest(colorString, currentPenSize, pointList);
-            // reset pointList after mouse has been released
-            pointList = new ArrayList<String>();
+            return colorString;
+        }
+
+        /**
+         * Adds a point to the line being drawn, growing the array as needed
+         */
+        private void addPoint(int x, int y) {
+            if (2 * pointCount + 2 > points.length) {
+                points = Arrays.copyOf(points, points.length * 2);
+            }
+            points[2 * pointCount] = x;
+            points[2 * pointCount + 1] = y;
+            pointCount++;
         }
         // Ignore all these other mouse events.
         public void mouseMoved(MouseEvent e) { }
@@ -391,34 +455,50 @@ public class Canvas extends JPanel {
         return eraserState;
     }
 
-    /**
-     * Used to keep track of coordinates and override the toString method
-     * for a more suitable String representation.
-     *
-     */
-    class Point {
-        private int x;
-        private int y;
-        public Point(int xCoord, int yCoord){
-            x = xCoord;
-            y = yCoord;
-        }
-        @Override
-        public String toString(){
-            return x+":"+y;
-        }
-    }
-
 
     /*
      * Main program. Make a window containing a Canvas.
+     * --protocol=binary asks the server for the binary protocol (default text)
+     * --compression=on asks the server for compression (default off)
+     * --resume=on reconnects to the server when the connection drops, and
+     *   reopens the board from the last stroke received (default off)
      */
     public static void main(String[] args) {
+        boolean binary = false;
+        boolean compress = false;
+        boolean resume = false;
+        for (String arg : args) {
+            switch (arg) {
+            case "--protocol=text":
+                binary = false;
+                break;
+            case "--protocol=binary":
+                binary = true;
+                break;
+            case "--compression=off":
+                compress = false;
+                break;
+            case "--compression=on":
+                compress = true;
+                break;
+            case "--resume=off":
+                resume = false;
+                break;
+            case "--resume=on":
+                resume = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        final boolean askBinary = binary;
+        final boolean askCompress = compress;
+        final boolean askResume = resume;
         // set up the UI (on the event-handling thread)
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
 
-                WhiteboardFrame window = new WhiteboardFrame("Freehand Canvas"); 
+                WhiteboardFrame window = new WhiteboardFrame("Freehand Canvas", askBinary, askCompress, askResume); 
                 window.pack();
                 window.setVisible(true);
             }
@@ -1,19 +1,31 @@
 package canvas;
 
+import java.awt.image.BufferedImage;
 import java.io.*;
 import java.net.Socket;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
+import javax.imageio.ImageIO;
 import javax.swing.SwingWorker;
 import javax.swing.SwingUtilities;
 
+import controller.BinaryProtocol;
 import controller.ClientMsg;
 import controller.ClientMsgType;
+import controller.FrameDecoder;
 import controller.ParseMessage;
 import controller.ServerMsg;
+import controller.ServerMsgType;
+import controller.StreamCompression;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
 
 /*
  * Class that implements methods to facilitate communication with the
@@ -25,46 +37,129 @@ import java.util.concurrent.LinkedBlockingQueue;
  * 
  * This class is thread safe as all network activity is done in the worker thread context
  * and does not block the event dispatch thread 
+ *
+ * The client can ask for the binary protocol (see BinaryProtocol) and for
+ * compression (see StreamCompression) at login. The send worker waits
+ * after the login for the receive worker to see whether the server agreed,
+ * before it sends anything else
+ *
+ * The client can also ask for a resume token at login. If the connection
+ * drops it then connects again, logs in with the token and reopens its
+ * board from the sequence number of the last stroke it received, the server
+ * sending only the strokes it missed, or the whole board if it can't. The
+ * requests the send worker had not flushed, and those made meanwhile, are
+ * sent on the new connection. A stroke the user is drawing whose strokebegin
+ * went out on the old connection is sent whole when it ends
  */
 public class CanvasClient {
+    // times the client tries to connect again, waiting twice as long each time
+    private static final int RECONNECT_ATTEMPTS = 6;
+    private static final long RECONNECT_DELAY_MILLIS = 250;
+
     public final String serverIP;
     private final int serverPort;
 
     public WhiteboardFrame wbFrame;
     private Socket socket;
 
-    private BufferedReader in;
-    private PrintWriter out;
+    private InputStream in;
+    private OutputStream out;
 
     // A blocking queue is implemented where the GUI adds messages to be
     // sent to the server while a worker thread picks the messages and sends them
     // to the server - this way the event dispatch thread is not blocked
 
-    private LinkedBlockingQueue<String> msgQ;
+    // The same queue is used by the send worker of every connection, the
+    // requests that did not get out on one are put back at its head
+    private final LinkedBlockingDeque<ClientMsg> msgQ;
+    private SendWorkerThread sendWorkerThread;
+
+    // true to ask for the binary protocol at login
+    private final boolean askBinary;
+    // set by the receive worker once the server agreed to the binary protocol
+    private volatile boolean binary = false;
+    // true to ask for compression at login
+    private final boolean askCompress;
+    // set by the receive worker once the server agreed to compression
+    private volatile boolean compressed = false;
+    // counted down by the receive worker once it knows the protocol
+    private volatile CountDownLatch negotiated = new CountDownLatch(1);
+    // true to ask for a resume token at login
+    private final boolean askResume;
+    // resume token handed out by the server, null if none or logged out
+    private volatile String token = null;
+    // name the user last logged in with
+    private volatile String userName = null;
+    // board the server last said the user joined, null if it left it. Only
+    // used by the receive worker
+    private String joinedBoard = null;
+    // sequence number of the last stroke received on the board, -1 if not
+    // known yet. Only used by the receive worker
+    private int lastSeq = -1;
+    // sequence number the board was reopened from after reconnecting, until
+    // the server says from where it sends the strokes. Only used by the
+    // receive worker
+    private boolean resuming = false;
+    private int resumeSeq = -1;
+    // the stroke the user is drawing as the send worker has taken it so far:
+    // a strokebegin holding its color, line size and points, null if none
+    // Only used by the send worker of the current connection
+    private ClientMsg localStroke = null;
+    // localStroke and its point count as of the last flush, it is taken
+    // back there when the requests not flushed are put back in the queue
+    private ClientMsg flushedStroke = null;
+    private int flushedPointCount = 0;
+    // strokes other users of the board are drawing, by user name, with
+    // the last point drawn. Only used on the event dispatch thread
+    private final HashMap<String, ServerMsg> liveStrokes = new HashMap<String, ServerMsg>();
 
     public CanvasClient(WhiteboardFrame wbFrame, String IP, int port){
+        this(wbFrame, IP, port, false, false);
+    }
+
+    public CanvasClient(WhiteboardFrame wbFrame, String IP, int port, boolean askBinary){
+        this(wbFrame, IP, port, askBinary, false);
+    }
+
+    /**
+     * Constructor, connects to the server
+     * @param wbFrame frame shown to the user
+     * @param IP address of the server
+     * @param port port of the server
+     * @param askBinary true to ask the server for the binary protocol at login
+     * @param askCompress true to ask the server for compression at login
+     */
+    public CanvasClient(WhiteboardFrame wbFrame, String IP, int port, boolean askBinary, boolean askCompress){
+        this(wbFrame, IP, port, askBinary, askCompress, false);
+    }
+
+    /**
+     * Constructor, connects to the server
+     * @param wbFrame frame shown to the user
+     * @param IP address of the server
+     * @param port port of the server
+     * @param askBinary true to ask the server for the binary protocol at login
+     * @param askCompress true to ask the server for compression at login
+     * @param askResume true to ask the server for a resume token at login,
+     *        and reconnect with it when the connection drops
+     */
+    public CanvasClient(WhiteboardFrame wbFrame, String IP, int port, boolean askBinary, boolean askCompress,
+            boolean askResume){
         serverIP = IP;
         serverPort = port;
         this.wbFrame = wbFrame;
-        msgQ = new LinkedBlockingQueue<String>();
+        this.askBinary = askBinary;
+        this.askCompress = askCompress;
+        this.askResume = askResume;
+        msgQ = new LinkedBlockingDeque<ClientMsg>();
 
 
         try {
             socket = new Socket(serverIP, serverPort);
             try{
-                out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())), true);
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                // Now create a swing worker thread to transmit requests to the server
-                // You can't block main event dispatch thread for socket transmit as that 
-                // may take time and freeze the UI
-                SendWorkerThread sendWorkerThread = new SendWorkerThread(out, msgQ);
-                sendWorkerThread.execute();
-
-                // Now create a swing worker thread to read from the socket
-                // You can't block main event dispatch thread for socket read as that 
-                // would block - so need a  worker thread
-                ReceiveWorkerThread receiveWorkerThread = new ReceiveWorkerThread(in);
-                receiveWorkerThread.execute();
+                out = new BufferedOutputStream(socket.getOutputStream());
+                in = socket.getInputStream();
+                startWorkers();
                 // returns right away to the caller
             }
             catch(Exception e){
@@ -78,15 +173,145 @@ public class CanvasClient {
         }
     }
 
+    /**
+     * Starts the workers sending to and receiving from the socket's streams
+     */
+    private void startWorkers() {
+        // Now create a swing worker thread to transmit requests to the server
+        // You can't block main event dispatch thread for socket transmit as that 
+        // may take time and freeze the UI
+        sendWorkerThread = new SendWorkerThread(out, msgQ);
+        sendWorkerThread.execute();
+
+        // Now create a swing worker thread to read from the socket
+        // You can't block main event dispatch thread for socket read as that 
+        // would block - so need a  worker thread
+        ReceiveWorkerThread receiveWorkerThread = new ReceiveWorkerThread(in);
+        receiveWorkerThread.execute();
+    }
+
+    /**
+     * Connects to the server again after the connection dropped, logs in
+     * with the resume token and reopens the board from the last stroke
+     * received. The requests not sent yet are sent after those
+     * Runs on the receive worker of the dropped connection, which ends
+     * once the new workers are started
+     * 
+     * @return true if connected again
+     */
+    private boolean reconnect() {
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            // already closed
+        }
+        // the send worker puts back the requests it did not get out
+        sendWorkerThread.cancel(true);
+        try {
+            sendWorkerThread.stopped.await();
+        }
+        catch (InterruptedException e) {
+            return false;
+        }
+        for (int attempt = 0; attempt < RECONNECT_ATTEMPTS; attempt++) {
+            try {
+                Thread.sleep(RECONNECT_DELAY_MILLIS << attempt);
+                socket = new Socket(serverIP, serverPort);
+                out = new BufferedOutputStream(socket.getOutputStream());
+                in = socket.getInputStream();
+            }
+            catch (InterruptedException e) {
+                return false;
+            }
+            catch (IOException e) {
+                continue;
+            }
+            // the protocol is agreed on again
+            binary = false;
+            compressed = false;
+            negotiated = new CountDownLatch(1);
+            // pushed in front of the requests waiting, the login first
+            if (joinedBoard != null && !leavingBoard()) {
+                ClientMsg open = new ClientMsg(ClientMsgType.OPEN_BOARD);
+                open.setBoardName(joinedBoard);
+                if (lastSeq >= 0) {
+                    open.setSeq(lastSeq);
+                    resumeSeq = lastSeq;
+                    resuming = true;
+                }
+                else {
+                    // no stroke is known to be all there, the board starts over
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            wbFrame.getCanvas().fillWithWhite();
+                        }
+                    });
+                }
+                msgQ.addFirst(open);
+            }
+            msgQ.addFirst(loginRequest(userName, token));
+            // the ends of the strokes being drawn were lost
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    liveStrokes.clear();
+                }
+            });
+            startWorkers();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the user is leaving its board in a request waiting to
+     * be sent, the board is then not reopened: the canvas was already
+     * cleared for the next one, and strokes drawn on the board while
+     * disconnected are dropped by the server
+     * Runs on the receive worker
+     * 
+     * @return true if a close board request is waiting
+     */
+    private boolean leavingBoard() {
+        for (ClientMsg msg : msgQ) {
+            if (msg.getType() == ClientMsgType.CLOSE_BOARD) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Handles a sequence number sent by the server: that of the last stroke
+     * sent, or when the board is reopened after reconnecting the one the
+     * strokes are sent from. If that is not the one asked for the whole
+     * board is sent again, the canvas is cleared first
+     * Runs on the receive worker
+     * 
+     * @param msg seq message
+     */
+    private void sequence(ServerMsg msg) {
+        if (!msg.getBoardName().equals(joinedBoard)) return;
+        if (resuming) {
+            resuming = false;
+            if (msg.getSeq() != resumeSeq) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        wbFrame.getCanvas().fillWithWhite();
+                    }
+                });
+            }
+        }
+        lastSeq = msg.getSeq();
+    }
+
     /**
      * This routine is used to send the request string to the 
      * server. This runs in the context of the event dispatch thread
      * and adds the string to a blocking queue.
      * A worker thread later picks the string from the queue and sends it out
      * 
-     * @param req string that needs to be sent to the server
+     * @param req message that needs to be sent to the server
      */
-    private void sendMessageToServer(String req) {
+    private void sendMessageToServer(ClientMsg req) {
         msgQ.add(req);
     }
 
@@ -96,19 +321,33 @@ public class CanvasClient {
      * @param userName user name string
      */
     public void sendLoginRequest(String userName) {
+        this.userName = userName;
+        sendMessageToServer(loginRequest(userName, askResume ? ClientMsg.NEW_SESSION : null));
+    }
 
+    /**
+     * Makes a login request asking for what the client was made to ask for
+     * @param userName user name string
+     * @param resume resume token, NEW_SESSION for a new one, or null
+     * @return the request
+     */
+    private ClientMsg loginRequest(String userName, String resume) {
         ClientMsg sendMsg = new ClientMsg(ClientMsgType.LOGIN);
         sendMsg.setUserName(userName);
-        sendMessageToServer(sendMsg.toString());
+        if (askBinary) sendMsg.setProtocol(BinaryProtocol.BATCH_VERSION);
+        if (askCompress) sendMsg.setCompression(StreamCompression.NAME);
+        sendMsg.setResume(resume);
+        return sendMsg;
     }
 
     /**
      * Send logout request to the server
      */
     public void sendLogoutRequest() {
-
+        // the session ends, the client does not reconnect
+        token = null;
         ClientMsg sendMsg = new ClientMsg(ClientMsgType.LOGOUT);
-        sendMessageToServer(sendMsg.toString());
+        sendMessageToServer(sendMsg);
     }
 
     /**
@@ -118,7 +357,7 @@ public class CanvasClient {
     public void sendNewBoardRequest(String boardName) {
         ClientMsg sendMsg = new ClientMsg(ClientMsgType.NEW_BOARD);
         sendMsg.setBoardName(boardName);
-        sendMessageToServer(sendMsg.toString());
+        sendMessageToServer(sendMsg);
     }
 
     /**
@@ -128,7 +367,7 @@ public class CanvasClient {
     public void sendOpenBoardRequest(String boardName) {
         ClientMsg sendMsg = new ClientMsg(ClientMsgType.OPEN_BOARD);
         sendMsg.setBoardName(boardName);
-        sendMessageToServer(sendMsg.toString());
+        sendMessageToServer(sendMsg);
     }
 
     /**
@@ -137,23 +376,63 @@ public class CanvasClient {
      */
     public void sendCloseBoardRequest() {
         ClientMsg sendMsg = new ClientMsg(ClientMsgType.CLOSE_BOARD);
-        sendMessageToServer(sendMsg.toString());
+        sendMessageToServer(sendMsg);
     }
 
     /**
      * 
      * @param color color name string like black, blue etc
      * @param lineSize integer line/stroke size
-     * @param coordList Array of strings with each string
-     *      representing a (x,y) pair 
-     *  	e.g { "2:4", "40:50", "111:333" }
+     * @param points x and y of each point one after the other
+     *      e.g { 2, 4, 40, 50, 111, 333 }, kept by the request
+     * @param pointCount number of points
      */
-    public void sendFreeDrawRequest(String color, int lineSize, ArrayList<String> coordList) {
+    public void sendFreeDrawRequest(String color, int lineSize, int[] points, int pointCount) {
         ClientMsg sendMsg = new ClientMsg(ClientMsgType.FREE_DRAW);
         sendMsg.setColor(color);
         sendMsg.setLineSize(lineSize);
-        sendMsg.setCoordinateList(coordList);
-        sendMessageToServer(sendMsg.toString());
+        sendMsg.setPoints(points, pointCount);
+        sendMessageToServer(sendMsg);
+    }
+
+    /**
+     * Send the beginning of a stroke the user is drawing, the other users
+     * of the board see it as it is drawn
+     * @param color color name string like black, blue etc
+     * @param lineSize integer line/stroke size
+     * @param points x and y of the first points one after the other, kept
+     *      by the request
+     * @param pointCount number of points
+     */
+    public void sendStrokeBeginRequest(String color, int lineSize, int[] points, int pointCount) {
+        ClientMsg sendMsg = new ClientMsg(ClientMsgType.STROKE_BEGIN);
+        sendMsg.setColor(color);
+        sendMsg.setLineSize(lineSize);
+        sendMsg.setPoints(points, pointCount);
+        sendMessageToServer(sendMsg);
+    }
+
+    /**
+     * Send the points drawn since the stroke was begun or last appended to
+     * @param points x and y of each point one after the other, kept by the request
+     * @param pointCount number of points
+     */
+    public void sendStrokeAppendRequest(int[] points, int pointCount) {
+        ClientMsg sendMsg = new ClientMsg(ClientMsgType.STROKE_APPEND);
+        sendMsg.setPoints(points, pointCount);
+        sendMessageToServer(sendMsg);
+    }
+
+    /**
+     * Send the end of the stroke, the server then adds it to the board
+     * @param points x and y of the last points one after the other, kept by
+     *      the request
+     * @param pointCount number of points, may be 0
+     */
+    public void sendStrokeEndRequest(int[] points, int pointCount) {
+        ClientMsg sendMsg = new ClientMsg(ClientMsgType.STROKE_END);
+        sendMsg.setPoints(points, pointCount);
+        sendMessageToServer(sendMsg);
     }
 
 
@@ -168,10 +447,18 @@ public class CanvasClient {
      * a separate thread (and not EDT). Out connection is not used by any other thread
      */
     public class SendWorkerThread extends SwingWorker<String, Void> {
-        private PrintWriter out;
-        LinkedBlockingQueue<String> queue;
-
-        public SendWorkerThread(PrintWriter out, LinkedBlockingQueue<String> msgQ ) {
+        private OutputStream out;
+        LinkedBlockingDeque<ClientMsg> queue;
+        // the messages are encoded into it, grown as needed
+        private ByteBuffer buffer = ByteBuffer.allocate(1024);
+        // requests taken since the last flush, they may not have got out
+        private final ArrayList<ClientMsg> unflushed = new ArrayList<ClientMsg>();
+        // the server on this connection was sent the strokebegin of localStroke
+        private boolean strokeBegun = false;
+        // counted down once the worker stopped and put back what it did not flush
+        final CountDownLatch stopped = new CountDownLatch(1);
+
+        public SendWorkerThread(OutputStream out, LinkedBlockingDeque<ClientMsg> msgQ ) {
             this.out = out;
             this.queue = msgQ;
         }
@@ -179,29 +466,148 @@ public class CanvasClient {
         @Override
         protected String doInBackground() throws Exception
         {
-            while (true) {
-                try {
+            ClientMsg msg = null;
+            try {
+                while (true) {
 
                     // remove one entry at a time and transmit to the server
-                    String line = queue.take();
-                    this.out.println(line);
+                    msg = queue.take();
+                    ClientMsg sendMsg = localStroke(msg);
+                    if (sendMsg != null) {
+                        ByteBuffer bytes = encode(sendMsg);
+                        this.out.write(bytes.array(), bytes.position(), bytes.remaining());
+                    }
+                    unflushed.add(msg);
+                    msg = null;
+                    if (queue.isEmpty()) flush();
+                    if (sendMsg != null && (sendMsg.getProtocol() >= BinaryProtocol.VERSION
+                            || sendMsg.getCompression() != null) && negotiated.getCount() > 0) {
+                        // the server's answer says how to send the rest
+                        flush();
+                        negotiated.await();
+                        if (compressed) {
+                            // flush() sync flushes, the server gets every batch right away
+                            this.out = new DeflaterOutputStream(this.out,
+                                    StreamCompression.newDeflater(Deflater.DEFAULT_COMPRESSION), 8192, true);
+                        }
+                    }
                 }
-                catch (Exception e) {
-                    break;
-                    // user will be notified properly through a pop-up box (rather than stack trace)
-                    // (see done method below)
+            }
+            catch (Exception e) {
+                // user will be notified properly through a pop-up box (rather than stack trace)
+                // (see done method below)
+            }
+            finally {
+                if (msg != null) unflushed.add(msg);
+                // put back in order for the next connection, which logs in again
+                for (int i = unflushed.size() - 1; i >= 0; i--) {
+                    if (unflushed.get(i).getType() != ClientMsgType.LOGIN) queue.addFirst(unflushed.get(i));
                 }
+                localStroke = flushedStroke;
+                if (localStroke != null) localStroke.setPoints(localStroke.getPoints(), flushedPointCount);
+                stopped.countDown();
             }
+            // the receive worker sees the connection drop too, and
+            // reconnects if it can
+            if (token != null) return null;
             return ("Error sending to server - closing the application");
 
         }
+
+        /**
+         * Flushes the requests written, they are out
+         */
+        private void flush() throws IOException {
+            this.out.flush();
+            unflushed.clear();
+            flushedStroke = localStroke;
+            flushedPointCount = localStroke == null ? 0 : localStroke.getPointCount();
+        }
+
+        /**
+         * Keeps the points of the stroke the user is drawing. A stroke whose
+         * strokebegin was sent on an earlier connection is sent whole when
+         * it ends, as a free draw request
+         * @param msg request taken from the queue
+         * @return request to send, null if none
+         */
+        private ClientMsg localStroke(ClientMsg msg) {
+            switch (msg.getType()) {
+            case STROKE_BEGIN:
+                // the request keeps its array, the points are copied
+                localStroke = new ClientMsg(ClientMsgType.STROKE_BEGIN);
+                localStroke.setColor(msg.getColor());
+                localStroke.setLineSize(msg.getLineSize());
+                localStroke.setPoints(Arrays.copyOf(msg.getPoints(), Math.max(2 * msg.getPointCount(), 64)),
+                        msg.getPointCount());
+                strokeBegun = true;
+                return msg;
+            case STROKE_APPEND:
+            case STROKE_END:
+                if (localStroke == null) return msg;
+                if (msg.getPoints() != null) {
+                    int count = localStroke.getPointCount() + msg.getPointCount();
+                    int[] points = localStroke.getPoints();
+                    if (points.length < 2 * count) points = Arrays.copyOf(points, 4 * count);
+                    System.arraycopy(msg.getPoints(), 0, points, 2 * localStroke.getPointCount(),
+                            2 * msg.getPointCount());
+                    localStroke.setPoints(points, count);
+                }
+                if (strokeBegun) {
+                    if (msg.getType() == ClientMsgType.STROKE_END) localStroke = null;
+                    return msg;
+                }
+                if (msg.getType() == ClientMsgType.STROKE_APPEND) return null;
+                ClientMsg whole = new ClientMsg(ClientMsgType.FREE_DRAW);
+                whole.setColor(localStroke.getColor());
+                whole.setLineSize(localStroke.getLineSize());
+                whole.setPoints(localStroke.getPoints(), localStroke.getPointCount());
+                localStroke = null;
+                return whole;
+            default:
+                return msg;
+            }
+        }
+
+        /**
+         * Encodes a message as a line or, once the server agreed to the
+         * binary protocol, as a frame. Everything but strokes in the binary
+         * protocol is encoded into the same buffer, only valid until the next call
+         */
+        private ByteBuffer encode(ClientMsg msg) {
+            if (binary && msg.getType() == ClientMsgType.FREE_DRAW) {
+                return BinaryProtocol.encodeStroke(BinaryProtocol.colorCode(msg.getColor()), msg.getLineSize(),
+                        msg.getPoints(), msg.getPointCount());
+            }
+            while (true) {
+                buffer.clear();
+                try {
+                    if (!binary) {
+                        msg.encodeTo(buffer);
+                        buffer.put((byte) '\n');
+                        buffer.flip();
+                        return buffer;
+                    }
+                    // the frame header goes in front of the text
+                    buffer.position(BinaryProtocol.MAX_HEADER);
+                    int count = msg.encodeTo(buffer);
+                    int start = BinaryProtocol.writeTextHeader(buffer.array(), BinaryProtocol.MAX_HEADER, count);
+                    buffer.limit(buffer.position());
+                    buffer.position(start);
+                    return buffer;
+                }
+                catch (BufferOverflowException e) {
+                    buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                }
+            }
+        }
         @Override
         public void done(){
             try {
                 String error;
                 error = get();
                 // Displays a nice pop-up box to the user, indicating that messages can't be sent to server 
-                wbFrame.connectionError(error);
+                if (error != null) wbFrame.connectionError(error);
 
             } catch (Exception e) {
 
@@ -218,27 +624,93 @@ public class CanvasClient {
      * for thread safety
      */
     private class ReceiveWorkerThread extends SwingWorker<String, Void> {
-        private BufferedReader in;
+        private InputStream in;
 
 
-        public ReceiveWorkerThread(BufferedReader in) {
+        public ReceiveWorkerThread(InputStream in) {
             this.in = in;
         }
 
         @Override
         protected String doInBackground() throws Exception
         {
+            FrameDecoder decoder = new FrameDecoder() {
+                @Override
+                protected void line(String line) {
+                    if (negotiated.getCount() > 0 && (askBinary || askCompress)) {
+                        // the first answers to the login say which protocol the server
+                        // speaks, "binary" coming before "deflate" if it agreed to both
+                        if (askBinary && !binary && line.equals(BinaryProtocol.SWITCH_LINE)) {
+                            setBinary();
+                            binary = true;
+                            if (!askCompress) negotiated.countDown();
+                            return;
+                        }
+                        if (askCompress && !compressed && line.equals(StreamCompression.SWITCH_LINE)) {
+                            setCompressed();
+                            compressed = true;
+                            negotiated.countDown();
+                            return;
+                        }
+                        negotiated.countDown();
+                    }
+                    ServerMsg msg;
+                    try {
+                        msg = ParseMessage.parseServerMsg(line);
+                    } catch (Exception e) {
+                        return;
+                    }
+                    switch (msg.getType()) {
+                    case SESSION:
+                        token = msg.getToken();
+                        return;
+                    case SEQUENCE:
+                        sequence(msg);
+                        return;
+                    case USER_JOINED:
+                        // the user opened the board, the strokes are sent from the start
+                        if (msg.getUserName().equals(userName)) {
+                            joinedBoard = msg.getBoardName();
+                            lastSeq = -1;
+                        }
+                        break;
+                    case USER_LEFT:
+                        if (msg.getUserName().equals(userName) && msg.getBoardName().equals(joinedBoard)) {
+                            joinedBoard = null;
+                        }
+                        break;
+                    default:
+                    }
+                    // schedule this message to be processed in event dispatch thread
+                    SwingUtilities.invokeLater(new ProcessReceivedData(msg));
+                }
+
+                @Override
+                protected void stroke(byte color, int lineSize, int[] points, int pointCount) {
+                    ServerMsg msg = new ServerMsg(ServerMsgType.FREE_DRAW);
+                    msg.setColor(BinaryProtocol.COLORS[color]);
+                    msg.setLineSize(lineSize);
+                    // the decoder reuses its array for the next stroke
+                    msg.setPoints(Arrays.copyOf(points, 2 * pointCount), pointCount);
+                    SwingUtilities.invokeLater(new ProcessReceivedData(msg));
+                }
+            };
             try {
                 // read from the socket
-                for (String line = in.readLine(); line != null; line = in.readLine()) {
-                    // schedule this line to be parsed and processed in event dispatch thread
-                    SwingUtilities.invokeLater(new ProcessReceivedData(line));
+                byte[] buffer = new byte[8192];
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                    decoder.decode(buffer, 0, n);
                 }
             }
             catch (Exception e) {
                 // user will be notified properly through a pop-up box (rather than stack trace)
                 // (see done method below)
             }
+            finally {
+                // don't leave the send worker waiting for an answer that won't come
+                negotiated.countDown();
+            }
+            if (token != null && reconnect()) return null;
             return ("Error receiving from server - closing the application");
 
         }
@@ -248,7 +720,7 @@ public class CanvasClient {
                 String error;
                 error = get();
                 // Displays a nice pop-up box to the user, indicating that messages can't be sent to server
-                wbFrame.connectionError(error);
+                if (error != null) wbFrame.connectionError(error);
 
             } catch (Exception e) {
 
@@ -258,27 +730,18 @@ public class CanvasClient {
 
     /**
      * Procedure that runs in the context of the event dispatch thread
-     * to process the line received from the server
-     * This method is called for every line received one at a time
-     * It parses the line received and constructs a serverMsg object
-     * which can be queried later
+     * to process the message received from the server
+     * This method is called for every message received one at a time,
+     * the receive worker has parsed it into a serverMsg object
      */
     private class ProcessReceivedData implements Runnable {
-        private String response;
+        private ServerMsg respMsg;
 
-        private ProcessReceivedData(String response) {
-            this.response = response;
+        private ProcessReceivedData(ServerMsg respMsg) {
+            this.respMsg = respMsg;
 
         }
         public void run() {
-            ServerMsg respMsg = null;
-            try {
-                // parse the incoming message
-                respMsg = ParseMessage.parseServerMsg(response);
-            } catch (Exception e) {
-                respMsg = null;
-            }
-
             if (respMsg != null) {
 
                 switch(respMsg.getType()) {
@@ -288,45 +751,62 @@ public class CanvasClient {
                     wbFrame.updateBoardAndUserTables(map);
                     break;
 
+                case BOARD_CREATED:
+                    wbFrame.boardCreated(respMsg.getBoardName());
+                    break;
+
+                case BOARD_REMOVED:
+                    wbFrame.boardRemoved(respMsg.getBoardName());
+                    break;
+
+                case USER_JOINED:
+                    wbFrame.userJoined(respMsg.getBoardName(), respMsg.getUserName());
+                    break;
+
+                case USER_LEFT:
+                    wbFrame.userLeft(respMsg.getBoardName(), respMsg.getUserName());
+                    break;
+
                 case FREE_DRAW:
-                    ColorType currentColor = wbFrame.getCanvas().color;
-                    int currentSize = wbFrame.getCanvas().currentPenSize;
-                    String drawColor = respMsg.getColor();
-                    ColorType drawColorInt = ColorType.BLACK;
-                    int drawPenSize = respMsg.getLineSize();
-                    if(drawColor.equals("red")){
-                        drawColorInt = ColorType.RED;
-                    }
-                    else if(drawColor.equals("blue")){
-                        drawColorInt = ColorType.BLUE;
-                    }
-                    else if(drawColor.equals("yellow")){
-                        drawColorInt = ColorType.YELLOW;
-                    }
-                    else if(drawColor.equals("green")){
-                        drawColorInt = ColorType.GREEN;
-                    }
-                    else if(drawColor.equals("white")){
-                        drawColorInt = ColorType.ERASE; 
+                    drawLine(respMsg.getColor(), respMsg.getLineSize(), respMsg.getPoints(),
+                            respMsg.getPointCount());
+                    break;
+
+                case STROKE_BEGIN:
+                    // another user started drawing, the rest of the stroke follows
+                    drawLine(respMsg.getColor(), respMsg.getLineSize(), respMsg.getPoints(),
+                            respMsg.getPointCount());
+                    if (respMsg.getPointCount() > 0) liveStrokes.put(respMsg.getUserName(), respMsg);
+                    break;
+
+                case STROKE_APPEND:
+                case STROKE_END:
+                    ServerMsg stroke = respMsg.getType() == ServerMsgType.STROKE_END
+                            ? liveStrokes.remove(respMsg.getUserName())
+                            : liveStrokes.get(respMsg.getUserName());
+                    if (stroke == null || respMsg.getPointCount() == 0) break;
+                    // carry on from the last point drawn
+                    int[] last = stroke.getPoints();
+                    int lastPoint = stroke.getPointCount() - 1;
+                    int[] points = new int[2 * (respMsg.getPointCount() + 1)];
+                    points[0] = last[2 * lastPoint];
+                    points[1] = last[2 * lastPoint + 1];
+                    System.arraycopy(respMsg.getPoints(), 0, points, 2, 2 * respMsg.getPointCount());
+                    drawLine(stroke.getColor(), stroke.getLineSize(), points, respMsg.getPointCount() + 1);
+                    stroke.setPoints(respMsg.getPoints(), respMsg.getPointCount());
+                    break;
+
+                case KEYFRAME:
+                    // part of the board's picture, followed by the strokes drawn since
+                    BufferedImage tile = null;
+                    try {
+                        tile = ImageIO.read(new ByteArrayInputStream(respMsg.getImage()));
+                    } catch (IOException e) {
+                        // not a valid image, ignore it
                     }
-                    ArrayList<String> pointList = respMsg.getCoordinateList();
-                    wbFrame.getCanvas().setColor(drawColorInt);
-                    wbFrame.getCanvas().setPenSize(drawPenSize);
-                    for(int i = 0; i < pointList.size()-1; i++){
-
-                        //iterating through pointList to capture the coordinates
-                        String coords1[] = pointList.get(i).split(":");
-                        String coords2[] = pointList.get(i+1).split(":");
-                        int xCoord1 = Integer.parseInt(coords1[0]);
-                        int yCoord1 = Integer.parseInt(coords1[1]);
-                        int xCoord2 = Integer.parseInt(coords2[0]);
-                        int yCoord2 = Integer.parseInt(coords2[1]);
-                        wbFrame.getCanvas().drawLineSegment(xCoord1, yCoord1, xCoord2, yCoord2,false);
+                    if (tile != null) {
+                        wbFrame.getCanvas().drawImage(tile, respMsg.getTileX(), respMsg.getTileY());
                     }
-                    // After drawing is complete, restore original color and pen size
-                    wbFrame.getCanvas().setColor(currentColor);
-                    wbFrame.getCanvas().setPenSize(currentSize);
-
                     break;
 
                 case DUPLICATE_NAME:
@@ -336,5 +816,44 @@ public class CanvasClient {
                 }
             }
         }
+
+        /**
+         * Draws a line received from the server, in its color and pen size
+         * @param drawColor color name string like black, blue etc
+         * @param drawPenSize line size
+         * @param points x and y of each point one after the other
+         * @param pointCount number of points
+         */
+        private void drawLine(String drawColor, int drawPenSize, int[] points, int pointCount) {
+            ColorType currentColor = wbFrame.getCanvas().color;
+            int currentSize = wbFrame.getCanvas().currentPenSize;
+            ColorType drawColorInt = ColorType.BLACK;
+            if(drawColor.equals("red")){
+                drawColorInt = ColorType.RED;
+            }
+            else if(drawColor.equals("blue")){
+                drawColorInt = ColorType.BLUE;
+            }
+            else if(drawColor.equals("yellow")){
+                drawColorInt = ColorType.YELLOW;
+            }
+            else if(drawColor.equals("green")){
+                drawColorInt = ColorType.GREEN;
+            }
+            else if(drawColor.equals("white")){
+                drawColorInt = ColorType.ERASE; 
+            }
+            wbFrame.getCanvas().setColor(drawColorInt);
+            wbFrame.getCanvas().setPenSize(drawPenSize);
+            for(int i = 0; i < pointCount-1; i++){
+
+                //iterating through the points, x and y one after the other
+                wbFrame.getCanvas().drawLineSegment(points[2 * i], points[2 * i + 1],
+                        points[2 * i + 2], points[2 * i + 3], false);
+            }
+            // After drawing is complete, restore original color and pen size
+            wbFrame.getCanvas().setColor(currentColor);
+            wbFrame.getCanvas().setPenSize(currentSize);
+        }
     }
 }
\ No newline at end of file
@@ -48,6 +48,11 @@ public class WhiteboardFrame extends JFrame {
     // rep invariant
     // Contains list of all boards available on the server.
 
+    // Boards on the server and the users on each of them. Set from the board
+    // list received at login and kept up to date with the board created,
+    // user joined and user left events that follow it
+    private HashMap<String, ArrayList<String>> boardUsers = new HashMap<String, ArrayList<String>>();
+
     private GroupLayout layout;
     private JButton logout;
     private JScrollPane boardScrollPane;
@@ -74,6 +79,25 @@ public class WhiteboardFrame extends JFrame {
 
     private CanvasClient canvasClient = null;
     public WhiteboardFrame(String name) {
+        this(name, false);
+    }
+
+    public WhiteboardFrame(String name, boolean binary) {
+        this(name, binary, false);
+    }
+
+    public WhiteboardFrame(String name, boolean binary, boolean compress) {
+        this(name, binary, compress, false);
+    }
+
+    /**
+     * Constructor, asks the user for the server and a user name
+     * @param name title of the frame
+     * @param binary true to ask the server for the binary protocol
+     * @param compress true to ask the server for compression
+     * @param resume true to reconnect when the connection to the server drops
+     */
+    public WhiteboardFrame(String name, boolean binary, boolean compress, boolean resume) {
         super(name);
         this.setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
         this.setSize(800,600);
@@ -225,7 +249,7 @@ public class WhiteboardFrame extends JFrame {
 
         //Prompts the user for the serverIP then sets up the client.
         setServerIP();
-        canvasClient = new CanvasClient(thisFrame, serverIP, serverPort);
+        canvasClient = new CanvasClient(thisFrame, serverIP, serverPort, binary, compress, resume);
         //Prompts the user to enter a username
         setUsername();
 
@@ -431,10 +455,12 @@ public class WhiteboardFrame extends JFrame {
     public void updateBoardAndUserTables(HashMap<String, ArrayList<String>> map) {
         ArrayList<String> boardList = new ArrayList<String>();  
         ArrayList<String> userlist = new ArrayList<String>();
+        boardUsers = new HashMap<String, ArrayList<String>>();
         if (map != null) {
             for (Map.Entry<String, ArrayList<String>> entry : map.entrySet()) {
                 String bName = entry.getKey(); // board name is key
                 boardList.add(bName);
+                boardUsers.put(bName, new ArrayList<String>(entry.getValue()));
                 if (bName.equals(boardName)) {
                     userlist = entry.getValue(); // user list is the value
                     ///updateUserTable(userlist);
@@ -449,6 +475,63 @@ public class WhiteboardFrame extends JFrame {
 
     }
 
+    /**
+     * Adds a board created on the server to the board table.
+     * 
+     * @param bName name of the new board
+     */
+    public void boardCreated(String bName) {
+        if (!boardUsers.containsKey(bName)) {
+            boardUsers.put(bName, new ArrayList<String>());
+            updateBoardTable(new ArrayList<String>(boardUsers.keySet()));
+        }
+    }
+
+    /**
+     * Removes a board the server expired from the board table.
+     * Nobody was on it, so it is not the current board.
+     * 
+     * @param bName name of the removed board
+     */
+    public void boardRemoved(String bName) {
+        if (boardUsers.remove(bName) != null) {
+            updateBoardTable(new ArrayList<String>(boardUsers.keySet()));
+        }
+    }
+
+    /**
+     * Records that a user opened a board, and updates the user table
+     * if it is the current board.
+     * 
+     * @param bName name of the board
+     * @param user name of the user who opened it
+     */
+    public void userJoined(String bName, String user) {
+        // the board may be new to us if we missed its creation
+        boardCreated(bName);
+        ArrayList<String> userList = boardUsers.get(bName);
+        if (!userList.contains(user)) userList.add(user);
+        if (bName.equals(boardName)) {
+            updateUserTable(new ArrayList<String>(userList));
+        }
+    }
+
+    /**
+     * Records that a user left a board, and updates the user table
+     * if it is the current board.
+     * 
+     * @param bName name of the board
+     * @param user name of the user who left it
+     */
+    public void userLeft(String bName, String user) {
+        ArrayList<String> userList = boardUsers.get(bName);
+        if (userList == null) return;
+        userList.remove(user);
+        if (bName.equals(boardName)) {
+            updateUserTable(new ArrayList<String>(userList));
+        }
+    }
+
     /**
      * Updates the currentBoardModel with the given list of boards.
      * 
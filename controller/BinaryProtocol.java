@@ -0,0 +1,260 @@
+package controller;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Encoding of the binary protocol (version 2), which a client can ask for
+ * when it logs in instead of the text protocol
+ *
+ * Negotiation: the client sends its login as a text line with protocol=2
+ * (e.g "login,user=joe,protocol=2"), or protocol=3 if it also takes BATCH
+ * frames (BATCH_VERSION). A server that agrees answers with the
+ * text line "binary", and from then on both sides send frames: the client
+ * right after its login line, the server right after the "binary" line.
+ * A server that does not agree answers the login in text, and the client
+ * carries on in text
+ *
+ * Each frame is a one byte frame type, the length of the rest of the frame
+ * as a varint, and then:
+ *
+ *   TEXT        one message of the text protocol, UTF-8 without line
+ *               terminator. Used for everything but whole strokes, the
+ *               partial messages of strokes being drawn included
+ *   FREE_DRAW   a stroke: color code (index in COLORS), line size (varint),
+ *               number of points (varint), and for each point the x and y
+ *               as zigzag varints of the difference from the point before
+ *               (from 0:0 for the first point)
+ *   BATCH       several messages in one frame, sent only to clients that
+ *               asked for BATCH_VERSION: the number of messages (varint),
+ *               then that many TEXT or FREE_DRAW frames. A batch never holds
+ *               a switch line or another batch
+ *
+ * A varint is 7 bits per byte, least significant first, with the high bit
+ * set on every byte but the last. A point of a hand drawn stroke usually
+ * takes 2 bytes, against about 8 as "123:456;"
+ *
+ * A frame of an unknown type is skipped, see FrameDecoder. Since every frame
+ * starts with its length, the receiver finds where a frame ends without
+ * looking at its bytes, and decodes the frames straight out of what it read
+ *
+ * This is a static class and thread safe
+ */
+public class BinaryProtocol {
+    // version asked for by the client at login
+    public static final int VERSION = 2;
+    // version asked for by clients that also take BATCH frames
+    public static final int BATCH_VERSION = 3;
+    // the text line after which the server sends frames
+    public static final String SWITCH_LINE = "binary";
+    // frame types
+    public static final byte TEXT = 0;
+    public static final byte FREE_DRAW = 1;
+    public static final byte BATCH = 2;
+    // colors of the FREE_DRAW frames, by color code
+    public static final String[] COLORS = {"black", "red", "blue", "green", "yellow", "white"};
+    // most bytes of the frame type and length
+    public static final int MAX_HEADER = 6;
+
+    /**
+     * Finds the code of a color
+     * @param color one of COLORS
+     * @return index of the color in COLORS
+     * @throws IllegalArgumentException if it is not a known color
+     */
+    public static byte colorCode(String color) {
+        for (int i = 0; i < COLORS.length; i++) {
+            if (COLORS[i].equals(color)) return (byte) i;
+        }
+        throw new IllegalArgumentException("Invalid color " + color);
+    }
+
+    /**
+     * Encodes a message of the text protocol as a TEXT frame
+     * @param line message text without the line terminator
+     * @return buffer holding the frame, positioned at 0
+     */
+    public static ByteBuffer encodeText(String line) {
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        return encodeText(text, 0, text.length);
+    }
+
+    /**
+     * Encodes a message of the text protocol as a TEXT frame
+     * @param text array holding the message as UTF-8, without line terminator
+     * @param offset index of the message in text
+     * @param count length of the message
+     * @return buffer holding the frame, positioned at 0
+     */
+    public static ByteBuffer encodeText(byte[] text, int offset, int count) {
+        byte[] out = new byte[MAX_HEADER + count];
+        out[0] = TEXT;
+        int length = writeVarint(out, 1, count);
+        System.arraycopy(text, offset, out, length, count);
+        return ByteBuffer.wrap(out, 0, length + count);
+    }
+
+    /**
+     * Makes a TEXT frame of a message already in a buffer, by writing the
+     * frame type and length right before it. Lets a message be encoded
+     * (see CommonMsg.encodeTo()) MAX_HEADER bytes into a buffer and sent as
+     * a frame without copying it
+     * @param out buffer holding the message
+     * @param offset index of the message, requires offset >= MAX_HEADER
+     * @param count length of the message
+     * @return index of the start of the frame
+     */
+    public static int writeTextHeader(byte[] out, int offset, int count) {
+        return writeHeader(out, offset, TEXT, count);
+    }
+
+    /**
+     * Writes the type and length of a frame right before its payload, see
+     * writeTextHeader()
+     * @param out buffer holding the payload
+     * @param offset index of the payload, requires offset >= MAX_HEADER
+     * @param type frame type
+     * @param length length of the payload
+     * @return index of the start of the frame
+     */
+    public static int writeHeader(byte[] out, int offset, byte type, int length) {
+        int start = offset - 1 - varintLength(length);
+        out[start] = type;
+        writeVarint(out, start + 1, length);
+        return start;
+    }
+
+    /**
+     * Makes a BATCH frame of frames already in a buffer, by writing the frame
+     * header and the number of messages right before them
+     * @param out buffer holding the frames
+     * @param offset index of the first frame, requires offset >= MAX_HEADER + 5
+     * @param length length of the frames
+     * @param count number of frames
+     * @return index of the start of the batch
+     */
+    public static int writeBatchHeader(byte[] out, int offset, int length, int count) {
+        int start = offset - varintLength(count);
+        writeVarint(out, start, count);
+        return writeHeader(out, start, BATCH, offset + length - start);
+    }
+
+    /**
+     * Puts frames together in a BATCH frame
+     * @param frames the frames, each from its position to its limit
+     * @param count number of frames
+     * @return buffer holding the batch, positioned at 0
+     */
+    public static ByteBuffer encodeBatch(ByteBuffer[] frames, int count) {
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            length += frames[i].remaining();
+        }
+        int offset = MAX_HEADER + 5;
+        byte[] out = new byte[offset + length];
+        int pos = offset;
+        for (int i = 0; i < count; i++) {
+            frames[i].duplicate().get(out, pos, frames[i].remaining());
+            pos += frames[i].remaining();
+        }
+        int start = writeBatchHeader(out, offset, length, count);
+        return ByteBuffer.wrap(out, start, pos - start).slice();
+    }
+
+    /**
+     * Encodes a stroke as a FREE_DRAW frame
+     * @param color color code
+     * @param lineSize line size, requires lineSize >= 0
+     * @param points x and y of each point one after the other
+     * @param pointCount number of points
+     * @return buffer holding the frame, positioned at 0
+     */
+    public static ByteBuffer encodeStroke(byte color, int lineSize, int[] points, int pointCount) {
+        int payload = 1 + varintLength(lineSize) + varintLength(pointCount);
+        int x = 0;
+        int y = 0;
+        for (int p = 0; p < pointCount; p++) {
+            payload += varintLength(zigzag(points[2 * p] - x)) + varintLength(zigzag(points[2 * p + 1] - y));
+            x = points[2 * p];
+            y = points[2 * p + 1];
+        }
+        byte[] out = new byte[MAX_HEADER + payload];
+        int length = writeStrokeHeader(out, 0, payload, color, lineSize, pointCount);
+        x = 0;
+        y = 0;
+        for (int p = 0; p < pointCount; p++) {
+            length = writeVarint(out, length, zigzag(points[2 * p] - x));
+            length = writeVarint(out, length, zigzag(points[2 * p + 1] - y));
+            x = points[2 * p];
+            y = points[2 * p + 1];
+        }
+        return ByteBuffer.wrap(out, 0, length);
+    }
+
+    /**
+     * Writes the start of a FREE_DRAW frame, up to the first point
+     * @param out buffer, requires room for MAX_HEADER + 11 bytes at pos
+     * @param pos index to write at
+     * @param payload length of the rest of the frame, from the color code
+     *        to the last point
+     * @param color color code
+     * @param lineSize line size, requires lineSize >= 0
+     * @param pointCount number of points
+     * @return index after what was written
+     */
+    public static int writeStrokeHeader(byte[] out, int pos, int payload, byte color, int lineSize,
+            int pointCount) {
+        out[pos++] = FREE_DRAW;
+        pos = writeVarint(out, pos, payload);
+        out[pos++] = color;
+        pos = writeVarint(out, pos, lineSize);
+        return writeVarint(out, pos, pointCount);
+    }
+
+    /**
+     * Writes an unsigned varint
+     * @param out buffer, requires room for varintLength(value) bytes at pos
+     * @param pos index to write at
+     * @param value value, taken as unsigned
+     * @return index after the varint
+     */
+    public static int writeVarint(byte[] out, int pos, int value) {
+        while ((value & ~0x7f) != 0) {
+            out[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    /**
+     * @param value value, taken as unsigned
+     * @return number of bytes of the varint of value, 1 to 5
+     */
+    public static int varintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Maps a signed value to an unsigned one so small values of either sign
+     * make short varints: 0, -1, 1, -2, 2... become 0, 1, 2, 3, 4...
+     * @param value signed value
+     * @return zigzag encoding of value
+     */
+    public static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * @param value zigzag encoding of a value
+     * @return the value
+     */
+    public static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
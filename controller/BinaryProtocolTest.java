@@ -0,0 +1,254 @@
+package controller;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+/**
+ * Testing Strategy:
+ * VarintTest- verify zigzag and varint encodings of small, large and negative values
+ * StrokeTest- verify the exact bytes of a stroke frame, and that hand drawn points take 2 bytes
+ * DecodeTest- verify text lines, the switch to frames and random strokes decode back the same,
+ *          whether the bytes come all at once or one at a time, and unknown frames are skipped
+ * MalformedTest- verify bad color codes, truncated strokes, huge frames, batches holding fewer
+ *          or more frames than they say and batches in a batch are rejected
+ * BatchTest- verify that batches of strokes and text frames, among frames sent on their own, decode
+ *          back the same whether the bytes come all at once, one at a time, in random pieces or
+ *          in a direct buffer
+ * CompressedTest- verify that after the "deflate" line a stream of sync flushed batches of text
+ *          lines and frames decodes back the same, all at once or a byte at a time, and that a
+ *          corrupt stream is rejected
+ */
+public class BinaryProtocolTest {
+
+    // decoder collecting what it decodes, switching to frames after the line "binary"
+    // and to compressed after the line "deflate"
+    private static class Collector extends FrameDecoder {
+        private final ArrayList<String> messages = new ArrayList<String>();
+
+        @Override
+        protected void line(String line) {
+            messages.add(line);
+            if (line.equals(BinaryProtocol.SWITCH_LINE)) setBinary();
+            if (line.equals(StreamCompression.SWITCH_LINE)) setCompressed();
+        }
+
+        @Override
+        protected void stroke(byte color, int lineSize, int[] points, int pointCount) {
+            messages.add(color + "," + lineSize + "," + Arrays.toString(Arrays.copyOf(points, pointCount * 2)));
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer... buffers) {
+        int length = 0;
+        for (ByteBuffer buffer : buffers) {
+            length += buffer.remaining();
+        }
+        ByteBuffer all = ByteBuffer.allocate(length);
+        for (ByteBuffer buffer : buffers) {
+            all.put(buffer.duplicate());
+        }
+        return all.array();
+    }
+
+    @Test
+    public void VarintTest() {
+        assertEquals(0, BinaryProtocol.zigzag(0));
+        assertEquals(1, BinaryProtocol.zigzag(-1));
+        assertEquals(2, BinaryProtocol.zigzag(1));
+        assertEquals(-1, BinaryProtocol.zigzag(Integer.MIN_VALUE));
+        for (int value : new int[] {0, 1, -1, 63, -64, 1000, Integer.MAX_VALUE, Integer.MIN_VALUE}) {
+            assertEquals(value, BinaryProtocol.unzigzag(BinaryProtocol.zigzag(value)));
+        }
+        byte[] out = new byte[5];
+        assertEquals(1, BinaryProtocol.writeVarint(out, 0, 127));
+        assertEquals(2, BinaryProtocol.writeVarint(out, 0, 300));
+        assertArrayEquals(new byte[] {(byte) 0xac, 0x02, 0, 0, 0}, out);
+        assertEquals(5, BinaryProtocol.varintLength(-1));
+        assertEquals(3, BinaryProtocol.varintLength(1 << 14));
+    }
+
+    @Test
+    public void StrokeTest() {
+        ByteBuffer frame = BinaryProtocol.encodeStroke((byte) 1, 300, new int[] {100, 50, 99, 52}, 2);
+        assertArrayEquals(new byte[] {BinaryProtocol.FREE_DRAW, 9, 1, (byte) 0xac, 0x02, 2,
+            (byte) 0xc8, 0x01, 100, 1, 4}, bytes(frame));
+        // a hand drawn stroke moves a few pixels from point to point
+        int[] points = new int[2000];
+        for (int i = 2; i < points.length; i++) {
+            points[i] = points[i - 2] + (i % 7) - 3;
+        }
+        int length = BinaryProtocol.encodeStroke((byte) 0, 3, points, 1000).remaining();
+        assertTrue(length < 2 * 1000 + 10);
+    }
+
+    @Test
+    public void DecodeTest() throws IOException {
+        Random random = new Random(6005);
+        ArrayList<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        ArrayList<String> expected = new ArrayList<String>();
+        buffers.add(ByteBuffer.wrap("login,user=a,protocol=2\r\nbinary\n".getBytes()));
+        expected.add("login,user=a,protocol=2");
+        expected.add("binary");
+        for (int s = 0; s < 100; s++) {
+            int pointCount = random.nextInt(50);
+            int[] points = new int[pointCount * 2];
+            for (int i = 0; i < points.length; i++) {
+                points[i] = s % 10 == 0 ? random.nextInt() : random.nextInt(800);
+            }
+            byte color = (byte) random.nextInt(BinaryProtocol.COLORS.length);
+            buffers.add(BinaryProtocol.encodeStroke(color, s, points, pointCount));
+            expected.add(color + "," + s + "," + Arrays.toString(points));
+            if (s % 20 == 0) {
+                buffers.add(BinaryProtocol.encodeText("userjoined,whiteboard=b,user=u" + s));
+                expected.add("userjoined,whiteboard=b,user=u" + s);
+                // a frame of a later version
+                buffers.add(ByteBuffer.wrap(new byte[] {9, 3, 1, 2, 3}));
+            }
+        }
+        byte[] all = bytes(buffers.toArray(new ByteBuffer[0]));
+
+        Collector whole = new Collector();
+        whole.decode(all, 0, all.length);
+        assertEquals(expected, whole.messages);
+        Collector pieces = new Collector();
+        for (int i = 0; i < all.length; i++) {
+            pieces.decode(all, i, 1);
+        }
+        assertEquals(expected, pieces.messages);
+    }
+
+    @Test
+    public void MalformedTest() {
+        byte[][] frames = {
+            {BinaryProtocol.FREE_DRAW, 3, 7, 1, 0},
+            {BinaryProtocol.FREE_DRAW, 4, 0, 1, 1, 2},
+            {BinaryProtocol.FREE_DRAW, 0},
+            {BinaryProtocol.TEXT, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0x7f},
+            {BinaryProtocol.BATCH, 1, 2},
+            {BinaryProtocol.BATCH, 4, 1, BinaryProtocol.TEXT, 3, 'a'},
+            {BinaryProtocol.BATCH, 5, 1, BinaryProtocol.TEXT, 1, 'a', 'b'},
+            {BinaryProtocol.BATCH, 3, 1, BinaryProtocol.BATCH, 0},
+        };
+        for (byte[] frame : frames) {
+            Collector decoder = new Collector();
+            decoder.setBinary();
+            try {
+                decoder.decode(frame, 0, frame.length);
+                fail("decoded " + Arrays.toString(frame));
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void BatchTest() throws IOException {
+        Random random = new Random(6005);
+        ArrayList<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        ArrayList<String> expected = new ArrayList<String>();
+        buffers.add(ByteBuffer.wrap("binary\n".getBytes()));
+        expected.add("binary");
+        for (int b = 0; b < 30; b++) {
+            ByteBuffer[] frames = new ByteBuffer[random.nextInt(20)];
+            for (int f = 0; f < frames.length; f++) {
+                if (f % 5 == 4) {
+                    frames[f] = BinaryProtocol.encodeText("userjoined,whiteboard=b,user=u" + f);
+                    expected.add("userjoined,whiteboard=b,user=u" + f);
+                    continue;
+                }
+                int[] points = new int[2 * random.nextInt(40)];
+                for (int i = 0; i < points.length; i++) {
+                    points[i] = random.nextInt(800);
+                }
+                frames[f] = BinaryProtocol.encodeStroke((byte) 2, f, points, points.length / 2);
+                expected.add("2," + f + "," + Arrays.toString(points));
+            }
+            ByteBuffer batch = BinaryProtocol.encodeBatch(frames, frames.length);
+            assertEquals(0, batch.position());
+            assertEquals(BinaryProtocol.BATCH, batch.get(0));
+            buffers.add(batch);
+            buffers.add(BinaryProtocol.encodeText("alone" + b));
+            expected.add("alone" + b);
+        }
+        byte[] all = bytes(buffers.toArray(new ByteBuffer[0]));
+
+        Collector whole = new Collector();
+        whole.decode(all, 0, all.length);
+        assertEquals(expected, whole.messages);
+        Collector pieces = new Collector();
+        for (int i = 0; i < all.length; i++) {
+            pieces.decode(all, i, 1);
+        }
+        assertEquals(expected, pieces.messages);
+        Collector randomPieces = new Collector();
+        for (int i = 0; i < all.length;) {
+            int count = Math.min(1 + random.nextInt(300), all.length - i);
+            randomPieces.decode(all, i, count);
+            i += count;
+        }
+        assertEquals(expected, randomPieces.messages);
+        Collector direct = new Collector();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(all.length);
+        buffer.put(all).flip();
+        direct.decode(buffer);
+        assertEquals(expected, direct.messages);
+    }
+
+    @Test
+    public void CompressedTest() throws IOException {
+        Random random = new Random(6005);
+        ArrayList<String> expected = new ArrayList<String>();
+        ByteBuffer plain = ByteBuffer.wrap("binary\n".getBytes());
+        ByteBuffer switchLine = BinaryProtocol.encodeText(StreamCompression.SWITCH_LINE);
+        expected.add("binary");
+        expected.add("deflate");
+        Deflater deflater = StreamCompression.newDeflater(1);
+        byte[] compressed = new byte[1 << 20];
+        int length = 0;
+        for (int batch = 0; batch < 20; batch++) {
+            for (int s = 0; s < 10; s++) {
+                int[] points = new int[2 * random.nextInt(30)];
+                for (int i = 0; i < points.length; i++) {
+                    points[i] = random.nextInt(800);
+                }
+                byte[] frame = bytes(BinaryProtocol.encodeStroke((byte) 0, s, points, points.length / 2),
+                        BinaryProtocol.encodeText("userjoined,whiteboard=b,user=u" + s));
+                expected.add("0," + s + "," + Arrays.toString(points));
+                expected.add("userjoined,whiteboard=b,user=u" + s);
+                deflater.setInput(frame);
+                while (!deflater.needsInput()) {
+                    length += deflater.deflate(compressed, length, compressed.length - length, Deflater.NO_FLUSH);
+                }
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length, Deflater.SYNC_FLUSH);
+        }
+        byte[] all = bytes(plain, switchLine, ByteBuffer.wrap(compressed, 0, length));
+
+        Collector whole = new Collector();
+        whole.decode(all, 0, all.length);
+        assertEquals(expected, whole.messages);
+        assertTrue(whole.isCompressed());
+        Collector pieces = new Collector();
+        for (int i = 0; i < all.length; i++) {
+            pieces.decode(all, i, 1);
+        }
+        assertEquals(expected, pieces.messages);
+
+        Collector corrupt = new Collector();
+        corrupt.setCompressed();
+        try {
+            corrupt.decode(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}, 0, 8);
+            fail("decoded a corrupt stream");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
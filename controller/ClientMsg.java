@@ -1,5 +1,7 @@
 package controller;
 
+import java.io.IOException;
+
 /*
  * This class handles messages that are received by the server
  * Once the request string (that comes across socket from the client)
@@ -13,7 +15,17 @@ package controller;
  */
 
 public class ClientMsg extends CommonMsg {
+    // resume asked for at login to be handed a new resume token
+    public static final String NEW_SESSION = "new";
+
     private ClientMsgType msgType;
+    // protocol version asked for at login, -1 for the text protocol
+    private int protocol = -1;
+    // compression asked for at login, null for none
+    private String compression = null;
+    // resume token of the session to carry on with at login, NEW_SESSION
+    // to be handed one, null for none
+    private String resume = null;
 
     /**
      * Constructor
@@ -45,49 +57,133 @@ public class ClientMsg extends CommonMsg {
         this.msgType = type;
     }
 
+    /**
+     * Gets the protocol version the client asked for at login
+     * @return version, see BinaryProtocol, or -1 if none was asked for
+     */
+    public int getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Sets the protocol version asked for at login
+     * @param protocol version, or -1 for none
+     */
+    public void setProtocol(int protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * Gets the compression the client asked for at login
+     * @return StreamCompression.NAME, or null if none was asked for
+     */
+    public String getCompression() {
+        return compression;
+    }
+
+    /**
+     * Sets the compression asked for at login
+     * @param compression StreamCompression.NAME, or null for none
+     */
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Gets the session the client asked to carry on with at login
+     * @return resume token it was handed, NEW_SESSION if it asked for a
+     *         token, or null if it did not
+     */
+    public String getResume() {
+        return resume;
+    }
+
+    /**
+     * Sets the session to carry on with at login
+     * @param resume resume token, NEW_SESSION to ask for one, or null for none
+     */
+    public void setResume(String resume) {
+        this.resume = resume;
+    }
+
     @Override
     /**
-     * From the object creates a string representation. This
-     * string is based on the protocol that is used for communication
-     * exchanges between the client and the server
+     * Writes the text of the message. This text is based on the protocol
+     * that is used for communication exchanges between the client and the server
      * 
      * Depending on the type of the message, appropriate textual 
      * representation is created
-     * @return String String representation for the protocol message
-
+     * @param out where the text is written, without line terminator
+     * @throws IOException if out does
      */
-    public String toString() {
-        StringBuilder sb = new StringBuilder();
+    public void appendTo(Appendable out) throws IOException {
 
         switch (getType()) {
         case LOGIN:
-            sb.append("login");
-            addComma(sb);
-            addUser(sb);
+            out.append("login");
+            addComma(out);
+            addUser(out);
+            if (protocol != -1) {
+                addComma(out);
+                out.append("protocol=");
+                addInt(out, protocol);
+            }
+            if (compression != null) {
+                addComma(out);
+                out.append("compress=");
+                out.append(compression);
+            }
+            if (resume != null) {
+                addComma(out);
+                out.append("resume=");
+                out.append(resume);
+            }
             break;
         case LOGOUT:
-            sb.append("logout");
+            out.append("logout");
             break;
         case NEW_BOARD:
-            sb.append("new");
-            addComma(sb);
-            addBoard(sb);
+            out.append("new");
+            addComma(out);
+            addBoard(out);
             break;
         case OPEN_BOARD:
-            sb.append("open");
-            addComma(sb);
-            addBoard(sb);
+            out.append("open");
+            addComma(out);
+            addBoard(out);
+            // the last stroke seen of the board, when reopening it
+            if (getSeq() != -1) {
+                addComma(out);
+                addSeq(out);
+            }
             break;
         case CLOSE_BOARD:
-            sb.append("close");
+            out.append("close");
             break;
         case FREE_DRAW:
-            sb.append("freedraw");
-            addComma(sb);
-            addDraw(sb);
+            out.append("freedraw");
+            addComma(out);
+            addDraw(out);
+            break;
+        case STROKE_BEGIN:
+            out.append("strokebegin");
+            addComma(out);
+            addDraw(out);
+            break;
+        case STROKE_APPEND:
+            out.append("strokeappend");
+            addComma(out);
+            addCoordinates(out);
+            break;
+        case STROKE_END:
+            // the last points, if any were drawn since the last append
+            out.append("strokeend");
+            if (getPointCount() > 0) {
+                addComma(out);
+                addCoordinates(out);
+            }
             break;
         default:
         }
-        return sb.toString();
     }
 }
@@ -2,6 +2,8 @@ package controller;
 
 import static org.junit.Assert.assertEquals;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 import org.junit.Test;
@@ -178,5 +180,109 @@ public class ClientMsgTest {
     public void testInvalidLogout() {
         ClientMsg msg = ParseMessage.parseClientMsg("logout,whiteboard=joe");
     }
+    // Test parsing login message asking for the binary protocol, and back to text
+    @Test
+    public void testLoginWithProtocol() {
+        ClientMsg msg = ParseMessage.parseClientMsg("login,user=JohnDoe,protocol=2");
+        assertEquals (ClientMsgType.LOGIN, msg.getType());
+        assertEquals ("JohnDoe", msg.getUserName());
+        assertEquals (2, msg.getProtocol());
+        assertEquals ("login,user=JohnDoe,protocol=2", msg.toString());
+        assertEquals (-1, ParseMessage.parseClientMsg("login,user=JohnDoe").getProtocol());
+    }
+    // Invalid protocol (protocol=binary)
+    @Test (expected = RuntimeException.class)
+    public void testLoginInvalidProtocol() {
+        ClientMsg msg = ParseMessage.parseClientMsg("login,user=JohnDoe,protocol=binary");
+    }
+    // Test parsing login message asking for compression, with and without the binary protocol
+    @Test
+    public void testLoginWithCompression() {
+        ClientMsg msg = ParseMessage.parseClientMsg("login,user=JohnDoe,compress=deflate");
+        assertEquals (ClientMsgType.LOGIN, msg.getType());
+        assertEquals ("JohnDoe", msg.getUserName());
+        assertEquals (StreamCompression.NAME, msg.getCompression());
+        assertEquals ("login,user=JohnDoe,compress=deflate", msg.toString());
+        msg = ParseMessage.parseClientMsg("login,user=JohnDoe,protocol=2,compress=deflate");
+        assertEquals (2, msg.getProtocol());
+        assertEquals ("login,user=JohnDoe,protocol=2,compress=deflate", msg.toString());
+        assertEquals (null, ParseMessage.parseClientMsg("login,user=JohnDoe").getCompression());
+    }
+    // Invalid compression (compress=gzip)
+    @Test (expected = RuntimeException.class)
+    public void testLoginInvalidCompression() {
+        ClientMsg msg = ParseMessage.parseClientMsg("login,user=JohnDoe,compress=gzip");
+    }
+    // Encode into a reused buffer, one message after the other
+    @Test
+    public void testEncodeTo() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        for (String text : new String[] {"login,user=JohnDoe,protocol=2", "open,whiteboard=board1",
+                "freedraw,color=blue,size=4,coord=1:2;-3:4", "strokeend"}) {
+            ClientMsg msg = ParseMessage.parseClientMsg(text);
+            buffer.clear();
+            assertEquals (text.length(), msg.encodeTo(buffer));
+            assertEquals (text, new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII));
+        }
+    }
+    // Protocol is only asked for at login
+    @Test (expected = RuntimeException.class)
+    public void testOpenWithProtocol() {
+        ClientMsg msg = ParseMessage.parseClientMsg("open,whiteboard=board1,protocol=2");
+    }
+    // Test parsing the messages of a stroke sent as it is drawn, and back to text
+    @Test
+    public void testStroke() {
+        ClientMsg msg = ParseMessage.parseClientMsg("strokebegin,color=red,size=3,coord=1:2");
+        assertEquals (ClientMsgType.STROKE_BEGIN, msg.getType());
+        assertEquals ("red", msg.getColor());
+        assertEquals (3, msg.getLineSize());
+        assertEquals ("strokebegin,color=red,size=3,coord=1:2", msg.toString());
+        msg = ParseMessage.parseClientMsg("strokeappend,coord=3:4;5:6");
+        assertEquals (ClientMsgType.STROKE_APPEND, msg.getType());
+        assertEquals (2, msg.getPointCount());
+        assertEquals ("strokeappend,coord=3:4;5:6", msg.toString());
+        msg = ParseMessage.parseClientMsg("strokeend");
+        assertEquals (ClientMsgType.STROKE_END, msg.getType());
+        assertEquals (null, msg.getPoints());
+        assertEquals ("strokeend", msg.toString());
+        assertEquals ("strokeend,coord=7:8", ParseMessage.parseClientMsg("strokeend,coord=7:8").toString());
+    }
+    // Missing coord attribute in strokeappend
+    @Test (expected = RuntimeException.class)
+    public void testStrokeAppendMissingCoord() {
+        ClientMsg msg = ParseMessage.parseClientMsg("strokeappend");
+    }
+    // Missing color attribute in strokebegin
+    @Test (expected = RuntimeException.class)
+    public void testStrokeBeginMissingColor() {
+        ClientMsg msg = ParseMessage.parseClientMsg("strokebegin,size=3,coord=1:2");
+    }
+    // Test parsing login asking for a resume token and resuming with one,
+    // and reopening a board from a sequence number
+    @Test
+    public void testResume() {
+        ClientMsg msg = ParseMessage.parseClientMsg("login,user=JohnDoe,resume=new");
+        assertEquals (ClientMsg.NEW_SESSION, msg.getResume());
+        assertEquals ("login,user=JohnDoe,resume=new", msg.toString());
+        msg = ParseMessage.parseClientMsg("login,user=JohnDoe,protocol=3,resume=0123456789abcdef");
+        assertEquals ("0123456789abcdef", msg.getResume());
+        assertEquals ("login,user=JohnDoe,protocol=3,resume=0123456789abcdef", msg.toString());
+        assertEquals (null, ParseMessage.parseClientMsg("login,user=JohnDoe").getResume());
+        msg = ParseMessage.parseClientMsg("open,whiteboard=board1,seq=42");
+        assertEquals (42, msg.getSeq());
+        assertEquals ("open,whiteboard=board1,seq=42", msg.toString());
+        assertEquals (-1, ParseMessage.parseClientMsg("open,whiteboard=board1").getSeq());
+    }
+    // Invalid resume token (not hex)
+    @Test (expected = RuntimeException.class)
+    public void testLoginInvalidResume() {
+        ClientMsg msg = ParseMessage.parseClientMsg("login,user=JohnDoe,resume=xyz");
+    }
+    // Sequence number is only sent with open
+    @Test (expected = RuntimeException.class)
+    public void testFreeDrawWithSeq() {
+        ClientMsg msg = ParseMessage.parseClientMsg("freedraw,color=blue,size=4,coord=1:2,seq=3");
+    }
 
 }
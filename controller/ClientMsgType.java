@@ -10,4 +10,7 @@ public enum ClientMsgType {
     OPEN_BOARD,
     CLOSE_BOARD,
     FREE_DRAW,
+    STROKE_BEGIN,
+    STROKE_APPEND,
+    STROKE_END,
 }
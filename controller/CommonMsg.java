@@ -1,5 +1,13 @@
 package controller;
 
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
 /*
@@ -12,20 +20,142 @@ import java.util.ArrayList;
  * Provides get/set methods to manage all the data
  * Also provides methods (add* functions) to construct the text that is
  * used to send requests/responses across the socket to the other end
+ *
+ * The text of a message is written by appendTo() into any Appendable, or
+ * by encodeTo() as UTF-8 into a ByteBuffer the caller reuses from message
+ * to message. Neither allocates, encodeTo() goes through scratch buffers
+ * kept for each thread. toString() gives the same text, for tests and debugging
  */
-public class CommonMsg {
+public abstract class CommonMsg {
+    // scratch text of encodeTo(), one per thread
+    private static final ThreadLocal<StringBuilder> SCRATCH_TEXT = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(SCRATCH_SIZE);
+        }
+    };
+    // encodes the scratch text when it is not all ASCII, one per thread
+    private static final ThreadLocal<CharsetEncoder> SCRATCH_ENCODER = new ThreadLocal<CharsetEncoder>() {
+        @Override
+        protected CharsetEncoder initialValue() {
+            // replaces what can't be encoded, like String.getBytes()
+            return StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+    };
+    // initial size of the scratch text, it goes back to it after a large
+    // message (e.g a board list or keyframe tile) past MAX_SCRATCH_SIZE
+    private static final int SCRATCH_SIZE = 256;
+    private static final int MAX_SCRATCH_SIZE = 64 * 1024;
+
+
     private String userName = null;
     private String boardName = null;
     private String color = null;
-    // The list of coordinates are maintained in a string array
-    // Each string represents one x,y coordinate in the form x:y
-    // e.g "100:200" 
-    private ArrayList<String> coordList = null;
+    // The coordinates are maintained as ints, x and y of each point one
+    // after the other, e.g {100, 200, 300, 400} for "100:200;300:400"
+    // null when the message has no coordinates
+    private int[] points = null;
+    private int pointCount = 0;
     private int lineSize = -1;
+    // sequence number of a stroke on a board, -1 when the message has none
+    private int seq = -1;
 
     public CommonMsg() {
     }
 
+    /**
+     * Writes the text of the message, as sent across the socket
+     * @param out where the text is written, without line terminator
+     * @throws IOException if out does
+     */
+    public abstract void appendTo(Appendable out) throws IOException;
+
+    /**
+     * Writes the text of the message as UTF-8, as sent across the socket
+     * @param out buffer the text is written to at its position, without
+     *        line terminator
+     * @return number of bytes written, the position of out is moved past them
+     * @throws BufferOverflowException if out has not enough room, its
+     *         position is left unchanged then
+     */
+    public int encodeTo(ByteBuffer out) {
+        StringBuilder text = SCRATCH_TEXT.get();
+        text.setLength(0);
+        try {
+            appendTo(text);
+        }
+        catch (IOException e) {
+            // a StringBuilder does not throw
+            throw new IllegalStateException(e);
+        }
+        int start = out.position();
+        try {
+            // UTF-8 takes at least a byte for each char
+            if (text.length() > out.remaining()) throw new BufferOverflowException();
+            if (!putAscii(text, out)) {
+                out.position(start);
+                CharsetEncoder encoder = SCRATCH_ENCODER.get();
+                encoder.reset();
+                CoderResult result = encoder.encode(CharBuffer.wrap(text), out, true);
+                if (result.isOverflow() || encoder.flush(out).isOverflow()) throw new BufferOverflowException();
+            }
+        }
+        catch (BufferOverflowException e) {
+            out.position(start);
+            throw e;
+        }
+        finally {
+            if (text.capacity() > MAX_SCRATCH_SIZE) SCRATCH_TEXT.set(new StringBuilder(SCRATCH_SIZE));
+        }
+        return out.position() - start;
+    }
+
+    /**
+     * Writes text as one byte per char, stopping at the first char that is not ASCII
+     * @return true if all of text was written
+     */
+    private static boolean putAscii(StringBuilder text, ByteBuffer out) {
+        int length = text.length();
+        if (out.hasArray()) {
+            byte[] array = out.array();
+            int pos = out.arrayOffset() + out.position();
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                if (c >= 0x80) return false;
+                array[pos + i] = (byte) c;
+            }
+            out.position(out.position() + length);
+            return true;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) return false;
+            out.put((byte) c);
+        }
+        return true;
+    }
+
+    /**
+     * Gives the text of the message, the same as appendTo()
+     * Meant for tests and debugging, sending a message should go through
+     * appendTo() or encodeTo()
+     * @return message text without line terminator
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        try {
+            appendTo(sb);
+        }
+        catch (IOException e) {
+            // a StringBuilder does not throw
+            throw new IllegalStateException(e);
+        }
+        return sb.toString();
+    }
+
     /**
      * User name is returned
      * @return String user name
@@ -91,60 +221,141 @@ public class CommonMsg {
     }
 
     /**
-     * The list of coordinates are maintained in a string array
-     * Each string represents one x,y coordinate in the form x:y
-     * e.g "100:200" 
-     * @return String array
+     * Get the sequence number, the strokes of a board are numbered from 1
+     * in the order they are stored (see WhiteboardServer)
+     * @return sequence number, -1 if the message has none
+     */
+    public int getSeq () {
+        return seq;
+    }
+
+    /**
+     * Set the sequence number
+     * @param seq sequence number, -1 for none
+     */
+    public void setSeq (int seq) {
+        this.seq = seq;
+    }
+
+    /**
+     * The coordinates of drawings, x and y of each point one after the other
+     * Only the first 2 * getPointCount() ints are coordinates
+     * @return int array, null if the message has no coordinates
+     */
+    public int[] getPoints () {
+        return points;
+    }
+
+    /**
+     * Number of points in getPoints()
+     * @return int
+     */
+    public int getPointCount () {
+        return pointCount;
+    }
+
+    /**
+     * Set the coordinates of drawings. The array is kept, not copied
+     * @param points x and y of each point one after the other, null for
+     *        no coordinates
+     * @param pointCount number of points, the first 2 * pointCount ints
+     *        of points are used
+     */
+    public void setPoints (int[] points, int pointCount) {
+        if (points != null && (pointCount < 0 || pointCount * 2 > points.length))
+            throw new IllegalArgumentException("Invalid point count " + pointCount);
+        this.points = points;
+        this.pointCount = (points == null) ? 0 : pointCount;
+    }
+
+    /**
+     * The coordinates as a list of strings, each string represents one
+     * x,y coordinate in the form x:y e.g "100:200"
+     * Built from getPoints() on every call, meant for tests and debugging
+     * @return String array, null if the message has no coordinates
      */
     public ArrayList<String> getCoordinateList () {
+        if (points == null) return null;
+        ArrayList<String> coordList = new ArrayList<String>(pointCount);
+        for (int i = 0; i < pointCount; i++) {
+            coordList.add(points[2 * i] + ":" + points[2 * i + 1]);
+        }
         return coordList;
     }
 
     /**
-     * An array of strings representing the coordinates of drawings
-     * Each string in the form "x:y" represents a coordinate
-     * @param coordList Array of strings
+     * Set the coordinates from a list of strings, each string in the form
+     * "x:y" represents a coordinate
+     * @param coordList Array of strings, null for no coordinates
+     * @throws IllegalArgumentException if a string is not two ints
+     *         separated by ':'
      */
     public void setCoordinateList (ArrayList<String> coordList) {
-        this.coordList = coordList;
+        if (coordList == null) {
+            setPoints(null, 0);
+            return;
+        }
+        int[] parsed = new int[coordList.size() * 2];
+        int n = 0;
+        for (String pair : coordList) {
+            int colon = pair.indexOf(':');
+            if (colon < 0) throw new IllegalArgumentException("Invalid coordinates: " + pair);
+            try {
+                parsed[n++] = Integer.parseInt(pair.substring(0, colon));
+                parsed[n++] = Integer.parseInt(pair.substring(colon + 1));
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid coordinates: " + pair);
+            }
+        }
+        setPoints(parsed, coordList.size());
     }
 
     /**
      * Utility function that helps in creating the text message that goes across
      * the socket connection between the server and the client
      * Used to add user to the request/response text (e.g (user=joe)
-     * @param sb StringBuilder reference
+     * @param out where the text is written
      */
-    protected void addUser(StringBuilder sb) {
-        sb.append("user=");
-        sb.append(getUserName());
+    protected void addUser(Appendable out) throws IOException {
+        out.append("user=");
+        out.append(getUserName());
     }
 
     /**
      * Used to add line size to the request/response text (e.g size=10)
-     * @param sb StringBuilder reference
+     * @param out where the text is written
+     */
+    protected void addLineSize(Appendable out) throws IOException {
+        out.append("size=");
+        addInt(out, getLineSize());
+    }
+
+    /**
+     * Used to add the sequence number to the request/response text (e.g seq=42)
+     * @param out where the text is written
      */
-    protected void addLineSize(StringBuilder sb) {
-        sb.append("size=");
-        sb.append(getLineSize());
+    protected void addSeq(Appendable out) throws IOException {
+        out.append("seq=");
+        addInt(out, getSeq());
     }
 
     /**
      * Used to add color to the request/response text (e.g color=red)
-     * @param sb StringBuilder reference
+     * @param out where the text is written
      */
-    protected void addColor(StringBuilder sb) {
-        sb.append("color=");
-        sb.append(getColor());
+    protected void addColor(Appendable out) throws IOException {
+        out.append("color=");
+        out.append(getColor());
     }
 
     /**
      * Used to add whiteboard to the request/response text (e.g whiteboard=myboard)
-     * @param sb StringBuilder reference
+     * @param out where the text is written
      */
-    protected void addBoard(StringBuilder sb) {
-        sb.append("whiteboard=");
-        sb.append(getBoardName());
+    protected void addBoard(Appendable out) throws IOException {
+        out.append("whiteboard=");
+        out.append(getBoardName());
     }
 
     /**
@@ -152,69 +363,95 @@ public class CommonMsg {
      * (e.g whiteboard=myboard,user=joe)
      * Since it is common to have both these in a message, a single
      * function is provided to create both
-     * @param sb StringBuilder reference
+     * @param out where the text is written
      */
-    protected void addBoardAndUser(StringBuilder sb) {
-        addBoard(sb);
-        addComma(sb);
-        addUser(sb);
+    protected void addBoardAndUser(Appendable out) throws IOException {
+        addBoard(out);
+        addComma(out);
+        addUser(out);
     }
 
     /**
      * Constructs the draw text string 
      * e.g "color=black,size=25,coord=300:400;420:500;20:200"
-     * @param sb StringBuilder reference
+     * @param out where the text is written
      */
-    protected void addDraw(StringBuilder sb) {
-        addColor(sb);
-        addComma(sb);
-        addLineSize(sb);
-        addComma(sb);
-        addCoordinates(sb);
+    protected void addDraw(Appendable out) throws IOException {
+        addColor(out);
+        addComma(out);
+        addLineSize(out);
+        addComma(out);
+        addCoordinates(out);
     }
 
     /**
      * Used to add all the coordinates that are used in draw messages
      * sent between client and server 
      * (e.g coord=300:400;420:500;20:200)
-     *   * @param sb StringBuilder reference
+     * @param out where the text is written
      */
-    protected void addCoordinates(StringBuilder sb) {
-        ArrayList<String> list = getCoordinateList();
-        if (list == null || list.size() == 0)
+    protected void addCoordinates(Appendable out) throws IOException {
+        if (points == null || pointCount == 0)
             return; // no coordinates set
-        sb.append("coord=");
-        int nElements = list.size();
-        for (String s: list) {
-            nElements--;
-            sb.append(s);
-            if (nElements > 0) addSeminColon(sb); // don't add ';' for the last element
+        out.append("coord=");
+        for (int i = 0; i < pointCount; i++) {
+            if (i > 0) addSeminColon(out); // no ';' before the first element
+            addInt(out, points[2 * i]);
+            addColon(out);
+            addInt(out, points[2 * i + 1]);
         }
     }
 
     /**
      * Adds "," to separate key-value pairs
-     * @param sb StringBuilder reference
+     * @param out where the text is written
      */
-    protected void addComma(StringBuilder sb) {
-        sb.append(",");
+    protected void addComma(Appendable out) throws IOException {
+        out.append(',');
     }
 
     /**
      * Adds ";" to separate individual x-y coordinates in a list of coordinates
-     * @param sb StringBuilder reference
+     * @param out where the text is written
      */
-    protected void addSeminColon(StringBuilder sb) {
-        sb.append(";");
+    protected void addSeminColon(Appendable out) throws IOException {
+        out.append(';');
     }
 
     /**
      * Adds ":" to separate users in the list of uses on a whiteboard
      * that is sent from server to client
-     * @param sb StringBuilder reference
+     * @param out where the text is written
      */
-    protected void addColon(StringBuilder sb) {
-        sb.append(":");
+    protected void addColon(Appendable out) throws IOException {
+        out.append(':');
     }
 
+    /**
+     * Adds an int in decimal, without going through a String
+     * @param out where the text is written
+     * @param value int
+     */
+    protected static void addInt(Appendable out, int value) throws IOException {
+        if (out instanceof StringBuilder) {
+            // writes the digits in place
+            ((StringBuilder) out).append(value);
+            return;
+        }
+        if (value < 0) {
+            out.append('-');
+            if (value == Integer.MIN_VALUE) {
+                out.append("2147483648");
+                return;
+            }
+            value = -value;
+        }
+        int divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.append((char) ('0' + value / divisor % 10));
+        }
+    }
 }
@@ -0,0 +1,388 @@
+package controller;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/*
+ * Splits the bytes received on a connection into messages, as text lines
+ * or, once the connection has switched to the binary protocol, as frames
+ * (see BinaryProtocol). The bytes can come in pieces of any size, a message
+ * split across reads is put back together
+ *
+ * Like BufferedReader.readLine() a line is terminated by '\n', '\r' or "\r\n"
+ *
+ * Frames are decoded straight out of the bytes handed to decode(), only
+ * the start of a frame that is not all there yet is kept for the next
+ * call. The frames of a BATCH frame are decoded in place too
+ *
+ * The messages are handed to line() and stroke() as they are complete,
+ * which the user of the decoder implements. line() may switch the decoder to
+ * binary, the bytes after that line are then decoded as frames. It may also
+ * switch it to compressed, the bytes after that line are then inflated
+ * before being decoded (see StreamCompression)
+ *
+ * Not thread safe, a connection's decoder is only used by the thread that
+ * reads the connection
+ */
+public abstract class FrameDecoder {
+    // longest frame accepted, anything longer is taken as garbage
+    public static final int MAX_FRAME = 16 * 1024 * 1024;
+
+    private boolean binary = false;
+    // bytes of the message received so far
+    private byte[] pending = new byte[256];
+    private int length = 0;
+    // last line ended with '\r', ignore a following '\n'
+    private boolean skipLF = false;
+    // points of the last stroke, reused for the next one
+    private int[] points = new int[64];
+    // value of the last varint read, see readVarint()
+    private long varint;
+    // inflates the bytes received once compressed, null until then
+    private Inflater inflater = null;
+    private byte[] inflated;
+
+    /**
+     * Constructor, the decoder starts out decoding text lines
+     */
+    public FrameDecoder() {
+    }
+
+    /**
+     * A text line, or a TEXT frame, was received
+     * @param line message text without the line terminator
+     */
+    protected abstract void line(String line);
+
+    /**
+     * A FREE_DRAW frame was received
+     * @param color color code, an index in BinaryProtocol.COLORS
+     * @param lineSize line size, >= 0
+     * @param points x and y of each point one after the other, only
+     *        valid until this returns
+     * @param pointCount number of points
+     */
+    protected abstract void stroke(byte color, int lineSize, int[] points, int pointCount);
+
+    /**
+     * Decodes the bytes after the current message as frames
+     */
+    public void setBinary() {
+        this.binary = true;
+    }
+
+    /**
+     * @return true if the decoder decodes frames
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Inflates the bytes after the current message before decoding them
+     */
+    public void setCompressed() {
+        if (inflater != null) return;
+        this.inflater = StreamCompression.newInflater();
+        this.inflated = new byte[8192];
+    }
+
+    /**
+     * @return true if the decoder inflates the bytes it receives
+     */
+    public boolean isCompressed() {
+        return inflater != null;
+    }
+
+    /**
+     * Decodes received bytes, handing every message completed by them to
+     * line() or stroke()
+     * @param in the bytes, from its position to its limit, all consumed
+     * @throws IOException if a frame is malformed, the rest of the
+     *         connection can't be decoded then
+     */
+    public void decode(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            if (inflater != null) {
+                inflate(in);
+            }
+            else if (binary) {
+                decodeFrames(in);
+            }
+            else {
+                decodeLine(in);
+            }
+        }
+    }
+
+    /**
+     * Decodes received bytes, see decode(ByteBuffer)
+     * @param in array holding the bytes
+     * @param offset index of the first byte
+     * @param count number of bytes
+     * @throws IOException if a frame is malformed
+     */
+    public void decode(byte[] in, int offset, int count) throws IOException {
+        decode(ByteBuffer.wrap(in, offset, count));
+    }
+
+    /**
+     * Inflates all the bytes of in and decodes what they inflate to
+     */
+    private void inflate(ByteBuffer in) throws IOException {
+        inflater.setInput(in);
+        try {
+            while (true) {
+                int n = inflater.inflate(inflated);
+                if (n > 0) {
+                    ByteBuffer plain = ByteBuffer.wrap(inflated, 0, n);
+                    while (plain.hasRemaining()) {
+                        if (binary) {
+                            decodeFrames(plain);
+                        }
+                        else {
+                            decodeLine(plain);
+                        }
+                    }
+                }
+                else if (inflater.needsDictionary()) {
+                    StreamCompression.setDictionary(inflater);
+                }
+                else if (inflater.finished()) {
+                    throw new IOException("Compressed stream ended");
+                }
+                else {
+                    // needs more input
+                    break;
+                }
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IOException("Malformed compressed stream", e);
+        }
+        // the inflater took it all, keeping what it still needs
+        in.position(in.limit());
+    }
+
+    /**
+     * Takes bytes up to the end of a line, and hands the line to line()
+     * if it is complete. Stops after a line, it may switch the decoder to binary
+     */
+    private void decodeLine(ByteBuffer in) {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (skipLF) {
+                skipLF = false;
+                if (b == '\n') continue;
+            }
+            if (b == '\n' || b == '\r') {
+                skipLF = (b == '\r');
+                String line = new String(pending, 0, length, StandardCharsets.UTF_8);
+                length = 0;
+                line(line);
+                return;
+            }
+            if (length == pending.length) {
+                pending = Arrays.copyOf(pending, length * 2);
+            }
+            pending[length++] = b;
+        }
+    }
+
+    /**
+     * Hands the complete frames of in to line() or stroke(), and keeps the
+     * start of the next one. Stops after a frame that switches the decoder
+     * to compressed, leaving the bytes after it in in
+     */
+    private void decodeFrames(ByteBuffer in) throws IOException {
+        boolean compressed = inflater != null;
+        // first the frame started in an earlier call, taking only its bytes
+        while (length > 0 && in.hasRemaining()) {
+            append(in, Math.min(missingBytes(), in.remaining()));
+            if (decodePending(compressed)) return;
+        }
+        if (!in.hasRemaining()) return;
+        if (!in.hasArray()) {
+            append(in, in.remaining());
+            decodePending(compressed);
+            return;
+        }
+        // then the frames of in where they are
+        int offset = in.arrayOffset();
+        int pos = decodeFrames(in.array(), offset + in.position(), offset + in.limit(), compressed);
+        in.position(pos - offset);
+        if (!compressed && inflater != null) return;
+        append(in, in.remaining());
+    }
+
+    /**
+     * Hands the complete frames of the pending bytes to line() or stroke(),
+     * and keeps the start of the next one
+     * @param compressed true if the decoder was compressed before
+     * @return true if a frame switched the decoder to compressed, the
+     *         bytes after it having been inflated
+     */
+    private boolean decodePending(boolean compressed) throws IOException {
+        int pos = decodeFrames(pending, 0, length, compressed);
+        System.arraycopy(pending, pos, pending, 0, length - pos);
+        length -= pos;
+        if (compressed || inflater == null) return false;
+        byte[] rest = Arrays.copyOf(pending, length);
+        length = 0;
+        inflate(ByteBuffer.wrap(rest));
+        return true;
+    }
+
+    /**
+     * @return bytes to add to the pending start of a frame to complete it,
+     *         or at least its header, > 0
+     */
+    private int missingBytes() throws IOException {
+        int end = frameEnd(pending, 0, length);
+        if (end < 0) return BinaryProtocol.MAX_HEADER - length;
+        return end - length;
+    }
+
+    /**
+     * Finds where the frame starting at pos ends, and where its payload
+     * starts (left in varint)
+     * @return index after the frame, which may be past limit, -1 if the
+     *         frame header is not all there
+     */
+    private int frameEnd(byte[] buf, int pos, int limit) throws IOException {
+        long frameLength = 0;
+        int shift = 0;
+        pos++;
+        while (pos < limit) {
+            byte b = buf[pos++];
+            frameLength |= (long) (b & 0x7f) << shift;
+            shift += 7;
+            if ((b & 0x80) == 0) {
+                if (frameLength > MAX_FRAME) throw new IOException("Frame too long: " + frameLength);
+                varint = pos;
+                return pos + (int) frameLength;
+            }
+            if (shift > 28) throw new IOException("Malformed frame length");
+        }
+        return -1;
+    }
+
+    /**
+     * Hands the complete frames of buf from pos to limit to line() or
+     * stroke(), stopping after one that switches the decoder to compressed
+     * @param compressed true if the decoder was compressed before
+     * @return index after the last frame decoded
+     */
+    private int decodeFrames(byte[] buf, int pos, int limit, boolean compressed) throws IOException {
+        while (pos < limit) {
+            int end = frameEnd(buf, pos, limit);
+            if (end < 0 || end > limit) break;
+            byte type = buf[pos];
+            decodeFrame(buf, type, (int) varint, end);
+            pos = end;
+            if (!compressed && inflater != null) break;
+        }
+        return pos;
+    }
+
+    /**
+     * Decodes one frame, its payload being in buf from pos to end
+     */
+    private void decodeFrame(byte[] buf, byte type, int pos, int end) throws IOException {
+        if (type == BinaryProtocol.TEXT) {
+            line(new String(buf, pos, end - pos, StandardCharsets.UTF_8));
+        }
+        else if (type == BinaryProtocol.FREE_DRAW) {
+            decodeStroke(buf, pos, end);
+        }
+        else if (type == BinaryProtocol.BATCH) {
+            decodeBatch(buf, pos, end);
+        }
+        // any other type is skipped, it is from a later version
+    }
+
+    /**
+     * Decodes the frames of the BATCH frame in buf from pos to end
+     */
+    private void decodeBatch(byte[] buf, int pos, int end) throws IOException {
+        pos = readVarint(buf, pos, end);
+        long count = varint;
+        for (long i = 0; i < count; i++) {
+            if (pos == end) throw new IOException("Malformed batch");
+            int frameEnd = frameEnd(buf, pos, end);
+            if (frameEnd < 0 || frameEnd > end) throw new IOException("Malformed batch");
+            byte type = buf[pos];
+            if (type == BinaryProtocol.BATCH) throw new IOException("Batch in a batch");
+            decodeFrame(buf, type, (int) varint, frameEnd);
+            pos = frameEnd;
+        }
+        if (pos != end) throw new IOException("Malformed batch");
+    }
+
+    /**
+     * Decodes the FREE_DRAW frame in buf from pos to end
+     */
+    private void decodeStroke(byte[] buf, int pos, int end) throws IOException {
+        if (pos == end) throw new IOException("Malformed stroke");
+        byte color = buf[pos++];
+        if (color < 0 || color >= BinaryProtocol.COLORS.length) {
+            throw new IOException("Invalid color code " + color);
+        }
+        pos = readVarint(buf, pos, end);
+        if (varint > Integer.MAX_VALUE) throw new IOException("Malformed stroke");
+        int lineSize = (int) varint;
+        pos = readVarint(buf, pos, end);
+        // every point takes at least two bytes
+        if (varint > (end - pos) / 2) throw new IOException("Malformed stroke");
+        int pointCount = (int) varint;
+        if (points.length < pointCount * 2) {
+            points = new int[pointCount * 2];
+        }
+        int x = 0;
+        int y = 0;
+        for (int p = 0; p < pointCount; p++) {
+            pos = readVarint(buf, pos, end);
+            x += BinaryProtocol.unzigzag((int) varint);
+            pos = readVarint(buf, pos, end);
+            y += BinaryProtocol.unzigzag((int) varint);
+            points[2 * p] = x;
+            points[2 * p + 1] = y;
+        }
+        if (pos != end) throw new IOException("Malformed stroke");
+        stroke(color, lineSize, points, pointCount);
+    }
+
+    /**
+     * Reads an unsigned varint of up to 32 bits into varint
+     * @return index after the varint
+     */
+    private int readVarint(byte[] buf, int pos, int end) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (pos == end) throw new IOException("Malformed stroke");
+            byte b = buf[pos++];
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (result > 0xffffffffL) throw new IOException("Malformed stroke");
+                varint = result;
+                return pos;
+            }
+        }
+        throw new IOException("Malformed stroke");
+    }
+
+    /**
+     * Adds count bytes from in to the pending bytes
+     */
+    private void append(ByteBuffer in, int count) {
+        if (length + count > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(length + count, pending.length * 2));
+        }
+        in.get(pending, length, count);
+        length += count;
+    }
+}
@@ -0,0 +1,107 @@
+package controller;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/*
+ * Stand alone benchmark of encoding free draw messages, with toString()
+ * and getBytes() and with encodeTo() into a reused buffer
+ * It is not a unit test, run it from the command line:
+ *
+ *   java controller.MessageEncodeBenchmark --messages=200000 --points=50
+ *
+ * --messages random free draw messages of --points points each are encoded
+ * both ways, a few rounds to warm up the JIT then measured. For each the
+ * time and the heap allocated per message are reported
+ */
+public class MessageEncodeBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    private int messages = 200000;
+    private int points = 50;
+    // keeps the encoded bytes used so the encoding can't be optimized away
+    private long checksum;
+
+    /**
+     * Main method, see the class comment for the options
+     * @param args command line options
+     */
+    public static void main(String[] args) {
+        MessageEncodeBenchmark bench = new MessageEncodeBenchmark();
+        for (String arg : args) {
+            String[] tokens = arg.split("=");
+            switch (tokens[0]) {
+            case "--messages":
+                bench.messages = Integer.parseInt(tokens[1]);
+                break;
+            case "--points":
+                bench.points = Integer.parseInt(tokens[1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        bench.run();
+    }
+
+    private void run() {
+        ServerMsg[] msgs = randomMessages();
+        ByteBuffer buffer = ByteBuffer.allocate(16 * points + 64);
+        for (int round = 0; round < ROUNDS; round++) {
+            boolean measured = round == ROUNDS - 1;
+            System.out.println(measured ? "measured" : "warm up");
+            for (int reused = 0; reused < 2; reused++) {
+                long before = threadAllocatedBytes();
+                long start = System.nanoTime();
+                for (ServerMsg msg : msgs) {
+                    if (reused == 1) {
+                        buffer.clear();
+                        checksum += msg.encodeTo(buffer);
+                    }
+                    else {
+                        checksum += (msg.toString() + "\n").getBytes(StandardCharsets.UTF_8).length;
+                    }
+                }
+                long nanos = System.nanoTime() - start;
+                long bytes = threadAllocatedBytes() - before;
+                System.out.printf("%-18s %8.0f ns per message %10.1f bytes allocated per message%n",
+                        reused == 1 ? "encodeTo()" : "toString()",
+                        (double) nanos / messages, (double) bytes / messages);
+            }
+        }
+        if (checksum == 0) System.out.println();
+    }
+
+    private ServerMsg[] randomMessages() {
+        Random random = new Random(42);
+        ServerMsg[] msgs = new ServerMsg[messages];
+        for (int m = 0; m < messages; m++) {
+            ServerMsg msg = new ServerMsg(ServerMsgType.FREE_DRAW);
+            msg.setColor("black");
+            msg.setLineSize(1 + random.nextInt(20));
+            int[] coords = new int[2 * points];
+            for (int i = 0; i < coords.length; i += 2) {
+                coords[i] = random.nextInt(800);
+                coords[i + 1] = random.nextInt(600);
+            }
+            msg.setPoints(coords, points);
+            msgs[m] = msg;
+        }
+        return msgs;
+    }
+
+    /**
+     * @return bytes allocated so far by the current thread, 0 if the JVM can't tell
+     */
+    private static long threadAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
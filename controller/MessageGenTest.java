@@ -131,4 +131,14 @@ public class MessageGenTest {
         msg.setBoardName("myboard");
         assert(msg.toString().equals(expected));
     }
+    // test generation of user joined message from ServerMsg object
+    @Test
+    public void testUserJoinedMsg() {
+        String expected = "userjoined,whiteboard=myboard,user=alex";
+        ServerMsg msg = new ServerMsg();
+        msg.setType(ServerMsgType.USER_JOINED);
+        msg.setBoardName("myboard");
+        msg.setUserName("alex");
+        assert(msg.toString().equals(expected));
+    }
 }
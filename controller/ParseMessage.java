@@ -3,6 +3,7 @@ package controller;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.regex.Pattern;
 
@@ -17,87 +18,133 @@ import java.util.regex.Pattern;
  */
 public class ParseMessage {
 
-    // Pre-compiled regex patterns
+    // Pre-compiled regex patterns, for the messages that are rare enough
+    // (board lists and keyframes) to not be worth parsing by hand
     static Pattern patternName = Pattern.compile("[A-Za-z]([A-Za-z0-9]{0,14})");
-    static Pattern patternNum = Pattern.compile("[0-9]+");
-    static Pattern patternCoordPair = Pattern.compile("[+-]?[0-9]+:[+-]?[0-9]+");
+    static Pattern patternTile = Pattern.compile("[0-9]{1,9}:[0-9]{1,9}");
     // valid color list
     static String[] validcolors = {"red", "blue", "green", "yellow", "black", "white"};
+    // longest name, see isValidName()
+    private static final int MAX_NAME_LENGTH = 15;
+    // longest resume token, see isValidToken()
+    private static final int MAX_TOKEN_LENGTH = 32;
+
+    /*
+     * Requests and the key value pairs of most messages are parsed in a
+     * single pass over the message, without splitting it into strings or
+     * matching regexes: a free draw with hundreds of points comes for every
+     * mouse drag. The only strings made are the names kept in the message,
+     * coordinates go straight into an int array
+     *
+     * Messages are accepted and rejected, with the same errors, exactly as
+     * when they were parsed with String.split(): in particular separators at
+     * the end of the message, of a key value pair or of the coordinates are
+     * ignored (split() drops the empty strings after them), while empty
+     * tokens anywhere else are errors, and a message only made of separators
+     * is an unknown request. ParseMessageTest checks the two parsers agree
+     *
+     * Requests are parsed from any CharSequence, so a caller can parse a
+     * line out of a buffer it reuses instead of making a String of it
+     */
+
     /**
      * This method parses messages received by the server from the client
      * Encapsulates message in a ClientMsg object.
      * 
-     * @param input request string
+     * @param input request, not changed while it is parsed
      * @return
      * @throws RuntimeException
      */
-    public static ClientMsg parseClientMsg(String input) throws RuntimeException {
+    public static ClientMsg parseClientMsg(CharSequence input) throws RuntimeException {
         ClientMsg msg = new ClientMsg();
 
         // key value pairs are separated by ','
-        String[] tokens = input.split(",");
-        String reqType = tokens[0]; // first token defines the request type
-        switch (reqType) {
-        case "login" : 
-            msg.setType(ClientMsgType.LOGIN); 
-            break;
-        case "logout" : 
-            msg.setType(ClientMsgType.LOGOUT); 
-            break;
-        case "new" : 
-            msg.setType(ClientMsgType.NEW_BOARD); 
-            break;
-        case "open" : 
-            msg.setType(ClientMsgType.OPEN_BOARD); 
-            break;
-        case "close" : 
-            msg.setType(ClientMsgType.CLOSE_BOARD); 
-            break;
-        case "freedraw" : 
-            msg.setType(ClientMsgType.FREE_DRAW); 
-            break;
-        default : 
-            throw new RuntimeException("Unknown request: " + tokens[0]);
-
+        int end = messageEnd(input);
+        // first token defines the request type
+        int typeEnd = indexOf(input, ',', 0, end);
+        ClientMsgType type;
+        if (isToken(input, 0, typeEnd, "login")) {
+            type = ClientMsgType.LOGIN;
+        }
+        else if (isToken(input, 0, typeEnd, "logout")) {
+            type = ClientMsgType.LOGOUT;
+        }
+        else if (isToken(input, 0, typeEnd, "new")) {
+            type = ClientMsgType.NEW_BOARD;
+        }
+        else if (isToken(input, 0, typeEnd, "open")) {
+            type = ClientMsgType.OPEN_BOARD;
         }
+        else if (isToken(input, 0, typeEnd, "close")) {
+            type = ClientMsgType.CLOSE_BOARD;
+        }
+        else if (isToken(input, 0, typeEnd, "freedraw")) {
+            type = ClientMsgType.FREE_DRAW;
+        }
+        else if (isToken(input, 0, typeEnd, "strokebegin")) {
+            type = ClientMsgType.STROKE_BEGIN;
+        }
+        else if (isToken(input, 0, typeEnd, "strokeappend")) {
+            type = ClientMsgType.STROKE_APPEND;
+        }
+        else if (isToken(input, 0, typeEnd, "strokeend")) {
+            type = ClientMsgType.STROKE_END;
+        }
+        else {
+            throw new RuntimeException("Unknown request: " + input.subSequence(0, typeEnd).toString());
+        }
+        msg.setType(type);
         // If there are more tokens, process them as key value pairs
-        for (int i = 1; i < tokens.length; i++) {
-            processKeyValue(msg, tokens[i]);
+        int tokens = processKeyValues(msg, input, typeEnd, end);
+        // only a board being reopened comes with a sequence number
+        if (msg.getSeq() != -1 && type != ClientMsgType.OPEN_BOARD) {
+            throw new RuntimeException("Invalid attributes present");
         }
 
         // Now make sure required fields are present 
-        switch (reqType) {
-        case "login" :
+        switch (type) {
+        case LOGIN :
             if (msg.getUserName() == null) {
                 throw new RuntimeException("user name missing"); 
             }
-            if (tokens.length != 2) {
+            // the user name, and the protocol, compression and resume if asked for
+            if (tokens != 2 + (msg.getProtocol() == -1 ? 0 : 1) + (msg.getCompression() == null ? 0 : 1)
+                    + (msg.getResume() == null ? 0 : 1)) {
                 throw new RuntimeException("Invalid attributes present"); 
             }
             break;
-        case "new":
-        case "open":
+        case NEW_BOARD:
+        case OPEN_BOARD:
             if (msg.getBoardName() == null) {
                 throw new RuntimeException("whiteboard name missing"); 
             }
-            if (tokens.length != 2) {
+            // a board is reopened from the last stroke seen
+            if (tokens != 2 + (type == ClientMsgType.OPEN_BOARD && msg.getSeq() != -1 ? 1 : 0)) {
                 throw new RuntimeException("Invalid attributes present"); 
             }
             break;
-        case "close":
-        case "logout":
-            if (tokens.length != 1) {
-                throw new RuntimeException("tokens other than " + reqType + " present");
+        case CLOSE_BOARD:
+        case LOGOUT:
+            if (tokens != 1) {
+                throw new RuntimeException("tokens other than " + input.subSequence(0, typeEnd) + " present");
             }
             break;
-        case "freedraw":
+        case FREE_DRAW:
+        case STROKE_BEGIN:
             if (msg.getColor() == null)
                 throw new RuntimeException("Missing color attribute");
             if (msg.getLineSize() == -1)
                 throw new RuntimeException("Missing line size attribute");
-            if (msg.getCoordinateList() == null)
+            if (msg.getPoints() == null)
+                throw new RuntimeException("Missing coord attribute");
+            break;
+        case STROKE_APPEND:
+            if (msg.getPoints() == null)
                 throw new RuntimeException("Missing coord attribute");
             break;
+        case STROKE_END:
+            // the coordinates are optional
+            break;
 
         }
         return msg;
@@ -114,8 +161,9 @@ public class ParseMessage {
     public static ServerMsg parseServerMsg(String input) throws RuntimeException {
         ServerMsg msg = new ServerMsg();
 
-        String[] tokens = input.split(",");
-        String reqType = tokens[0];
+        int end = messageEnd(input);
+        int typeEnd = indexOf(input, ',', 0, end);
+        String reqType = input.substring(0, typeEnd);
         switch (reqType) {
         case "freedraw" : 
             msg.setType(ServerMsgType.FREE_DRAW); 
@@ -135,72 +183,304 @@ public class ParseMessage {
         case "boardnotexists":
             msg.setType(ServerMsgType.BOARD_NOT_EXIST);
             break;
+        case "boardcreated":
+            msg.setType(ServerMsgType.BOARD_CREATED);
+            break;
+        case "boardremoved":
+            msg.setType(ServerMsgType.BOARD_REMOVED);
+            break;
+        case "userjoined":
+            msg.setType(ServerMsgType.USER_JOINED);
+            break;
+        case "userleft":
+            msg.setType(ServerMsgType.USER_LEFT);
+            break;
+        case "keyframe":
+            msg.setType(ServerMsgType.KEYFRAME);
+            break;
+        case "strokebegin":
+            msg.setType(ServerMsgType.STROKE_BEGIN);
+            break;
+        case "strokeappend":
+            msg.setType(ServerMsgType.STROKE_APPEND);
+            break;
+        case "strokeend":
+            msg.setType(ServerMsgType.STROKE_END);
+            break;
+        case "session":
+            msg.setType(ServerMsgType.SESSION);
+            break;
+        case "seq":
+            msg.setType(ServerMsgType.SEQUENCE);
+            break;
         default : 
-            throw new RuntimeException("Unknown request: " + tokens[0]);
+            throw new RuntimeException("Unknown request: " + reqType);
 
         }
 
         if (reqType.equals("boardlist")) {
             processBoardList(msg, input);
         }
+        else if (reqType.equals("keyframe")) {
+            processKeyframe(msg, input.split(","));
+        }
         else {
-            for (int i = 1; i < tokens.length; i++) {
-                processKeyValue(msg, tokens[i]);
-            }
+            processKeyValues(msg, input, typeEnd, end);
         }
 
         return msg;
     }
+
+    /**
+     * Finds the end of a message without the ',' at its end, if any
+     * A message only made of ',' is then empty, an unknown request
+     * 
+     * @param input message string
+     * @return index after the last token
+     */
+    private static int messageEnd(CharSequence input) {
+        int end = input.length();
+        while (end > 0 && input.charAt(end - 1) == ',') {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Processes the key value pairs following the first token of a message
+     * 
+     * @param msg CommonMsg
+     * @param input message string
+     * @param pos index of the ',' ending the first token, or end
+     * @param end end of the message, see messageEnd()
+     * @return number of tokens of the message, the first one included
+     * @throws RuntimeException
+     */
+    private static int processKeyValues(CommonMsg msg, CharSequence input, int pos, int end)
+            throws RuntimeException {
+        int tokens = 1;
+        while (pos < end) {
+            int tokenEnd = indexOf(input, ',', pos + 1, end);
+            processKeyValue(msg, input, pos + 1, tokenEnd);
+            tokens++;
+            pos = tokenEnd;
+        }
+        return tokens;
+    }
+
     /**
      * Processes common key-value pairs (common to both server and client messages)
      * 
      * @param msg CommonMsg
-     * @param str String
+     * @param input message string
+     * @param start index of the key value pair in input
+     * @param end index after the pair
      * @throws RuntimeException
      */
-    private static void processKeyValue (CommonMsg msg, String str) throws RuntimeException {
+    private static void processKeyValue (CommonMsg msg, CharSequence input, int start, int end)
+            throws RuntimeException {
 
-        String[] tokens = str.split("=");
-        if (tokens.length != 2) { // not a key=value pair
+        // '=' at the end are ignored
+        int valueEnd = end;
+        while (valueEnd > start && input.charAt(valueEnd - 1) == '=') {
+            valueEnd--;
+        }
+        int equals = indexOf(input, '=', start, valueEnd);
+        if (equals == valueEnd || indexOf(input, '=', equals + 1, valueEnd) != valueEnd) {
+            // not a key=value pair
             throw new RuntimeException ("not a key value pair");
         }
+        int value = equals + 1;
 
-        switch (tokens[0]) {
-        case "whiteboard" :
-            if (!patternName.matcher(tokens[1]).matches())  
+        if (isToken(input, start, equals, "whiteboard")) {
+            if (!isValidName(input, value, valueEnd))
                 throw new RuntimeException("Invalid board name");
-            msg.setBoardName(tokens[1]);
-            break;
-        case "color":
-            if (! Arrays.asList(validcolors).contains(tokens[1]) )
+            msg.setBoardName(input.subSequence(value, valueEnd).toString());
+        }
+        else if (isToken(input, start, equals, "color")) {
+            String color = null;
+            for (String valid : validcolors) {
+                if (isToken(input, value, valueEnd, valid)) color = valid;
+            }
+            if (color == null)
                 throw new RuntimeException("Invalid color");
-            msg.setColor(tokens[1]);
-            break;
-        case "user":
-            if (!patternName.matcher(tokens[1]).matches())  
+            msg.setColor(color);
+        }
+        else if (isToken(input, start, equals, "user")) {
+            if (!isValidName(input, value, valueEnd))
                 throw new RuntimeException("Invalid user name");
-            msg.setUserName(tokens[1]);
-            break;
-        case "size":
-            if (!patternNum.matcher(tokens[1]).matches())  
-                throw new RuntimeException("Invalid size");
-            msg.setLineSize(Integer.parseInt(tokens[1]));
-            break;
-        case "coord":
-            String[] coordinates = tokens[1].split(";");
-            ArrayList<String> coordList = new ArrayList<String>();
-            for (int i=0; i < coordinates.length; i++) {
-                // Check each of the coordinate pairs are in proper form number:number
-                if (!patternCoordPair.matcher(coordinates[i]).matches())  
-                    throw new RuntimeException("Invalid coordinates");
-                coordList.add(coordinates[i]);
+            msg.setUserName(input.subSequence(value, valueEnd).toString());
+        }
+        else if (isToken(input, start, equals, "size")) {
+            msg.setLineSize(parseNumber(input, value, valueEnd, "Invalid size"));
+        }
+        else if (isToken(input, start, equals, "protocol") && msg instanceof ClientMsg) {
+            // only clients ask for a protocol, see BinaryProtocol
+            ((ClientMsg) msg).setProtocol(parseNumber(input, value, valueEnd, "Invalid protocol"));
+        }
+        else if (isToken(input, start, equals, "compress") && msg instanceof ClientMsg) {
+            // see StreamCompression
+            if (!isToken(input, value, valueEnd, StreamCompression.NAME))
+                throw new RuntimeException("Invalid compression");
+            ((ClientMsg) msg).setCompression(StreamCompression.NAME);
+        }
+        else if (isToken(input, start, equals, "seq")) {
+            msg.setSeq(parseNumber(input, value, valueEnd, "Invalid sequence number"));
+        }
+        else if (isToken(input, start, equals, "resume") && msg instanceof ClientMsg) {
+            // see ClientMsg.getResume()
+            if (!isToken(input, value, valueEnd, ClientMsg.NEW_SESSION) && !isValidToken(input, value, valueEnd))
+                throw new RuntimeException("Invalid resume token");
+            ((ClientMsg) msg).setResume(input.subSequence(value, valueEnd).toString());
+        }
+        else if (isToken(input, start, equals, "token") && msg instanceof ServerMsg) {
+            if (!isValidToken(input, value, valueEnd))
+                throw new RuntimeException("Invalid resume token");
+            ((ServerMsg) msg).setToken(input.subSequence(value, valueEnd).toString());
+        }
+        else if (isToken(input, start, equals, "coord")) {
+            parseCoordinates(msg, input, value, valueEnd);
+        }
+        else {
+            throw new RuntimeException("Unknown key: " + input.subSequence(start, equals).toString());
+        }
+    }
+
+    /**
+     * Parses a number of one or more digits, e.g a line size
+     * @param error message of the exception thrown if it is not a number
+     * @throws RuntimeException if it is not a number
+     * @throws NumberFormatException if it does not fit in an int
+     */
+    private static int parseNumber(CharSequence input, int start, int end, String error) throws RuntimeException {
+        if (start == end) throw new RuntimeException(error);
+        long size = 0;
+        for (int i = start; i < end; i++) {
+            char c = input.charAt(i);
+            if (c < '0' || c > '9') throw new RuntimeException(error);
+            // stop growing once too large, the digits are still checked
+            if (size <= Integer.MAX_VALUE) size = size * 10 + (c - '0');
+        }
+        if (size > Integer.MAX_VALUE) {
+            // throws the same exception as before
+            return Integer.parseInt(input.subSequence(start, end).toString());
+        }
+        return (int) size;
+    }
+
+    /**
+     * Parses coordinates, pairs of numbers number:number separated by ';'
+     * with any ';' at the end ignored, into the points of msg
+     * @throws RuntimeException if a pair is not of the form number:number
+     *         or a number does not fit in an int
+     */
+    private static void parseCoordinates(CommonMsg msg, CharSequence input, int start, int end)
+            throws RuntimeException {
+        while (end > start && input.charAt(end - 1) == ';') {
+            end--;
+        }
+        // a pair takes at least 4 characters with its ';', the array is
+        // rarely grown
+        int[] points = new int[Math.max(2, (end - start + 1) / 4 * 2)];
+        int n = 0;
+        int pos = start;
+        while (pos < end) {
+            int pairEnd = indexOf(input, ';', pos, end);
+            // Check each of the coordinate pairs are in proper form number:number
+            int colon = skipNumber(input, pos, pairEnd);
+            if (colon < 0 || colon == pairEnd || input.charAt(colon) != ':'
+                    || skipNumber(input, colon + 1, pairEnd) != pairEnd)
+                throw new RuntimeException("Invalid coordinates");
+            if (n + 2 > points.length) {
+                points = Arrays.copyOf(points, points.length * 2);
             }
-            msg.setCoordinateList(coordList);
-            break;
+            points[n++] = parseCoordinate(input, pos, colon);
+            points[n++] = parseCoordinate(input, colon + 1, pairEnd);
+            pos = pairEnd + 1;
+        }
+        msg.setPoints(points, n / 2);
+    }
+
+    /**
+     * Parses a number with an optional sign, already checked by skipNumber()
+     * @throws RuntimeException if it does not fit in an int
+     */
+    private static int parseCoordinate(CharSequence input, int start, int end) throws RuntimeException {
+        char sign = input.charAt(start);
+        boolean negative = sign == '-';
+        if (sign == '+' || sign == '-') start++;
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + (input.charAt(i) - '0');
+            if (value > Integer.MAX_VALUE + 1L) throw new RuntimeException("Invalid coordinates");
+        }
+        if (negative) value = -value;
+        if (value > Integer.MAX_VALUE) throw new RuntimeException("Invalid coordinates");
+        return (int) value;
+    }
 
-        default:
-            throw new RuntimeException("Unknown key: " + tokens[0]);
+    /**
+     * Skips a number with an optional sign
+     * @return index after the number, or -1 if there is no number at pos
+     */
+    private static int skipNumber(CharSequence input, int pos, int end) {
+        int digits = pos;
+        if (digits < end && (input.charAt(digits) == '+' || input.charAt(digits) == '-')) {
+            digits++;
         }
+        int i = digits;
+        while (i < end && input.charAt(i) >= '0' && input.charAt(i) <= '9') {
+            i++;
+        }
+        return i == digits ? -1 : i;
+    }
+
+    /**
+     * @return index of the first c in input from start to end, or end if there is none
+     */
+    private static int indexOf(CharSequence input, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (input.charAt(i) == c) return i;
+        }
+        return end;
+    }
+
+    /**
+     * @return true if input from start to end is the word
+     */
+    private static boolean isToken(CharSequence input, int start, int end, String word) {
+        if (end - start != word.length()) return false;
+        for (int i = 0; i < word.length(); i++) {
+            if (input.charAt(start + i) != word.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks a user or board name: a letter followed by up to 14 letters or digits
+     * @return true if input from start to end is a valid name
+     */
+    private static boolean isValidName(CharSequence input, int start, int end) {
+        if (end - start < 1 || end - start > MAX_NAME_LENGTH) return false;
+        for (int i = start; i < end; i++) {
+            char c = input.charAt(i);
+            boolean letter = (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+            if (!letter && (i == start || c < '0' || c > '9')) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks a resume token: 1 to MAX_TOKEN_LENGTH lower case hex digits
+     * @return true if input from start to end is a valid token
+     */
+    private static boolean isValidToken(CharSequence input, int start, int end) {
+        if (end - start < 1 || end - start > MAX_TOKEN_LENGTH) return false;
+        for (int i = start; i < end; i++) {
+            char c = input.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+        }
+        return true;
     }
 
     /**
@@ -246,6 +526,36 @@ public class ParseMessage {
         msg.setBoardCollaboratorsList(map);
     }
 
+    /**
+     * Processes a keyframe tile sent by the server, the part of the board's
+     * picture at the given position (e.g keyframe,tile=256:0,png=iVBORw0KGgo...)
+     * 
+     * @param msg ServerMsg
+     * @param tokens the message split at ','
+     * @throws RuntimeException
+     */
+    private static void processKeyframe(ServerMsg msg, String[] tokens) throws RuntimeException {
+        if (tokens.length != 3) {
+            throw new RuntimeException("Invalid keyframe");
+        }
+        String[] tile = tokens[1].split("=");
+        if (tile.length != 2 || !tile[0].equals("tile") || !patternTile.matcher(tile[1]).matches()) {
+            throw new RuntimeException("Invalid tile");
+        }
+        String[] xy = tile[1].split(":");
+        msg.setTile(Integer.parseInt(xy[0]), Integer.parseInt(xy[1]));
+
+        String[] png = tokens[2].split("=");
+        if (png.length != 2 || !png[0].equals("png")) {
+            throw new RuntimeException("Missing image");
+        }
+        try {
+            msg.setImage(Base64.getDecoder().decode(png[1]));
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Invalid image");
+        }
+    }
+
     /**
      * Utility routine to be used by the GUI to parse
      * the input user name and board name
@@ -254,9 +564,6 @@ public class ParseMessage {
      * @return true/false boolean
      */
     public static boolean isValidName(String name) {
-        if (patternName.matcher(name).matches())
-            return true;
-        return false;
-
+        return isValidName(name, 0, name.length());
     }
 }
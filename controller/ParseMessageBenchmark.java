@@ -0,0 +1,104 @@
+package controller;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+/*
+ * Stand alone benchmark of parsing free draw requests with ParseMessage
+ * It is not a unit test, run it from the command line:
+ *
+ *   java controller.ParseMessageBenchmark --messages=200000 --points=50 [--builder]
+ *
+ * --messages random free draw requests of --points points each are parsed
+ * from Strings, or from StringBuilders with --builder (any CharSequence is
+ * parsed, one kind per run so the JIT only ever sees one), a few rounds to
+ * warm up the JIT then measured. For each round the time and the heap
+ * allocated per message are reported. The allocation
+ * includes the message kept (the ClientMsg, its coordinate list and strings)
+ */
+public class ParseMessageBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    private int messages = 200000;
+    private int points = 50;
+    private boolean builder = false;
+    // keeps the parsed messages reachable so the parsing can't be optimized away
+    private int checksum;
+
+    /**
+     * Main method, see the class comment for the options
+     * @param args command line options
+     */
+    public static void main(String[] args) {
+        ParseMessageBenchmark bench = new ParseMessageBenchmark();
+        for (String arg : args) {
+            String[] tokens = arg.split("=");
+            switch (tokens[0]) {
+            case "--messages":
+                bench.messages = Integer.parseInt(tokens[1]);
+                break;
+            case "--points":
+                bench.points = Integer.parseInt(tokens[1]);
+                break;
+            case "--builder":
+                bench.builder = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        bench.run();
+    }
+
+    private void run() {
+        CharSequence[] inputs = randomRequests();
+        if (builder) {
+            for (int m = 0; m < messages; m++) {
+                inputs[m] = new StringBuilder(inputs[m]);
+            }
+        }
+        for (int round = 0; round < ROUNDS; round++) {
+            boolean measured = round == ROUNDS - 1;
+            long before = threadAllocatedBytes();
+            long start = System.nanoTime();
+            for (CharSequence input : inputs) {
+                ClientMsg msg = ParseMessage.parseClientMsg(input);
+                checksum += msg.getPointCount();
+            }
+            long nanos = System.nanoTime() - start;
+            long bytes = threadAllocatedBytes() - before;
+            System.out.printf("%-8s %8.0f ns per message %10.1f bytes allocated per message%n",
+                    measured ? "measured" : "warm up",
+                    (double) nanos / messages, (double) bytes / messages);
+        }
+        if (checksum == 0) System.out.println();
+    }
+
+    private CharSequence[] randomRequests() {
+        Random random = new Random(42);
+        CharSequence[] inputs = new CharSequence[messages];
+        for (int m = 0; m < messages; m++) {
+            StringBuilder input = new StringBuilder("freedraw,color=black,size=");
+            input.append(1 + random.nextInt(20)).append(",coord=");
+            for (int p = 0; p < points; p++) {
+                if (p > 0) input.append(';');
+                input.append(random.nextInt(800)).append(':').append(random.nextInt(600));
+            }
+            inputs[m] = input.toString();
+        }
+        return inputs;
+    }
+
+    /**
+     * @return bytes allocated so far by the current thread, 0 if the JVM can't tell
+     */
+    private static long threadAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,272 @@
+package controller;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Testing Strategy:
+ * The single pass parser is checked against the split() parser it replaced (SplitParseMessage,
+ * below), the parsed message or the exception thrown, class and message, must be the same, and
+ * the same again when the single pass parser is given a StringBuilder instead of a String
+ * EdgeTest- verify separators at the end and doubled, empty and missing values, signs, sizes
+ *          and coordinates too large for an int, names too long, unknown keys and requests
+ * RandomTest- verify messages made of random pieces of valid and invalid messages
+ * ServerTest- verify the key value pairs of server messages the same way
+ */
+public class ParseMessageTest {
+
+    // valid and invalid pieces of messages, glued at random by RandomTest
+    private static final String[] PIECES = {"login", "logout", "new", "open", "close", "freedraw",
+        "user", "whiteboard", "color", "size", "coord", "=", "=", ",", ",", ";", ";", ":", ":",
+        "-", "+", "0", "7", "42", "2147483648", "red", "white", "pink", "A", "b1", "a1234567890123456", " ", "x"};
+
+    // the outcome of parsing, the message or what was thrown
+    private static String clientOutcome(boolean split, CharSequence input) {
+        try {
+            ClientMsg msg = split ? SplitParseMessage.parseClientMsg(input.toString())
+                    : ParseMessage.parseClientMsg(input);
+            return msg.getType() + "|" + describe(msg);
+        } catch (RuntimeException e) {
+            return e.getClass().getName() + ": " + e.getMessage();
+        }
+    }
+
+    private static String serverOutcome(boolean split, String input) {
+        try {
+            ServerMsg msg = split ? SplitParseMessage.parseServerKeyValues(input) : ParseMessage.parseServerMsg(input);
+            return describe(msg);
+        } catch (RuntimeException e) {
+            return e.getClass().getName() + ": " + e.getMessage();
+        }
+    }
+
+    private static String describe(CommonMsg msg) {
+        return msg.getUserName() + "|" + msg.getBoardName() + "|" + msg.getColor() + "|"
+                + msg.getLineSize() + "|" + msg.getCoordinateList();
+    }
+
+    private static void assertSameClient(String input) {
+        assertEquals(input, clientOutcome(true, input), clientOutcome(false, input));
+        assertEquals(input, clientOutcome(false, input), clientOutcome(false, new StringBuilder(input)));
+    }
+
+    @Test
+    public void EdgeTest() {
+        String[] inputs = {"", ",", ",,", "login", "login,", "login,,", ",login", "login,,user=ab",
+            "login,user=ab", "login,user=ab,", "login,user=ab,,,", "login,user=ab=", "login,user=ab==",
+            "login,user==ab", "login,=ab", "login,user=", "login,user", "login,=", "login,user=ab=cd",
+            "login,user=1ab", "login,user=a12345678901234", "login,user=a123456789012345", "login,user=ab,user=cd",
+            "login,user=ab,whiteboard=cd", "login,whiteboard=cd", "logout", "logout,", "logout,user=ab",
+            "close", "close,x", "new,whiteboard=wb", "open,whiteboard=wb,", "open", "open,user=ab",
+            "LOGIN,user=ab", "logi", "loginx,user=ab", "freedraw", "freedraw,color=red",
+            "freedraw,color=red,size=5", "freedraw,color=red,size=5,coord=1:2", "freedraw,color=red,size=5,coord=1:2;",
+            "freedraw,color=red,size=5,coord=;", "freedraw,color=red,size=5,coord=;;;", "freedraw,color=red,size=5,coord=",
+            "freedraw,color=red,size=5,coord=;1:2", "freedraw,color=red,size=5,coord=1:2;;3:4",
+            "freedraw,color=red,size=5,coord=-1:+2;+30:-40", "freedraw,color=red,size=5,coord=1:2:3",
+            "freedraw,color=red,size=5,coord=-:2", "freedraw,color=red,size=5,coord=1:", "freedraw,color=red,size=5,coord=:2",
+            "freedraw,color=red,size=5,coord=+-1:2", "freedraw,color=red,size=5,coord=1:2;a",
+            "freedraw,color=pink,size=5,coord=1:2", "freedraw,color=redd,size=5,coord=1:2", "freedraw,color=,size=5",
+            "freedraw,color=red,size=-5,coord=1:2", "freedraw,color=red,size=+5,coord=1:2",
+            "freedraw,color=red,size=0005,coord=1:2", "freedraw,color=red,size=2147483647,coord=1:2",
+            "freedraw,color=red,size=2147483648,coord=1:2", "freedraw,color=red,size=99999999999999999999,coord=1:2",
+            "freedraw,color=red,size=5x,coord=1:2", "freedraw,color=red,size=,coord=1:2",
+            "freedraw,size=5,coord=1:2", "freedraw,color=red,coord=1:2", "freedraw,color=red,size=5,shape=x",
+            "freedraw,color=white,size=5,coord=1:2,color=black", "freedraw,coord=1:2,color=blue,size=1",
+            "freedraw,color=red,size=5,coord=1:2,,", "freedraw,color=red,,size=5,coord=1:2",
+            "freedraw,color=red,size=5,coord=1:2;3:4=", "freedraw,color=red,size=5,coord=1:2;3:4;=",
+            "freedraw,color=red,size=5,coord=-2147483648:2147483647", "freedraw,color=red,size=5,coord=0:2147483648",
+            "freedraw,color=red,size=5,coord=-2147483649:0", "freedraw,color=red,size=5,coord=1:99999999999999999999;a",
+            "freedraw,color=red,size=5,coord=007:-0"};
+        for (String input : inputs) {
+            assertSameClient(input);
+        }
+        assertEquals("java.lang.RuntimeException: Unknown request: ", clientOutcome(false, ",,"));
+    }
+
+    @Test
+    public void RandomTest() {
+        Random random = new Random(6005);
+        for (int i = 0; i < 100000; i++) {
+            StringBuilder input = new StringBuilder();
+            // mostly starting as a real request
+            if (random.nextInt(4) > 0) input.append(PIECES[random.nextInt(6)]).append(',');
+            int pieces = random.nextInt(12);
+            for (int p = 0; p < pieces; p++) {
+                input.append(PIECES[random.nextInt(PIECES.length)]);
+            }
+            assertSameClient(input.toString());
+        }
+    }
+
+    @Test
+    public void ServerTest() {
+        String[] inputs = {"freedraw,color=red,size=5,coord=1:2;3:4", "userjoined,user=ab,whiteboard=cd",
+            "userleft,user=ab,", "boardcreated,whiteboard=wb", "duplicatename,user=ab", "notloggedin",
+            "boardexists,whiteboard=wb", "boardnotexists,whiteboard=", "userjoined,user=ab,,whiteboard=cd",
+            "freedraw,color=red,size=5,coord=1:2;3:4;", "userleft,user=1ab", "freedraw,color=red,size=x"};
+        for (String input : inputs) {
+            assertEquals(input, serverOutcome(true, input), serverOutcome(false, input));
+        }
+    }
+
+    /*
+     * The message parser as it was before ParseMessage parsed messages in a
+     * single pass: String.split() at every separator and a regex per field
+     * A message only made of ',' is an unknown request, split() gives no token
+     * for it and it was an ArrayIndexOutOfBoundsException
+     */
+    private static class SplitParseMessage {
+
+        static Pattern patternName = Pattern.compile("[A-Za-z]([A-Za-z0-9]{0,14})");
+        static Pattern patternNum = Pattern.compile("[0-9]+");
+        static Pattern patternCoordPair = Pattern.compile("[+-]?[0-9]+:[+-]?[0-9]+");
+        static String[] validcolors = {"red", "blue", "green", "yellow", "black", "white"};
+
+        /**
+         * Parses a request from a client, see ParseMessage.parseClientMsg()
+         * @param input request string
+         * @return parsed request
+         * @throws RuntimeException
+         */
+        static ClientMsg parseClientMsg(String input) throws RuntimeException {
+            ClientMsg msg = new ClientMsg();
+
+            String[] tokens = input.split(",");
+            String reqType = tokens.length == 0 ? "" : tokens[0];
+            switch (reqType) {
+            case "login" : 
+                msg.setType(ClientMsgType.LOGIN); 
+                break;
+            case "logout" : 
+                msg.setType(ClientMsgType.LOGOUT); 
+                break;
+            case "new" : 
+                msg.setType(ClientMsgType.NEW_BOARD); 
+                break;
+            case "open" : 
+                msg.setType(ClientMsgType.OPEN_BOARD); 
+                break;
+            case "close" : 
+                msg.setType(ClientMsgType.CLOSE_BOARD); 
+                break;
+            case "freedraw" : 
+                msg.setType(ClientMsgType.FREE_DRAW); 
+                break;
+            default : 
+                throw new RuntimeException("Unknown request: " + reqType);
+
+            }
+            for (int i = 1; i < tokens.length; i++) {
+                processKeyValue(msg, tokens[i]);
+            }
+
+            switch (reqType) {
+            case "login" :
+                if (msg.getUserName() == null) {
+                    throw new RuntimeException("user name missing"); 
+                }
+                if (tokens.length != 2) {
+                    throw new RuntimeException("Invalid attributes present"); 
+                }
+                break;
+            case "new":
+            case "open":
+                if (msg.getBoardName() == null) {
+                    throw new RuntimeException("whiteboard name missing"); 
+                }
+                if (tokens.length != 2) {
+                    throw new RuntimeException("Invalid attributes present"); 
+                }
+                break;
+            case "close":
+            case "logout":
+                if (tokens.length != 1) {
+                    throw new RuntimeException("tokens other than " + reqType + " present");
+                }
+                break;
+            case "freedraw":
+                if (msg.getColor() == null)
+                    throw new RuntimeException("Missing color attribute");
+                if (msg.getLineSize() == -1)
+                    throw new RuntimeException("Missing line size attribute");
+                if (msg.getCoordinateList() == null)
+                    throw new RuntimeException("Missing coord attribute");
+                break;
+
+            }
+            return msg;
+        }
+
+        /**
+         * Parses the key value pairs of a message from the server, for the
+         * messages that are only made of them (all but boardlist and keyframe)
+         * @param input message string
+         * @return message with the pairs set, and no type
+         * @throws RuntimeException
+         */
+        static ServerMsg parseServerKeyValues(String input) throws RuntimeException {
+            ServerMsg msg = new ServerMsg();
+            String[] tokens = input.split(",");
+            for (int i = 1; i < tokens.length; i++) {
+                processKeyValue(msg, tokens[i]);
+            }
+            return msg;
+        }
+
+        private static void processKeyValue (CommonMsg msg, String str) throws RuntimeException {
+
+            String[] tokens = str.split("=");
+            if (tokens.length != 2) { // not a key=value pair
+                throw new RuntimeException ("not a key value pair");
+            }
+
+            switch (tokens[0]) {
+            case "whiteboard" :
+                if (!patternName.matcher(tokens[1]).matches())  
+                    throw new RuntimeException("Invalid board name");
+                msg.setBoardName(tokens[1]);
+                break;
+            case "color":
+                if (! Arrays.asList(validcolors).contains(tokens[1]) )
+                    throw new RuntimeException("Invalid color");
+                msg.setColor(tokens[1]);
+                break;
+            case "user":
+                if (!patternName.matcher(tokens[1]).matches())  
+                    throw new RuntimeException("Invalid user name");
+                msg.setUserName(tokens[1]);
+                break;
+            case "size":
+                if (!patternNum.matcher(tokens[1]).matches())  
+                    throw new RuntimeException("Invalid size");
+                msg.setLineSize(Integer.parseInt(tokens[1]));
+                break;
+            case "coord":
+                String[] coordinates = tokens[1].split(";");
+                ArrayList<String> coordList = new ArrayList<String>();
+                for (int i=0; i < coordinates.length; i++) {
+                    if (!patternCoordPair.matcher(coordinates[i]).matches())  
+                        throw new RuntimeException("Invalid coordinates");
+                    coordList.add(coordinates[i]);
+                }
+                // the message now keeps them as ints, a pair that does not fit
+                // is rejected the way ParseMessage does
+                try {
+                    msg.setCoordinateList(coordList);
+                } catch (IllegalArgumentException e) {
+                    throw new RuntimeException("Invalid coordinates");
+                }
+                break;
+
+            default:
+                throw new RuntimeException("Unknown key: " + tokens[0]);
+            }
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package controller;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -24,6 +26,13 @@ public class ServerMsg extends CommonMsg  {
     // collaborators on each of those. The key is the whiteboard name
     // and the values are arrays of strings with user/collaborator names
     HashMap<String, ArrayList<String>> boardCollaboratorsMap = null;
+    // keyframe tile: its position in pixels on the canvas and the
+    // PNG image of that part of the board
+    private int tileX = 0;
+    private int tileY = 0;
+    private byte[] image = null;
+    // resume token handed to the client at login
+    private String token = null;
 
     /**
      * Constructor
@@ -76,37 +85,94 @@ public class ServerMsg extends CommonMsg  {
         this.boardCollaboratorsMap = boardCollaboratorsMap;
     }
 
+    /**
+     * Gets the x position of a keyframe tile
+     * @return x in pixels from the left of the canvas
+     */
+    public int getTileX() {
+        return tileX;
+    }
+
+    /**
+     * Gets the y position of a keyframe tile
+     * @return y in pixels from the top of the canvas
+     */
+    public int getTileY() {
+        return tileY;
+    }
+
+    /**
+     * Sets the position of a keyframe tile
+     * @param x pixels from the left of the canvas
+     * @param y pixels from the top of the canvas
+     */
+    public void setTile(int x, int y) {
+        this.tileX = x;
+        this.tileY = y;
+    }
+
+    /**
+     * Gets the image of a keyframe tile
+     * @return PNG image data
+     */
+    public byte[] getImage() {
+        return image;
+    }
+
+    /**
+     * Sets the image of a keyframe tile
+     * @param image PNG image data
+     */
+    public void setImage(byte[] image) {
+        this.image = image;
+    }
+
+    /**
+     * Gets the resume token of a session message
+     * @return token the client sends back to carry on with its session
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Sets the resume token of a session message
+     * @param token resume token
+     */
+    public void setToken(String token) {
+        this.token = token;
+    }
+
     @Override
     /**
-     * From the object creates a string representation. This
-     * string is based on the protocol that is used for communication
-     * exchanges between the client and the server
+     * Writes the text of the message. This text is based on the protocol
+     * that is used for communication exchanges between the client and the server
      * 
      * Depending on the type of the message, appropriate textual 
      * representation is created
-     * @return String String representation for the protocol message
+     * @param out where the text is written, without line terminator
+     * @throws IOException if out does
      */
-    public String toString() {
-        StringBuilder sb = new StringBuilder();
+    public void appendTo(Appendable out) throws IOException {
 
         switch (getType()) {
         case BOARD_LIST: 
-            sb.append("boardlist");
+            out.append("boardlist");
             HashMap<String, ArrayList<String>> map = getBoardCollaboratorsList();
             if (map != null) {
                 for (Map.Entry<String, ArrayList<String>> entry : map.entrySet()) {
-                    addComma(sb);
+                    addComma(out);
                     String key = entry.getKey(); // board name
-                    sb.append("whiteboard=");
-                    sb.append(key);
+                    out.append("whiteboard=");
+                    out.append(key);
                     ArrayList<String> list = entry.getValue();
                     if (list != null && list.size() != 0) {
-                        sb.append(";userlist=");
+                        out.append(";userlist=");
                         int nElements = list.size();
                         for (String s: list) {
                             nElements--;
-                            sb.append(s);
-                            if (nElements > 0) addColon(sb);
+                            out.append(s);
+                            if (nElements > 0) addColon(out);
                         }
                     }
                 }
@@ -114,32 +180,101 @@ public class ServerMsg extends CommonMsg  {
             }
             break;
         case FREE_DRAW:
-            sb.append("freedraw");
-            addComma(sb);
-            addDraw(sb);
+            out.append("freedraw");
+            addComma(out);
+            addDraw(out);
             break;
         case DUPLICATE_NAME:
-            sb.append("duplicatename");
-            addComma(sb);
-            addUser(sb);
+            out.append("duplicatename");
+            addComma(out);
+            addUser(out);
             break;
         case BOARD_EXISTS:
-            sb.append("boardexists");
-            addComma(sb);
-            addBoard(sb);
+            out.append("boardexists");
+            addComma(out);
+            addBoard(out);
             break;
         case NOT_LOGGED_IN:
-            sb.append("notloggedin");
-            addComma(sb);
-            addUser(sb);
+            out.append("notloggedin");
+            addComma(out);
+            addUser(out);
             break;
         case BOARD_NOT_EXIST:
-            sb.append("boardnotexists");
-            addComma(sb);
-            addBoard(sb);
+            out.append("boardnotexists");
+            addComma(out);
+            addBoard(out);
+            break;
+        case BOARD_CREATED:
+            out.append("boardcreated");
+            addComma(out);
+            addBoard(out);
+            break;
+        case BOARD_REMOVED:
+            out.append("boardremoved");
+            addComma(out);
+            addBoard(out);
+            break;
+        case USER_JOINED:
+            out.append("userjoined");
+            addComma(out);
+            addBoardAndUser(out);
+            break;
+        case USER_LEFT:
+            out.append("userleft");
+            addComma(out);
+            addBoardAndUser(out);
+            break;
+        case STROKE_BEGIN:
+            out.append("strokebegin");
+            addComma(out);
+            addUser(out);
+            addComma(out);
+            addDraw(out);
+            break;
+        case STROKE_APPEND:
+            out.append("strokeappend");
+            addComma(out);
+            addUser(out);
+            addComma(out);
+            addCoordinates(out);
+            break;
+        case STROKE_END:
+            out.append("strokeend");
+            addComma(out);
+            addUser(out);
+            if (getPointCount() > 0) {
+                addComma(out);
+                addCoordinates(out);
+            }
+            break;
+        case KEYFRAME:
+            // e.g keyframe,tile=256:0,png=iVBORw0KGgo...
+            // the image is base 64 without padding, so it has no '='
+            out.append("keyframe");
+            addComma(out);
+            out.append("tile=");
+            addInt(out, tileX);
+            addColon(out);
+            addInt(out, tileY);
+            addComma(out);
+            out.append("png=");
+            out.append(Base64.getEncoder().withoutPadding().encodeToString(image));
+            break;
+        case SESSION:
+            out.append("session");
+            addComma(out);
+            out.append("token=");
+            out.append(token);
+            break;
+        case SEQUENCE:
+            // every stroke of the board up to seq was sent
+            out.append("seq");
+            addComma(out);
+            addBoard(out);
+            addComma(out);
+            addSeq(out);
             break;
         }
 
-        return sb.toString();
     }
 }
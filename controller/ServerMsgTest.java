@@ -2,6 +2,10 @@ package controller;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -75,6 +79,71 @@ public class ServerMsgTest {
         assertEquals (ServerMsgType.BOARD_NOT_EXIST, msg.getType());
         assertEquals ("UglyBoard", msg.getBoardName());
     }
+    // Parse board created message
+    @Test
+    public void testBoardCreated() {
+        ServerMsg msg = ParseMessage.parseServerMsg("boardcreated,whiteboard=NewBoard");
+        assertEquals (ServerMsgType.BOARD_CREATED, msg.getType());
+        assertEquals ("NewBoard", msg.getBoardName());
+    }
+    // Parse board removed message, and back to text
+    @Test
+    public void testBoardRemoved() {
+        ServerMsg msg = ParseMessage.parseServerMsg("boardremoved,whiteboard=OldBoard");
+        assertEquals (ServerMsgType.BOARD_REMOVED, msg.getType());
+        assertEquals ("OldBoard", msg.getBoardName());
+        assertEquals ("boardremoved,whiteboard=OldBoard", msg.toString());
+    }
+    // Parse user joined message
+    @Test
+    public void testUserJoined() {
+        ServerMsg msg = ParseMessage.parseServerMsg("userjoined,whiteboard=wb1,user=alex");
+        assertEquals (ServerMsgType.USER_JOINED, msg.getType());
+        assertEquals ("wb1", msg.getBoardName());
+        assertEquals ("alex", msg.getUserName());
+    }
+    // Parse user left message
+    @Test
+    public void testUserLeft() {
+        ServerMsg msg = ParseMessage.parseServerMsg("userleft,whiteboard=wb1,user=alex");
+        assertEquals (ServerMsgType.USER_LEFT, msg.getType());
+        assertEquals ("wb1", msg.getBoardName());
+        assertEquals ("alex", msg.getUserName());
+    }
+    // Parse keyframe message, the image is base 64 without padding
+    @Test
+    public void testKeyframe() {
+        ServerMsg msg = ParseMessage.parseServerMsg("keyframe,tile=256:512,png=AQID/w");
+        assertEquals (ServerMsgType.KEYFRAME, msg.getType());
+        assertEquals (256, msg.getTileX());
+        assertEquals (512, msg.getTileY());
+        assertEquals (Arrays.toString(new byte[] {1, 2, 3, -1}), Arrays.toString(msg.getImage()));
+        assertEquals ("keyframe,tile=256:512,png=AQID/w", msg.toString());
+    }
+    // Parse the messages of a stroke another user is drawing
+    @Test
+    public void testStroke() {
+        ServerMsg msg = ParseMessage.parseServerMsg("strokebegin,user=alex,color=blue,size=2,coord=1:2;3:4");
+        assertEquals (ServerMsgType.STROKE_BEGIN, msg.getType());
+        assertEquals ("alex", msg.getUserName());
+        assertEquals ("strokebegin,user=alex,color=blue,size=2,coord=1:2;3:4", msg.toString());
+        msg = ParseMessage.parseServerMsg("strokeappend,user=alex,coord=5:6");
+        assertEquals (ServerMsgType.STROKE_APPEND, msg.getType());
+        assertEquals ("strokeappend,user=alex,coord=5:6", msg.toString());
+        msg = ParseMessage.parseServerMsg("strokeend,user=alex");
+        assertEquals (ServerMsgType.STROKE_END, msg.getType());
+        assertEquals ("strokeend,user=alex", msg.toString());
+    }
+    // Parse keyframe message with an invalid image and throw exception
+    @Test (expected = RuntimeException.class)
+    public void testInvalidKeyframeImage() {
+        ServerMsg msg = ParseMessage.parseServerMsg("keyframe,tile=0:0,png=AQ#D");
+    }
+    // Parse keyframe message with a negative tile position and throw exception
+    @Test (expected = RuntimeException.class)
+    public void testInvalidKeyframeTile() {
+        ServerMsg msg = ParseMessage.parseServerMsg("keyframe,tile=-256:0,png=AQID");
+    }
     // Parse invalid user list and throw exception
     @Test (expected = RuntimeException.class)
     public void testInvalidUserList() {
@@ -105,5 +174,61 @@ public class ServerMsgTest {
     public void testMissingBoardinBoardNotExists() {
         ServerMsg msg = ParseMessage.parseServerMsg("boardnotexists,board=wb");
     }
+    // Encode into a buffer: the same bytes as the UTF-8 of toString(), also for
+    // Test the session and seq messages of resumable sessions, and parsing them back
+    @Test
+    public void testSession() {
+        ServerMsg msg = new ServerMsg(ServerMsgType.SESSION);
+        msg.setToken("00ff00ff00ff00ff00ff00ff00ff00ff");
+        assertEquals ("session,token=00ff00ff00ff00ff00ff00ff00ff00ff", msg.toString());
+        assertEquals ("00ff00ff00ff00ff00ff00ff00ff00ff", ParseMessage.parseServerMsg(msg.toString()).getToken());
+        msg = new ServerMsg(ServerMsgType.SEQUENCE);
+        msg.setBoardName("board1");
+        msg.setSeq(17);
+        assertEquals ("seq,whiteboard=board1,seq=17", msg.toString());
+        ServerMsg parsed = ParseMessage.parseServerMsg(msg.toString());
+        assertEquals (ServerMsgType.SEQUENCE, parsed.getType());
+        assertEquals ("board1", parsed.getBoardName());
+        assertEquals (17, parsed.getSeq());
+    }
+
+    // names that are not ASCII and extreme coordinates, and nothing written
+    // when the buffer is too small
+    @Test
+    public void testEncodeTo() throws IOException {
+        ServerMsg msg = new ServerMsg(ServerMsgType.STROKE_BEGIN);
+        msg.setUserName("Jos\u00e9");
+        msg.setColor("red");
+        msg.setLineSize(3);
+        msg.setPoints(new int[] {Integer.MIN_VALUE, -7, 0, Integer.MAX_VALUE}, 2);
+        String text = "strokebegin,user=Jos\u00e9,color=red,size=3,coord=-2147483648:-7;0:2147483647";
+        assertEquals (text, msg.toString());
+        StringBuilder sb = new StringBuilder("> ");
+        msg.appendTo(sb);
+        assertEquals ("> " + text, sb.toString());
+
+        byte[] expected = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        buffer.put((byte) '>');
+        assertEquals (expected.length, msg.encodeTo(buffer));
+        assertEquals (1 + expected.length, buffer.position());
+        assertArrayEquals (expected, Arrays.copyOfRange(buffer.array(), 1, buffer.position()));
+
+        ByteBuffer small = ByteBuffer.allocate(expected.length - 1);
+        try {
+            msg.encodeTo(small);
+            fail("encoded into a buffer too small");
+        } catch (BufferOverflowException e) {
+            assertEquals (0, small.position());
+        }
+        // the non-ASCII char only overflows once encoded
+        small = ByteBuffer.allocate(text.length());
+        try {
+            msg.encodeTo(small);
+            fail("encoded into a buffer too small");
+        } catch (BufferOverflowException e) {
+            assertEquals (0, small.position());
+        }
+    }
 
 }
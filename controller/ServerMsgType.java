@@ -10,4 +10,14 @@ public enum ServerMsgType {
     BOARD_EXISTS,
     NOT_LOGGED_IN,
     BOARD_NOT_EXIST,
+    BOARD_CREATED,
+    BOARD_REMOVED,
+    USER_JOINED,
+    USER_LEFT,
+    KEYFRAME,
+    STROKE_BEGIN,
+    STROKE_APPEND,
+    STROKE_END,
+    SESSION,
+    SEQUENCE,
 }
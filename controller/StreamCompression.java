@@ -0,0 +1,72 @@
+package controller;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Compression of the bytes of a connection, which a client can ask for when
+ * it logs in. It works under either protocol, text or binary
+ *
+ * Negotiation: the client sends its login as a text line with compress=deflate
+ * (e.g "login,user=joe,compress=deflate", possibly with protocol=2 as well).
+ * A server that agrees answers with the message "deflate" (a TEXT frame
+ * right after the "binary" line, if it agreed to that too), and from then
+ * on both sides compress what they send: the client after its login line,
+ * the server after the "deflate" message. A server that does not agree
+ * answers the login uncompressed, and the client carries on uncompressed
+ *
+ * The compressed bytes are one zlib stream for each direction of the
+ * connection, started with DICTIONARY as preset dictionary. The sender
+ * sync flushes the stream after every batch of messages, so the receiver
+ * can decode everything it was sent so far without waiting for more. Each
+ * stream keeps the last 32KB sent as its dictionary for the next messages,
+ * and a board's strokes repeat a lot, so a connection's later messages
+ * compress better than the first ones
+ *
+ * This is a static class and thread safe, the Deflaters and Inflaters it
+ * makes are not
+ */
+public class StreamCompression {
+    // value of the compress key of the login
+    public static final String NAME = "deflate";
+    // the text line after which the server sends compressed bytes
+    public static final String SWITCH_LINE = "deflate";
+    // the start of the messages that are sent the most, compressing the
+    // first messages of a connection against them. Changing it breaks
+    // compatibility between clients and servers
+    private static final byte[] DICTIONARY = ("boardlist,whiteboard=;userlist=userjoined,whiteboard=,user="
+            + "userleft,whiteboard=,user=strokeend,user=strokeappend,user=,coord="
+            + "strokebegin,user=,color=black,size=1,coord=freedraw,color=white,size=10,coord="
+            + "freedraw,color=red,size=2,coord=freedraw,color=blue,size=3,coord="
+            + "freedraw,color=green,size=4,coord=freedraw,color=yellow,size=5,coord="
+            + "freedraw,color=black,size=5,coord=").getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Makes the compressor of one direction of a connection
+     * @param level Deflater level, 0 (no compression) to 9
+     * @return deflater with the preset dictionary set
+     */
+    public static Deflater newDeflater(int level) {
+        Deflater deflater = new Deflater(level);
+        deflater.setDictionary(DICTIONARY);
+        return deflater;
+    }
+
+    /**
+     * Makes the decompressor of one direction of a connection, call
+     * setDictionary() on it when it needs the dictionary
+     * @return inflater
+     */
+    public static Inflater newInflater() {
+        return new Inflater();
+    }
+
+    /**
+     * Gives an inflater the preset dictionary
+     * @param inflater inflater whose needsDictionary() is true
+     */
+    public static void setDictionary(Inflater inflater) {
+        inflater.setDictionary(DICTIONARY);
+    }
+}
@@ -0,0 +1,396 @@
+package whiteboard.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * Background compaction of the strokes of the boards
+ * Every compaction interval, each board with enough new strokes is replaced
+ * by a shorter list of strokes that draws exactly the same picture:
+ *
+ * - a stroke with fewer than 2 points draws nothing and is dropped
+ * - a stroke that lies entirely inside one segment of a later white (eraser)
+ *   stroke is dropped, whatever is drawn in between is painted over as well
+ * - a stroke that starts where the stroke before it ends, with the same
+ *   color and size, is merged into it (the client draws a stroke one segment
+ *   at a time, so the segments are the same). Strokes dragged in small
+ *   pieces come out as one
+ *
+ * The work is done on this class's thread from a view of the board's
+ * strokes (see StrokeStore.view()), holding no lock. The board lock is only
+ * taken to take the view and, at the end, to add the strokes drawn meanwhile
+ * and swap the compacted strokes in, so neither processRequest() nor the
+ * board's shard waits for a compaction. The board's keyframe and the history
+ * streams of its users refer to strokes by index and are renumbered; if one
+ * of them stopped in the middle of a merge, or the keyframe is being
+ * rendered from the old strokes, the compaction is given up and tried
+ * again next time
+ *
+ * Only the strokes in memory are compacted, the journal keeps every stroke
+ */
+class BoardCompactor implements Runnable {
+    // boards with fewer new strokes are left alone until next time
+    static final int MIN_NEW_STROKES = 64;
+    // merging stops at this many points, so no stroke gets too long to send
+    private static final int MAX_MERGED_POINTS = 1024;
+    // erasers are looked up by the square cells of this many pixels they cover
+    private static final int CELL = 32;
+    // erasers covering more cells than this are not indexed
+    private static final int MAX_ERASER_CELLS = 10000;
+    // pixels a stroke is assumed to reach past its shape, for rounding when
+    // the client rasterizes it
+    private static final double MARGIN = 2;
+
+    private final WhiteboardServer server;
+    private final long intervalMillis;
+
+    /**
+     * Constructor
+     * @param server server whose boards are compacted
+     * @param intervalMillis time between compactions, requires intervalMillis > 0
+     */
+    BoardCompactor(WhiteboardServer server, long intervalMillis) {
+        this.server = server;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Starts the compactor thread
+     */
+    void start() {
+        Thread thread = new Thread(this, "board-compactor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Compacts the boards every interval, never returns
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (Whiteboard board : server.getWhiteboardsSnapshot()) {
+                if (hasNewStrokes(board)) {
+                    compact(board);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if enough strokes were added to the board since it was
+     *         last compacted, false also if the board is evicted
+     */
+    private static boolean hasNewStrokes(Whiteboard board) {
+        board.getLock().lock();
+        try {
+            return board.isResident()
+                    && board.getSketches().size() - board.getCompactedStrokes() >= MIN_NEW_STROKES;
+        }
+        finally {
+            board.getLock().unlock();
+        }
+    }
+
+    /**
+     * Compacts the strokes of a board
+     * Must be called without the board lock held
+     *
+     * @param board whiteboard
+     * @return true if the board's strokes were replaced, false if the
+     *         compaction was given up
+     */
+    static boolean compact(Whiteboard board) {
+        StrokeStore source;
+        StrokeStore view;
+        board.getLock().lock();
+        try {
+            if (!board.isResident()) return false;
+            source = board.getSketches();
+            view = source.view();
+        }
+        finally {
+            board.getLock().unlock();
+        }
+        int n = view.size();
+        int[] plan = plan(view);
+        StrokeStore compacted = build(view, plan);
+        int[] cursors = cursorMap(plan);
+
+        board.getLock().lock();
+        try {
+            StrokeStore live = board.getSketches();
+            if (live != source) return false;
+            // strokes drawn since the view was taken
+            int[] points = new int[64];
+            for (int stroke = n; stroke < live.size(); stroke++) {
+                points = copy(live, stroke, points, 0);
+                compacted.add(live.getColorCode(stroke), live.getLineSize(stroke),
+                        points, live.getPointCount(stroke));
+            }
+
+            // renumber what refers to the strokes, unless one of them is
+            // in the middle of a merged stroke
+            BoardKeyframe keyframe = board.getKeyframe();
+            ArrayList<HistoryStream> streams = new ArrayList<HistoryStream>();
+            for (ConnectionInfo connInfo : board.getConnectionMap().values()) {
+                if (HistoryStream.isStreaming(connInfo, board)) {
+                    streams.add(connInfo.getHistoryStream());
+                }
+            }
+            if (keyframe != null && keyframe.isRendering()) return false;
+            int keyframeCount = keyframe == null ? 0 : renumber(keyframe.getStrokeCount(), n, cursors);
+            if (keyframeCount < 0) return false;
+            int[] next = new int[streams.size()];
+            for (int i = 0; i < next.length; i++) {
+                next[i] = renumber(streams.get(i).getNext(), n, cursors);
+                if (next[i] < 0) return false;
+            }
+
+            if (keyframe != null) keyframe.setStrokeCount(keyframeCount);
+            for (int i = 0; i < next.length; i++) {
+                streams.get(i).setNext(next[i]);
+            }
+            board.setSketches(compacted, live.storedBytes() - compacted.storedBytes());
+            return true;
+        }
+        finally {
+            board.getLock().unlock();
+        }
+    }
+
+    /**
+     * @return the index in the compacted store of the stroke at index in the
+     *         old one (or of the one after it if it was dropped), -1 if it
+     *         was merged into the stroke before it
+     */
+    private static int renumber(int index, int n, int[] cursors) {
+        if (index >= n) return index - n + cursors[n];
+        return cursors[index];
+    }
+
+    /**
+     * Works out the compaction of a list of strokes
+     * @param strokes strokes to compact, not changed
+     * @return for each stroke, the index of the compacted stroke it goes into,
+     *         or -1 if it is dropped. Strokes going into the same compacted
+     *         stroke are consecutive, not counting the dropped ones
+     */
+    static int[] plan(StrokeStore strokes) {
+        int n = strokes.size();
+        boolean[] dropped = coveredStrokes(strokes);
+        int[] plan = new int[n];
+        int compacted = -1;
+        // last stroke kept, and the points in its compacted stroke so far
+        int last = -1;
+        int points = 0;
+        for (int stroke = 0; stroke < n; stroke++) {
+            int count = strokes.getPointCount(stroke);
+            if (dropped[stroke] || count < 2) {
+                plan[stroke] = -1;
+                continue;
+            }
+            if (last >= 0 && canMerge(strokes, last, stroke) && points + count - 1 <= MAX_MERGED_POINTS) {
+                points += count - 1;
+            }
+            else {
+                compacted++;
+                points = count;
+            }
+            plan[stroke] = compacted;
+            last = stroke;
+        }
+        return plan;
+    }
+
+    // true if the second stroke carries on from the end of the first
+    private static boolean canMerge(StrokeStore strokes, int first, int second) {
+        int end = strokes.getPointCount(first) - 1;
+        return strokes.getColorCode(first) == strokes.getColorCode(second)
+                && strokes.getLineSize(first) == strokes.getLineSize(second)
+                && strokes.getX(first, end) == strokes.getX(second, 0)
+                && strokes.getY(first, end) == strokes.getY(second, 0);
+    }
+
+    /**
+     * Builds the compacted strokes
+     * @param strokes strokes to compact
+     * @param plan plan for the strokes, see plan()
+     * @return compacted strokes
+     */
+    static StrokeStore build(StrokeStore strokes, int[] plan) {
+        StrokeStore compacted = new StrokeStore();
+        int[] points = new int[64];
+        int count = 0;
+        int first = -1;
+        for (int stroke = 0; stroke <= plan.length; stroke++) {
+            if (stroke < plan.length && plan[stroke] < 0) continue;
+            if (first >= 0 && (stroke == plan.length || plan[stroke] != plan[first])) {
+                compacted.add(strokes.getColorCode(first), strokes.getLineSize(first), points, count);
+                count = 0;
+            }
+            if (stroke == plan.length) break;
+            if (count == 0) {
+                first = stroke;
+                points = copy(strokes, stroke, points, 0);
+                count = strokes.getPointCount(stroke);
+            }
+            else {
+                // the first point is the last point of the stroke before
+                int added = strokes.getPointCount(stroke) - 1;
+                points = copy(strokes, stroke, points, count - 1);
+                count += added;
+            }
+        }
+        return compacted;
+    }
+
+    /**
+     * Copies the points of a stroke into an array, growing it if needed
+     * @return the array holding the points at 2 * at onwards
+     */
+    static int[] copy(StrokeStore strokes, int stroke, int[] points, int at) {
+        int count = strokes.getPointCount(stroke);
+        if (points.length < (at + count) * 2) {
+            int[] larger = new int[Math.max((at + count) * 2, points.length * 2)];
+            System.arraycopy(points, 0, larger, 0, at * 2);
+            points = larger;
+        }
+        for (int p = 0; p < count; p++) {
+            points[(at + p) * 2] = strokes.getX(stroke, p);
+            points[(at + p) * 2 + 1] = strokes.getY(stroke, p);
+        }
+        return points;
+    }
+
+    /**
+     * @return for each index from 0 to plan.length, the index in the
+     *         compacted strokes of the first stroke kept from there on, or
+     *         -1 if the index is in the middle of a merged stroke
+     */
+    static int[] cursorMap(int[] plan) {
+        int n = plan.length;
+        int[] cursors = new int[n + 1];
+        int total = 0;
+        for (int group : plan) {
+            if (group >= 0) total = group + 1;
+        }
+        // compacted stroke of the first stroke kept from i on, going backwards
+        int next = total;
+        for (int i = n; i >= 0; i--) {
+            if (i < n && plan[i] >= 0) next = plan[i];
+            cursors[i] = next;
+        }
+        // compacted stroke of the last stroke kept before i, going forwards
+        int before = -1;
+        for (int i = 0; i <= n; i++) {
+            if (cursors[i] == before) cursors[i] = -1;
+            if (i < n && plan[i] >= 0) before = plan[i];
+        }
+        return cursors;
+    }
+
+    /**
+     * Finds the strokes that lie entirely inside a segment of a later white
+     * stroke. A segment of size w is drawn by the client as a w wide
+     * rectangle reaching w/2 past its ends (square line caps), a stroke lies
+     * inside it if the box around its points, grown by its own reach past the
+     * points and MARGIN, does
+     *
+     * @param strokes strokes, not changed
+     * @return for each stroke, true if it is covered
+     */
+    static boolean[] coveredStrokes(StrokeStore strokes) {
+        int n = strokes.size();
+        boolean[] covered = new boolean[n];
+        byte white = StrokeStore.colorCode("white");
+        // segments of the strokes after the current one that are white, as
+        // middle x and y, direction x and y, half length and half width,
+        // by the cells their rectangle may touch
+        HashMap<Long, ArrayList<double[]>> erasers = new HashMap<Long, ArrayList<double[]>>();
+        for (int stroke = n - 1; stroke >= 0; stroke--) {
+            int count = strokes.getPointCount(stroke);
+            if (count < 2) continue;
+            if (!erasers.isEmpty()) {
+                covered[stroke] = isCovered(strokes, stroke, erasers);
+            }
+            if (strokes.getColorCode(stroke) == white) {
+                for (int p = 0; p + 1 < count; p++) {
+                    addEraser(strokes, stroke, p, erasers);
+                }
+            }
+        }
+        return covered;
+    }
+
+    private static boolean isCovered(StrokeStore strokes, int stroke, HashMap<Long, ArrayList<double[]>> erasers) {
+        int count = strokes.getPointCount(stroke);
+        long minX = Long.MAX_VALUE, minY = Long.MAX_VALUE, maxX = Long.MIN_VALUE, maxY = Long.MIN_VALUE;
+        for (int p = 0; p < count; p++) {
+            minX = Math.min(minX, strokes.getX(stroke, p));
+            maxX = Math.max(maxX, strokes.getX(stroke, p));
+            minY = Math.min(minY, strokes.getY(stroke, p));
+            maxY = Math.max(maxY, strokes.getY(stroke, p));
+        }
+        // the corners of the square caps reach w/sqrt(2) from the points
+        double reach = Math.max(1, strokes.getLineSize(stroke)) * 0.7072 + MARGIN;
+        double[] xs = {minX - reach, maxX + reach, minX - reach, maxX + reach};
+        double[] ys = {minY - reach, minY - reach, maxY + reach, maxY + reach};
+        // an eraser holding the box holds its middle, so it is in the middle's cell
+        ArrayList<double[]> candidates = erasers.get(cell((minX + maxX) / 2, (minY + maxY) / 2));
+        if (candidates == null) return false;
+        for (double[] eraser : candidates) {
+            boolean inside = true;
+            for (int corner = 0; corner < 4 && inside; corner++) {
+                double dx = xs[corner] - eraser[0];
+                double dy = ys[corner] - eraser[1];
+                double along = dx * eraser[2] + dy * eraser[3];
+                double across = dy * eraser[2] - dx * eraser[3];
+                inside = Math.abs(along) <= eraser[4] && Math.abs(across) <= eraser[5];
+            }
+            if (inside) return true;
+        }
+        return false;
+    }
+
+    private static void addEraser(StrokeStore strokes, int stroke, int p, HashMap<Long, ArrayList<double[]>> erasers) {
+        double x1 = strokes.getX(stroke, p);
+        double y1 = strokes.getY(stroke, p);
+        double x2 = strokes.getX(stroke, p + 1);
+        double y2 = strokes.getY(stroke, p + 1);
+        double length = Math.hypot(x2 - x1, y2 - y1);
+        // the shape of a dot is left alone
+        if (length == 0) return;
+        double halfWidth = Math.max(1, strokes.getLineSize(stroke)) / 2.0;
+        double[] eraser = {(x1 + x2) / 2, (y1 + y2) / 2, (x2 - x1) / length, (y2 - y1) / length,
+                length / 2 + halfWidth, halfWidth};
+        // the corners of the rectangle reach w/sqrt(2) from the points
+        long firstColumn = Math.floorDiv((long) Math.floor(Math.min(x1, x2) - halfWidth * 1.5), CELL);
+        long lastColumn = Math.floorDiv((long) Math.floor(Math.max(x1, x2) + halfWidth * 1.5), CELL);
+        long firstRow = Math.floorDiv((long) Math.floor(Math.min(y1, y2) - halfWidth * 1.5), CELL);
+        long lastRow = Math.floorDiv((long) Math.floor(Math.max(y1, y2) + halfWidth * 1.5), CELL);
+        if ((lastColumn - firstColumn + 1) * (lastRow - firstRow + 1) > MAX_ERASER_CELLS) return;
+        for (long row = firstRow; row <= lastRow; row++) {
+            for (long column = firstColumn; column <= lastColumn; column++) {
+                Long key = (column << 32) ^ (row & 0xffffffffL);
+                ArrayList<double[]> list = erasers.get(key);
+                if (list == null) {
+                    list = new ArrayList<double[]>();
+                    erasers.put(key, list);
+                }
+                list.add(eraser);
+            }
+        }
+    }
+
+    private static Long cell(double x, double y) {
+        long column = Math.floorDiv((long) Math.floor(x), CELL);
+        long row = Math.floorDiv((long) Math.floor(y), CELL);
+        return (column << 32) ^ (row & 0xffffffffL);
+    }
+}
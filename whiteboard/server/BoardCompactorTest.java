@@ -0,0 +1,175 @@
+package whiteboard.server;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Testing Strategy:
+ * MergeTest- verify strokes carrying on from the one before with the same color and size are
+ *          merged, and strokes of one point are dropped
+ * CoverTest- verify a stroke inside a later eraser segment is dropped, and one reaching out of
+ *          it, or only covered by an earlier eraser, is kept
+ * PictureTest- verify random strokes and erasers compact to exactly the same picture, pixel for
+ *          pixel, as drawn by the keyframe (which draws like the client)
+ * RenumberTest- verify the keyframe of the board is renumbered, a compaction is given up if
+ *          it stopped inside a merged stroke or is being rendered, and the bytes reclaimed are counted
+ * StreamRenumberTest- verify a history stream in the middle of the board goes on from the
+ *          same stroke of the compacted board
+ */
+public class BoardCompactorTest {
+
+    private static StrokeStore compacted(StrokeStore store) {
+        return BoardCompactor.build(store, BoardCompactor.plan(store));
+    }
+
+    @Test
+    public void MergeTest() {
+        StrokeStore store = new StrokeStore();
+        TestSupport.add(store, "red", 2, 0, 0, 10, 0);
+        TestSupport.add(store, "red", 2, 10, 0, 20, 0, 20, 5);
+        TestSupport.add(store, "red", 2, 55, 55);
+        TestSupport.add(store, "red", 2, 20, 5, 30, 5);
+        // a different size, color or a gap starts a new stroke
+        TestSupport.add(store, "red", 3, 30, 5, 40, 5);
+        TestSupport.add(store, "blue", 3, 40, 5, 50, 5);
+        TestSupport.add(store, "blue", 3, 51, 5, 60, 5);
+        TestSupport.add(store, "blue", 3);
+
+        assertEquals("freedraw,color=red,size=2,coord=0:0;10:0;20:0;20:5;30:5\n"
+                + "freedraw,color=red,size=3,coord=30:5;40:5\n"
+                + "freedraw,color=blue,size=3,coord=40:5;50:5\n"
+                + "freedraw,color=blue,size=3,coord=51:5;60:5\n", TestSupport.text(compacted(store)));
+        assertArrayEquals(new int[] {0, 0, -1, 0, 1, 2, 3, -1}, BoardCompactor.plan(store));
+        assertEquals(TestSupport.picture(store), TestSupport.picture(compacted(store)));
+    }
+
+    @Test
+    public void CoverTest() {
+        StrokeStore store = new StrokeStore();
+        TestSupport.add(store, "black", 3, 100, 100, 120, 102);
+        TestSupport.add(store, "green", 3, 100, 200, 120, 200);
+        TestSupport.add(store, "black", 3, 100, 300, 175, 300);
+        TestSupport.add(store, "white", 40, 90, 100, 130, 100);
+        TestSupport.add(store, "blue", 3, 100, 100, 120, 100);
+        // wide enough, but reaches past the end of the eraser (which is 20
+        // pixels past its last point)
+        TestSupport.add(store, "white", 40, 90, 300, 150, 300);
+        // a diagonal eraser over the green stroke
+        TestSupport.add(store, "white", 30, 80, 180, 140, 220);
+
+        assertArrayEquals(new int[] {-1, -1, 0, 1, 2, 3, 4}, BoardCompactor.plan(store));
+        assertEquals(TestSupport.picture(store), TestSupport.picture(compacted(store)));
+    }
+
+    @Test
+    public void PictureTest() {
+        Random random = new Random(6005);
+        StrokeStore store = new StrokeStore();
+        String[] colors = {"black", "red", "blue", "green", "yellow", "white"};
+        int x = 400, y = 300;
+        for (int s = 0; s < 3000; s++) {
+            String color = colors[random.nextInt(colors.length)];
+            int size = color.equals("white") && random.nextBoolean() ? 10 + random.nextInt(40) : random.nextInt(6);
+            // mostly short strokes carrying on from the last one, like a
+            // client sending small pieces of one drag
+            if (random.nextInt(4) == 0) {
+                x = random.nextInt(800);
+                y = random.nextInt(600);
+            }
+            int[] points = new int[2 * (1 + random.nextInt(4))];
+            for (int p = 0; p < points.length; p += 2) {
+                x = Math.max(-20, Math.min(820, x + random.nextInt(61) - 30));
+                y = Math.max(-20, Math.min(620, y + random.nextInt(61) - 30));
+                points[p] = x;
+                points[p + 1] = y;
+            }
+            store.add(StrokeStore.colorCode(color), size, points, points.length / 2);
+            // the same color and size for a while
+            if (random.nextInt(3) > 0) {
+                store.add(StrokeStore.colorCode(color), size, new int[] {x, y, x + 3, y + 4}, 2);
+                x += 3;
+                y += 4;
+            }
+        }
+        StrokeStore compacted = compacted(store);
+        assertTrue(compacted.size() < store.size() * 3 / 4);
+        assertTrue(compacted.storedBytes() < store.storedBytes());
+        assertEquals(TestSupport.picture(store), TestSupport.picture(compacted));
+    }
+
+    @Test
+    public void RenumberTest() {
+        Whiteboard board = new Whiteboard("board1");
+        StrokeStore store = board.getSketches();
+        TestSupport.add(store, "red", 2, 0, 0, 10, 0);
+        TestSupport.add(store, "red", 2, 10, 0, 20, 0);
+        TestSupport.add(store, "red", 2, 5, 5);
+        TestSupport.add(store, "blue", 2, 0, 50, 10, 50);
+        TestSupport.add(store, "blue", 2, 10, 50, 20, 50);
+        BoardKeyframe keyframe = new BoardKeyframe(800, 600);
+        keyframe.update(store);
+        board.setKeyframe(keyframe);
+        ConnectionInfo connInfo = new ConnectionInfo(new OutboundQueue(16, OverflowPolicy.DROP_CONNECTION));
+        board.addUser("user1", connInfo);
+
+        TestSupport.add(store, "green", 2, 0, 90, 10, 90);
+        TestSupport.add(store, "green", 2, 10, 90, 20, 90);
+        int[] plan = BoardCompactor.plan(store);
+        assertArrayEquals(new int[] {0, 0, -1, 1, 1, 2, 2}, plan);
+        assertArrayEquals(new int[] {0, -1, 1, 1, -1, 2, -1, 3}, BoardCompactor.cursorMap(plan));
+
+        // the keyframe ends in the middle of a merged stroke
+        keyframe.setStrokeCount(6);
+        assertFalse(BoardCompactor.compact(board));
+        assertSame(store, board.getSketches());
+
+        keyframe.setStrokeCount(5);
+        // the keyframe is being rendered from the strokes before compaction
+        keyframe.setRendering(true);
+        assertFalse(BoardCompactor.compact(board));
+        keyframe.setRendering(false);
+        assertTrue(BoardCompactor.compact(board));
+        assertEquals(3, board.getSketches().size());
+        assertEquals(2, keyframe.getStrokeCount());
+        assertEquals(3, board.getCompactedStrokes());
+        assertEquals(store.storedBytes() - board.getSketches().storedBytes(), board.getReclaimedBytes());
+        assertTrue(board.getReclaimedBytes() > 0);
+        assertEquals(TestSupport.picture(store), TestSupport.picture(board.getSketches()));
+    }
+
+    @Test
+    public void StreamRenumberTest() {
+        Whiteboard board = new Whiteboard("board1");
+        StrokeStore store = board.getSketches();
+        StringBuilder kept = new StringBuilder();
+        for (int s = 0; s < 1000; s++) {
+            // dropped, draws nothing
+            TestSupport.add(store, "red", 1, s, s);
+            TestSupport.add(store, "black", 2, s, 0, s, 10, s, 20, s, 30, s, 40);
+            kept.append("freedraw,color=black,size=2,coord=" + s + ":0;" + s + ":10;" + s + ":20;"
+                    + s + ":30;" + s + ":40\n");
+        }
+        ConnectionInfo connInfo = new ConnectionInfo(new OutboundQueue(16, OverflowPolicy.DROP_CONNECTION));
+        board.addUser("user1", connInfo);
+        board.getLock().lock();
+        try {
+            HistoryStream.start(connInfo, board, 0);
+        }
+        finally {
+            board.getLock().unlock();
+        }
+        HistoryStream stream = connInfo.getHistoryStream();
+        assertNotNull(stream);
+        // an even index, the start of a pair
+        int sent = stream.getNext();
+        assertEquals(0, sent % 2);
+
+        assertTrue(BoardCompactor.compact(board));
+        assertEquals(1000, board.getSketches().size());
+        assertEquals(sent / 2, stream.getNext());
+        assertEquals(kept.toString(), TestSupport.text(board.getSketches()));
+    }
+}
@@ -0,0 +1,166 @@
+package whiteboard.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/*
+ * Background eviction of the boards nobody uses
+ * Every check interval:
+ *
+ * - a board nobody is on (and nobody is about to draw on) that has not been
+ *   opened, left or drawn on for the idle time is evicted: its strokes are
+ *   written to the board directory (see BoardStore) and dropped from memory
+ * - if the boards in memory hold more than the cache budget of strokes, the
+ *   least recently used boards nobody is on are evicted as well, without
+ *   waiting for the idle time
+ * - an evicted board unused for longer than the time to live is removed
+ *   from the server, its file is archived or deleted
+ *
+ * An evicted board stays in the board list under its name, and is loaded
+ * back by the server when somebody opens or draws on it (see
+ * WhiteboardServer.processOpenBoard()), so clients can't tell it was gone
+ *
+ * The file is written on this class's thread from a view of the board's
+ * strokes, holding no lock. The locks are only taken to take the view and,
+ * at the end, to check nobody came to the board and no stroke was added
+ * meanwhile and drop the strokes, otherwise the eviction is given up and
+ * tried again next time
+ */
+class BoardEvictor implements Runnable {
+    // time between checks for boards to evict
+    static final long CHECK_MILLIS = 1000;
+
+    private final WhiteboardServer server;
+    private final BoardStore store;
+    private final long idleMillis;
+    private final long cacheBytes;
+    private final long ttlMillis;
+
+    /**
+     * Constructor
+     * @param server server whose boards are evicted
+     * @param store directory the boards are evicted to
+     * @param idleMillis time a board must go unused before it is evicted
+     * @param cacheBytes bytes of strokes kept in memory, 0 for no limit
+     * @param ttlMillis time an evicted board is kept after it was last used,
+     *        0 to keep it forever
+     */
+    BoardEvictor(WhiteboardServer server, BoardStore store, long idleMillis, long cacheBytes, long ttlMillis) {
+        this.server = server;
+        this.store = store;
+        this.idleMillis = idleMillis;
+        this.cacheBytes = cacheBytes;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Starts the evictor thread
+     */
+    void start() {
+        Thread thread = new Thread(this, "board-evictor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Checks the boards every check interval, never returns
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(CHECK_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            check(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Evicts the boards that are idle or over the budget, and removes the
+     * expired ones
+     * Must be called without the server or a board lock held
+     *
+     * @param now current time in milliseconds since the epoch
+     */
+    void check(long now) {
+        ArrayList<Whiteboard> boards = server.getWhiteboardsSnapshot();
+        final ArrayList<Whiteboard> resident = new ArrayList<Whiteboard>();
+        final ArrayList<Long> lastUsed = new ArrayList<Long>();
+        ArrayList<Long> bytes = new ArrayList<Long>();
+        long total = 0;
+        for (Whiteboard board : boards) {
+            board.getLock().lock();
+            try {
+                if (!board.isResident()) continue;
+                resident.add(board);
+                // read once, the board may be used while they are sorted
+                lastUsed.add(board.getLastUsed());
+                bytes.add(board.getSketches().storedBytes());
+                total += bytes.get(bytes.size() - 1);
+            }
+            finally {
+                board.getLock().unlock();
+            }
+        }
+
+        // least recently used first
+        Integer[] order = new Integer[resident.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(lastUsed.get(a), lastUsed.get(b));
+            }
+        });
+        for (int i : order) {
+            boolean idle = now - lastUsed.get(i) >= idleMillis;
+            boolean over = cacheBytes > 0 && total > cacheBytes;
+            // the boards after this one were used even more recently
+            if (!idle && !over) break;
+            if (evict(resident.get(i))) total -= bytes.get(i);
+        }
+
+        if (ttlMillis > 0) {
+            for (Whiteboard board : boards) {
+                if (now - board.getLastUsed() >= ttlMillis) {
+                    server.expireBoard(board);
+                }
+            }
+        }
+    }
+
+    /**
+     * Evicts a board to disk, unless somebody is using it
+     * Must be called without the server or a board lock held
+     *
+     * @param board whiteboard
+     * @return true if the board was evicted, false if it was given up
+     */
+    boolean evict(Whiteboard board) {
+        if (server.isBoardInUse(board)) return false;
+        StrokeStore source;
+        StrokeStore view;
+        board.getLock().lock();
+        try {
+            if (!board.isResident()) return false;
+            source = board.getSketches();
+            view = source.view();
+        }
+        finally {
+            board.getLock().unlock();
+        }
+        try {
+            store.write(board.getBoardName(), view);
+        } catch (IOException e) {
+            e.printStackTrace(); // the board stays in memory
+            return false;
+        }
+        return server.finishEviction(board, source, view.size());
+    }
+}
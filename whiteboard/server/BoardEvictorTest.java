@@ -0,0 +1,315 @@
+package whiteboard.server;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import controller.ParseMessage;
+
+/**
+ * Testing Strategy:
+ * The servers are constructed but not served, the evictor is run by hand at a given time
+ * StoreTest- verify strokes with short and int coordinates read back as written, and that
+ *          archived and deleted boards are gone from the directory
+ * IdleTest- verify only the board unused for the idle time is evicted, not one somebody is on
+ *          or has as its current board, and that it is loaded back with its strokes when somebody opens it
+ * BudgetTest- verify the least recently used boards are evicted until the strokes in memory
+ *          fit the cache budget
+ * DrawTest- verify a stroke dispatched before the user left lands on the evicted board
+ * UnreadableTest- verify opening an evicted board whose file is gone answers that the board
+ *          does not exist and leaves the user off it, and that a stroke for it is dropped
+ * ExpireTest- verify an evicted board past its time to live is removed and archived, that the
+ *          logged in users are told it is gone, and that it is not restored from the journal by a
+ *          restarted server
+ * RestartTest- verify a restarted server without a journal lists the evicted boards and
+ *          loads them when opened
+ * JournalRestartTest- verify a restarted server with a journal recovers the boards still evicted
+ *          as evicted and the board drawn on after its eviction in memory, from its file and the
+ *          strokes journaled since, with all their strokes
+ */
+public class BoardEvictorTest {
+
+    private static final long MINUTE = 60 * 1000;
+
+    private static ServerConfig config(int port, File dir) {
+        ServerConfig config = new ServerConfig();
+        config.setPort(port);
+        config.setBoardDir(dir.getPath());
+        config.setBoardIdleMillis(10 * MINUTE);
+        return config;
+    }
+
+    private static Whiteboard board(String name, int strokes) {
+        Whiteboard board = new Whiteboard(name);
+        for (int s = 0; s < strokes; s++) {
+            board.getSketches().add((byte) (s % 6), 1 + s % 20, new int[] {s, 2 * s, s + 5, 70000}, 2);
+        }
+        return board;
+    }
+
+    // creates a board as a client would, and draws the strokes of board() on it
+    // The creator then moves on, the board is not its current board any more
+    private static Whiteboard addBoard(WhiteboardServer server, String name, int strokes) {
+        ConnectionInfo creator = user("creator");
+        server.processNewBoard(creator, ParseMessage.parseClientMsg("new,whiteboard=" + name));
+        creator.setWhiteboard(null);
+        Whiteboard board = server.getWhiteboards().get(server.getWhiteboards().size() - 1);
+        StrokeStore drawn = board(name, strokes).getSketches();
+        board.getLock().lock();
+        try {
+            for (int s = 0; s < strokes; s++) {
+                board.getSketches().add(drawn.getColorCode(s), drawn.getLineSize(s),
+                        new int[] {drawn.getX(s, 0), drawn.getY(s, 0), drawn.getX(s, 1), drawn.getY(s, 1)}, 2);
+            }
+        }
+        finally {
+            board.getLock().unlock();
+        }
+        return board;
+    }
+
+    private static boolean resident(Whiteboard board) {
+        board.getLock().lock();
+        try {
+            return board.isResident();
+        }
+        finally {
+            board.getLock().unlock();
+        }
+    }
+
+    // a logged in connection that is not served, its messages stay in its queue
+    private static ConnectionInfo user(String name) {
+        ConnectionInfo connInfo = new ConnectionInfo(new OutboundQueue(1024, OverflowPolicy.DROP_CONNECTION));
+        connInfo.setLoggedIn(true);
+        connInfo.setUserName(name);
+        return connInfo;
+    }
+
+    @Test
+    public void StoreTest() throws IOException {
+        File dir = Files.createTempDirectory("boards").toFile();
+        BoardStore store = new BoardStore(dir);
+        StrokeStore strokes = board("board1", 50).getSketches();
+        store.write("board1", strokes);
+        store.write("board2", new StrokeStore());
+        assertTrue(store.contains("board1"));
+        assertEquals(TestSupport.text(strokes), TestSupport.text(store.read("board1")));
+        assertEquals(0, store.read("board2").size());
+
+        store.archive("board1");
+        store.delete("board2");
+        assertFalse(store.contains("board1"));
+        assertTrue(new File(dir, "archive/board1.board").isFile());
+        assertTrue(store.names().isEmpty());
+    }
+
+    @Test
+    public void IdleTest() throws IOException {
+        File dir = Files.createTempDirectory("boards").toFile();
+        WhiteboardServer server = new WhiteboardServer(config(4458, dir));
+        Whiteboard board1 = addBoard(server, "board1", 100);
+        Whiteboard board2 = addBoard(server, "board2", 100);
+        Whiteboard board3 = addBoard(server, "board3", 100);
+        Whiteboard board4 = addBoard(server, "board4", 100);
+        String strokes = TestSupport.text(board1.getSketches());
+        long now = System.currentTimeMillis();
+        board1.setLastUsed(now - 11 * MINUTE);
+        board2.setLastUsed(now - 9 * MINUTE);
+        board3.setLastUsed(now - 11 * MINUTE);
+        board3.addUser("user3", user("user3"));
+        board4.setLastUsed(now - 11 * MINUTE);
+        // created it but did not open it
+        user("user4").setWhiteboard(board4);
+
+        server.newBoardEvictor().check(now);
+        assertFalse(resident(board1));
+        assertTrue(resident(board2));
+        assertTrue(resident(board3));
+        assertTrue(resident(board4));
+        assertEquals(1, server.getEvictions());
+        assertEquals(4, server.getWhiteboards().size());
+
+        ConnectionInfo connInfo = user("user1");
+        server.processOpenBoard(connInfo, ParseMessage.parseClientMsg("open,whiteboard=board1"));
+        assertTrue(resident(board1));
+        assertTrue(board1.hasUser("user1"));
+        assertEquals(1, server.getReloads());
+        assertEquals(strokes, TestSupport.text(board1.getSketches()));
+        assertEquals(strokes, TestSupport.received(connInfo));
+        assertTrue(now - board1.getLastUsed() < MINUTE);
+    }
+
+    @Test
+    public void BudgetTest() throws IOException {
+        File dir = Files.createTempDirectory("boards").toFile();
+        ServerConfig config = config(4459, dir);
+        long boardBytes = board("board", 1000).getSketches().storedBytes();
+        // room for two of the boards
+        config.setBoardCacheBytes(boardBytes * 5 / 2);
+        WhiteboardServer server = new WhiteboardServer(config);
+        long now = System.currentTimeMillis();
+        Whiteboard[] boards = new Whiteboard[4];
+        for (int b = 0; b < boards.length; b++) {
+            boards[b] = addBoard(server, "board" + b, 1000);
+        }
+        boards[0].setLastUsed(now - 3000);
+        boards[1].setLastUsed(now - 1000);
+        boards[2].setLastUsed(now - 4000);
+        boards[3].setLastUsed(now - 2000);
+
+        server.newBoardEvictor().check(now);
+        assertTrue(resident(boards[1]));
+        assertTrue(resident(boards[3]));
+        assertFalse(resident(boards[0]));
+        assertFalse(resident(boards[2]));
+        assertEquals(2, server.getEvictions());
+    }
+
+    @Test
+    public void DrawTest() throws IOException {
+        File dir = Files.createTempDirectory("boards").toFile();
+        WhiteboardServer server = new WhiteboardServer(config(4460, dir));
+        Whiteboard board = addBoard(server, "board1", 10);
+        long now = System.currentTimeMillis();
+        board.setLastUsed(now - 11 * MINUTE);
+        server.newBoardEvictor().check(now);
+        assertFalse(resident(board));
+
+        server.processFreeDraw(user("user1"), board,
+                ParseMessage.parseClientMsg("freedraw,color=red,size=5,coord=1:2;3:4"));
+        assertTrue(resident(board));
+        assertEquals(1, server.getReloads());
+        assertEquals(11, board.getSketches().size());
+        assertEquals(4, board.getSketches().getY(10, 1));
+    }
+
+    @Test
+    public void UnreadableTest() throws IOException {
+        File dir = Files.createTempDirectory("boards").toFile();
+        WhiteboardServer server = new WhiteboardServer(config(4477, dir));
+        Whiteboard board = addBoard(server, "board1", 10);
+        long now = System.currentTimeMillis();
+        board.setLastUsed(now - 11 * MINUTE);
+        server.newBoardEvictor().check(now);
+        assertTrue(new File(dir, "board1.board").delete());
+
+        ConnectionInfo connInfo = user("user1");
+        server.processOpenBoard(connInfo, ParseMessage.parseClientMsg("open,whiteboard=board1"));
+        assertEquals("boardnotexists,whiteboard=board1\n", TestSupport.received(connInfo));
+        assertNull(connInfo.getWhiteboard());
+        assertFalse(board.hasUser("user1"));
+        assertEquals(0, board.getCurrentConnections());
+        assertFalse(resident(board));
+
+        server.processFreeDraw(connInfo, board,
+                ParseMessage.parseClientMsg("freedraw,color=red,size=5,coord=1:2;3:4"));
+        assertFalse(resident(board));
+        assertEquals(0, server.getReloads());
+    }
+
+    @Test
+    public void ExpireTest() throws IOException {
+        File dir = Files.createTempDirectory("boards").toFile();
+        File journalDir = Files.createTempDirectory("journal").toFile();
+        ServerConfig config = config(4461, dir);
+        config.setJournalDir(journalDir.getPath());
+        config.setBoardTtlMillis(60 * MINUTE);
+        WhiteboardServer server = new WhiteboardServer(config);
+        Whiteboard board1 = addBoard(server, "board1", 10);
+        Whiteboard board2 = addBoard(server, "board2", 10);
+        long now = System.currentTimeMillis();
+        board1.setLastUsed(now - 61 * MINUTE);
+        board2.setLastUsed(now - 59 * MINUTE);
+        ConnectionInfo viewer = new ConnectionInfo(new OutboundQueue(1024, OverflowPolicy.DROP_CONNECTION));
+        server.processLogin(viewer, ParseMessage.parseClientMsg("login,user=viewer"));
+        TestSupport.received(viewer);
+
+        server.newBoardEvictor().check(now);
+        assertEquals(2, server.getEvictions());
+        assertEquals(1, server.getExpiredBoards());
+        assertEquals("boardremoved,whiteboard=board1\n", TestSupport.received(viewer));
+        ArrayList<Whiteboard> boards = server.getWhiteboards();
+        assertEquals(1, boards.size());
+        assertSame(board2, boards.get(0));
+        assertTrue(new File(dir, "archive/board1.board").isFile());
+        assertFalse(new File(dir, "board1.board").exists());
+
+        ServerConfig restartConfig = config(4462, dir);
+        restartConfig.setJournalDir(journalDir.getPath());
+        WhiteboardServer restarted = new WhiteboardServer(restartConfig);
+        assertEquals(1, restarted.getWhiteboards().size());
+        assertEquals("board2", restarted.getWhiteboards().get(0).getBoardName());
+        assertFalse(resident(restarted.getWhiteboards().get(0)));
+    }
+
+    @Test
+    public void RestartTest() throws IOException {
+        File dir = Files.createTempDirectory("boards").toFile();
+        WhiteboardServer server = new WhiteboardServer(config(4463, dir));
+        Whiteboard board = addBoard(server, "board1", 10);
+        String strokes = TestSupport.text(board.getSketches());
+        long now = System.currentTimeMillis();
+        board.setLastUsed(now - 11 * MINUTE);
+        server.newBoardEvictor().check(now);
+
+        WhiteboardServer restarted = new WhiteboardServer(config(4464, dir));
+        ArrayList<Whiteboard> boards = restarted.getWhiteboards();
+        assertEquals(1, boards.size());
+        Whiteboard restored = boards.get(0);
+        assertEquals("board1", restored.getBoardName());
+        assertFalse(resident(restored));
+        ConnectionInfo connInfo = user("user1");
+        restarted.processOpenBoard(connInfo, ParseMessage.parseClientMsg("open,whiteboard=board1"));
+        assertEquals(strokes, TestSupport.text(restored.getSketches()));
+        assertEquals(1, restarted.getReloads());
+    }
+
+    @Test
+    public void JournalRestartTest() throws IOException {
+        File dir = Files.createTempDirectory("boards").toFile();
+        File journalDir = Files.createTempDirectory("journal").toFile();
+        ServerConfig config = config(4478, dir);
+        config.setJournalDir(journalDir.getPath());
+        WhiteboardServer server = new WhiteboardServer(config);
+        Whiteboard board1 = addBoard(server, "board1", 0);
+        Whiteboard board2 = addBoard(server, "board2", 0);
+        ConnectionInfo drawer = user("drawer");
+        for (int s = 0; s < 3; s++) {
+            server.processFreeDraw(drawer, board1,
+                    ParseMessage.parseClientMsg("freedraw,color=red,size=5,coord=" + s + ":2;3:4"));
+            server.processFreeDraw(drawer, board2,
+                    ParseMessage.parseClientMsg("freedraw,color=blue,size=2,coord=" + s + ":7;8:9"));
+        }
+        String strokes1 = TestSupport.text(board1.getSketches());
+        long now = System.currentTimeMillis();
+        board1.setLastUsed(now - 11 * MINUTE);
+        board2.setLastUsed(now - 11 * MINUTE);
+        server.newBoardEvictor().check(now);
+        assertEquals(2, server.getEvictions());
+        // board2 is loaded back and drawn on, its file misses the new stroke
+        server.processFreeDraw(drawer, board2,
+                ParseMessage.parseClientMsg("freedraw,color=blue,size=2,coord=3:7;8:9"));
+        assertTrue(resident(board2));
+        String strokes2 = TestSupport.text(board2.getSketches());
+
+        ServerConfig restartConfig = config(4479, dir);
+        restartConfig.setJournalDir(journalDir.getPath());
+        WhiteboardServer restarted = new WhiteboardServer(restartConfig);
+        ArrayList<Whiteboard> boards = restarted.getWhiteboards();
+        assertEquals(2, boards.size());
+        Whiteboard restored1 = boards.get(0);
+        Whiteboard restored2 = boards.get(1);
+        assertFalse(resident(restored1));
+        assertTrue(resident(restored2));
+        assertEquals(strokes2, TestSupport.text(restored2.getSketches()));
+        restarted.processOpenBoard(user("user1"), ParseMessage.parseClientMsg("open,whiteboard=board1"));
+        assertEquals(strokes1, TestSupport.text(restored1.getSketches()));
+        assertEquals(3, restored1.getSketches().size());
+    }
+}
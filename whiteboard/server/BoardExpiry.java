@@ -0,0 +1,12 @@
+package whiteboard.server;
+
+/*
+ * List of things the server can do with an evicted board nobody has used
+ * for longer than the board time to live
+ */
+public enum BoardExpiry {
+    // move the board's file to the archive subdirectory of the board directory
+    ARCHIVE,
+    // delete the board's file
+    DELETE,
+}
@@ -0,0 +1,695 @@
+package whiteboard.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/*
+ * Append only journal of the boards and strokes of the server, so that the
+ * boards survive a restart
+ *
+ * The journal is a directory of segment files (journal-0000000000.seg, ...)
+ * each mapped into memory in turn. A record is appended by copying it into
+ * the mapped segment, which costs about as much as copying it into an array.
+ * Records are made durable by group commit: a flusher thread forces the
+ * segments to disk every flush interval, so the thread that appends never
+ * waits for the disk and one force covers all the strokes appended since the
+ * last one. A crash of the server process loses nothing (the mapped pages
+ * belong to the OS), a crash of the machine at most the last flush interval
+ *
+ * Record layout, all numbers big endian:
+ *   int length of the payload, 0 marks the end of the segment
+ *   int CRC32 of the payload
+ *   payload, one of
+ *     BOARD  id (int), name length (short), name in UTF-8
+ *     STROKE board id (int), color code (byte, WIDE set if the coordinates
+ *            are ints), line size (int), number of points (int), the x and y
+ *            of each point as shorts or WIDE as ints
+ *     REMOVE board id (int), the board expired and is left out of recovery
+ *     EVICT  board id (int), the strokes journaled so far were written to
+ *            the board directory and dropped from memory
+ * Boards are numbered in the order they are journaled, the number is only
+ * used inside the journal so strokes don't repeat the board name
+ *
+ * Recovery replays every segment in order up to the first record that is
+ * missing or fails its checksum (torn by a crash), and appending resumes
+ * at the end of the last segment. The strokes of a board up to its last
+ * EVICT are in its board file, so they are skipped (see strokesInFile()),
+ * and a board whose last record is EVICT was still evicted when the server
+ * stopped (see wasEvicted()), none of its strokes come back into memory
+ *
+ * Segments are deleted by checkpoints, run by the flusher after an eviction
+ * or a removal: a board with no stroke journaled since it was created or
+ * last evicted only needs its BOARD record, and EVICT record if evicted,
+ * which are appended again, so the segments before the BOARD record of the
+ * oldest board with strokes only in the journal are no longer needed
+ *
+ * Thread safe, appends may come from the control thread and any shard
+ */
+class BoardJournal {
+    private static final byte BOARD = 1;
+    private static final byte STROKE = 2;
+    private static final byte REMOVE = 3;
+    private static final byte EVICT = 4;
+    // set in the color code of a stroke journaled with int coordinates
+    private static final int WIDE = 0x40;
+    // length and checksum in front of each payload
+    private static final int HEADER = 8;
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".seg";
+
+    private final File dir;
+    private final int segmentSize;
+    private final int flushMillis;
+
+    // guards everything below, held only while copying a record in or
+    // swapping segments, never while forcing to disk
+    private final ReentrantLock lock = new ReentrantLock();
+    private final CRC32 crc = new CRC32();
+    // journal ids of the boards journaled so far, by board name
+    private final HashMap<String, Integer> boardIds = new HashMap<String, Integer>();
+    // id of the next board journaled, the id of a removed board is only
+    // reused once a checkpoint deleted its BOARD record, the records of the
+    // new board then all come after those left of the old one
+    private int nextBoardId = 0;
+    // what the checkpoints need to know of the boards journaled, by id:
+    // segment of the BOARD record, boards with strokes journaled since they
+    // were created or last evicted, and boards last evicted without a
+    // stroke journaled since
+    private final HashMap<Integer, Integer> boardSegments = new HashMap<Integer, Integer>();
+    private final HashSet<Integer> drawn = new HashSet<Integer>();
+    private final HashSet<Integer> evictedIds = new HashSet<Integer>();
+    // first segment that was not deleted
+    private int firstSegment = 0;
+    // set by an eviction or a removal, the flusher then runs a checkpoint
+    private boolean checkpointWanted = false;
+    // segment being appended to, null until recover() is called
+    private MappedByteBuffer segment = null;
+    private int segmentNumber = -1;
+    // position in the segment of the payload of the record being appended
+    private int payloadStart = 0;
+    // true if the segment has had records appended since it was last forced
+    private boolean dirty = false;
+    // full segments that have not been forced yet
+    private final ArrayList<MappedByteBuffer> unforced = new ArrayList<MappedByteBuffer>();
+    // scratch coordinates for replaying strokes
+    private int[] points = new int[64];
+    private Thread flusher = null;
+    private volatile boolean closed = false;
+
+    // what recover() found
+    private long recoveredBytes = 0;
+    private int recoveredStrokes = 0;
+    // names of the boards whose last record was EVICT, and of the boards
+    // evicted at least once, whose strokes up to then were not recovered
+    private final HashSet<String> evicted = new HashSet<String>();
+    private final HashSet<String> filed = new HashSet<String>();
+
+    /**
+     * Constructor, nothing is read or written until recover() is called
+     * @param dir directory of the segment files, created if missing
+     * @param segmentSize size of a segment file in bytes, requires
+     *        0 < segmentSize < 2^31, a record larger than that gets a
+     *        segment of its own
+     * @param flushMillis milliseconds between forces to disk, 0 to force
+     *        only when the journal is closed (the OS still writes the
+     *        pages out on its own)
+     */
+    BoardJournal(File dir, int segmentSize, int flushMillis) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.flushMillis = flushMillis;
+    }
+
+    /**
+     * Replays the journal and readies it for appending
+     * Must be called once, before anything is appended
+     *
+     * @return the journaled boards in the order they were created, with
+     *         their strokes since they were last evicted and no users
+     * @throws IOException if the directory or a segment can't be read or created
+     */
+    ArrayList<Whiteboard> recover() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create journal directory " + dir);
+        }
+        ArrayList<Whiteboard> boards = new ArrayList<Whiteboard>();
+        HashMap<Integer, Whiteboard> byId = new HashMap<Integer, Whiteboard>();
+        File[] files = segmentFiles();
+        // first the records are checked and the last eviction of each
+        // board found, so the strokes before it are not even decoded
+        int[] ends = new int[files.length];
+        HashMap<Integer, Long> lastEvictions = new HashMap<Integer, Long>();
+        for (int f = 0; f < files.length; f++) {
+            try (FileChannel channel = FileChannel.open(files[f].toPath())) {
+                ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                ends[f] = scan(buf, f, lastEvictions);
+                recoveredBytes += ends[f];
+            }
+        }
+        for (int f = 0; f < files.length; f++) {
+            try (FileChannel channel = FileChannel.open(files[f].toPath())) {
+                ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                replay(buf, ends[f], f, segmentNumber(files[f]), lastEvictions, boards, byId);
+            }
+        }
+        // checkpoints append the records of old boards again after newer
+        // ones, ids are in the order the boards were created
+        Collections.sort(boards, new Comparator<Whiteboard>() {
+            @Override
+            public int compare(Whiteboard a, Whiteboard b) {
+                return Integer.compare(boardIds.get(a.getBoardName()), boardIds.get(b.getBoardName()));
+            }
+        });
+        for (Integer id : evictedIds) {
+            evicted.add(byId.get(id).getBoardName());
+        }
+        for (Integer id : lastEvictions.keySet()) {
+            if (byId.containsKey(id)) filed.add(byId.get(id).getBoardName());
+        }
+
+        lock.lock();
+        try {
+            if (files.length == 0) {
+                newSegment(0, segmentSize);
+            }
+            else {
+                File last = files[files.length - 1];
+                firstSegment = segmentNumber(files[0]);
+                segmentNumber = segmentNumber(last);
+                segment = map(last, last.length());
+                segment.position(ends[files.length - 1]);
+                // clear whatever a crash left after the last good record, so
+                // it is not taken for records once new ones are appended
+                while (segment.hasRemaining()) {
+                    segment.put((byte) 0);
+                }
+                segment.position(ends[files.length - 1]);
+                dirty = true;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        if (flushMillis > 0) {
+            flusher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    flushLoop();
+                }
+            }, "journal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        return boards;
+    }
+
+    /**
+     * Checks the records of a segment and finds the evictions
+     * @param buf the segment
+     * @param file position of the segment among the segments replayed
+     * @param lastEvictions where the last EVICT of each board since its
+     *        BOARD record is, by board id, as file << 32 | position
+     * @return position after the last good record
+     */
+    private int scan(ByteBuffer buf, int file, HashMap<Integer, Long> lastEvictions) {
+        CRC32 check = new CRC32();
+        int pos = 0;
+        while (pos + HEADER <= buf.limit()) {
+            int length = buf.getInt(pos);
+            if (length <= 0 || length > buf.limit() - pos - HEADER) break;
+            ByteBuffer payload = buf.duplicate();
+            payload.limit(pos + HEADER + length).position(pos + HEADER);
+            check.reset();
+            check.update(payload);
+            if ((int) check.getValue() != buf.getInt(pos + 4)) break;
+
+            byte type = buf.get(pos + HEADER);
+            int id = buf.getInt(pos + HEADER + 1);
+            if (type == BOARD) {
+                // an eviction of an earlier board with the same id
+                lastEvictions.remove(id);
+            }
+            else if (type == EVICT) {
+                lastEvictions.put(id, (long) file << 32 | pos);
+            }
+            pos += HEADER + length;
+        }
+        return pos;
+    }
+
+    /**
+     * Replays the records of a segment
+     * @param buf the segment
+     * @param end position after the last good record, see scan()
+     * @param file position of the segment among the segments replayed
+     * @param number segment number
+     * @param lastEvictions last EVICT of each board, see scan()
+     * @param boards boards replayed so far, new boards are added to it
+     * @param byId the same boards by journal id
+     */
+    private void replay(ByteBuffer buf, int end, int file, int number, HashMap<Integer, Long> lastEvictions,
+            ArrayList<Whiteboard> boards, HashMap<Integer, Whiteboard> byId) {
+        int pos = 0;
+        while (pos < end) {
+            int length = buf.getInt(pos);
+            int at = pos + HEADER;
+            byte type = buf.get(at);
+            int id = buf.getInt(at + 1);
+            if (type == BOARD && byId.containsKey(id)) {
+                // appended again by a checkpoint that did not get to delete
+                // the segment of the first one
+                boardSegments.put(id, number);
+            }
+            else if (type == BOARD) {
+                byte[] name = new byte[buf.getShort(at + 5) & 0xffff];
+                for (int i = 0; i < name.length; i++) {
+                    name[i] = buf.get(at + 7 + i);
+                }
+                Whiteboard board = new Whiteboard(new String(name, StandardCharsets.UTF_8));
+                boardIds.put(board.getBoardName(), id);
+                nextBoardId = Math.max(nextBoardId, id + 1);
+                byId.put(id, board);
+                boards.add(board);
+                boardSegments.put(id, number);
+            }
+            else if (type == STROKE && byId.containsKey(id)) {
+                Long evicted = lastEvictions.get(id);
+                // the strokes before the last eviction are in the board file
+                if (evicted == null || ((long) file << 32 | pos) > evicted) {
+                    replayStroke(buf, at + 5, byId.get(id));
+                    drawn.add(id);
+                    // drawn on, so it was loaded back after the eviction
+                    evictedIds.remove(id);
+                }
+            }
+            else if (type == REMOVE && byId.containsKey(id)) {
+                Whiteboard board = byId.remove(id);
+                boards.remove(board);
+                boardIds.remove(board.getBoardName());
+                forget(id);
+                lastEvictions.remove(id);
+            }
+            else if (type == EVICT && byId.containsKey(id)) {
+                evictedIds.add(id);
+                drawn.remove(id);
+            }
+            pos += HEADER + length;
+        }
+    }
+
+    private void replayStroke(ByteBuffer buf, int at, Whiteboard board) {
+        byte color = buf.get(at);
+        int lineSize = buf.getInt(at + 1);
+        int pointCount = buf.getInt(at + 5);
+        at += 9;
+        if (points.length < pointCount * 2) {
+            points = new int[pointCount * 2];
+        }
+        boolean wide = (color & WIDE) != 0;
+        for (int i = 0; i < pointCount * 2; i++) {
+            if (wide) {
+                points[i] = buf.getInt(at);
+                at += 4;
+            }
+            else {
+                points[i] = buf.getShort(at);
+                at += 2;
+            }
+        }
+        board.getSketches().add((byte) (color & ~WIDE), lineSize, points, pointCount);
+        recoveredStrokes++;
+    }
+
+    /**
+     * Journals a new board
+     * @param boardName name of the board, not journaled before
+     */
+    void appendBoard(String boardName) {
+        byte[] name = boardName.getBytes(StandardCharsets.UTF_8);
+        lock.lock();
+        try {
+            int id = nextBoardId++;
+            boardIds.put(boardName, id);
+            putBoard(id, name);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Journals a stroke added to a board
+     * Must be called with the board lock held, so the stroke can't change
+     *
+     * @param boardName name of a journaled board
+     * @param strokes strokes of the board
+     * @param stroke index of the stroke, requires 0 <= stroke < strokes.size()
+     */
+    void appendStroke(String boardName, StrokeStore strokes, int stroke) {
+        int pointCount = strokes.getPointCount(stroke);
+        boolean wide = false;
+        for (int p = 0; p < pointCount; p++) {
+            int x = strokes.getX(stroke, p);
+            int y = strokes.getY(stroke, p);
+            if (x != (short) x || y != (short) y) wide = true;
+        }
+        byte color = StrokeStore.colorCode(strokes.getColor(stroke));
+        lock.lock();
+        try {
+            int id = boardIds.get(boardName);
+            drawn.add(id);
+            evictedIds.remove(id);
+            ByteBuffer out = reserve(14 + pointCount * (wide ? 8 : 4));
+            out.put(STROKE);
+            out.putInt(id);
+            out.put((byte) (wide ? color | WIDE : color));
+            out.putInt(strokes.getLineSize(stroke));
+            out.putInt(pointCount);
+            for (int p = 0; p < pointCount; p++) {
+                if (wide) {
+                    out.putInt(strokes.getX(stroke, p));
+                    out.putInt(strokes.getY(stroke, p));
+                }
+                else {
+                    out.putShort((short) strokes.getX(stroke, p));
+                    out.putShort((short) strokes.getY(stroke, p));
+                }
+            }
+            commit(out);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Journals that a board was removed from the server, its strokes are
+     * not recovered any more and the name can be journaled again
+     * @param boardName name of the board, ignored if it was not journaled
+     */
+    void appendRemoval(String boardName) {
+        lock.lock();
+        try {
+            Integer id = boardIds.remove(boardName);
+            if (id == null) return;
+            forget(id);
+            ByteBuffer out = reserve(5);
+            out.put(REMOVE);
+            out.putInt(id);
+            commit(out);
+            checkpointWanted = true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Journals that a board was evicted, its strokes up to now are in the
+     * board directory
+     * Must be called with the board lock held, so no stroke is journaled
+     * between the eviction and this record
+     *
+     * @param boardName name of the board, ignored if it was not journaled
+     */
+    void appendEviction(String boardName) {
+        lock.lock();
+        try {
+            Integer id = boardIds.get(boardName);
+            if (id == null) return;
+            drawn.remove(id);
+            evictedIds.add(id);
+            putEviction(id);
+            checkpointWanted = true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends a BOARD record
+     * Must be called with the lock held
+     */
+    private void putBoard(int id, byte[] name) {
+        ByteBuffer out = reserve(7 + name.length);
+        boardSegments.put(id, segmentNumber);
+        out.put(BOARD);
+        out.putInt(id);
+        out.putShort((short) name.length);
+        out.put(name);
+        commit(out);
+    }
+
+    /**
+     * Appends an EVICT record
+     * Must be called with the lock held
+     */
+    private void putEviction(int id) {
+        ByteBuffer out = reserve(5);
+        out.put(EVICT);
+        out.putInt(id);
+        commit(out);
+    }
+
+    // drops what the checkpoints know of a removed board
+    private void forget(int id) {
+        boardSegments.remove(id);
+        drawn.remove(id);
+        evictedIds.remove(id);
+    }
+
+    /**
+     * Makes room for a record in the segment, starting a new segment if the
+     * record does not fit, and skips the header
+     * Must be called with the lock held
+     *
+     * @param length length of the payload
+     * @return the segment, positioned at the payload
+     */
+    private ByteBuffer reserve(int length) {
+        if (segment == null) {
+            throw new IllegalStateException("Journal is not recovered");
+        }
+        // leave room for the end marker
+        if (segment.remaining() < HEADER + length + 4) {
+            unforced.add(segment);
+            try {
+                newSegment(segmentNumber + 1, Math.max(segmentSize, HEADER + length + 4));
+            } catch (IOException e) {
+                throw new RuntimeException("Can't start journal segment", e);
+            }
+        }
+        payloadStart = segment.position() + HEADER;
+        segment.position(payloadStart);
+        return segment;
+    }
+
+    /**
+     * Writes the header of the record whose payload was just put in the segment
+     * Must be called with the lock held
+     */
+    private void commit(ByteBuffer out) {
+        ByteBuffer payload = out.duplicate();
+        payload.limit(out.position()).position(payloadStart);
+        crc.reset();
+        crc.update(payload);
+        out.putInt(payloadStart - 4, (int) crc.getValue());
+        out.putInt(payloadStart - HEADER, out.position() - payloadStart);
+        dirty = true;
+    }
+
+    /**
+     * Forces everything appended so far to disk
+     * The lock is only held to pick up the segments to force
+     */
+    void flush() {
+        ArrayList<MappedByteBuffer> toForce;
+        lock.lock();
+        try {
+            toForce = new ArrayList<MappedByteBuffer>(unforced);
+            unforced.clear();
+            if (dirty && segment != null) {
+                toForce.add(segment);
+                dirty = false;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        for (MappedByteBuffer buf : toForce) {
+            buf.force();
+        }
+    }
+
+    /**
+     * Deletes the segments recovery no longer needs
+     * The BOARD records in them of the boards with no strokes journaled
+     * since they were created or last evicted are appended again, followed
+     * by an EVICT record for the evicted ones, and forced before any
+     * segment is deleted. The lock is not held while forcing or deleting
+     *
+     * @return number of segments deleted
+     */
+    int checkpoint() {
+        int first;
+        int keep;
+        lock.lock();
+        try {
+            checkpointWanted = false;
+            if (segment == null) return 0;
+            // the boards with strokes only in the journal keep the segments
+            // from their BOARD record on
+            keep = segmentNumber;
+            for (Integer id : drawn) {
+                keep = Math.min(keep, boardSegments.get(id));
+            }
+            first = firstSegment;
+            if (keep <= first) return 0;
+            for (String boardName : boardIds.keySet()) {
+                int id = boardIds.get(boardName);
+                if (boardSegments.get(id) >= keep) continue;
+                putBoard(id, boardName.getBytes(StandardCharsets.UTF_8));
+                if (evictedIds.contains(id)) putEviction(id);
+            }
+            firstSegment = keep;
+        }
+        finally {
+            lock.unlock();
+        }
+        flush();
+        // a segment left by a crash or a failed delete is replayed again,
+        // harmlessly, and deleted by a checkpoint after the next restart
+        for (int number = first; number < keep; number++) {
+            segmentFile(number).delete();
+        }
+        return keep - first;
+    }
+
+    // group commit, runs on the flusher thread until the journal is closed
+    private void flushLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(flushMillis);
+            } catch (InterruptedException e) {
+                // closed, flush one last time
+            }
+            flush();
+            boolean wanted;
+            lock.lock();
+            try {
+                wanted = checkpointWanted;
+            }
+            finally {
+                lock.unlock();
+            }
+            if (wanted && !closed) checkpoint();
+        }
+    }
+
+    /**
+     * Stops the flusher and forces everything appended to disk
+     * Nothing may be appended afterwards
+     */
+    void close() {
+        closed = true;
+        if (flusher != null) {
+            flusher.interrupt();
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * @return bytes of records replayed by recover()
+     */
+    long getRecoveredBytes() {
+        return recoveredBytes;
+    }
+
+    /**
+     * @return number of strokes replayed by recover()
+     */
+    int getRecoveredStrokes() {
+        return recoveredStrokes;
+    }
+
+    /**
+     * @param boardName name of a board recovered by recover()
+     * @return true if the board was evicted and not drawn on again before
+     *         the journal was last closed, so its file holds every stroke
+     */
+    boolean wasEvicted(String boardName) {
+        return evicted.contains(boardName);
+    }
+
+    /**
+     * @param boardName name of a board recovered by recover()
+     * @return true if the board was evicted at least once, its strokes up to
+     *         its last eviction are in its file and were not recovered, only
+     *         those drawn since
+     */
+    boolean strokesInFile(String boardName) {
+        return filed.contains(boardName);
+    }
+
+    private File[] segmentFiles() {
+        File[] files = dir.listFiles();
+        ArrayList<File> segments = new ArrayList<File>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) segments.add(file);
+            }
+        }
+        File[] result = segments.toArray(new File[segments.size()]);
+        // names are zero padded so they sort in order
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static int segmentNumber(File file) {
+        String name = file.getName();
+        return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * Creates and maps a new empty segment
+     * Must be called with the lock held
+     */
+    private void newSegment(int number, int size) throws IOException {
+        segment = map(segmentFile(number), size);
+        segmentNumber = number;
+        dirty = true;
+    }
+
+    private File segmentFile(int number) {
+        return new File(dir, String.format("%s%010d%s", PREFIX, number, SUFFIX));
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // a new file is filled with zeros, i.e with end markers
+            if (raf.length() < size) raf.setLength(size);
+            // the mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package whiteboard.server;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+/**
+ * Testing Strategy:
+ * RecoverTest- verify boards and strokes (short and wide coordinates) come back from the
+ *          journal in order, and that strokes appended after a recovery are kept as well
+ * SegmentsTest- verify a journal spread over many small segments, including a stroke larger
+ *          than a segment, comes back unchanged
+ * TornTailTest- verify a record damaged by a crash and everything after it in its segment is
+ *          dropped, and that new records replace it
+ * EvictTest- verify the strokes of a board up to its last eviction are not recovered, for a
+ *          board still evicted and one drawn on since, and that other boards keep theirs
+ * CheckpointTest- verify a checkpoint deletes nothing while the oldest board has strokes only
+ *          in the journal, deletes the segments before the oldest such board once the others
+ *          are evicted, and that the boards come back in order and still evicted
+ */
+public class BoardJournalTest {
+
+    private static File newDir() throws IOException {
+        return Files.createTempDirectory("journal").toFile();
+    }
+
+    // adds a stroke to the board and journals it
+    private static void draw(BoardJournal journal, Whiteboard board, String color, int size, int... points) {
+        StrokeStore sketches = board.getSketches();
+        int stroke = sketches.add(StrokeStore.colorCode(color), size, points, points.length / 2);
+        journal.appendStroke(board.getBoardName(), sketches, stroke);
+    }
+
+    private static Whiteboard newBoard(BoardJournal journal, String name) {
+        journal.appendBoard(name);
+        return new Whiteboard(name);
+    }
+
+    private static String text(Whiteboard board) {
+        StrokeStore sketches = board.getSketches();
+        ByteBuffer buf = sketches.encode(0, sketches.size());
+        return new String(buf.array(), 0, buf.limit(), StandardCharsets.UTF_8);
+    }
+
+    private static ArrayList<Whiteboard> reopen(File dir, int segmentSize) throws IOException {
+        BoardJournal journal = new BoardJournal(dir, segmentSize, 0);
+        ArrayList<Whiteboard> boards = journal.recover();
+        journal.close();
+        return boards;
+    }
+
+    @Test
+    public void RecoverTest() throws IOException {
+        File dir = newDir();
+        BoardJournal journal = new BoardJournal(dir, 4096, 1);
+        assertEquals(0, journal.recover().size());
+        Whiteboard board1 = newBoard(journal, "board1");
+        Whiteboard board2 = newBoard(journal, "board2");
+        draw(journal, board1, "red", 3, 1, 2, 3, 4);
+        draw(journal, board2, "blue", 0, -5, 70000, 2147483647, -2147483648);
+        draw(journal, board1, "white", 20);
+        journal.close();
+
+        journal = new BoardJournal(dir, 4096, 1);
+        ArrayList<Whiteboard> boards = journal.recover();
+        assertEquals(3, journal.getRecoveredStrokes());
+        assertEquals(2, boards.size());
+        assertEquals("board1", boards.get(0).getBoardName());
+        assertEquals("board2", boards.get(1).getBoardName());
+        assertEquals(text(board1), text(boards.get(0)));
+        assertEquals(text(board2), text(boards.get(1)));
+        assertTrue(boards.get(0).getUsernames().isEmpty());
+
+        // append after the recovered records
+        draw(journal, boards.get(1), "green", 1, 9, 9);
+        Whiteboard board3 = newBoard(journal, "board3");
+        draw(journal, board3, "black", 2, 5, 5);
+        journal.close();
+
+        ArrayList<Whiteboard> again = reopen(dir, 4096);
+        assertEquals(3, again.size());
+        assertEquals(text(boards.get(1)), text(again.get(1)));
+        assertEquals(2, again.get(1).getSketches().size());
+        assertEquals(text(board3), text(again.get(2)));
+    }
+
+    @Test
+    public void SegmentsTest() throws IOException {
+        File dir = newDir();
+        BoardJournal journal = new BoardJournal(dir, 100, 0);
+        journal.recover();
+        Whiteboard board = newBoard(journal, "board1");
+        for (int s = 0; s < 50; s++) {
+            draw(journal, board, "black", s, s, s + 1, s + 2, s + 3);
+        }
+        // about 1000 bytes, much more than a segment
+        int[] points = new int[500];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = i;
+        }
+        draw(journal, board, "yellow", 4, points);
+        draw(journal, board, "red", 1, 7, 7);
+        journal.close();
+        assertTrue(dir.list().length > 10);
+
+        ArrayList<Whiteboard> boards = reopen(dir, 100);
+        assertEquals(1, boards.size());
+        assertEquals(52, boards.get(0).getSketches().size());
+        assertEquals(text(board), text(boards.get(0)));
+    }
+
+    @Test
+    public void TornTailTest() throws IOException {
+        File dir = newDir();
+        BoardJournal journal = new BoardJournal(dir, 4096, 0);
+        journal.recover();
+        Whiteboard board = newBoard(journal, "board1");
+        draw(journal, board, "red", 1, 1, 1);
+        draw(journal, board, "red", 2, 2, 2);
+        draw(journal, board, "red", 3, 3, 3);
+        journal.close();
+
+        // damage the last point of the last stroke, as a crash might
+        File segment = dir.listFiles()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            long end = 0;
+            // find the end of the records, the first zero length
+            while (true) {
+                raf.seek(end);
+                int length = raf.readInt();
+                if (length == 0) break;
+                end += 8 + length;
+            }
+            raf.seek(end - 1);
+            raf.write(99);
+        }
+
+        journal = new BoardJournal(dir, 4096, 0);
+        ArrayList<Whiteboard> boards = journal.recover();
+        assertEquals(2, boards.get(0).getSketches().size());
+        draw(journal, boards.get(0), "blue", 4, 4, 4);
+        journal.close();
+
+        boards = reopen(dir, 4096);
+        assertEquals("freedraw,color=red,size=1,coord=1:1\n"
+                + "freedraw,color=red,size=2,coord=2:2\n"
+                + "freedraw,color=blue,size=4,coord=4:4\n", text(boards.get(0)));
+    }
+
+    @Test
+    public void EvictTest() throws IOException {
+        File dir = newDir();
+        BoardJournal journal = new BoardJournal(dir, 4096, 0);
+        journal.recover();
+        Whiteboard board1 = newBoard(journal, "board1");
+        Whiteboard board2 = newBoard(journal, "board2");
+        Whiteboard board3 = newBoard(journal, "board3");
+        draw(journal, board1, "red", 1, 1, 1);
+        draw(journal, board2, "red", 2, 2, 2);
+        draw(journal, board3, "red", 3, 3, 3);
+        journal.appendEviction("board1");
+        journal.appendEviction("board2");
+        draw(journal, board2, "blue", 4, 4, 4);
+        journal.close();
+
+        journal = new BoardJournal(dir, 4096, 0);
+        ArrayList<Whiteboard> boards = journal.recover();
+        journal.close();
+        assertEquals(3, boards.size());
+        assertEquals(2, journal.getRecoveredStrokes());
+        assertEquals(0, boards.get(0).getSketches().size());
+        assertTrue(journal.wasEvicted("board1"));
+        assertTrue(journal.strokesInFile("board1"));
+        assertEquals("freedraw,color=blue,size=4,coord=4:4\n", text(boards.get(1)));
+        assertFalse(journal.wasEvicted("board2"));
+        assertTrue(journal.strokesInFile("board2"));
+        assertEquals("freedraw,color=red,size=3,coord=3:3\n", text(boards.get(2)));
+        assertFalse(journal.wasEvicted("board3"));
+        assertFalse(journal.strokesInFile("board3"));
+    }
+
+    @Test
+    public void CheckpointTest() throws IOException {
+        File dir = newDir();
+        BoardJournal journal = new BoardJournal(dir, 100, 0);
+        journal.recover();
+        Whiteboard board1 = newBoard(journal, "board1");
+        for (int s = 0; s < 10; s++) {
+            draw(journal, board1, "red", 1, s, s);
+        }
+        Whiteboard board2 = newBoard(journal, "board2");
+        draw(journal, board2, "blue", 2, 1, 2);
+        assertEquals(0, journal.checkpoint());
+
+        journal.appendEviction("board1");
+        int segments = dir.listFiles().length;
+        assertTrue(journal.checkpoint() > 0);
+        assertTrue(dir.listFiles().length < segments);
+        // nothing more to delete until board2 is evicted
+        assertEquals(0, journal.checkpoint());
+
+        journal.appendEviction("board2");
+        Whiteboard board3 = newBoard(journal, "board3");
+        draw(journal, board3, "green", 3, 5, 6);
+        assertTrue(journal.checkpoint() > 0);
+        assertTrue(dir.listFiles().length <= 2);
+        journal.close();
+
+        journal = new BoardJournal(dir, 100, 0);
+        ArrayList<Whiteboard> boards = journal.recover();
+        journal.close();
+        assertEquals(3, boards.size());
+        assertEquals("board1", boards.get(0).getBoardName());
+        assertEquals("board2", boards.get(1).getBoardName());
+        assertEquals("board3", boards.get(2).getBoardName());
+        assertTrue(journal.wasEvicted("board1"));
+        assertTrue(journal.wasEvicted("board2"));
+        assertEquals(0, boards.get(0).getSketches().size());
+        assertEquals(0, boards.get(1).getSketches().size());
+        assertEquals("freedraw,color=green,size=3,coord=5:6\n", text(boards.get(2)));
+    }
+}
@@ -0,0 +1,261 @@
+package whiteboard.server;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import javax.imageio.ImageIO;
+
+import controller.BinaryProtocol;
+import controller.ServerMsg;
+import controller.ServerMsgType;
+
+/*
+ * Picture of a board as of one of its strokes
+ * A user who opens the board is sent the picture and only the strokes
+ * drawn after it, instead of every stroke drawn on the board
+ *
+ * The strokes are drawn on an image the same way the client's canvas draws
+ * them. The image is cut into square tiles, each sent as its own keyframe
+ * message with a PNG of the tile. The messages are encoded once, when the
+ * keyframe is brought up to date only the tiles touched by the new strokes
+ * are encoded again, and blank tiles are not sent at all
+ *
+ * Bringing the keyframe up to date is split in two: render() draws and
+ * encodes from a view of the board's strokes without the board lock, on the
+ * server's keyframe thread, and publish() swaps the new tiles in with the
+ * lock held. Users opening the board meanwhile get the previous tiles
+ *
+ * Works without a display (the image is never shown)
+ * Not thread safe, the board's lock must be held while using it, except
+ * for render() which only one thread at a time may call while isRendering()
+ */
+class BoardKeyframe {
+    // width and height of a tile in pixels
+    static final int TILE_SIZE = 256;
+    private static final int WHITE = 0xffffffff;
+
+    private final BufferedImage image;
+    private final Graphics2D graphics;
+    private final int columns;
+    private final int rows;
+    // number of strokes of the board in the tiles, the first ones
+    private int strokeCount = 0;
+    // true while the tiles are rendered in the background
+    private boolean rendering = false;
+    // tiles drawn on since they were last encoded, row by row
+    private final boolean[] dirty;
+    // what render() did for publish(): the number of strokes drawn on the
+    // image, the tiles encoded again and their messages
+    private int renderedCount = 0;
+    private final boolean[] rendered;
+    private final ByteBuffer[] renderedTiles;
+    // encoded keyframe message of each tile, null for a blank tile
+    private final ByteBuffer[] tiles;
+    // the messages of the tiles as frames of the binary protocol, encoded
+    // when a binary client first needs them, null if not encoded yet
+    private final ByteBuffer[] binaryTiles;
+
+    /**
+     * Constructor, the keyframe starts out blank
+     * @param width width of the picture in pixels, requires width > 0
+     * @param height height of the picture in pixels, requires height > 0
+     */
+    BoardKeyframe(int width, int height) {
+        this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        this.graphics = image.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, width, height);
+        this.columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.dirty = new boolean[columns * rows];
+        this.rendered = new boolean[columns * rows];
+        this.renderedTiles = new ByteBuffer[columns * rows];
+        this.tiles = new ByteBuffer[columns * rows];
+        this.binaryTiles = new ByteBuffer[columns * rows];
+    }
+
+    /**
+     * @return number of strokes in the picture, the strokes of the board from
+     *         this one on have to be sent after the tiles
+     */
+    int getStrokeCount() {
+        return strokeCount;
+    }
+
+    /**
+     * Set the number of strokes in the picture, after the board's strokes
+     * were renumbered by a compaction (which leaves the picture the same)
+     * @param strokeCount number of strokes of the compacted board in the picture
+     */
+    void setStrokeCount(int strokeCount) {
+        this.strokeCount = strokeCount;
+    }
+
+    /**
+     * @return true if the tiles are being rendered in the background, the
+     *         strokes must not be renumbered until they are published
+     */
+    boolean isRendering() {
+        return rendering;
+    }
+
+    /**
+     * @param rendering true when a render is handed to the keyframe thread,
+     *        false once it is published or given up
+     */
+    void setRendering(boolean rendering) {
+        this.rendering = rendering;
+    }
+
+    /**
+     * Draws the strokes added to the board since the last update and
+     * encodes the tiles they touched again, in memory
+     * @param strokes strokes of the board, the ones in the picture must not
+     *        have changed
+     */
+    void update(StrokeStore strokes) {
+        render(strokes);
+        publish();
+    }
+
+    /**
+     * Draws the strokes added to the board since the tiles were last
+     * published and encodes the tiles they touched, the tiles sent to the
+     * users stay the same until publish()
+     * @param strokes strokes of the board or a view of them, the ones in the
+     *        picture must not have changed
+     */
+    void render(StrokeStore strokes) {
+        for (renderedCount = strokeCount; renderedCount < strokes.size(); renderedCount++) {
+            draw(strokes, renderedCount);
+        }
+        for (int t = 0; t < tiles.length; t++) {
+            if (dirty[t]) {
+                renderedTiles[t] = encodeTile(t % columns, t / columns);
+                rendered[t] = true;
+                dirty[t] = false;
+            }
+        }
+    }
+
+    /**
+     * Swaps in the tiles of the last render()
+     */
+    void publish() {
+        for (int t = 0; t < tiles.length; t++) {
+            if (rendered[t]) {
+                tiles[t] = renderedTiles[t];
+                binaryTiles[t] = null;
+                renderedTiles[t] = null;
+                rendered[t] = false;
+            }
+        }
+        strokeCount = renderedCount;
+    }
+
+    /**
+     * @return keyframe messages of the tiles that are not blank
+     */
+    ArrayList<ByteBuffer> getTiles() {
+        return getTiles(false);
+    }
+
+    /**
+     * @param binary true for the messages as frames of the binary protocol
+     * @return keyframe messages of the tiles that are not blank
+     */
+    ArrayList<ByteBuffer> getTiles(boolean binary) {
+        ArrayList<ByteBuffer> result = new ArrayList<ByteBuffer>();
+        for (int t = 0; t < tiles.length; t++) {
+            if (tiles[t] == null) continue;
+            if (binary && binaryTiles[t] == null) {
+                // the text message without its line terminator
+                binaryTiles[t] = BinaryProtocol.encodeText(tiles[t].array(), 0, tiles[t].limit() - 1);
+            }
+            result.add(binary ? binaryTiles[t] : tiles[t]);
+        }
+        return result;
+    }
+
+    /**
+     * Draws a stroke like the client does, a line of the stroke's color and
+     * size between each point and the next
+     */
+    private void draw(StrokeStore strokes, int stroke) {
+        // a pen size of 0 is drawn as 1 by the client
+        int size = Math.max(1, strokes.getLineSize(stroke));
+        graphics.setColor(color(strokes.getColor(stroke)));
+        graphics.setStroke(new BasicStroke(size));
+        for (int p = 0; p + 1 < strokes.getPointCount(stroke); p++) {
+            int x1 = strokes.getX(stroke, p);
+            int y1 = strokes.getY(stroke, p);
+            int x2 = strokes.getX(stroke, p + 1);
+            int y2 = strokes.getY(stroke, p + 1);
+            graphics.drawLine(x1, y1, x2, y2);
+            // square line ends reach out up to size / sqrt(2) around the points
+            markDirty(Math.min(x1, x2) - size, Math.min(y1, y2) - size,
+                    Math.max(x1, x2) + size, Math.max(y1, y2) + size);
+        }
+    }
+
+    private static Color color(String name) {
+        switch (name) {
+        case "red": return Color.RED;
+        case "blue": return Color.BLUE;
+        case "yellow": return Color.YELLOW;
+        case "green": return Color.GREEN;
+        case "white": return Color.WHITE;
+        default: return Color.BLACK;
+        }
+    }
+
+    // marks the tiles overlapping the given pixels, which may be off the image
+    private void markDirty(long left, long top, long right, long bottom) {
+        int firstColumn = (int) Math.max(0, left / TILE_SIZE);
+        int lastColumn = (int) Math.min(columns - 1, right / TILE_SIZE);
+        int firstRow = (int) Math.max(0, top / TILE_SIZE);
+        int lastRow = (int) Math.min(rows - 1, bottom / TILE_SIZE);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                dirty[row * columns + column] = true;
+            }
+        }
+    }
+
+    /**
+     * @return keyframe message for a tile, null if the tile is blank
+     */
+    private ByteBuffer encodeTile(int column, int row) {
+        int x = column * TILE_SIZE;
+        int y = row * TILE_SIZE;
+        int width = Math.min(TILE_SIZE, image.getWidth() - x);
+        int height = Math.min(TILE_SIZE, image.getHeight() - y);
+        int[] pixels = image.getRGB(x, y, width, height, null, 0, width);
+        boolean blank = true;
+        for (int pixel : pixels) {
+            if (pixel != WHITE) {
+                blank = false;
+                break;
+            }
+        }
+        if (blank) return null;
+
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(image.getSubimage(x, y, width, height), "png", png);
+        } catch (IOException e) {
+            // writing to memory does not fail
+            throw new RuntimeException(e);
+        }
+        ServerMsg msg = new ServerMsg(ServerMsgType.KEYFRAME);
+        msg.setTile(x, y);
+        msg.setImage(png.toByteArray());
+        return ConnectionInfo.encode(msg);
+    }
+}
@@ -0,0 +1,128 @@
+package whiteboard.server;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import controller.ParseMessage;
+import controller.ServerMsg;
+import controller.ServerMsgType;
+
+/**
+ * Testing Strategy:
+ * BlankTest- verify a keyframe with no strokes, or only strokes off the picture, has no tiles
+ * DrawTest- verify strokes are drawn in their color and size in the tile they fall in,
+ *          and that the keyframe counts the strokes it has drawn
+ * UpdateTest- verify an update only encodes again the tiles the new strokes touched, and
+ *          that a tile erased back to white is no longer sent
+ * RenderTest- verify the tiles and stroke count of a render are only seen once it is published
+ */
+public class BoardKeyframeTest {
+
+    private static ServerMsg parse(ByteBuffer tile) {
+        String line = new String(tile.array(), 0, tile.limit(), StandardCharsets.UTF_8);
+        assertTrue(line.endsWith("\n"));
+        return ParseMessage.parseServerMsg(line.substring(0, line.length() - 1));
+    }
+
+    private static BufferedImage image(ServerMsg msg) throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(msg.getImage()));
+    }
+
+    @Test
+    public void BlankTest() {
+        StrokeStore store = new StrokeStore();
+        BoardKeyframe keyframe = new BoardKeyframe(800, 600);
+        keyframe.update(store);
+        assertEquals(0, keyframe.getStrokeCount());
+        assertEquals(0, keyframe.getTiles().size());
+
+        TestSupport.add(store, "black", 3, -100, -100, -50, -50);
+        TestSupport.add(store, "black", 3, 900, 10, 1000, 10);
+        keyframe.update(store);
+        assertEquals(2, keyframe.getStrokeCount());
+        assertEquals(0, keyframe.getTiles().size());
+    }
+
+    @Test
+    public void DrawTest() throws IOException {
+        StrokeStore store = new StrokeStore();
+        TestSupport.add(store, "black", 3, 10, 10, 100, 10);
+        TestSupport.add(store, "red", 9, 300, 550, 400, 550);
+        BoardKeyframe keyframe = new BoardKeyframe(800, 600);
+        keyframe.update(store);
+        assertEquals(2, keyframe.getStrokeCount());
+
+        ArrayList<ByteBuffer> tiles = keyframe.getTiles();
+        assertEquals(2, tiles.size());
+        ServerMsg first = parse(tiles.get(0));
+        assertEquals(ServerMsgType.KEYFRAME, first.getType());
+        assertEquals(0, first.getTileX());
+        assertEquals(0, first.getTileY());
+        BufferedImage image = image(first);
+        assertEquals(BoardKeyframe.TILE_SIZE, image.getWidth());
+        assertEquals(0xff000000, image.getRGB(50, 10));
+        assertEquals(0xffffffff, image.getRGB(50, 20));
+
+        // the last row of tiles is cut at the bottom of the picture
+        ServerMsg second = parse(tiles.get(1));
+        assertEquals(256, second.getTileX());
+        assertEquals(512, second.getTileY());
+        image = image(second);
+        assertEquals(BoardKeyframe.TILE_SIZE, image.getWidth());
+        assertEquals(600 - 2 * BoardKeyframe.TILE_SIZE, image.getHeight());
+        assertEquals(0xffff0000, image.getRGB(350 - 256, 550 - 512 + 3));
+        assertEquals(0xffffffff, image.getRGB(350 - 256, 550 - 512 + 7));
+    }
+
+    @Test
+    public void UpdateTest() {
+        StrokeStore store = new StrokeStore();
+        TestSupport.add(store, "black", 3, 10, 10, 100, 10);
+        TestSupport.add(store, "blue", 3, 600, 500, 610, 500);
+        BoardKeyframe keyframe = new BoardKeyframe(800, 600);
+        keyframe.update(store);
+        ArrayList<ByteBuffer> before = keyframe.getTiles();
+        assertEquals(2, before.size());
+
+        // erase the first stroke
+        TestSupport.add(store, "white", 20, 10, 10, 100, 10);
+        keyframe.update(store);
+        assertEquals(3, keyframe.getStrokeCount());
+        ArrayList<ByteBuffer> after = keyframe.getTiles();
+        assertEquals(1, after.size());
+        // the other tile was not encoded again
+        assertSame(before.get(1), after.get(0));
+    }
+
+    @Test
+    public void RenderTest() {
+        StrokeStore store = new StrokeStore();
+        TestSupport.add(store, "black", 3, 10, 10, 100, 10);
+        BoardKeyframe keyframe = new BoardKeyframe(800, 600);
+        keyframe.update(store);
+        ArrayList<ByteBuffer> before = keyframe.getTiles();
+        assertEquals(1, before.size());
+
+        TestSupport.add(store, "blue", 3, 600, 500, 610, 500);
+        TestSupport.add(store, "red", 3, 10, 20, 100, 20);
+        keyframe.render(store.view());
+        assertEquals(1, keyframe.getStrokeCount());
+        assertEquals(before, keyframe.getTiles());
+
+        keyframe.publish();
+        assertEquals(3, keyframe.getStrokeCount());
+        ArrayList<ByteBuffer> after = keyframe.getTiles();
+        assertEquals(2, after.size());
+        assertNotSame(before.get(0), after.get(0));
+    }
+}
@@ -0,0 +1,85 @@
+package whiteboard.server;
+
+import controller.ClientMsg;
+import controller.ClientMsgType;
+
+/*
+ * A processing shard that owns a subset of the whiteboards
+ * Drawing requests for a board are handed by the control thread
+ * (processRequest) to the shard that owns the board, so busy boards
+ * only delay the other boards of the same shard and several cores
+ * share the drawing work
+ *
+ * Each shard runs on its own thread and processes its requests in order,
+ * so requests for one board are still processed in the order they arrived.
+ * The board's own lock protects it against the control thread, which
+ * adds and removes users while the shard draws
+ */
+class BoardShard implements Runnable {
+    private final WhiteboardServer server;
+    private final int index;
+    // drawing requests for the boards owned by this shard
+    // each entry holds the connection info, the parsed message and the target board
+    private final RequestRing shardQ;
+
+    /**
+     * Constructor
+     * @param server server that processes the requests
+     * @param index position of this shard, used for naming its thread
+     * @param shardQ queue the drawing requests are passed on
+     */
+    BoardShard(WhiteboardServer server, int index, RequestRing shardQ) {
+        this.server = server;
+        this.index = index;
+        this.shardQ = shardQ;
+    }
+
+    /**
+     * Starts the shard thread
+     */
+    void start() {
+        Thread thread = new Thread(this, "board-shard-" + index);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a drawing request for one of the boards of this shard
+     * Called from the control thread
+     *
+     * @param connInfo connection the request came from
+     * @param msg parsed request
+     * @param board board the request is for, as seen by the control thread
+     *        when the request was dispatched
+     */
+    void submit(ConnectionInfo connInfo, ClientMsg msg, Whiteboard board) {
+        shardQ.publish(connInfo, msg, board);
+    }
+
+    /**
+     * Take requests off the shard queue and process them, never returns
+     */
+    @Override
+    public void run() {
+        while (true) {
+            RequestEnvelope req;
+            try {
+                req = shardQ.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                if (req.getMsg().getType() == ClientMsgType.FREE_DRAW) {
+                    server.processFreeDraw(req.getConnectionInfo(), req.getBoard(), req.getMsg());
+                }
+                else {
+                    server.processLiveStroke(req.getConnectionInfo(), req.getBoard(), req.getMsg());
+                }
+            }
+            catch (Exception e) {
+                // same as processRequest(), failures sending to a client
+                // are cleaned up by that client's connection
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package whiteboard.server;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import controller.ParseMessage;
+import controller.ServerMsg;
+import controller.ServerMsgType;
+
+/**
+ * Testing Strategy:
+ * The server is served, with its control thread and shards running, and the requests are
+ * handed to it as a connection would (receiveLine()) from connections that are not written,
+ * their messages stay in their queues. As clients do, a board is left with close before
+ * another one is opened
+ * OrderTest- verify that the strokes a connection draws while switching boards are stored and
+ *          passed on in the order it drew them, each on the board it was on when it drew it
+ * TwoBoardsTest- verify that two boards go to different shards, and that a stroke on one is
+ *          processed while the shard of the other is held up
+ * JoinMidStrokeTest- verify that a user opening a board while a stroke is being drawn on it,
+ *          with the stroke's requests still queued for the shard (held up or not), gets each
+ *          point of the stroke exactly once
+ */
+public class BoardShardTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    // starts serving on a daemon thread, the shards and control thread with it
+    private static WhiteboardServer serve(int port, int shards) throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.setPort(port);
+        config.setBoardShards(shards);
+        final WhiteboardServer server = new WhiteboardServer(config);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return server;
+    }
+
+    // a logged in connection, the replies to the login dropped
+    private static ConnectionInfo login(WhiteboardServer server, String name) throws InterruptedException {
+        ConnectionInfo connInfo = new ConnectionInfo(new OutboundQueue(4096, OverflowPolicy.DROP_CONNECTION));
+        server.registerConnection(connInfo);
+        server.receiveLine(connInfo, "login,user=" + name);
+        await(connInfo, 1);
+        return connInfo;
+    }
+
+    /**
+     * Waits for a connection to be sent some messages
+     * @return the lines sent, at least lines of them
+     */
+    private static ArrayList<String> await(ConnectionInfo connInfo, int lines) throws InterruptedException {
+        ArrayList<String> received = new ArrayList<String>();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (received.size() < lines) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("got " + received + ", expected " + lines + " lines");
+            }
+            String text = TestSupport.received(connInfo);
+            if (text.isEmpty()) Thread.sleep(1);
+            for (String line : text.split("\n")) {
+                if (!line.isEmpty()) received.add(line);
+            }
+        }
+        return received;
+    }
+
+    // waits for a connection to be sent a line, the lines before it are dropped
+    private static void awaitLine(ConnectionInfo connInfo, String line) throws InterruptedException {
+        ArrayList<String> received = await(connInfo, 1);
+        while (!received.contains(line)) {
+            received = await(connInfo, 1);
+        }
+    }
+
+    // waits for a connection to be sent some free draws, other messages are dropped
+    private static String awaitStrokes(ConnectionInfo connInfo, int strokes) throws InterruptedException {
+        StringBuilder text = new StringBuilder();
+        int count = 0;
+        while (count < strokes) {
+            for (String line : await(connInfo, 1)) {
+                if (!line.startsWith("freedraw")) continue;
+                text.append(line).append('\n');
+                count++;
+            }
+        }
+        return text.toString();
+    }
+
+    // waits for the strokes of a board to be stored, and returns them
+    private static String awaitStrokes(Whiteboard board, int strokes) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true) {
+            board.getLock().lock();
+            try {
+                if (board.getSketches().size() >= strokes) return TestSupport.text(board.getSketches());
+            }
+            finally {
+                board.getLock().unlock();
+            }
+            if (System.currentTimeMillis() > deadline) fail("strokes not stored on " + board.getBoardName());
+            Thread.sleep(1);
+        }
+    }
+
+    private static String stroke(int n) {
+        return "freedraw,color=red,size=1,coord=" + n + ":" + n;
+    }
+
+    @Test
+    public void OrderTest() throws IOException, InterruptedException {
+        WhiteboardServer server = serve(4483, 4);
+        ConnectionInfo drawer = login(server, "drawer");
+        ConnectionInfo viewer = login(server, "viewer");
+        server.receiveLine(drawer, "new,whiteboard=board1");
+        server.receiveLine(viewer, "new,whiteboard=board2");
+        server.receiveLine(viewer, "open,whiteboard=board1");
+
+        StringBuilder strokes1 = new StringBuilder();
+        StringBuilder strokes2 = new StringBuilder();
+        for (int n = 0; n < 600; n++) {
+            // every 100 strokes the drawer goes to the other board
+            if (n % 100 == 0) {
+                if (n > 0) server.receiveLine(drawer, "close");
+                server.receiveLine(drawer, "open,whiteboard=" + (n % 200 == 0 ? "board1" : "board2"));
+            }
+            server.receiveLine(drawer, stroke(n));
+            (n % 200 < 100 ? strokes1 : strokes2).append(stroke(n)).append('\n');
+        }
+
+        Whiteboard board1 = null;
+        Whiteboard board2 = null;
+        for (Whiteboard board : server.getWhiteboardsSnapshot()) {
+            if (board.getBoardName().equals("board1")) board1 = board;
+            if (board.getBoardName().equals("board2")) board2 = board;
+        }
+        assertNotSame(board1.getShard(), board2.getShard());
+        assertEquals(strokes1.toString(), awaitStrokes(board1, 300));
+        assertEquals(strokes2.toString(), awaitStrokes(board2, 300));
+        assertEquals(strokes1.toString(), awaitStrokes(viewer, 300));
+    }
+
+    @Test
+    public void TwoBoardsTest() throws IOException, InterruptedException {
+        WhiteboardServer server = serve(4484, 2);
+        ConnectionInfo user1 = login(server, "user1");
+        ConnectionInfo user2 = login(server, "user2");
+        server.receiveLine(user1, "new,whiteboard=board1");
+        server.receiveLine(user1, "open,whiteboard=board1");
+        server.receiveLine(user2, "new,whiteboard=board2");
+        server.receiveLine(user2, "open,whiteboard=board2");
+        // a stroke each, so both users are on their boards
+        server.receiveLine(user1, stroke(1));
+        server.receiveLine(user2, stroke(2));
+        assertEquals(stroke(1) + "\n", awaitStrokes(user1, 1));
+        assertEquals(stroke(2) + "\n", awaitStrokes(user2, 1));
+        Whiteboard board1 = user1.getWhiteboard();
+        Whiteboard board2 = user2.getWhiteboard();
+        assertNotSame(board1.getShard(), board2.getShard());
+
+        // the shard of board1 waits for its lock, the one of board2 goes on
+        board1.getLock().lock();
+        try {
+            server.receiveLine(user1, stroke(3));
+            server.receiveLine(user2, stroke(4));
+            assertEquals(stroke(4) + "\n", awaitStrokes(user2, 1));
+            assertFalse(TestSupport.received(user1).contains("freedraw"));
+        }
+        finally {
+            board1.getLock().unlock();
+        }
+        assertEquals(stroke(3) + "\n", awaitStrokes(user1, 1));
+    }
+
+    @Test
+    public void JoinMidStrokeTest() throws IOException, InterruptedException {
+        WhiteboardServer server = serve(4485, 2);
+        ConnectionInfo drawer = login(server, "drawer");
+        ConnectionInfo joiner = login(server, "joiner");
+        for (int round = 0; round < 100; round++) {
+            String name = "board" + round;
+            if (round > 0) {
+                server.receiveLine(drawer, "close");
+                server.receiveLine(joiner, "close");
+            }
+            server.receiveLine(drawer, "new,whiteboard=" + name);
+            server.receiveLine(drawer, "open,whiteboard=" + name);
+            awaitLine(drawer, "userjoined,whiteboard=" + name + ",user=drawer");
+            Whiteboard board = drawer.getWhiteboard();
+            // every other round the board is locked, the shard stops at the first
+            // point and the control thread at the open, which then races the
+            // points queued before it. The joiner opens the board with up to 30
+            // of them queued
+            int joinAt = round % 31;
+            boolean locked = round % 2 == 0;
+            if (locked) board.getLock().lock();
+            try {
+                server.receiveLine(drawer, "strokebegin,color=blue,size=2,coord=" + round + ":0");
+                for (int p = 1; p <= 30; p++) {
+                    if (p == joinAt) server.receiveLine(joiner, "open,whiteboard=" + name);
+                    server.receiveLine(drawer, "strokeappend,coord=" + round + ":" + p);
+                }
+                if (joinAt == 0) server.receiveLine(joiner, "open,whiteboard=" + name);
+                server.receiveLine(drawer, "strokeend,coord=" + round + ":31");
+                Thread.sleep(1);
+            }
+            finally {
+                if (locked) board.getLock().unlock();
+            }
+
+            StringBuilder points = new StringBuilder();
+            ArrayList<String> lines = new ArrayList<String>();
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (points.indexOf(";" + round + ":31;") < 0) {
+                if (System.currentTimeMillis() > deadline) fail(name + " got " + lines);
+                for (String line : await(joiner, 1)) {
+                    lines.add(line);
+                    ServerMsg msg = ParseMessage.parseServerMsg(line);
+                    if (msg.getType() == ServerMsgType.FREE_DRAW || msg.getType() == ServerMsgType.STROKE_BEGIN
+                            || msg.getType() == ServerMsgType.STROKE_APPEND
+                            || msg.getType() == ServerMsgType.STROKE_END) {
+                        for (int i = 0; i < msg.getPointCount(); i++) {
+                            points.append(msg.getPoints()[2 * i]).append(':')
+                                    .append(msg.getPoints()[2 * i + 1]).append(';');
+                        }
+                    }
+                }
+            }
+            StringBuilder expected = new StringBuilder();
+            for (int p = 0; p <= 31; p++) {
+                expected.append(round).append(':').append(p).append(';');
+            }
+            assertEquals(name + " got " + lines, expected.toString(), points.toString());
+            TestSupport.received(drawer);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package whiteboard.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+
+/*
+ * Directory the strokes of evicted boards are kept in, one file per board
+ * (NAME.board), until the board is opened again
+ *
+ * File layout, all numbers big endian:
+ *   int MAGIC
+ *   int number of strokes
+ *   each stroke as in the journal: color code (byte, WIDE set if the
+ *   coordinates are ints), line size (int), number of points (int), the x
+ *   and y of each point as shorts or WIDE as ints
+ *
+ * A file is written to a temporary name and renamed into place, so a crash
+ * while evicting leaves either the old file or the new one. Boards that
+ * expire are moved to the archive subdirectory or deleted
+ *
+ * Not thread safe on its own, a board's file is only used by whoever
+ * evicts, loads or expires that board (see BoardEvictor)
+ */
+class BoardStore {
+    private static final int MAGIC = 0x57424431;
+    // set in the color code of a stroke stored with int coordinates
+    private static final int WIDE = 0x40;
+    private static final String SUFFIX = ".board";
+    private static final String ARCHIVE = "archive";
+
+    private final File dir;
+
+    /**
+     * Constructor
+     * @param dir directory of the board files, created if missing
+     * @throws IOException if the directory can't be created
+     */
+    BoardStore(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create board directory " + dir);
+        }
+        this.dir = dir;
+    }
+
+    /**
+     * Writes the strokes of a board, replacing its file if any
+     * @param boardName name of the board
+     * @param strokes strokes of the board, must not change while written
+     * @return size of the file in bytes
+     * @throws IOException if the file can't be written
+     */
+    long write(String boardName, StrokeStore strokes) throws IOException {
+        File file = file(boardName);
+        File temp = new File(dir, boardName + SUFFIX + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(strokes.size());
+            for (int stroke = 0; stroke < strokes.size(); stroke++) {
+                int pointCount = strokes.getPointCount(stroke);
+                boolean wide = false;
+                for (int p = 0; p < pointCount; p++) {
+                    int x = strokes.getX(stroke, p);
+                    int y = strokes.getY(stroke, p);
+                    if (x != (short) x || y != (short) y) wide = true;
+                }
+                byte color = strokes.getColorCode(stroke);
+                out.writeByte(wide ? color | WIDE : color);
+                out.writeInt(strokes.getLineSize(stroke));
+                out.writeInt(pointCount);
+                for (int p = 0; p < pointCount; p++) {
+                    if (wide) {
+                        out.writeInt(strokes.getX(stroke, p));
+                        out.writeInt(strokes.getY(stroke, p));
+                    }
+                    else {
+                        out.writeShort(strokes.getX(stroke, p));
+                        out.writeShort(strokes.getY(stroke, p));
+                    }
+                }
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return file.length();
+    }
+
+    /**
+     * Reads the strokes of a board back
+     * @param boardName name of a board written before
+     * @return the strokes of the board
+     * @throws IOException if the file is missing, can't be read or is not a board file
+     */
+    StrokeStore read(String boardName) throws IOException {
+        StrokeStore strokes = new StrokeStore();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file(boardName)), 64 * 1024))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a board file: " + file(boardName));
+            }
+            int count = in.readInt();
+            int[] points = new int[64];
+            for (int stroke = 0; stroke < count; stroke++) {
+                byte color = in.readByte();
+                int lineSize = in.readInt();
+                int pointCount = in.readInt();
+                if (points.length < pointCount * 2) {
+                    points = new int[pointCount * 2];
+                }
+                boolean wide = (color & WIDE) != 0;
+                for (int i = 0; i < pointCount * 2; i++) {
+                    points[i] = wide ? in.readInt() : in.readShort();
+                }
+                strokes.add((byte) (color & ~WIDE), lineSize, points, pointCount);
+            }
+        }
+        return strokes;
+    }
+
+    /**
+     * @param boardName name of a board
+     * @return true if the board has a file
+     */
+    boolean contains(String boardName) {
+        return file(boardName).isFile();
+    }
+
+    /**
+     * @param boardName name of a board
+     * @return time the board's file was last written, in milliseconds since the epoch
+     */
+    long lastModified(String boardName) {
+        return file(boardName).lastModified();
+    }
+
+    /**
+     * @return names of the boards that have a file, in no particular order
+     */
+    ArrayList<String> names() {
+        ArrayList<String> names = new ArrayList<String>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (file.isFile() && name.endsWith(SUFFIX)) {
+                    names.add(name.substring(0, name.length() - SUFFIX.length()));
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Moves the file of a board to the archive subdirectory, replacing an
+     * older archived board of the same name
+     * @param boardName name of a board that has a file
+     * @throws IOException if the file can't be moved
+     */
+    void archive(String boardName) throws IOException {
+        File archive = new File(dir, ARCHIVE);
+        if (!archive.isDirectory() && !archive.mkdirs()) {
+            throw new IOException("Can't create archive directory " + archive);
+        }
+        Files.move(file(boardName).toPath(), new File(archive, boardName + SUFFIX).toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Deletes the file of a board, if any
+     * @param boardName name of a board
+     * @throws IOException if the file can't be deleted
+     */
+    void delete(String boardName) throws IOException {
+        Files.deleteIfExists(file(boardName).toPath());
+    }
+
+    private File file(String boardName) {
+        return new File(dir, boardName + SUFFIX);
+    }
+}
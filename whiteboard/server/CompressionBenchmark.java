@@ -0,0 +1,162 @@
+package whiteboard.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import controller.BinaryProtocol;
+import controller.FrameDecoder;
+import controller.ServerMsg;
+import controller.ServerMsgType;
+
+/*
+ * Stand alone benchmark of the compression of what is sent to the clients
+ * It is not a unit test, run it from the command line:
+ *
+ *   java whiteboard.server.CompressionBenchmark --strokes=20000 --points=30 --batch=8 --link-mbps=10
+ *
+ * --strokes hand drawn strokes (random walks) of --points points are sent
+ * to a connection in batches of --batch, in the text and the binary
+ * protocol. For each protocol and Deflater level the bytes per stroke are
+ * reported, the time to compress and to inflate a batch, and the time a
+ * batch takes end to end over a link of --link-mbps against sending it
+ * uncompressed. Every level runs its own stream, as a connection would
+ */
+public class CompressionBenchmark {
+
+    private static final int[] LEVELS = {Deflater.NO_COMPRESSION, 1, 6, 9};
+
+    private int strokes = 20000;
+    private int points = 30;
+    private int batch = 8;
+    private double linkMbps = 10;
+
+    /**
+     * Main method, see the class comment for the options
+     * @param args command line options
+     */
+    public static void main(String[] args) throws IOException {
+        CompressionBenchmark bench = new CompressionBenchmark();
+        for (String arg : args) {
+            String[] tokens = arg.split("=");
+            switch (tokens[0]) {
+            case "--strokes":
+                bench.strokes = Integer.parseInt(tokens[1]);
+                break;
+            case "--points":
+                bench.points = Integer.parseInt(tokens[1]);
+                break;
+            case "--batch":
+                bench.batch = Integer.parseInt(tokens[1]);
+                break;
+            case "--link-mbps":
+                bench.linkMbps = Double.parseDouble(tokens[1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        bench.run();
+    }
+
+    private void run() throws IOException {
+        ServerMsg[] msgs = randomStrokes();
+        for (boolean binary : new boolean[] {false, true}) {
+            ByteBuffer[] messages = new ByteBuffer[msgs.length];
+            long raw = 0;
+            for (int s = 0; s < msgs.length; s++) {
+                messages[s] = binary
+                        ? BinaryProtocol.encodeStroke(BinaryProtocol.colorCode(msgs[s].getColor()),
+                                msgs[s].getLineSize(), msgs[s].getPoints(), msgs[s].getPointCount())
+                        : ConnectionInfo.encode(msgs[s].toString());
+                raw += messages[s].remaining();
+            }
+            String protocol = binary ? "binary" : "text";
+            System.out.printf("%-6s uncompressed %8.1f bytes per stroke%n", protocol, (double) raw / strokes);
+            for (int level : LEVELS) {
+                // warm up, then measure on a fresh stream
+                send(messages, level, binary, false);
+                send(messages, level, binary, true);
+            }
+        }
+    }
+
+    /**
+     * Sends all the messages through one compressed stream, and reports
+     * on it unless it is a warm up
+     */
+    private void send(ByteBuffer[] messages, int level, final boolean binary, boolean report)
+            throws IOException {
+        CompressionBudget budget = new CompressionBudget(0);
+        OutboundCompressor compressor = new OutboundCompressor(level, budget, null);
+        final int[] received = new int[1];
+        FrameDecoder decoder = new FrameDecoder() {
+            @Override
+            protected void line(String line) {
+                received[0]++;
+            }
+
+            @Override
+            protected void stroke(byte color, int lineSize, int[] points, int pointCount) {
+                received[0]++;
+            }
+        };
+        if (binary) decoder.setBinary();
+        decoder.setCompressed();
+
+        ByteBuffer[] pending = new ByteBuffer[batch];
+        long compressNanos = 0;
+        long inflateNanos = 0;
+        int batches = 0;
+        for (int start = 0; start < messages.length; start += batch) {
+            int count = Math.min(batch, messages.length - start);
+            for (int i = 0; i < count; i++) {
+                pending[i] = messages[start + i].duplicate();
+            }
+            long t0 = System.nanoTime();
+            ByteBuffer out = compressor.encode(pending, count);
+            long t1 = System.nanoTime();
+            decoder.decode(out);
+            long t2 = System.nanoTime();
+            compressNanos += t1 - t0;
+            inflateNanos += t2 - t1;
+            batches++;
+        }
+        compressor.close();
+        if (received[0] != messages.length) throw new IllegalStateException("Lost messages");
+        if (!report) return;
+
+        double in = budget.getBytesIn();
+        double out = budget.getBytesOut();
+        double bytesPerMicro = linkMbps / 8;
+        double rawMicros = in / batches / bytesPerMicro;
+        double compressedMicros = out / batches / bytesPerMicro
+                + (compressNanos + inflateNanos) / 1000.0 / batches;
+        System.out.printf("       level %d %8.1f bytes per stroke (%4.1f%%), compress %6.1f us, inflate %6.1f us"
+                + " per batch, %8.1f us end to end against %8.1f uncompressed%n",
+                level, out / messages.length, 100 * out / in, compressNanos / 1000.0 / batches,
+                inflateNanos / 1000.0 / batches, compressedMicros, rawMicros);
+    }
+
+    private ServerMsg[] randomStrokes() {
+        Random random = new Random(42);
+        String[] colors = BinaryProtocol.COLORS;
+        ServerMsg[] msgs = new ServerMsg[strokes];
+        for (int s = 0; s < strokes; s++) {
+            ServerMsg msg = new ServerMsg(ServerMsgType.FREE_DRAW);
+            msg.setColor(colors[random.nextInt(colors.length)]);
+            msg.setLineSize(1 + random.nextInt(20));
+            int[] coords = new int[2 * points];
+            coords[0] = random.nextInt(800);
+            coords[1] = random.nextInt(600);
+            for (int p = 1; p < points; p++) {
+                coords[2 * p] = coords[2 * p - 2] + random.nextInt(9) - 4;
+                coords[2 * p + 1] = coords[2 * p - 1] + random.nextInt(9) - 4;
+            }
+            msg.setPoints(coords, points);
+            msgs[s] = msg;
+        }
+        return msgs;
+    }
+}
@@ -0,0 +1,101 @@
+package whiteboard.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Share of the CPU the server may spend compressing what it sends to the
+ * clients that asked for compression, over all the connections
+ *
+ * The time spent is counted in windows of WINDOW_MILLIS. Once the time
+ * spent in the current window reaches the budget, the batches written
+ * until the next window are sent as stored blocks, which cost next to
+ * nothing, instead of being compressed (see OutboundCompressor)
+ *
+ * Also counts the bytes before and after compression
+ *
+ * Thread safe, shared by the writers of all the connections
+ */
+class CompressionBudget {
+    // length of the windows the time spent is counted over
+    static final long WINDOW_MILLIS = 100;
+
+    // time allowed per window, 0 for no limit
+    private final long allowedNanos;
+    private long windowStart = System.nanoTime();
+    private long spentNanos = 0;
+
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder storedBatches = new LongAdder();
+
+    /**
+     * Constructor
+     * @param percent percent of one core that may be spent compressing,
+     *        more than 100 for several cores, 0 for no limit, requires percent >= 0
+     */
+    CompressionBudget(int percent) {
+        this.allowedNanos = TimeUnit.MILLISECONDS.toNanos(WINDOW_MILLIS) * percent / 100;
+    }
+
+    /**
+     * @return true if the next batch should not be compressed, the time
+     *         allowed in the current window being spent
+     */
+    synchronized boolean isExhausted() {
+        if (allowedNanos == 0) return false;
+        nextWindow();
+        return spentNanos >= allowedNanos;
+    }
+
+    /**
+     * Counts a batch that was written
+     * @param nanos time spent compressing it
+     * @param in bytes of the messages
+     * @param out bytes written for them
+     * @param stored true if it was sent without compressing it
+     */
+    void spent(long nanos, long in, long out, boolean stored) {
+        bytesIn.add(in);
+        bytesOut.add(out);
+        if (stored) storedBatches.increment();
+        if (allowedNanos == 0) return;
+        synchronized (this) {
+            nextWindow();
+            spentNanos += nanos;
+        }
+    }
+
+    /**
+     * Starts a new window if the current one is over
+     */
+    private void nextWindow() {
+        long now = System.nanoTime();
+        if (now - windowStart >= TimeUnit.MILLISECONDS.toNanos(WINDOW_MILLIS)) {
+            windowStart = now;
+            spentNanos = 0;
+        }
+    }
+
+    /**
+     * @return bytes of the messages sent to compressed connections so far
+     */
+    long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    /**
+     * @return bytes written for them
+     */
+    long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * @return number of batches sent without compressing them, the budget
+     *         being spent
+     */
+    long getStoredBatches() {
+        return storedBatches.sum();
+    }
+}
@@ -0,0 +1,404 @@
+package whiteboard.server;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+import controller.BinaryProtocol;
+import controller.CommonMsg;
+import controller.StreamCompression;
+
+/*
+ *  Utility class that is used to contain status
+ *  about each client connection
+ *  It tracks whether user is logged in or not, user name
+ *  white board they are working on
+ *
+ *  The connection can be serviced either by its own threads or
+ *  by one of the NIO event loops, the rest of the server only
+ *  talks to it through send(), which queues the message on the
+ *  connection's bounded outbound queue
+ *
+ *  A connection that switched to the binary protocol (see BinaryProtocol)
+ *  is sent frames instead of lines: send() of a message text sends it as
+ *  a frame, and messages encoded once for many users are encoded in both
+ *  forms, each user being sent the one of its protocol (see isBinary())
+ *  The client is switched by its first login, before it is on any board or
+ *  sent any broadcast: until then the only messages it is sent are replies
+ *  of send(), which picks the text or the frame under the same lock as the
+ *  switch line is queued under (see switchToBinary())
+ *
+ *  A connection that switched to compression (see StreamCompression) is
+ *  still sent the same messages, its writer compresses them on the way
+ *  out (see getCompressor())
+ */
+class ConnectionInfo {
+    // scratch buffer of encode(CommonMsg), one per thread
+    private static final ThreadLocal<ByteBuffer> SCRATCH = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(SCRATCH_SIZE);
+        }
+    };
+    private static final int SCRATCH_SIZE = 1024;
+    private static final int MAX_SCRATCH_SIZE = 256 * 1024;
+
+    private final OutboundQueue out;
+    private Whiteboard board;
+    private boolean loggedIn;
+    private String username;
+    // set once the socket has gone away and the connection is cleaned up
+    private boolean closed;
+    // history of the board still being sent to the user, null if none
+    // set and cleared with the lock of the stream's board held, read
+    // without it by the I/O side to pick the board to lock
+    private volatile HistoryStream history = null;
+    // set once by the thread reading the connection when the client
+    // switches to the binary protocol, read by anybody sending to it
+    private volatile boolean binary = false;
+    // held while a message is encoded in the protocol of the client and
+    // queued, and while the client is switched to the binary protocol
+    private final ReentrantLock protocolLock = new ReentrantLock();
+    // the client sent its first login, the protocol can't be switched any
+    // more. Only used by the thread reading the connection
+    private boolean loginReceived = false;
+    // the client also takes BATCH frames
+    private volatile boolean batches = false;
+    // session the client can resume, null if it did not ask for one. Set
+    // with the server lock held, read by the board shards
+    private volatile ResumeSession session = null;
+    // compresses what is written to the client, set once by the thread
+    // reading the connection when the client switches to compression,
+    // read by the writer of the connection
+    private volatile OutboundCompressor compressor = null;
+
+    /**
+     * Constructor
+     * @param out queue of messages waiting to be written to the client
+     */
+    public ConnectionInfo(OutboundQueue out) {
+        this.out = out;
+        this.board = null;
+        this.loggedIn = false;
+        this.username = null;
+        this.closed = false;
+    }
+
+    /**
+     * Get the queue of messages waiting to be written to the client
+     * @return outbound queue
+     */
+    public OutboundQueue getOutboundQueue() {
+        return this.out;
+    }
+
+    /**
+     * Queue a protocol message for sending to the client
+     * This never blocks, if the client is not keeping up the message
+     * is handled according to the server's overflow policy
+     * @param line message text without the line terminator
+     */
+    public void send(String line) {
+        protocolLock.lock();
+        try {
+            out.offer(binary ? BinaryProtocol.encodeText(line) : encode(line));
+        }
+        finally {
+            protocolLock.unlock();
+        }
+    }
+
+    /**
+     * Queue a protocol message for sending to the client
+     * @param msg message object, sent in its text form
+     */
+    public void send(CommonMsg msg) {
+        protocolLock.lock();
+        try {
+            out.offer(binary ? encodeFrame(msg) : encode(msg));
+        }
+        finally {
+            protocolLock.unlock();
+        }
+    }
+
+    /**
+     * Queue an already encoded message for sending to the client
+     * The same buffer can be sent to any number of clients, each of them
+     * gets its own view of the bytes so nothing is copied
+     * @param message buffer returned by encode(), or holding frames of the
+     *        binary protocol if isBinary(), never modified afterwards
+     */
+    public void send(ByteBuffer message) {
+        out.offer(message.duplicate());
+    }
+
+    /**
+     * Encodes a protocol message the way it goes out on the socket
+     * @param line message text without the line terminator
+     * @return buffer holding the message and its line terminator,
+     *         positioned at 0
+     */
+    static ByteBuffer encode(String line) {
+        return ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encodes a protocol message the way it goes out on the socket
+     * The text is written into a scratch buffer of the calling thread, the
+     * only allocation is the buffer returned
+     * @param msg message object
+     * @return buffer holding the message text and its line terminator,
+     *         positioned at 0
+     */
+    static ByteBuffer encode(CommonMsg msg) {
+        ByteBuffer scratch = encodeScratch(msg, 0, 1);
+        scratch.put((byte) '\n');
+        return ByteBuffer.wrap(Arrays.copyOf(scratch.array(), scratch.position()));
+    }
+
+    /**
+     * Encodes a protocol message as a TEXT frame of the binary protocol
+     * @param msg message object
+     * @return buffer holding the frame, positioned at 0
+     */
+    static ByteBuffer encodeFrame(CommonMsg msg) {
+        ByteBuffer scratch = encodeScratch(msg, BinaryProtocol.MAX_HEADER, 0);
+        int count = scratch.position() - BinaryProtocol.MAX_HEADER;
+        int start = BinaryProtocol.writeTextHeader(scratch.array(), BinaryProtocol.MAX_HEADER, count);
+        return ByteBuffer.wrap(Arrays.copyOfRange(scratch.array(), start, scratch.position()));
+    }
+
+    /**
+     * Encodes the text of a message into the scratch buffer of the calling
+     * thread, growing it as needed
+     * @param msg message object
+     * @param offset index the text starts at
+     * @param extra bytes to leave room for after the text
+     * @return scratch buffer, positioned after the text
+     */
+    private static ByteBuffer encodeScratch(CommonMsg msg, int offset, int extra) {
+        ByteBuffer scratch = SCRATCH.get();
+        if (scratch.capacity() > MAX_SCRATCH_SIZE) {
+            // back to the usual size after a large message
+            scratch = ByteBuffer.allocate(SCRATCH_SIZE);
+            SCRATCH.set(scratch);
+        }
+        while (true) {
+            scratch.clear();
+            scratch.position(offset);
+            try {
+                msg.encodeTo(scratch);
+                if (scratch.remaining() >= extra) return scratch;
+            }
+            catch (BufferOverflowException e) {
+                // grown below
+            }
+            scratch = ByteBuffer.allocate(scratch.capacity() * 2);
+            SCRATCH.set(scratch);
+        }
+    }
+
+    /**
+     * Check whether the client switched to the binary protocol
+     * @return true if the client is sent frames, false if text lines
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Switch the client to the binary protocol, everything sent afterwards
+     * is sent as frames
+     * Must be called by the thread reading the connection
+     */
+    public void setBinary() {
+        setBinary(BinaryProtocol.VERSION);
+    }
+
+    /**
+     * Switch the client to the binary protocol, see setBinary()
+     * Must be called by the thread reading the connection
+     * @param version version the client asked for, BinaryProtocol.VERSION
+     *        or BATCH_VERSION
+     */
+    public void setBinary(int version) {
+        this.batches = version >= BinaryProtocol.BATCH_VERSION;
+        this.binary = true;
+    }
+
+    /**
+     * Switch the client to the binary protocol when its login asks for it:
+     * the client is sent the switch line, and everything sent afterwards is
+     * sent as frames. A reply sent by another thread meanwhile is either
+     * queued before the line as text or after it as a frame
+     * Must be called by the thread reading the connection
+     * @param version version to speak, BinaryProtocol.VERSION or BATCH_VERSION
+     */
+    void switchToBinary(int version) {
+        protocolLock.lock();
+        try {
+            out.offer(encode(BinaryProtocol.SWITCH_LINE));
+            setBinary(version);
+        }
+        finally {
+            protocolLock.unlock();
+        }
+    }
+
+    /**
+     * Records that the client sent a login
+     * Must be called by the thread reading the connection
+     * @return true if it is the first one, which may switch the protocol
+     */
+    boolean receivedLogin() {
+        boolean first = !loginReceived;
+        loginReceived = true;
+        return first;
+    }
+
+    /**
+     * Check whether the client takes BATCH frames
+     * @return true if several messages may be sent as one BATCH frame
+     */
+    public boolean takesBatches() {
+        return binary && batches;
+    }
+
+    /**
+     * Get the compressor of what is written to the client
+     * @return compressor, null if the client is sent uncompressed bytes
+     */
+    OutboundCompressor getCompressor() {
+        return compressor;
+    }
+
+    /**
+     * Check whether the client switched to compression
+     * @return true if what is written to the client is compressed
+     */
+    public boolean isCompressed() {
+        return compressor != null;
+    }
+
+    /**
+     * Switch the client to compression: it is sent the switch line, and
+     * everything queued after it is compressed by the writer
+     * Must be called by the thread reading the connection
+     * @param level Deflater level, 0 to 9
+     * @param budget CPU budget of the server
+     */
+    void startCompression(int level, CompressionBudget budget) {
+        ByteBuffer switchLine = binary ? BinaryProtocol.encodeText(StreamCompression.SWITCH_LINE)
+                : encode(StreamCompression.SWITCH_LINE);
+        // the writer must know where to start before it sees the line
+        this.compressor = new OutboundCompressor(level, budget, switchLine);
+        out.offer(switchLine);
+    }
+
+    /**
+     * Set the whiteboard that this user is currently using, and keep the
+     * count of current connections of the boards up to date
+     * Must be called with the server lock held
+     * @param board whiteboard, null if none
+     */
+    public void setWhiteboard (Whiteboard board) {
+        if (this.board == board) return;
+        if (this.board != null) this.board.removeCurrentConnection();
+        if (board != null) board.addCurrentConnection();
+        this.board = board;
+    }
+
+    /**
+     * Get current whiteboard that this user is connected to
+     * @return whiteboard
+     */
+    public Whiteboard getWhiteboard() {
+        return this.board;
+    }
+
+    /**
+     * Get the board history still being sent to the user
+     * @return history stream, null if none
+     */
+    HistoryStream getHistoryStream() {
+        return this.history;
+    }
+
+    /**
+     * Set the board history being sent to the user
+     * Must be called with the lock of the stream's board held
+     * @param history history stream, null once it is done
+     */
+    void setHistoryStream(HistoryStream history) {
+        this.history = history;
+    }
+
+    /**
+     * Set the user name
+     * @param username string
+     */
+    public void setUserName (String username) {
+        this.username = username;
+    }
+
+    /**
+     * Get the user name
+     * @return user name string
+     */
+    public String getUserName() {
+        return this.username;
+    }
+
+    /**
+     * Check whether user is logged in
+     * @return
+     */
+    public boolean isLoggedIn () {
+        return loggedIn;
+    }
+
+    /**
+     * Set the status of user logged in or not
+     * @param loggedIn boolean
+     */
+    public void setLoggedIn(boolean loggedIn) {
+        this.loggedIn = loggedIn;
+    }
+
+    /**
+     * Get the session the client can resume if its connection drops
+     * @return session, null if the client did not ask for a resume token
+     */
+    ResumeSession getSession() {
+        return session;
+    }
+
+    /**
+     * Set the session the client can resume, the client is then told the
+     * sequence number of the strokes it was sent (see ServerMsgType.SEQUENCE)
+     * Must be called with the server lock held
+     * @param session session, null for none
+     */
+    void setSession(ResumeSession session) {
+        this.session = session;
+    }
+
+    /**
+     * Check whether the connection has been closed and cleaned up
+     * Requests still queued for a closed connection are ignored
+     * @return true if closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Mark the connection as closed
+     */
+    public void setClosed() {
+        this.closed = true;
+    }
+}
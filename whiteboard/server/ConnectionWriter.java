@@ -0,0 +1,142 @@
+package whiteboard.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * Writes the outbound queue of a blocking connection to its socket
+ * Used in the thread per connection and virtual thread modes, where every
+ * connection gets one of these next to the thread reading its requests
+ *
+ * Only this writer blocks when the client does not read its messages,
+ * the processing threads just add to the queue
+ *
+ * With a flush delay the writer holds on to the first message for up to
+ * that long, so the messages that follow it (e.g the replies to one request,
+ * or the strokes of a busy board) go out in the same write
+ *
+ * Once the client switched to compression each batch is compressed and
+ * written at once, see OutboundCompressor
+ */
+class ConnectionWriter implements Runnable, OutboundQueue.Listener {
+    // max number of queued messages written to the socket at once
+    private static final int MAX_WRITE_BATCH = 64;
+    // batches up to this size are copied together and written with one call,
+    // larger ones (e.g the sketches of a big board) are written message by message
+    private static final int MAX_COALESCED_BYTES = 64 * 1024;
+
+    private final Socket socket;
+    private final ConnectionInfo connInfo;
+    private final OutboundQueue queue;
+    // holds the batch being written, grows up to MAX_COALESCED_BYTES
+    private byte[] writeBuffer;
+    // max time a message waits for others to share its write, 0 to write right away
+    private final long flushDelayNanos;
+
+    /**
+     * Constructor
+     * @param socket connection to the client
+     * @param connInfo connection, whose outbound queue is written to the client
+     * @param bufferSize initial size of the write buffer
+     * @param flushDelayNanos max time a message is held back to be written
+     *        together with the messages that follow it, requires flushDelayNanos >= 0
+     */
+    ConnectionWriter(Socket socket, ConnectionInfo connInfo, int bufferSize, long flushDelayNanos) {
+        this.socket = socket;
+        this.connInfo = connInfo;
+        this.queue = connInfo.getOutboundQueue();
+        this.writeBuffer = new byte[bufferSize];
+        this.flushDelayNanos = flushDelayNanos;
+    }
+
+    /**
+     * Writes queued messages until the queue is closed or the socket fails
+     * Either way the socket is closed at the end, which makes the reading
+     * side of the connection clean up
+     */
+    @Override
+    public void run() {
+        ByteBuffer[] batch = new ByteBuffer[MAX_WRITE_BATCH];
+        try {
+            OutputStream out = socket.getOutputStream();
+            while (queue.awaitData()) {
+                if (flushDelayNanos > 0) {
+                    queue.awaitBatch(batch.length, flushDelayNanos);
+                }
+                int count = queue.peek(batch);
+                OutboundCompressor compressor = connInfo.getCompressor();
+                if (compressor != null) {
+                    ByteBuffer compressed = compressor.encode(batch, count);
+                    out.write(compressed.array(), 0, compressed.limit());
+                }
+                else {
+                    write(out, batch, count);
+                }
+                Arrays.fill(batch, 0, count, null);
+                queue.remove(count);
+            }
+        }
+        catch (IOException e) {
+            // client went away, clean up below
+        }
+        catch (InterruptedException e) {
+            // asked to stop
+        }
+        finally {
+            closeSocket();
+            if (connInfo.getCompressor() != null) {
+                connInfo.getCompressor().close();
+            }
+        }
+    }
+
+    /**
+     * Writes a batch of messages, with a single write to the socket
+     * unless the batch is very large
+     */
+    private void write(OutputStream out, ByteBuffer[] batch, int count) throws IOException {
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            length += batch[i].limit();
+        }
+        if (length > MAX_COALESCED_BYTES) {
+            for (int i = 0; i < count; i++) {
+                out.write(batch[i].array(), batch[i].arrayOffset(), batch[i].limit());
+            }
+            return;
+        }
+        if (length > writeBuffer.length) {
+            writeBuffer = new byte[Math.min(MAX_COALESCED_BYTES, Math.max(length, writeBuffer.length * 2))];
+        }
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(batch[i].array(), batch[i].arrayOffset(), writeBuffer, offset, batch[i].limit());
+            offset += batch[i].limit();
+        }
+        out.write(writeBuffer, 0, length);
+    }
+
+    /**
+     * Nothing to do, the writer waits on the queue itself
+     */
+    @Override
+    public void dataAvailable() {
+    }
+
+    /**
+     * Closes the socket, the reading side then fails and cleans up the connection
+     */
+    @Override
+    public void dropConnection() {
+        closeSocket();
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException ignored) { }
+    }
+}
@@ -0,0 +1,152 @@
+package whiteboard.server;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Sends the strokes of a board to a user who opens it, a chunk at a time
+ * Used to be a single message with the whole history, encoded in one go
+ * while the server was locked, so a big board meant a huge buffer and a
+ * long pause for everybody
+ *
+ * A chunk of about CHUNK_BYTES of free draw messages is queued for the
+ * user, and the next one only once the user's outbound queue has written
+ * most of it out (see OutboundQueue.requestDrain()), so a join holds about
+ * one chunk of memory whatever the size of the board. The chunks after the
+ * first are encoded by the I/O side of the connection when it gets to them,
+ * holding only the board's lock, and other messages for the user (and
+ * everybody else's traffic) go out in between
+ *
+ * Until the stream has caught up with the board, strokes drawn on the board
+ * are not sent to the user live, the stream sends them after the older
+ * ones so the user still gets every stroke once and in order
+ *
+ * A user who can resume its session is told the sequence number of the
+ * last stroke of the board once the stream has caught up with it
+ */
+class HistoryStream {
+    // a chunk holds strokes up to about this many bytes of messages
+    static final int CHUNK_BYTES = 32 * 1024;
+
+    private final Whiteboard board;
+    // index of the next stroke to send
+    private int next;
+
+    private HistoryStream(Whiteboard board, int next) {
+        this.board = board;
+        this.next = next;
+    }
+
+    /**
+     * @return index of the next stroke of the board to send
+     */
+    int getNext() {
+        return next;
+    }
+
+    /**
+     * Set the index of the next stroke to send, after the board's strokes
+     * were renumbered by a compaction
+     * Must be called with the board lock held
+     * @param next stroke index
+     */
+    void setNext(int next) {
+        this.next = next;
+    }
+
+    /**
+     * Starts sending the strokes of a board to a user, the first chunk is
+     * queued right away. Any other history being sent to the user is dropped
+     * Must be called with the board lock held
+     *
+     * @param connInfo connection of the user
+     * @param board board the user opened
+     * @param from index of the first stroke to send
+     */
+    static void start(ConnectionInfo connInfo, Whiteboard board, int from) {
+        HistoryStream stream = new HistoryStream(board, from);
+        connInfo.setHistoryStream(stream);
+        stream.sendChunk(connInfo);
+    }
+
+    /**
+     * Queues the next chunk of the history being sent to a user, if any
+     * Called by the user's outbound queue once it has drained
+     *
+     * @param connInfo connection of the user
+     */
+    static void sendNext(ConnectionInfo connInfo) {
+        HistoryStream stream = connInfo.getHistoryStream();
+        if (stream == null) return;
+        stream.board.getLock().lock();
+        try {
+            // the user may have left the board or opened it again since
+            if (connInfo.getHistoryStream() == stream && !connInfo.isClosed()) {
+                stream.sendChunk(connInfo);
+            }
+        }
+        finally {
+            stream.board.getLock().unlock();
+        }
+    }
+
+    /**
+     * Checks whether the history of a board is still being sent to a user,
+     * in which case new strokes on the board are left to the stream
+     * Must be called with the board lock held
+     *
+     * @param connInfo connection of the user
+     * @param board whiteboard
+     * @return true if the user has not been sent all the strokes of the board yet
+     */
+    static boolean isStreaming(ConnectionInfo connInfo, Whiteboard board) {
+        HistoryStream stream = connInfo.getHistoryStream();
+        return stream != null && stream.board == board;
+    }
+
+    /**
+     * Stops sending the history of a board to a user who left it
+     * Must be called with the board lock held
+     *
+     * @param connInfo connection of the user
+     * @param board whiteboard
+     */
+    static void cancel(ConnectionInfo connInfo, Whiteboard board) {
+        if (isStreaming(connInfo, board)) {
+            connInfo.setHistoryStream(null);
+        }
+    }
+
+    /**
+     * Queues the next chunk, and asks to be called again for the one after
+     * unless the stream has caught up with the board
+     */
+    private void sendChunk(ConnectionInfo connInfo) {
+        StrokeStore sketches = board.getSketches();
+        int end = sketches.chunkEnd(next, sketches.size(), CHUNK_BYTES);
+        boolean done = end == sketches.size();
+        OutboundQueue out = connInfo.getOutboundQueue();
+        // asked for before queueing, the chunk may be written out right away
+        if (!done) out.requestDrain(CHUNK_BYTES);
+        if (next < end) {
+            ByteBuffer chunk;
+            if (connInfo.takesBatches() && end - next > 1) {
+                chunk = sketches.encodeBatch(next, end);
+            }
+            else {
+                chunk = connInfo.isBinary() ? sketches.encodeBinary(next, end) : sketches.encode(next, end);
+            }
+            if (!out.offer(chunk)) {
+                // the queue is paused or closed, a resync starts over
+                connInfo.setHistoryStream(null);
+                return;
+            }
+        }
+        next = end;
+        if (done) {
+            connInfo.setHistoryStream(null);
+            if (connInfo.getSession() != null) {
+                connInfo.send(WhiteboardServer.sequence(board, board.getLastSeq()));
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package whiteboard.server;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Testing Strategy:
+ * Drive a connection's outbound queue by hand, as if its writer wrote out each message
+ * StreamTest- verify a big history goes out in chunks of bounded size, the next one only
+ *          after the previous one is written, and that strokes drawn meanwhile come after it
+ * SmallTest- verify a history that fits in a chunk, or an empty one, is done right away
+ * CancelTest- verify nothing more is sent once the user leaves the board
+ */
+public class HistoryStreamTest {
+
+    // a connection whose queue asks the stream for more when it drains
+    private static ConnectionInfo connection() {
+        OutboundQueue queue = new OutboundQueue(16, OverflowPolicy.DROP_CONNECTION);
+        final ConnectionInfo connInfo = new ConnectionInfo(queue);
+        queue.setDrainHandler(new Runnable() {
+            public void run() {
+                HistoryStream.sendNext(connInfo);
+            }
+        });
+        return connInfo;
+    }
+
+    private static Whiteboard board(int strokes) {
+        Whiteboard board = new Whiteboard("board1");
+        int[] points = new int[40];
+        for (int s = 0; s < strokes; s++) {
+            for (int i = 0; i < points.length; i++) {
+                points[i] = (s * 7 + i * 13) % 800;
+            }
+            board.getSketches().add((byte) (s % 6), s % 20, points, points.length / 2);
+        }
+        return board;
+    }
+
+    private static void start(ConnectionInfo connInfo, Whiteboard board) {
+        board.getLock().lock();
+        try {
+            HistoryStream.start(connInfo, board, 0);
+        }
+        finally {
+            board.getLock().unlock();
+        }
+    }
+
+    // writes out the message at the head of the queue
+    private static String write(ConnectionInfo connInfo) {
+        ByteBuffer[] batch = new ByteBuffer[1];
+        assertEquals(1, connInfo.getOutboundQueue().peek(batch));
+        connInfo.getOutboundQueue().remove(1);
+        return TestSupport.text(batch[0]);
+    }
+
+    @Test
+    public void StreamTest() {
+        // about 170 bytes per stroke, several chunks
+        Whiteboard board = board(2000);
+        ConnectionInfo connInfo = connection();
+        start(connInfo, board);
+        assertTrue(HistoryStream.isStreaming(connInfo, board));
+
+        StringBuilder received = new StringBuilder();
+        int chunks = 0;
+        boolean drawn = false;
+        while (!connInfo.getOutboundQueue().isEmpty()) {
+            // the next chunk is only queued once this one is written
+            assertEquals(1, connInfo.getOutboundQueue().size());
+            String chunk = write(connInfo);
+            assertTrue(chunk.length() < HistoryStream.CHUNK_BYTES + 200);
+            received.append(chunk);
+            chunks++;
+            if (!drawn) {
+                // a stroke drawn meanwhile is left to the stream
+                board.getSketches().add((byte) 1, 5, new int[] {1, 2, 3, 4}, 2);
+                assertTrue(HistoryStream.isStreaming(connInfo, board));
+                drawn = true;
+            }
+        }
+        assertTrue(chunks > 5);
+        assertFalse(HistoryStream.isStreaming(connInfo, board));
+        assertNull(connInfo.getHistoryStream());
+        StrokeStore sketches = board.getSketches();
+        assertEquals(TestSupport.text(sketches.encode(0, sketches.size())), received.toString());
+        assertTrue(received.toString().endsWith("freedraw,color=red,size=5,coord=1:2;3:4\n"));
+    }
+
+    @Test
+    public void SmallTest() {
+        Whiteboard board = board(3);
+        ConnectionInfo connInfo = connection();
+        start(connInfo, board);
+        assertFalse(HistoryStream.isStreaming(connInfo, board));
+        assertEquals(TestSupport.text(board.getSketches().encode(0, 3)), write(connInfo));
+
+        Whiteboard empty = board(0);
+        start(connInfo, empty);
+        assertFalse(HistoryStream.isStreaming(connInfo, empty));
+        assertTrue(connInfo.getOutboundQueue().isEmpty());
+    }
+
+    @Test
+    public void CancelTest() {
+        Whiteboard board = board(2000);
+        ConnectionInfo connInfo = connection();
+        start(connInfo, board);
+        board.getLock().lock();
+        try {
+            HistoryStream.cancel(connInfo, board);
+        }
+        finally {
+            board.getLock().unlock();
+        }
+        assertFalse(HistoryStream.isStreaming(connInfo, board));
+        write(connInfo);
+        assertTrue(connInfo.getOutboundQueue().isEmpty());
+    }
+}
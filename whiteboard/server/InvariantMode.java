@@ -0,0 +1,16 @@
+package whiteboard.server;
+
+/*
+ * List of ways the server checks its rep invariants while processing requests
+ * The checks are asserts, so they only fail when assertions are enabled (-ea)
+ */
+public enum InvariantMode {
+    // no checks
+    OFF,
+    // after each request, check only the connection and boards the request touched
+    INCREMENTAL,
+    // like INCREMENTAL, plus a full checkRep() every N requests
+    SAMPLED,
+    // full checkRep() after every request
+    FULL,
+}
@@ -0,0 +1,126 @@
+package whiteboard.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+
+/*
+ * Stand alone benchmark of the board journal
+ * It is not a unit test, run it from the command line:
+ *
+ *   java -Xmx8g whiteboard.server.JournalBenchmark --strokes=10000000 --points=20 --boards=100
+ *
+ * --strokes strokes of --points random points each are spread over --boards
+ * boards and appended to a journal in --dir (a new temporary directory by
+ * default), with a flusher forcing it to disk every --flush-ms. The append
+ * rate is reported, then a new journal recovers the boards from the files
+ * and the recovery rate is reported in MB and strokes per second.
+ * 10 million strokes of 20 points make a journal of about 1 GB, recovery
+ * needs about as much heap as the journal's size
+ *
+ * The journal is left on disk, run it again with the same --dir and
+ * --strokes=0 to time recovery from a cold page cache
+ */
+public class JournalBenchmark {
+
+    private int strokes = 1000000;
+    private int points = 20;
+    private int boards = 100;
+    private int segmentMB = 64;
+    private int flushMillis = 10;
+    private File dir = null;
+
+    /**
+     * Main method, see the class comment for the options
+     * @param args command line options
+     * @throws IOException if the journal can't be written or read
+     */
+    public static void main(String[] args) throws IOException {
+        JournalBenchmark bench = new JournalBenchmark();
+        for (String arg : args) {
+            String[] tokens = arg.split("=");
+            switch (tokens[0]) {
+            case "--strokes":
+                bench.strokes = Integer.parseInt(tokens[1]);
+                break;
+            case "--points":
+                bench.points = Integer.parseInt(tokens[1]);
+                break;
+            case "--boards":
+                bench.boards = Integer.parseInt(tokens[1]);
+                break;
+            case "--segment-mb":
+                bench.segmentMB = Integer.parseInt(tokens[1]);
+                break;
+            case "--flush-ms":
+                bench.flushMillis = Integer.parseInt(tokens[1]);
+                break;
+            case "--dir":
+                bench.dir = new File(tokens[1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (bench.dir == null) {
+            bench.dir = Files.createTempDirectory("journal").toFile();
+        }
+        bench.write();
+        bench.recover();
+    }
+
+    private void write() throws IOException {
+        BoardJournal journal = new BoardJournal(dir, segmentMB * 1024 * 1024, flushMillis);
+        ArrayList<Whiteboard> existing = journal.recover();
+        if (strokes == 0) {
+            journal.close();
+            return;
+        }
+        Whiteboard[] targets = new Whiteboard[boards];
+        for (int b = 0; b < boards; b++) {
+            String name = "bench" + (existing.size() + b);
+            journal.appendBoard(name);
+            targets[b] = new Whiteboard(name);
+        }
+        Random random = new Random(42);
+        int[] coords = new int[points * 2];
+        long start = System.nanoTime();
+        for (int s = 0; s < strokes; s++) {
+            int target = random.nextInt(boards);
+            Whiteboard board = targets[target];
+            for (int i = 0; i < coords.length; i += 2) {
+                coords[i] = random.nextInt(800);
+                coords[i + 1] = random.nextInt(600);
+            }
+            StrokeStore sketches = board.getSketches();
+            int stroke = sketches.add((byte) 0, 1 + random.nextInt(20), coords, points);
+            journal.appendStroke(board.getBoardName(), sketches, stroke);
+            if (sketches.size() >= 10000) {
+                // only the journal is measured, don't keep the strokes
+                targets[target] = new Whiteboard(board.getBoardName());
+            }
+        }
+        long appended = System.nanoTime();
+        journal.close();
+        long forced = System.nanoTime();
+        System.out.printf("append  %,d strokes in %,d ms, %,.0f strokes/s (%,d ms more to force to disk)%n",
+                strokes, (appended - start) / 1000000, strokes * 1e9 / (appended - start),
+                (forced - appended) / 1000000);
+    }
+
+    private void recover() throws IOException {
+        BoardJournal journal = new BoardJournal(dir, segmentMB * 1024 * 1024, 0);
+        long start = System.nanoTime();
+        ArrayList<Whiteboard> recovered = journal.recover();
+        long end = System.nanoTime();
+        journal.close();
+        double seconds = (end - start) / 1e9;
+        System.out.printf("recover %,d boards, %,d strokes, %,d MB in %,d ms, %,.0f MB/s, %,.0f strokes/s%n",
+                recovered.size(), journal.getRecoveredStrokes(), journal.getRecoveredBytes() >> 20,
+                (end - start) / 1000000, (journal.getRecoveredBytes() >> 20) / seconds,
+                journal.getRecoveredStrokes() / seconds);
+        System.out.println("journal left in " + dir);
+    }
+}
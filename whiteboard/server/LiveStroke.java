@@ -0,0 +1,130 @@
+package whiteboard.server;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+/*
+ * A stroke a user is still drawing, sent by the client as a strokebegin,
+ * strokeappends and a strokeend. Its points are passed on to the other users
+ * of the board as they come, and it is added to the board's sketches when it
+ * ends or its user leaves the board
+ *
+ * The viewers are the connections that were sent the strokebegin, they draw
+ * the stroke from the partial messages. Anybody else, e.g a user who opened
+ * the board in the middle of the stroke, is sent it whole once it is stored
+ *
+ * Guarded by the lock of its board
+ */
+class LiveStroke {
+    // a stroke this long ends, the points after it are dropped
+    static final int MAX_POINTS = 1 << 20;
+
+    private final ConnectionInfo owner;
+    private final byte color;
+    private final int lineSize;
+    // x and y of each point one after the other
+    private int[] points = new int[64];
+    private int pointCount = 0;
+    private final HashSet<ConnectionInfo> viewers = new HashSet<ConnectionInfo>();
+
+    /**
+     * Constructor
+     * @param owner connection of the user drawing the stroke
+     * @param color color code, see StrokeStore.colorCode()
+     * @param lineSize line size of the stroke
+     */
+    LiveStroke(ConnectionInfo owner, byte color, int lineSize) {
+        this.owner = owner;
+        this.color = color;
+        this.lineSize = lineSize;
+    }
+
+    /**
+     * @return connection of the user drawing the stroke
+     */
+    ConnectionInfo getOwner() {
+        return owner;
+    }
+
+    /**
+     * @return color code
+     */
+    byte getColorCode() {
+        return color;
+    }
+
+    /**
+     * @return line size
+     */
+    int getLineSize() {
+        return lineSize;
+    }
+
+    /**
+     * Adds points at the end of the stroke
+     * @param added x and y of each point one after the other
+     * @param count number of points
+     */
+    void append(int[] added, int count) {
+        if (2 * (pointCount + count) > points.length) {
+            points = Arrays.copyOf(points, Math.max(2 * (pointCount + count), points.length * 2));
+        }
+        System.arraycopy(added, 0, points, 2 * pointCount, 2 * count);
+        pointCount += count;
+    }
+
+    /**
+     * @return x and y of each point one after the other, exactly
+     *         2 * getPointCount() ints
+     */
+    int[] getPoints() {
+        return Arrays.copyOf(points, 2 * pointCount);
+    }
+
+    /**
+     * @return number of points so far
+     */
+    int getPointCount() {
+        return pointCount;
+    }
+
+    /**
+     * @return true once the stroke has MAX_POINTS points or more
+     */
+    boolean isFull() {
+        return pointCount >= MAX_POINTS;
+    }
+
+    /**
+     * Records that a connection was sent the strokebegin
+     * @param connInfo connection
+     */
+    void addViewer(ConnectionInfo connInfo) {
+        viewers.add(connInfo);
+    }
+
+    /**
+     * Forgets a connection that will not be sent the rest of the stroke, it
+     * is sent the whole stroke when it is stored if it is still on the board
+     * @param connInfo connection
+     */
+    void removeViewer(ConnectionInfo connInfo) {
+        viewers.remove(connInfo);
+    }
+
+    /**
+     * @return true if a connection other than the owner's draws the stroke
+     *         from the partial messages
+     */
+    boolean isForwarded() {
+        return viewers.size() > (viewers.contains(owner) ? 1 : 0);
+    }
+
+    /**
+     * @param connInfo connection
+     * @return true if the connection draws the stroke from the partial messages
+     */
+    boolean isViewer(ConnectionInfo connInfo) {
+        return viewers.contains(connInfo);
+    }
+}
@@ -0,0 +1,397 @@
+package whiteboard.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import controller.FrameDecoder;
+
+/*
+ * Event loop used by the NIO server mode
+ * Each loop owns one selector and services a subset of the client
+ * connections. It reads bytes off the sockets, splits them into requests
+ * (lines, or frames of the binary protocol) and hands every request to the
+ * server (the same way handleConnection() does in the thread per connection
+ * mode). Responses sent by the processing
+ * threads wait on the connection's outbound queue and are written out by
+ * the loop when the socket becomes writable, so they never block on a socket
+ *
+ * With a flush delay, a connection that has something to write waits up to
+ * that long before the loop writes it out, so the responses queued in the
+ * meantime go out in the same gathering write. A connection that switched
+ * to compression has each batch compressed into one buffer instead, see
+ * OutboundCompressor
+ *
+ * The first loop also accepts new connections and hands them out to all
+ * the loops in round robin order
+ *
+ * All selector and channel state is only touched from the loop thread,
+ * other threads post tasks on the loop's task queue and wake the selector up
+ */
+class NioEventLoop implements Runnable {
+    // bytes read from a socket at a time
+    private static final int READ_BUFFER_SIZE = 8192;
+    // max number of queued buffers handed to a single gathering write
+    private static final int MAX_WRITE_BATCH = 64;
+
+    private final WhiteboardServer server;
+    private final Selector selector;
+    // work posted by other threads that needs to run on the loop thread
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    // read buffer shared by all the connections of this loop, on the heap
+    // so the decoders decode the frames read right out of its array
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    // max time queued data waits before it is written, 0 to write right away
+    private final long flushDelayNanos;
+    // connections waiting for their flush deadline, all of them wait
+    // for the same delay so the earliest deadline is always at the head
+    private final ArrayDeque<NioConnection> delayedWrites = new ArrayDeque<NioConnection>();
+
+    // set only on the accepting loop
+    private NioEventLoop[] loops;
+    private int nextLoop = 0;
+
+    /**
+     * Constructor
+     * @param server server that processes the received lines
+     * @param flushDelayNanos max time queued data waits before it is written,
+     *        requires flushDelayNanos >= 0
+     * @throws IOException if the selector can't be opened
+     */
+    NioEventLoop(WhiteboardServer server, long flushDelayNanos) throws IOException {
+        this.server = server;
+        this.flushDelayNanos = flushDelayNanos;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Makes this loop accept connections on the server channel
+     * Must be called before the loop is started
+     *
+     * @param serverChannel channel listening for client connections
+     * @param loops all the loops that accepted connections are spread across
+     * @throws IOException
+     */
+    void acceptOn(ServerSocketChannel serverChannel, NioEventLoop[] loops) throws IOException {
+        this.loops = loops;
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Runs the loop from a dedicated thread
+     */
+    @Override
+    public void run() {
+        try {
+            loop();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Waits for socket events and services them. Never returns
+     * unless the selector itself is broken
+     * (IOExceptions from individual clients only close that client)
+     *
+     * @throws IOException if the selector is broken
+     */
+    void loop() throws IOException {
+        while (true) {
+            select();
+            runTasks();
+            writeDelayed();
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+
+                if (!key.isValid()) continue;
+                if (key.isAcceptable()) {
+                    accept((ServerSocketChannel) key.channel());
+                    continue;
+                }
+                NioConnection conn = (NioConnection) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        read(conn);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write(conn);
+                    }
+                }
+                catch (IOException e) {
+                    close(conn);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for socket events, but not past the earliest flush deadline
+     */
+    private void select() throws IOException {
+        NioConnection next = delayedWrites.peek();
+        if (next == null) {
+            selector.select();
+            return;
+        }
+        long remaining = next.flushDeadline - System.nanoTime();
+        if (remaining <= 0) {
+            selector.selectNow();
+        }
+        else {
+            // round up, select() takes whole milliseconds and the delay is
+            // configured in milliseconds too
+            selector.select((remaining + 999999) / 1000000);
+        }
+    }
+
+    /**
+     * Writes out the connections whose flush deadline has passed
+     */
+    private void writeDelayed() {
+        long now = System.nanoTime();
+        while (!delayedWrites.isEmpty() && delayedWrites.peek().flushDeadline - now <= 0) {
+            NioConnection conn = delayedWrites.poll();
+            if (!conn.key.isValid()) continue;
+            try {
+                write(conn);
+            }
+            catch (IOException e) {
+                close(conn);
+            }
+        }
+    }
+
+    /**
+     * Post work to be run on the loop thread
+     * @param task runnable
+     */
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Accept all pending connections and hand them to the loops
+     * @param serverChannel listening channel
+     */
+    private void accept(ServerSocketChannel serverChannel) {
+        while (true) {
+            final SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+                if (channel == null) return; // no more pending connections
+                channel.configureBlocking(false);
+            } catch (IOException e) {
+                e.printStackTrace(); // but don't stop accepting
+                return;
+            }
+            final NioEventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            loop.execute(new Runnable() {
+                public void run() {
+                    loop.register(channel);
+                }
+            });
+        }
+    }
+
+    /**
+     * Registers a newly accepted channel with this loop's selector
+     * and lets the server know about the new connection
+     * Runs on the loop thread
+     * @param channel accepted channel
+     */
+    private void register(SocketChannel channel) {
+        ConnectionInfo connInfo = server.newConnection();
+        NioConnection conn = new NioConnection(channel, connInfo, server.newDecoder(connInfo));
+        try {
+            conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+        } catch (IOException e) {
+            try {
+                channel.close();
+            } catch (IOException ignored) { }
+            return;
+        }
+        conn.connInfo.getOutboundQueue().setListener(conn);
+        server.registerConnection(conn.connInfo);
+    }
+
+    /**
+     * Read whatever is available on the socket and pass every complete
+     * request to the server, see FrameDecoder
+     *
+     * @param conn connection
+     * @throws IOException on socket error or malformed frame
+     */
+    private void read(NioConnection conn) throws IOException {
+        while (true) {
+            readBuffer.clear();
+            int n = conn.channel.read(readBuffer);
+            if (n < 0) {
+                close(conn);
+                return;
+            }
+            if (n == 0) return;
+            readBuffer.flip();
+            conn.decoder.decode(readBuffer);
+            if (conn.closed) return;
+        }
+    }
+
+    /**
+     * Write out as much of the queued data as the socket accepts,
+     * using a single gathering write for several queued messages
+     *
+     * @param conn connection
+     * @throws IOException on socket error
+     */
+    private void write(NioConnection conn) throws IOException {
+        OutboundQueue queue = conn.connInfo.getOutboundQueue();
+        ByteBuffer[] batch = conn.batch;
+        while (true) {
+            if (conn.compressed != null) {
+                // the rest of a compressed batch, its messages are already off the queue
+                conn.channel.write(conn.compressed);
+                if (conn.compressed.hasRemaining()) {
+                    conn.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                conn.compressed = null;
+            }
+            int count = queue.peek(batch);
+            if (count == 0) break;
+            OutboundCompressor compressor = conn.connInfo.getCompressor();
+            if (compressor != null) {
+                conn.compressed = compressor.encode(batch, count);
+                Arrays.fill(batch, 0, count, null);
+                queue.remove(count);
+                continue;
+            }
+            // a partly written buffer keeps its position, so the next
+            // write carries on where this one stopped
+            conn.channel.write(batch, 0, count);
+
+            // drop the fully written buffers from the head of the queue
+            int written = 0;
+            while (written < count && !batch[written].hasRemaining()) {
+                written++;
+            }
+            Arrays.fill(batch, 0, count, null);
+            queue.remove(written);
+            if (written < count) {
+                // socket send buffer is full, wait for the next OP_WRITE
+                conn.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        // everything is written, stop watching for writability
+        conn.key.interestOps(SelectionKey.OP_READ);
+        conn.writeScheduled.set(false);
+        // a processing thread may have queued data after we saw the queue empty
+        if (!queue.isEmpty()) {
+            scheduleWrite(conn);
+        }
+    }
+
+    /**
+     * Make sure the loop will write out the queued data of the connection,
+     * right away or once the flush delay is over
+     * Can be called from any thread
+     * @param conn connection
+     */
+    private void scheduleWrite(final NioConnection conn) {
+        if (!conn.writeScheduled.compareAndSet(false, true)) return;
+        execute(new Runnable() {
+            public void run() {
+                if (!conn.key.isValid()) return;
+                if (flushDelayNanos > 0) {
+                    conn.flushDeadline = System.nanoTime() + flushDelayNanos;
+                    delayedWrites.add(conn);
+                }
+                else {
+                    conn.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+        });
+    }
+
+    /**
+     * Close the connection and let the server clean up after it
+     * Runs on the loop thread
+     * @param conn connection
+     */
+    private void close(NioConnection conn) {
+        if (conn.closed) return;
+        conn.closed = true;
+        conn.key.cancel();
+        try {
+            conn.channel.close();
+        } catch (IOException ignored) { }
+        if (conn.connInfo.getCompressor() != null) {
+            conn.connInfo.getCompressor().close();
+        }
+        server.connectionClosed(conn.connInfo);
+    }
+
+    /*
+     * State kept by the loop for each of its connections
+     * It is also the listener of the connection's outbound queue
+     */
+    private class NioConnection implements OutboundQueue.Listener {
+        private final SocketChannel channel;
+        private final ConnectionInfo connInfo;
+        private SelectionKey key;
+        private boolean closed = false;
+        // the requests received so far
+        private final FrameDecoder decoder;
+
+        // set from the time data is queued until the loop has written it all
+        private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+        // time the delayed data must be written by, see flushDelayNanos
+        private long flushDeadline;
+        private final ByteBuffer[] batch = new ByteBuffer[MAX_WRITE_BATCH];
+        // compressed batch not fully written yet, null if none
+        private ByteBuffer compressed = null;
+
+        NioConnection(SocketChannel channel, ConnectionInfo connInfo, FrameDecoder decoder) {
+            this.channel = channel;
+            this.connInfo = connInfo;
+            this.decoder = decoder;
+        }
+
+        @Override
+        public void dataAvailable() {
+            scheduleWrite(this);
+        }
+
+        @Override
+        public void dropConnection() {
+            final NioConnection conn = this;
+            execute(new Runnable() {
+                public void run() {
+                    close(conn);
+                }
+            });
+        }
+    }
+}
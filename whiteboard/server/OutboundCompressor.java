@@ -0,0 +1,120 @@
+package whiteboard.server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import controller.StreamCompression;
+
+/*
+ * Compresses what is written to a client that asked for compression (see
+ * StreamCompression). The messages are queued as they are, shared by all
+ * the users they go to, and the writer of each compressed connection runs
+ * the batches it writes through the connection's own compressor
+ *
+ * Compression starts after the switch line, which is queued like any other
+ * message: the messages up to it are copied as they are
+ *
+ * Every batch ends with a sync flush, so the client can draw it right away.
+ * While the server's compression budget is spent, the batches are still
+ * part of the stream but stored without compressing them
+ *
+ * Not thread safe, only used by the writer of the connection
+ */
+class OutboundCompressor {
+    // size of the output buffer, it grows for large batches and goes back
+    // to this size afterwards
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_KEPT_BUFFER = 64 * 1024;
+
+    private final Deflater deflater;
+    private final int level;
+    private final CompressionBudget budget;
+    // level the deflater is set to
+    private int currentLevel;
+    // the switch line as queued, null once it was written
+    private ByteBuffer switchLine;
+    // what encode() returned last
+    private byte[] out = new byte[BUFFER_SIZE];
+    private int length;
+
+    /**
+     * Constructor
+     * @param level Deflater level, 0 to 9
+     * @param budget CPU budget of the server
+     * @param switchLine buffer queued for the switch line, the messages
+     *        up to it are not compressed, null to compress them all
+     */
+    OutboundCompressor(int level, CompressionBudget budget, ByteBuffer switchLine) {
+        this.deflater = StreamCompression.newDeflater(level);
+        this.level = level;
+        this.currentLevel = level;
+        this.budget = budget;
+        this.switchLine = switchLine;
+    }
+
+    /**
+     * Encodes a batch of queued messages as they go out on the socket
+     * @param batch messages, their bytes from position to limit
+     * @param count number of messages
+     * @return buffer holding the bytes to write, positioned at 0, only
+     *         valid until the next call
+     */
+    ByteBuffer encode(ByteBuffer[] batch, int count) {
+        if (out.length > MAX_KEPT_BUFFER) {
+            out = new byte[BUFFER_SIZE];
+        }
+        length = 0;
+        int i = 0;
+        while (switchLine != null && i < count) {
+            ByteBuffer message = batch[i++];
+            ensureRoom(message.remaining());
+            System.arraycopy(message.array(), message.arrayOffset() + message.position(), out, length,
+                    message.remaining());
+            length += message.remaining();
+            if (message == switchLine) switchLine = null;
+        }
+        if (i == count) return ByteBuffer.wrap(out, 0, length);
+
+        long start = System.nanoTime();
+        int wanted = budget.isExhausted() ? Deflater.NO_COMPRESSION : level;
+        if (wanted != currentLevel) {
+            deflater.setLevel(wanted);
+            currentLevel = wanted;
+        }
+        int raw = length;
+        long in = 0;
+        for (; i < count; i++) {
+            ByteBuffer message = batch[i];
+            deflater.setInput(message.array(), message.arrayOffset() + message.position(), message.remaining());
+            in += message.remaining();
+            while (!deflater.needsInput()) {
+                ensureRoom(1);
+                length += deflater.deflate(out, length, out.length - length, Deflater.NO_FLUSH);
+            }
+        }
+        // the output is complete when the flush did not fill the buffer
+        do {
+            ensureRoom(1);
+            length += deflater.deflate(out, length, out.length - length, Deflater.SYNC_FLUSH);
+        } while (length == out.length);
+        budget.spent(System.nanoTime() - start, in, length - raw, currentLevel == Deflater.NO_COMPRESSION);
+        return ByteBuffer.wrap(out, 0, length);
+    }
+
+    /**
+     * Grows the output buffer to hold at least count more bytes
+     */
+    private void ensureRoom(int count) {
+        if (length + count > out.length) {
+            out = Arrays.copyOf(out, Math.max(length + count, out.length * 2));
+        }
+    }
+
+    /**
+     * Frees the deflater, once the connection is closed
+     */
+    void close() {
+        deflater.end();
+    }
+}
@@ -0,0 +1,371 @@
+package whiteboard.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Bounded queue of encoded messages waiting to be written to one client
+ *
+ * The processing threads only ever add to this queue, they never write to
+ * a socket themselves. The messages are written out by the I/O side of the
+ * connection (its writer thread, or its NIO event loop), so a client with a
+ * full TCP send buffer only fills up its own queue and never stalls the
+ * processing threads or the other clients
+ *
+ * When the queue is full the overflow policy decides what happens to the client
+ *
+ * Thread safe, all the state is guarded by the queue's lock. Callbacks to the
+ * listener and the resync and drain handlers are made without holding the lock
+ */
+class OutboundQueue {
+
+    /*
+     * Implemented by the I/O side of the connection
+     */
+    interface Listener {
+        /**
+         * A message was added to the queue. Called on the thread that added it
+         */
+        void dataAvailable();
+
+        /**
+         * The queue overflowed and the policy is to drop the client
+         * The listener should close the connection, which lets the server clean up
+         */
+        void dropConnection();
+    }
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ArrayDeque<ByteBuffer> messages = new ArrayDeque<ByteBuffer>();
+    // counts the writes to the socket, may be shared by all the connections
+    private final LongAdder writes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    private Listener listener;
+    // called once a paused queue has fully drained
+    private Runnable resyncHandler;
+    // called once the bytes waiting drop below drainBytes, see requestDrain()
+    private Runnable drainHandler;
+    // -1 when no drain callback has been asked for
+    private long drainBytes = -1;
+
+    private long bytesQueued = 0;
+    private long droppedMessages = 0;
+    private boolean paused = false;
+    private boolean closed = false;
+
+    /**
+     * Constructor
+     * @param capacity max number of messages in the queue, requires capacity > 0
+     * @param policy what to do when the queue is full
+     */
+    OutboundQueue(int capacity, OverflowPolicy policy) {
+        this(capacity, policy, new LongAdder());
+    }
+
+    /**
+     * Constructor
+     * @param capacity max number of messages in the queue, requires capacity > 0
+     * @param policy what to do when the queue is full
+     * @param writes counter incremented for every write to the socket
+     */
+    OutboundQueue(int capacity, OverflowPolicy policy, LongAdder writes) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.writes = writes;
+    }
+
+    /**
+     * Set the I/O side of the connection
+     * @param listener listener
+     */
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Set the handler that sends the client the current state again
+     * after the queue was paused and has drained
+     * @param resyncHandler runnable
+     */
+    void setResyncHandler(Runnable resyncHandler) {
+        this.resyncHandler = resyncHandler;
+    }
+
+    /**
+     * Set the handler that is called when the client has caught up enough
+     * after requestDrain(), e.g to queue the next part of a long reply
+     * @param drainHandler runnable
+     */
+    void setDrainHandler(Runnable drainHandler) {
+        this.drainHandler = drainHandler;
+    }
+
+    /**
+     * Asks for the drain handler to be called once, after a write to the
+     * socket leaves fewer than the given number of bytes waiting
+     * This lets a long reply be queued a part at a time, each part only
+     * once the client has read most of the previous one
+     * @param bytes low water mark in bytes
+     */
+    void requestDrain(long bytes) {
+        lock.lock();
+        try {
+            drainBytes = bytes;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Add a message to the queue. The buffer's bytes from position 0 up to
+     * its limit are written to the client, the buffer must not be changed
+     * by the caller afterwards
+     *
+     * @param message encoded message
+     * @return true if the message was queued, false if it was dropped
+     *         because the queue is closed, paused or full
+     */
+    boolean offer(ByteBuffer message) {
+        boolean drop = false;
+        lock.lock();
+        try {
+            if (closed || paused) {
+                droppedMessages++;
+                return false;
+            }
+            if (messages.size() >= capacity) {
+                droppedMessages++;
+                if (policy == OverflowPolicy.PAUSE_AND_RESYNC) {
+                    // everything from now on is dropped until the client catches up
+                    paused = true;
+                    return false;
+                }
+                closed = true;
+                drop = true;
+            }
+            else {
+                messages.add(message);
+                bytesQueued += message.limit();
+                notEmpty.signal();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        if (listener == null) return !drop;
+        if (drop) {
+            listener.dropConnection();
+            return false;
+        }
+        listener.dataAvailable();
+        return true;
+    }
+
+    /**
+     * Blocks until there is something in the queue or the queue is closed
+     * Used by writer threads
+     *
+     * @return false if the queue was closed
+     * @throws InterruptedException
+     */
+    boolean awaitData() throws InterruptedException {
+        lock.lock();
+        try {
+            while (messages.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return !closed;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until the queue holds at least count messages, the queue is
+     * closed or the time is up, whichever comes first
+     * Used by writer threads to collect more messages before writing
+     *
+     * @param count number of messages worth writing right away
+     * @param nanos max time to wait
+     * @throws InterruptedException
+     */
+    void awaitBatch(int count, long nanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (messages.size() < count && !closed && nanos > 0) {
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies the messages at the head of the queue into batch without
+     * removing them, so that they can be written with a single gathering write
+     *
+     * @param batch array to fill
+     * @return number of messages copied
+     */
+    int peek(ByteBuffer[] batch) {
+        lock.lock();
+        try {
+            int count = 0;
+            Iterator<ByteBuffer> it = messages.iterator();
+            while (count < batch.length && it.hasNext()) {
+                batch[count++] = it.next();
+            }
+            return count;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes messages that have been fully written from the head of the queue
+     * Called once after every write to the socket, even if the write did not
+     * finish any message
+     * If the queue was paused and is now empty, the client is resynced
+     * If a drain was requested and the queue is below its low water mark,
+     * the drain handler is called
+     *
+     * @param count number of messages to remove
+     */
+    void remove(int count) {
+        boolean resync = false;
+        boolean drain = false;
+        writes.increment();
+        lock.lock();
+        try {
+            for (int i = 0; i < count && !messages.isEmpty(); i++) {
+                bytesQueued -= messages.poll().limit();
+            }
+            resync = paused && messages.isEmpty() && !closed;
+            drain = drainBytes >= 0 && bytesQueued < drainBytes && !paused && !closed;
+            if (drain) drainBytes = -1;
+        }
+        finally {
+            lock.unlock();
+        }
+        if (resync && resyncHandler != null) {
+            resyncHandler.run();
+        }
+        if (drain && drainHandler != null) {
+            drainHandler.run();
+        }
+    }
+
+    /**
+     * Start queueing messages again after a pause
+     * Called by the resync handler before it queues the current state
+     */
+    void resume() {
+        lock.lock();
+        try {
+            paused = false;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Close the queue, pending messages are discarded and waiting writers are woken up
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            messages.clear();
+            bytesQueued = 0;
+            notEmpty.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if there is nothing waiting to be written
+     */
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return messages.isEmpty();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of messages waiting to be written
+     */
+    int size() {
+        lock.lock();
+        try {
+            return messages.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of bytes waiting to be written
+     */
+    long getBytesQueued() {
+        lock.lock();
+        try {
+            return bytesQueued;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of messages dropped because the queue was full or paused
+     */
+    long getDroppedMessages() {
+        lock.lock();
+        try {
+            return droppedMessages;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of writes to the socket so far, counted over all
+     *         the queues that share the counter
+     */
+    long getWrites() {
+        return writes.sum();
+    }
+
+    /**
+     * @return true if messages are being dropped until the client catches up
+     */
+    boolean isPaused() {
+        lock.lock();
+        try {
+            return paused;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
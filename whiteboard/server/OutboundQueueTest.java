@@ -0,0 +1,202 @@
+package whiteboard.server;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Testing Strategy:
+ * Drive the queue directly with a listener that records the callbacks
+ * QueueAndDrainTest- verify messages come out in order and the counters follow
+ * DropConnectionTest- verify a full queue with the drop policy closes and asks to drop the client
+ * PauseAndResyncTest- verify a full queue with the resync policy drops messages until it has
+ *          drained, then runs the resync handler exactly once and accepts messages again
+ * CloseTest- verify a closed queue discards its messages and wakes up the writer
+ * SharedBufferTest- verify one encoded message sent to several connections is not
+ *          copied and writing it out for one connection does not affect the others
+ * LowWaterTest- verify a requested drain handler runs once, after a write leaves the queue
+ *          below the low water mark
+ */
+public class OutboundQueueTest {
+
+    private static class RecordingListener implements OutboundQueue.Listener {
+        int available = 0;
+        int dropped = 0;
+
+        public void dataAvailable() {
+            available++;
+        }
+
+        public void dropConnection() {
+            dropped++;
+        }
+    }
+
+    private static ByteBuffer msg(String s) {
+        return ByteBuffer.wrap((s + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void QueueAndDrainTest() {
+        OutboundQueue queue = new OutboundQueue(4, OverflowPolicy.DROP_CONNECTION);
+        RecordingListener listener = new RecordingListener();
+        queue.setListener(listener);
+
+        assertTrue(queue.offer(msg("a")));
+        assertTrue(queue.offer(msg("bc")));
+        assertEquals(2, listener.available);
+        assertEquals(2, queue.size());
+        assertEquals(5, queue.getBytesQueued());
+
+        ByteBuffer[] batch = new ByteBuffer[1];
+        assertEquals(1, queue.peek(batch));
+        assertEquals("a\n", TestSupport.text(batch[0]));
+        queue.remove(1);
+        assertEquals(1, queue.peek(batch));
+        assertEquals("bc\n", TestSupport.text(batch[0]));
+        queue.remove(1);
+
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.getBytesQueued());
+        assertEquals(0, queue.getDroppedMessages());
+    }
+
+    @Test
+    public void DropConnectionTest() {
+        OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.DROP_CONNECTION);
+        RecordingListener listener = new RecordingListener();
+        queue.setListener(listener);
+
+        assertTrue(queue.offer(msg("1")));
+        assertTrue(queue.offer(msg("2")));
+        assertEquals(0, listener.dropped);
+        assertFalse(queue.offer(msg("3")));
+        assertEquals(1, listener.dropped);
+
+        // the queue is closed now, later messages don't ask again
+        assertFalse(queue.offer(msg("4")));
+        assertEquals(1, listener.dropped);
+        assertEquals(2, queue.getDroppedMessages());
+    }
+
+    @Test
+    public void PauseAndResyncTest() {
+        OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.PAUSE_AND_RESYNC);
+        RecordingListener listener = new RecordingListener();
+        queue.setListener(listener);
+        final int[] resyncs = new int[1];
+        final OutboundQueue q = queue;
+        queue.setResyncHandler(new Runnable() {
+            public void run() {
+                resyncs[0]++;
+                q.resume();
+                q.offer(msg("state"));
+            }
+        });
+
+        assertTrue(queue.offer(msg("1")));
+        assertTrue(queue.offer(msg("2")));
+        assertFalse(queue.offer(msg("3")));
+        assertTrue(queue.isPaused());
+        assertEquals(0, listener.dropped);
+
+        // the client catching up a bit does not resume the queue yet
+        queue.remove(1);
+        assertFalse(queue.offer(msg("4")));
+        assertEquals(0, resyncs[0]);
+
+        // fully drained, the handler resyncs the client
+        queue.remove(1);
+        assertEquals(1, resyncs[0]);
+        assertFalse(queue.isPaused());
+        assertEquals(1, queue.size());
+
+        ByteBuffer[] batch = new ByteBuffer[2];
+        assertEquals(1, queue.peek(batch));
+        assertEquals("state\n", TestSupport.text(batch[0]));
+        queue.remove(1);
+        assertEquals(1, resyncs[0]);
+        assertEquals(2, queue.getDroppedMessages());
+    }
+
+    @Test
+    public void CloseTest() throws InterruptedException {
+        final OutboundQueue queue = new OutboundQueue(4, OverflowPolicy.PAUSE_AND_RESYNC);
+        queue.offer(msg("1"));
+        assertTrue(queue.awaitData());
+        queue.remove(1);
+
+        final boolean[] result = new boolean[] {true};
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    result[0] = queue.awaitData();
+                } catch (InterruptedException e) { }
+            }
+        });
+        writer.start();
+        queue.close();
+        writer.join(5000);
+        assertFalse(writer.isAlive());
+        assertFalse(result[0]);
+
+        assertFalse(queue.offer(msg("2")));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void SharedBufferTest() {
+        ConnectionInfo first = new ConnectionInfo(new OutboundQueue(4, OverflowPolicy.DROP_CONNECTION));
+        ConnectionInfo second = new ConnectionInfo(new OutboundQueue(4, OverflowPolicy.DROP_CONNECTION));
+        ByteBuffer shared = ConnectionInfo.encode("freedraw,color=red,size=2,coord=1:2");
+        first.send(shared);
+        second.send(shared);
+
+        ByteBuffer[] a = new ByteBuffer[1];
+        ByteBuffer[] b = new ByteBuffer[1];
+        first.getOutboundQueue().peek(a);
+        second.getOutboundQueue().peek(b);
+        assertSame(shared.array(), a[0].array());
+        assertSame(shared.array(), b[0].array());
+
+        // a partial socket write moves the position of one view only
+        a[0].position(10);
+        assertEquals(0, b[0].position());
+        assertEquals(0, shared.position());
+        assertEquals("freedraw,color=red,size=2,coord=1:2\n", TestSupport.text(b[0]));
+    }
+
+    @Test
+    public void LowWaterTest() {
+        OutboundQueue queue = new OutboundQueue(4, OverflowPolicy.DROP_CONNECTION);
+        final int[] drains = new int[1];
+        queue.setDrainHandler(new Runnable() {
+            public void run() {
+                drains[0]++;
+            }
+        });
+        queue.requestDrain(6);
+        queue.offer(msg("first"));
+        queue.offer(msg("2nd"));
+        assertEquals(0, drains[0]);
+
+        // 4 bytes left
+        queue.remove(1);
+        assertEquals(1, drains[0]);
+        // only called once per request
+        queue.remove(1);
+        assertEquals(1, drains[0]);
+
+        // a write that leaves too much queued doesn't call it
+        queue.requestDrain(6);
+        queue.offer(msg("first"));
+        queue.offer(msg("second"));
+        queue.remove(1);
+        assertEquals(1, drains[0]);
+        queue.remove(1);
+        assertEquals(2, drains[0]);
+    }
+}
@@ -0,0 +1,13 @@
+package whiteboard.server;
+
+/*
+ * List of things the server can do with a client that does not read
+ * its messages fast enough, i.e when the connection's outbound queue is full
+ */
+public enum OverflowPolicy {
+    // close the connection, the client has to log in again
+    DROP_CONNECTION,
+    // stop queueing messages for the client until its queue has drained,
+    // then send it the current board list and board sketches again
+    PAUSE_AND_RESYNC,
+}
@@ -0,0 +1,167 @@
+package whiteboard.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import controller.ClientMsg;
+import controller.ClientMsgType;
+
+/*
+ * Stand alone benchmark comparing the server's request queue (RequestRing)
+ * with the LinkedBlockingQueue of ArrayLists it replaced
+ * It is not a unit test, run it from the command line:
+ *
+ *   java whiteboard.server.QueueBenchmark --producers=4 --requests=2000000
+ *
+ * --producers threads each hand --requests requests to a single consumer,
+ * the way the connection threads hand requests to processRequest().
+ * For each queue the requests per second and the heap allocated per
+ * request (measured on the producer and consumer threads) are reported,
+ * for the ring once per wait strategy
+ */
+public class QueueBenchmark {
+
+    private int producers = 4;
+    private int requests = 1000000;
+    // one request object reused by all producers, the queue is what is measured
+    private final ClientMsg msg = new ClientMsg(ClientMsgType.FREE_DRAW);
+    private final ConnectionInfo connInfo = new ConnectionInfo(new OutboundQueue(1, OverflowPolicy.DROP_CONNECTION));
+    // heap allocated by the threads of the current run
+    private long allocated;
+
+    /**
+     * Main method, see the class comment for the options
+     * @param args command line options
+     */
+    public static void main(String[] args) throws Exception {
+        QueueBenchmark bench = new QueueBenchmark();
+        for (String arg : args) {
+            String[] tokens = arg.split("=");
+            switch (tokens[0]) {
+            case "--producers":
+                bench.producers = Integer.parseInt(tokens[1]);
+                break;
+            case "--requests":
+                bench.requests = Integer.parseInt(tokens[1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        // first round warms up the JIT
+        for (int round = 0; round < 2; round++) {
+            System.out.println(round == 0 ? "warm up" : "measured");
+            bench.runLinkedQueue();
+            for (WaitStrategy strategy : WaitStrategy.values()) {
+                bench.runRing(strategy);
+            }
+        }
+    }
+
+    private void runLinkedQueue() throws InterruptedException {
+        final LinkedBlockingQueue<ArrayList<Object>> queue = new LinkedBlockingQueue<ArrayList<Object>>();
+        Runnable producer = new Runnable() {
+            public void run() {
+                for (int i = 0; i < requests; i++) {
+                    ArrayList<Object> reqInfo = new ArrayList<Object>();
+                    reqInfo.add(connInfo);
+                    reqInfo.add(msg);
+                    queue.add(reqInfo);
+                }
+            }
+        };
+        Runnable consumer = new Runnable() {
+            public void run() {
+                try {
+                    for (long i = 0; i < (long) requests * producers; i++) {
+                        ArrayList<Object> req = queue.take();
+                        consume((ConnectionInfo) req.get(0), (ClientMsg) req.get(1));
+                    }
+                } catch (InterruptedException e) { }
+            }
+        };
+        report("LinkedBlockingQueue", run(producer, consumer));
+    }
+
+    private void runRing(WaitStrategy strategy) throws InterruptedException {
+        final RequestRing ring = new RequestRing(65536, strategy);
+        Runnable producer = new Runnable() {
+            public void run() {
+                for (int i = 0; i < requests; i++) {
+                    ring.publish(connInfo, msg, null);
+                }
+            }
+        };
+        Runnable consumer = new Runnable() {
+            public void run() {
+                try {
+                    for (long i = 0; i < (long) requests * producers; i++) {
+                        RequestEnvelope req = ring.take();
+                        consume(req.getConnectionInfo(), req.getMsg());
+                    }
+                } catch (InterruptedException e) { }
+            }
+        };
+        report("RequestRing " + strategy, run(producer, consumer));
+    }
+
+    private void consume(ConnectionInfo connInfo, ClientMsg msg) {
+        if (connInfo == null || msg == null) throw new IllegalStateException();
+    }
+
+    /**
+     * Runs the producers and the consumer to completion
+     * @return elapsed nanoseconds and bytes allocated by all the threads
+     */
+    private long[] run(Runnable producer, Runnable consumer) throws InterruptedException {
+        Thread[] threads = new Thread[producers + 1];
+        for (int p = 0; p < producers; p++) {
+            threads[p] = new Thread(measured(producer));
+        }
+        threads[producers] = new Thread(measured(consumer));
+        allocated = 0;
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return new long[] {System.nanoTime() - start, allocated};
+    }
+
+    /**
+     * Wraps a task so that the heap it allocates is added to allocated
+     */
+    private Runnable measured(final Runnable task) {
+        return new Runnable() {
+            public void run() {
+                long before = threadAllocatedBytes();
+                task.run();
+                long bytes = threadAllocatedBytes() - before;
+                synchronized (QueueBenchmark.this) {
+                    allocated += bytes;
+                }
+            }
+        };
+    }
+
+    private void report(String name, long[] result) {
+        double total = (double) requests * producers;
+        System.out.printf("%-28s %,12.0f requests/s %8.1f bytes allocated per request%n",
+                name, total / (result[0] / 1e9), result[1] / total);
+    }
+
+    /**
+     * @return bytes allocated so far by the current thread, 0 if the JVM can't tell
+     */
+    private static long threadAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,107 @@
+package whiteboard.server;
+
+/*
+ * The strokes last stored on a board, by sequence number, so that a user
+ * who reconnects is only sent the strokes it missed (see ResumeSession)
+ * instead of the whole board
+ *
+ * The strokes are copied into two stores of up to capacity strokes each.
+ * When the newer one is full the older one is dropped and a new one is
+ * started, so the last capacity to 2 * capacity strokes are kept without
+ * ever moving the strokes kept. The copies are the strokes as they were
+ * stored: a compaction of the board renumbers and merges its strokes, the
+ * sequence numbers of the strokes here stay the same
+ *
+ * Not thread safe, the board's lock must be held while using it
+ */
+class RecentStrokes {
+    private final int capacity;
+    private StrokeStore older = new StrokeStore();
+    private StrokeStore newer = new StrokeStore();
+    // sequence number of the first stroke of older, the strokes of newer
+    // follow those of older
+    private int first = 1;
+    // points of the stroke being copied, reused for the next one
+    private int[] points = new int[64];
+
+    /**
+     * Constructor
+     * @param capacity strokes per store, requires capacity > 0
+     */
+    RecentStrokes(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return sequence number of the last stroke kept, first - 1 if none is
+     */
+    int getLast() {
+        return first + older.size() + newer.size() - 1;
+    }
+
+    /**
+     * Keeps a copy of a stroke just stored on the board
+     * @param seq sequence number of the stroke, if it does not follow the
+     *        last one kept the strokes kept before are dropped
+     * @param sketches strokes of the board
+     * @param stroke index of the stroke in sketches
+     */
+    void add(int seq, StrokeStore sketches, int stroke) {
+        if (seq != getLast() + 1) {
+            older = new StrokeStore();
+            newer = new StrokeStore();
+            first = seq;
+        }
+        else if (newer.size() == capacity) {
+            first += older.size();
+            older = newer;
+            newer = new StrokeStore();
+        }
+        int count = sketches.getPointCount(stroke);
+        if (points.length < count * 2) {
+            points = new int[count * 2];
+        }
+        for (int p = 0; p < count; p++) {
+            points[p * 2] = sketches.getX(stroke, p);
+            points[p * 2 + 1] = sketches.getY(stroke, p);
+        }
+        newer.add(sketches.getColorCode(stroke), sketches.getLineSize(stroke), points, count);
+    }
+
+    /**
+     * Checks whether all the strokes after a sequence number are kept
+     * @param since sequence number of the last stroke a user has
+     * @return true if every stroke from since + 1 to getLast() is kept
+     */
+    boolean covers(int since) {
+        return since >= first - 1 && since <= getLast();
+    }
+
+    /**
+     * Queues the strokes after a sequence number for a user, in its protocol
+     * @param connInfo connection of the user
+     * @param since sequence number of the last stroke the user has,
+     *        requires covers(since)
+     */
+    void send(ConnectionInfo connInfo, int since) {
+        int from = since + 1 - first;
+        if (from < older.size()) {
+            send(connInfo, older, from, older.size());
+            from = older.size();
+        }
+        send(connInfo, newer, from - older.size(), newer.size());
+    }
+
+    /**
+     * Queues a range of the strokes of one of the stores
+     */
+    private static void send(ConnectionInfo connInfo, StrokeStore strokes, int from, int to) {
+        if (from == to) return;
+        if (connInfo.takesBatches() && to - from > 1) {
+            connInfo.send(strokes.encodeBatch(from, to));
+        }
+        else {
+            connInfo.send(connInfo.isBinary() ? strokes.encodeBinary(from, to) : strokes.encode(from, to));
+        }
+    }
+}
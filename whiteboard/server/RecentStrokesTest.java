@@ -0,0 +1,64 @@
+package whiteboard.server;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Testing Strategy:
+ * WindowTest- verify that the last capacity to 2 * capacity strokes are kept as more are added,
+ *          and that the strokes after any sequence number kept are sent in order, across both stores
+ * GapTest- verify that a stroke whose sequence number does not follow the last one drops the
+ *          strokes kept before it
+ */
+public class RecentStrokesTest {
+
+    // stores stroke number i, of line size i, and returns its index
+    private static int addStroke(StrokeStore sketches, int i) {
+        return sketches.add((byte) 0, i, new int[] {i, i}, 1);
+    }
+
+    @Test
+    public void WindowTest() {
+        StrokeStore sketches = new StrokeStore();
+        RecentStrokes recent = new RecentStrokes(3);
+        assertEquals(0, recent.getLast());
+        assertTrue(recent.covers(0));
+        for (int seq = 1; seq <= 7; seq++) {
+            recent.add(seq, sketches, addStroke(sketches, seq));
+        }
+        // strokes 4 to 7 are kept, the first store having been dropped
+        assertEquals(7, recent.getLast());
+        assertFalse(recent.covers(2));
+        assertTrue(recent.covers(3));
+        assertTrue(recent.covers(7));
+        assertFalse(recent.covers(8));
+
+        ConnectionInfo connInfo = new ConnectionInfo(new OutboundQueue(16, OverflowPolicy.DROP_CONNECTION));
+        recent.send(connInfo, 3);
+        assertEquals("freedraw,color=black,size=4,coord=4:4\nfreedraw,color=black,size=5,coord=5:5\n"
+                + "freedraw,color=black,size=6,coord=6:6\nfreedraw,color=black,size=7,coord=7:7\n",
+                TestSupport.received(connInfo));
+        recent.send(connInfo, 6);
+        assertEquals("freedraw,color=black,size=7,coord=7:7\n", TestSupport.received(connInfo));
+        recent.send(connInfo, 7);
+        assertEquals("", TestSupport.received(connInfo));
+    }
+
+    @Test
+    public void GapTest() {
+        StrokeStore sketches = new StrokeStore();
+        RecentStrokes recent = new RecentStrokes(2);
+        for (int seq = 1; seq <= 3; seq++) {
+            recent.add(seq, sketches, addStroke(sketches, seq));
+        }
+        recent.add(10, sketches, addStroke(sketches, 10));
+        assertEquals(10, recent.getLast());
+        assertFalse(recent.covers(3));
+        assertTrue(recent.covers(9));
+
+        ConnectionInfo connInfo = new ConnectionInfo(new OutboundQueue(16, OverflowPolicy.DROP_CONNECTION));
+        recent.send(connInfo, 9);
+        assertEquals("freedraw,color=black,size=10,coord=10:10\n", TestSupport.received(connInfo));
+    }
+}
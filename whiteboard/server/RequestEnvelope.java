@@ -0,0 +1,58 @@
+package whiteboard.server;
+
+import controller.ClientMsg;
+
+/*
+ * One slot of a RequestRing, carries a parsed request to the thread that
+ * processes it. The slots are allocated once with the ring and reused,
+ * so passing a request on does not allocate
+ *
+ * A slot is only filled by the producer that claimed it and only read by
+ * the consumer after the ring has published it, so it needs no locking
+ */
+class RequestEnvelope {
+    private ConnectionInfo connInfo;
+    private ClientMsg msg;
+    // board the request is for, only set for requests handed to a board shard
+    private Whiteboard board;
+
+    /**
+     * Fill the slot
+     * @param connInfo connection the request came from
+     * @param msg parsed request
+     * @param board board the request is for, or null
+     */
+    void set(ConnectionInfo connInfo, ClientMsg msg, Whiteboard board) {
+        this.connInfo = connInfo;
+        this.msg = msg;
+        this.board = board;
+    }
+
+    /**
+     * Empty the slot so it does not keep the request alive
+     */
+    void clear() {
+        set(null, null, null);
+    }
+
+    /**
+     * @return connection the request came from
+     */
+    ConnectionInfo getConnectionInfo() {
+        return connInfo;
+    }
+
+    /**
+     * @return parsed request
+     */
+    ClientMsg getMsg() {
+        return msg;
+    }
+
+    /**
+     * @return board the request is for, or null
+     */
+    Whiteboard getBoard() {
+        return board;
+    }
+}
@@ -0,0 +1,161 @@
+package whiteboard.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import controller.ClientMsg;
+
+/*
+ * Bounded multi producer, single consumer queue of requests
+ * Replaces a LinkedBlockingQueue of ArrayLists: the slots are preallocated
+ * envelopes that are reused, and producers and the consumer only
+ * synchronize through atomic sequence numbers
+ *
+ * Every request gets the next sequence number. A producer claims a number,
+ * fills the slot for it and then publishes it by storing the number in the
+ * slot's entry of the published array. The consumer reads the slots in
+ * sequence order, waiting (see WaitStrategy) until the next one is published.
+ * A producer that gets a full lap ahead of the consumer waits for it to
+ * release slots
+ *
+ * Thread safe for any number of producers, but only one thread may call take()
+ */
+class RequestRing {
+    // times the consumer checks for a request before it goes to sleep (BLOCK strategy)
+    private static final int SPINS_BEFORE_BLOCKING = 100;
+
+    private final RequestEnvelope[] slots;
+    // sequence number last published in each slot, -1 if none yet
+    private final AtomicLongArray published;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+
+    // next sequence number to hand out to a producer
+    private final AtomicLong nextSequence = new AtomicLong(0);
+    // sequence number of the next slot the consumer reads, every slot
+    // before it has been processed and can be reused
+    private volatile long consumed = 0;
+    // slot handed out by the last take(), released by the next one
+    private RequestEnvelope current = null;
+
+    // used by the BLOCK strategy to put the consumer to sleep
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private volatile boolean consumerSleeping = false;
+
+    /**
+     * Constructor
+     * @param capacity number of slots, rounded up to a power of two,
+     *        requires 0 < capacity <= 2^30
+     * @param waitStrategy how the consumer waits for requests
+     */
+    RequestRing(int capacity, WaitStrategy waitStrategy) {
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        this.slots = new RequestEnvelope[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new RequestEnvelope();
+            published.set(i, -1);
+        }
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * @return number of slots
+     */
+    int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Add a request, waits if the ring is full
+     * Can be called from any thread
+     *
+     * @param connInfo connection the request came from
+     * @param msg parsed request
+     * @param board board the request is for, or null
+     */
+    void publish(ConnectionInfo connInfo, ClientMsg msg, Whiteboard board) {
+        long sequence = nextSequence.getAndIncrement();
+        // the slot is free once the consumer has released the request
+        // that used it one lap earlier
+        while (sequence - consumed >= slots.length) {
+            LockSupport.parkNanos(1000);
+        }
+        int index = (int) sequence & mask;
+        slots[index].set(connInfo, msg, board);
+        published.set(index, sequence);
+
+        // published is written before consumerSleeping is read, and the
+        // consumer writes consumerSleeping before it reads published,
+        // so either it sees the request or we see it sleeping
+        if (consumerSleeping) {
+            lock.lock();
+            try {
+                notEmpty.signal();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Takes the next request, waiting until there is one
+     * The envelope is only valid until the next call to take(), it is then
+     * reused for another request
+     * Must only be called from the consumer thread
+     *
+     * @return envelope holding the request
+     * @throws InterruptedException
+     */
+    RequestEnvelope take() throws InterruptedException {
+        if (current != null) {
+            current.clear();
+            current = null;
+            consumed = consumed + 1; // only this thread writes it
+        }
+        long sequence = consumed;
+        int index = (int) sequence & mask;
+        int spins = 0;
+        while (published.get(index) != sequence) {
+            switch (waitStrategy) {
+            case BUSY_SPIN:
+                Thread.onSpinWait();
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            default:
+                if (++spins < SPINS_BEFORE_BLOCKING) {
+                    Thread.onSpinWait();
+                }
+                else {
+                    sleepUntilPublished(index, sequence);
+                }
+            }
+            if (Thread.interrupted()) throw new InterruptedException();
+        }
+        current = slots[index];
+        return current;
+    }
+
+    private void sleepUntilPublished(int index, long sequence) throws InterruptedException {
+        lock.lock();
+        try {
+            consumerSleeping = true;
+            while (published.get(index) != sequence) {
+                notEmpty.await();
+            }
+        }
+        finally {
+            consumerSleeping = false;
+            lock.unlock();
+        }
+    }
+}
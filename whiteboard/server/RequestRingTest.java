@@ -0,0 +1,97 @@
+package whiteboard.server;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import controller.ClientMsg;
+import controller.ClientMsgType;
+
+/**
+ * Testing Strategy:
+ * CapacityTest- verify the capacity is rounded up to a power of two
+ * SingleProducerTest- verify requests come out in order with their fields, and envelopes are reused
+ * MultiProducerTest- verify that with several producers on a small ring (so producers wrap
+ *          around and wait) every request arrives exactly once and each producer's requests
+ *          stay in order, for each wait strategy
+ */
+public class RequestRingTest {
+
+    @Test
+    public void CapacityTest() {
+        assertEquals(1, new RequestRing(1, WaitStrategy.BLOCK).capacity());
+        assertEquals(8, new RequestRing(5, WaitStrategy.BLOCK).capacity());
+        assertEquals(8, new RequestRing(8, WaitStrategy.BLOCK).capacity());
+    }
+
+    @Test
+    public void SingleProducerTest() throws InterruptedException {
+        RequestRing ring = new RequestRing(2, WaitStrategy.BLOCK);
+        ConnectionInfo connInfo = new ConnectionInfo(new OutboundQueue(1, OverflowPolicy.DROP_CONNECTION));
+        Whiteboard board = new Whiteboard("board1");
+        ClientMsg first = new ClientMsg(ClientMsgType.LOGIN);
+        ClientMsg second = new ClientMsg(ClientMsgType.FREE_DRAW);
+        ClientMsg third = new ClientMsg(ClientMsgType.LOGOUT);
+
+        ring.publish(connInfo, first, null);
+        ring.publish(connInfo, second, board);
+
+        RequestEnvelope env = ring.take();
+        assertSame(connInfo, env.getConnectionInfo());
+        assertSame(first, env.getMsg());
+        assertNull(env.getBoard());
+
+        env = ring.take();
+        assertSame(second, env.getMsg());
+        assertSame(board, env.getBoard());
+
+        // the first slot is free again
+        ring.publish(connInfo, third, null);
+        RequestEnvelope reused = ring.take();
+        assertSame(third, reused.getMsg());
+        assertNull(env.getMsg()); // released by the last take()
+    }
+
+    @Test
+    public void MultiProducerTest() throws InterruptedException {
+        for (WaitStrategy strategy : WaitStrategy.values()) {
+            checkProducers(strategy);
+        }
+    }
+
+    private static void checkProducers(WaitStrategy strategy) throws InterruptedException {
+        final int producers = 3;
+        final int perProducer = 5000;
+        final RequestRing ring = new RequestRing(16, strategy);
+        // each producer has its own connection and numbers its requests with the line size
+        final ConnectionInfo[] conns = new ConnectionInfo[producers];
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            conns[p] = new ConnectionInfo(new OutboundQueue(1, OverflowPolicy.DROP_CONNECTION));
+            final ConnectionInfo connInfo = conns[p];
+            threads[p] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        ClientMsg msg = new ClientMsg(ClientMsgType.FREE_DRAW);
+                        msg.setLineSize(i);
+                        ring.publish(connInfo, msg, null);
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        int[] next = new int[producers];
+        for (int n = 0; n < producers * perProducer; n++) {
+            RequestEnvelope env = ring.take();
+            int p = 0;
+            while (conns[p] != env.getConnectionInfo()) p++;
+            assertEquals(strategy.toString(), next[p], env.getMsg().getLineSize());
+            next[p]++;
+        }
+        for (int p = 0; p < producers; p++) {
+            threads[p].join();
+            assertEquals(perProducer, next[p]);
+        }
+    }
+}
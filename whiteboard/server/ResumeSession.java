@@ -0,0 +1,91 @@
+package whiteboard.server;
+
+/*
+ * Session of a user who asked for a resume token at login (see
+ * ClientMsg.getResume()). It outlives the connection it was made on: a
+ * client whose connection dropped logs in again with the token, takes the
+ * session over on its new connection and reopens its board from the last
+ * stroke it has, being sent only the strokes it missed (see RecentStrokes)
+ *
+ * A session is forgotten when its user logs out, or when it is not taken
+ * over within the resume time to live after its connection closed
+ *
+ * Not thread safe, used with the server lock held
+ */
+class ResumeSession {
+    private final String token;
+    private final String userName;
+    // connection the session is on, null while it is disconnected
+    private ConnectionInfo connInfo;
+    // last board the user opened, the sequence numbers the user reopens
+    // it from are only meaningful for that very board
+    private Whiteboard board = null;
+    // time the connection closed, in milliseconds since the epoch
+    private long disconnectedMillis = 0;
+
+    /**
+     * Constructor
+     * @param token resume token handed to the client
+     * @param userName name the user logged in with
+     * @param connInfo connection the session starts on
+     */
+    ResumeSession(String token, String userName, ConnectionInfo connInfo) {
+        this.token = token;
+        this.userName = userName;
+        this.connInfo = connInfo;
+    }
+
+    /**
+     * @return resume token handed to the client
+     */
+    String getToken() {
+        return token;
+    }
+
+    /**
+     * @return name the user logged in with, the token is only good for it
+     */
+    String getUserName() {
+        return userName;
+    }
+
+    /**
+     * @return connection the session is on, null while it is disconnected
+     */
+    ConnectionInfo getConnection() {
+        return connInfo;
+    }
+
+    /**
+     * Moves the session to a connection
+     * @param connInfo connection, null once it closed
+     * @param now current time in milliseconds since the epoch
+     */
+    void setConnection(ConnectionInfo connInfo, long now) {
+        this.connInfo = connInfo;
+        this.disconnectedMillis = connInfo == null ? now : 0;
+    }
+
+    /**
+     * @return time the connection of the session closed, in milliseconds
+     *         since the epoch, 0 while it is connected
+     */
+    long getDisconnectedMillis() {
+        return disconnectedMillis;
+    }
+
+    /**
+     * @return last board the user opened, null if none
+     */
+    Whiteboard getBoard() {
+        return board;
+    }
+
+    /**
+     * Remembers the board the user opened
+     * @param board whiteboard
+     */
+    void setBoard(Whiteboard board) {
+        this.board = board;
+    }
+}
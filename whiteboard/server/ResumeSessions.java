@@ -0,0 +1,118 @@
+package whiteboard.server;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/*
+ * The sessions that can be resumed, by resume token (see ResumeSession)
+ *
+ * Tokens are 128 random bits in hex, so one can't be guessed to take over
+ * somebody else's session. Sessions whose connection closed are expired
+ * once they are past the time to live: they all live as long, so the one
+ * that closed first is always at the head of the disconnected sessions
+ *
+ * Not thread safe, used with the server lock held
+ */
+class ResumeSessions {
+    private static final int TOKEN_BYTES = 16;
+
+    private final long ttlMillis;
+    private final SecureRandom random = new SecureRandom();
+    private final HashMap<String, ResumeSession> sessions = new HashMap<String, ResumeSession>();
+    // sessions in the order their connection closed, a session taken over
+    // since stays in until it reaches the head
+    private final ArrayDeque<ResumeSession> disconnected = new ArrayDeque<ResumeSession>();
+
+    /**
+     * Constructor
+     * @param ttlMillis time a session can be resumed after its connection
+     *        closed, requires ttlMillis >= 0
+     */
+    ResumeSessions(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Starts a session with a new token
+     * @param userName name the user logged in with
+     * @param connInfo connection of the user
+     * @return the session
+     */
+    ResumeSession create(String userName, ConnectionInfo connInfo) {
+        expire(System.currentTimeMillis());
+        byte[] bytes = new byte[TOKEN_BYTES];
+        String token;
+        do {
+            random.nextBytes(bytes);
+            StringBuilder hex = new StringBuilder(2 * TOKEN_BYTES);
+            for (byte b : bytes) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            token = hex.toString();
+        } while (sessions.containsKey(token));
+        ResumeSession session = new ResumeSession(token, userName, connInfo);
+        sessions.put(token, session);
+        return session;
+    }
+
+    /**
+     * Finds the session of a token
+     * @param token resume token sent by the client
+     * @param userName name the client logs in with
+     * @return the session, null if the token is unknown, expired or not
+     *         the user's
+     */
+    ResumeSession find(String token, String userName) {
+        expire(System.currentTimeMillis());
+        ResumeSession session = sessions.get(token);
+        if (session == null || !session.getUserName().equals(userName)) return null;
+        return session;
+    }
+
+    /**
+     * Records that the connection of a session closed, it can be resumed
+     * until the time to live is over
+     * @param session session
+     */
+    void disconnected(ResumeSession session) {
+        long now = System.currentTimeMillis();
+        session.setConnection(null, now);
+        disconnected.add(session);
+        expire(now);
+    }
+
+    /**
+     * Forgets a session, its user logged out
+     * @param session session
+     */
+    void remove(ResumeSession session) {
+        sessions.remove(session.getToken());
+    }
+
+    /**
+     * @return number of sessions that can be resumed or are connected
+     */
+    int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Forgets the sessions disconnected for longer than the time to live
+     * @param now current time in milliseconds since the epoch
+     */
+    private void expire(long now) {
+        while (!disconnected.isEmpty()) {
+            ResumeSession session = disconnected.peek();
+            // a session taken over is skipped. One that closed again since
+            // is queued again, it holds up the ones behind it until its
+            // latest close is past the time to live
+            if (session.getConnection() == null && session.getDisconnectedMillis() + ttlMillis > now) break;
+            disconnected.poll();
+            if (session.getConnection() == null) {
+                sessions.remove(session.getToken());
+            }
+        }
+    }
+}
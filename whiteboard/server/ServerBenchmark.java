@@ -0,0 +1,363 @@
+package whiteboard.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Stand alone benchmark for comparing the server modes
+ * It is not a unit test, run it from the command line:
+ *
+ *   java whiteboard.server.ServerBenchmark --mode=virtual --connections=50000
+ *
+ * The server is started in this JVM with the given server options
+ * (see ServerConfig) and then:
+ * 1. --connections clients connect and log in, and then stay idle. The time
+ *    taken, the heap in use and the number of live threads are reported
+ * 2. one more client opens a board and draws --strokes strokes one at a time,
+ *    waiting for each echo, while the idle clients stay connected.
+ *    The round trip latency percentiles are reported
+ * 3. with --boards=N, N more clients each open their own board and draw
+ *    --strokes strokes as fast as they can (or --rate strokes per second each).
+ *    --viewers=M more clients watch every board. The total number of strokes
+ *    per second processed and the echo latency percentiles under that load
+ *    are reported (compare --board-shards=1 with the default of one shard
+ *    per core, or different --flush-delay-ms values)
+ *
+ * For phases 2 and 3 the number of server socket writes per stroke is
+ * reported as well, every stroke is sent to each client on the board
+ *
+ * The idle clients are driven from a single selector so the client side
+ * does not need a thread per connection. Large connection counts need a
+ * raised open file limit (ulimit -n) for both ends of every connection
+ */
+public class ServerBenchmark {
+
+    private int connections = 1000;
+    private int strokes = 2000;
+    private int points = 50;
+    private int boards = 0;
+    private int viewers = 0;
+    private int rate = 0;
+    private WhiteboardServer server;
+
+    /**
+     * Main method, see the class comment for the options
+     * Options that are not benchmark options are passed on to ServerConfig
+     * @param args command line options
+     */
+    public static void main(String[] args) throws Exception {
+        ServerBenchmark bench = new ServerBenchmark();
+        ArrayList<String> serverArgs = new ArrayList<String>();
+        boolean portGiven = false;
+        for (String arg : args) {
+            String[] tokens = arg.split("=");
+            switch (tokens[0]) {
+            case "--connections":
+                bench.connections = Integer.parseInt(tokens[1]);
+                break;
+            case "--strokes":
+                bench.strokes = Integer.parseInt(tokens[1]);
+                break;
+            case "--points":
+                bench.points = Integer.parseInt(tokens[1]);
+                break;
+            case "--boards":
+                bench.boards = Integer.parseInt(tokens[1]);
+                break;
+            case "--viewers":
+                bench.viewers = Integer.parseInt(tokens[1]);
+                break;
+            case "--rate":
+                bench.rate = Integer.parseInt(tokens[1]);
+                break;
+            default:
+                portGiven |= tokens[0].equals("--port");
+                serverArgs.add(arg);
+            }
+        }
+        ServerConfig config = ServerConfig.fromArgs(serverArgs.toArray(new String[0]));
+        if (!portGiven) {
+            config.setPort(4460);
+        }
+        bench.run(config);
+        System.exit(0);
+    }
+
+    private void run(final ServerConfig config) throws Exception {
+        server = new WhiteboardServer(config);
+        Thread serverThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        System.out.println("mode=" + config.getMode() + " connections=" + connections);
+        long heapBefore = usedHeap();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        long start = System.nanoTime();
+        ArrayList<SocketChannel> idle = connectIdleClients(config.getPort());
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("connect+login: %.1f ms (%.1f us per connection)%n",
+                elapsed / 1e6, elapsed / 1e3 / connections);
+        System.out.printf("heap in use: %.1f MB (%.1f KB per connection)%n",
+                (usedHeap() - heapBefore) / 1e6, (usedHeap() - heapBefore) / 1e3 / connections);
+        System.out.println("live threads: " + ManagementFactory.getThreadMXBean().getThreadCount()
+                + " (" + threadsBefore + " before connecting)");
+
+        measureStrokeLatency(config.getPort());
+        if (boards > 0) {
+            measureBoardThroughput(config.getPort());
+        }
+
+        for (SocketChannel channel : idle) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Opens the idle connections and logs each of them in
+     * Waits until every connection has received its BOARD_LIST reply
+     */
+    private ArrayList<SocketChannel> connectIdleClients(int port) throws IOException {
+        ArrayList<SocketChannel> channels = new ArrayList<SocketChannel>();
+        Selector selector = Selector.open();
+        ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+        int loggedIn = 0;
+
+        for (int i = 0; i < connections; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            channel.write(StandardCharsets.UTF_8.encode("login,user=idle" + i + "\n"));
+            channels.add(channel);
+            // collect replies as we go so the server's send buffers don't fill up
+            loggedIn += collectReplies(selector, readBuffer, 0);
+        }
+        while (loggedIn < connections) {
+            loggedIn += collectReplies(selector, readBuffer, 1000);
+        }
+        selector.close();
+        for (SocketChannel channel : channels) {
+            channel.configureBlocking(true);
+        }
+        return channels;
+    }
+
+    /**
+     * Reads whatever replies are available and counts the lines
+     * (every idle client gets exactly one BOARD_LIST line back)
+     */
+    private int collectReplies(Selector selector, ByteBuffer readBuffer, long timeout) throws IOException {
+        int lines = 0;
+        int ready = timeout == 0 ? selector.selectNow() : selector.select(timeout);
+        if (ready == 0) return 0;
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            readBuffer.clear();
+            if (((SocketChannel) key.channel()).read(readBuffer) <= 0) continue;
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                if (readBuffer.get() == '\n') lines++;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Draws strokes one at a time and measures how long each echo takes
+     */
+    private void measureStrokeLatency(int port) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+        out.println("login,user=drawer");
+        in.readLine();
+        out.println("new,whiteboard=benchboard");
+        out.println("open,whiteboard=benchboard");
+        in.readLine();
+
+        String stroke = strokeLine();
+
+        long writesBefore = server.getSocketWrites();
+        long[] latencies = new long[strokes];
+        for (int i = 0; i < strokes; i++) {
+            long start = System.nanoTime();
+            out.println(stroke);
+            String line;
+            do {
+                line = in.readLine();
+            } while (line != null && !line.startsWith("freedraw"));
+            latencies[i] = System.nanoTime() - start;
+        }
+        long writes = server.getSocketWrites() - writesBefore;
+        socket.close();
+
+        Arrays.sort(latencies);
+        System.out.printf("stroke round trip (%d strokes of %d points): p50 %.1f us, p99 %.1f us, max %.1f us, "
+                + "%.2f socket writes per stroke%n",
+                strokes, points, latencies[strokes / 2] / 1e3,
+                latencies[strokes * 99 / 100] / 1e3, latencies[strokes - 1] / 1e3, writes / (double) strokes);
+    }
+
+    /**
+     * Every board gets its own client which draws as fast as it can (or at --rate),
+     * and --viewers clients that only watch. Reports the total number of strokes
+     * per second echoed back to the drawers, the echo latency and the socket writes
+     */
+    private void measureBoardThroughput(final int port) throws Exception {
+        final String stroke = strokeLine();
+        // latency of every echo, one row per board
+        final long[][] latencies = new long[boards][strokes];
+        ArrayList<Socket> viewerSockets = new ArrayList<Socket>();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+
+        // the viewers are on their boards before anybody draws
+        for (int b = 0; b < boards; b++) {
+            for (int v = 0; v < viewers; v++) {
+                Socket socket = new Socket("localhost", port);
+                final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                out.println("login,user=viewer" + b + "x" + v);
+                in.readLine();
+                out.println("open,whiteboard=bench" + b);
+                in.readLine();
+                viewerSockets.add(socket);
+                threads.add(new Thread(new Runnable() {
+                    public void run() {
+                        readEchoes(in, null, null);
+                    }
+                }));
+            }
+        }
+
+        long writesBefore = server.getSocketWrites();
+        long start = System.nanoTime();
+        for (int b = 0; b < boards; b++) {
+            final int board = b;
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Socket socket = new Socket("localhost", port);
+                        final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                        out.println("login,user=drawer" + board);
+                        in.readLine();
+                        out.println("open,whiteboard=bench" + board);
+
+                        // read the echoes on another thread so neither side blocks
+                        final long[] sendTimes = new long[strokes];
+                        Thread reader = new Thread(new Runnable() {
+                            public void run() {
+                                readEchoes(in, sendTimes, latencies[board]);
+                            }
+                        });
+                        reader.start();
+                        long interval = rate > 0 ? 1000000000L / rate : 0;
+                        long next = System.nanoTime();
+                        for (int i = 0; i < strokes; i++) {
+                            if (interval > 0) {
+                                next += interval;
+                                LockSupport.parkNanos(next - System.nanoTime());
+                            }
+                            sendTimes[i] = System.nanoTime();
+                            out.println(stroke);
+                        }
+                        reader.join();
+                        socket.close();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        long writes = server.getSocketWrites() - writesBefore;
+        for (Socket socket : viewerSockets) {
+            socket.close();
+        }
+
+        long[] all = new long[boards * strokes];
+        for (int b = 0; b < boards; b++) {
+            System.arraycopy(latencies[b], 0, all, b * strokes, strokes);
+        }
+        Arrays.sort(all);
+        System.out.printf("%d boards drawing (%d viewers each): %.0f strokes/s, p50 %.1f us, p99 %.1f us, "
+                + "%.2f socket writes per stroke%n",
+                boards, viewers, boards * (double) strokes / (elapsed / 1e9),
+                all[all.length / 2] / 1e3, all[all.length * 99 / 100] / 1e3,
+                writes / (double) (boards * strokes));
+    }
+
+    /**
+     * Reads until --strokes free draw echoes have arrived
+     * @param sendTimes when each stroke was sent, null if latency is not measured
+     * @param latencies filled with the latency of each echo, null if not measured
+     */
+    private void readEchoes(BufferedReader in, long[] sendTimes, long[] latencies) {
+        try {
+            int echoes = 0;
+            while (echoes < strokes) {
+                String line = in.readLine();
+                if (line == null) return;
+                if (!line.startsWith("freedraw")) continue;
+                if (latencies != null) {
+                    latencies[echoes] = System.nanoTime() - sendTimes[echoes];
+                }
+                echoes++;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return freedraw request with --points points
+     */
+    private String strokeLine() {
+        StringBuilder sb = new StringBuilder("freedraw,color=black,size=3,coord=");
+        for (int i = 0; i < points; i++) {
+            if (i > 0) sb.append(';');
+            sb.append(100 + i).append(':').append(200 + (i % 7));
+        }
+        return sb.toString();
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,846 @@
+package whiteboard.server;
+
+/*
+ * This class holds the startup options of the whiteboard server
+ * Every option has a default so that new ServerConfig() behaves exactly
+ * like the original hard coded server
+ *
+ * Options can be set through the set methods or parsed from the command
+ * line in the form --name=value (e.g --mode=nio --port=4444)
+ */
+public class ServerConfig {
+    // default port the server listens on
+    public static final int DEFAULT_PORT = 4444;
+
+    private int port = DEFAULT_PORT;
+    private ServerMode mode = ServerMode.THREAD_PER_CONNECTION;
+    // number of selector threads used in NIO mode
+    private int eventLoops = Math.min(4, Runtime.getRuntime().availableProcessors());
+    // number of threads that process drawing requests, each board belongs to one
+    private int boardShards = Runtime.getRuntime().availableProcessors();
+    // max number of messages waiting to be written to a single client
+    private int outboundQueueCapacity = 1024;
+    // what to do with a client whose outbound queue is full
+    private OverflowPolicy overflowPolicy = OverflowPolicy.PAUSE_AND_RESYNC;
+    // max time in milliseconds a response is held back so that the responses
+    // following it go out in the same socket write, 0 writes right away
+    private int flushDelayMillis = 0;
+    // number of slots of the request queues (rounded up to a power of two)
+    private int requestRingSize = 65536;
+    // how the processing threads wait for requests
+    private WaitStrategy waitStrategy = WaitStrategy.BLOCK;
+    // how rep invariants are checked, the checks are asserts so by default
+    // they only run when assertions are enabled (as they are in the tests)
+    private InvariantMode invariantMode = assertionsEnabled() ? InvariantMode.FULL : InvariantMode.OFF;
+    // number of requests between full checks in SAMPLED mode
+    private int invariantSampleInterval = 1000;
+    // number of strokes between refreshes of a board's keyframe image, 0 to
+    // not keep keyframes (older clients don't understand them)
+    private int keyframeInterval = 0;
+    // size of the keyframe images in pixels, the size of the client's canvas
+    private int keyframeWidth = 800;
+    private int keyframeHeight = 600;
+    // directory of the journal the boards are kept in across restarts,
+    // null to keep them only in memory
+    private String journalDir = null;
+    // size in bytes of each journal segment file
+    private int journalSegmentSize = 64 * 1024 * 1024;
+    // max time in milliseconds between forcing the journal to disk, strokes
+    // drawn in that time may be lost if the machine goes down
+    private int journalFlushMillis = 10;
+    // time in milliseconds between compactions of the boards' strokes, 0 to
+    // not compact
+    private int compactIntervalMillis = 0;
+    // directory boards nobody uses are evicted to, null to keep every board
+    // in memory
+    private String boardDir = null;
+    // time in milliseconds a board must go unused before it is evicted
+    private long boardIdleMillis = 10 * 60 * 1000;
+    // bytes of strokes kept in memory, above that the least recently used
+    // boards are evicted even if they have not been idle long, 0 for no limit
+    private long boardCacheBytes = 0;
+    // time in milliseconds an evicted board is kept after it was last used,
+    // 0 to keep it forever
+    private long boardTtlMillis = 0;
+    // what is done with a board past its time to live
+    private BoardExpiry boardExpiry = BoardExpiry.ARCHIVE;
+    // true to clip strokes to the keyframe area before storing them
+    private boolean clipStrokes = false;
+    // max distance in pixels of a point dropped when simplifying strokes
+    // before storing them, 0 to not simplify
+    private double simplifyTolerance = 0;
+    // true to let clients switch to the binary protocol at login
+    private boolean binaryProtocol = true;
+    // true to let clients switch to compression at login
+    private boolean compression = true;
+    // Deflater level of what is sent to compressed connections
+    private int compressionLevel = 1;
+    // percent of one core that may be spent compressing, 0 for no limit
+    private int compressionBudget = 0;
+    // true to hand resume tokens to clients that ask for them at login
+    private boolean resume = true;
+    // strokes of each board kept for users who resume, the last resumeStrokes
+    // to twice that many are kept
+    private int resumeStrokes = 256;
+    // time in milliseconds a session can be resumed after its connection closed
+    private long resumeTtlMillis = 2 * 60 * 1000;
+
+    /**
+     * Constructor, all the options are set to their defaults
+     */
+    public ServerConfig() {
+    }
+
+    /**
+     * Get the port the server listens on
+     * @return port number
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Set the port the server listens on
+     * @param port port number, requires 0 <= port <= 65535
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Get the way client connections are serviced
+     * @return server mode enum
+     */
+    public ServerMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Set the way client connections are serviced
+     * @param mode server mode enum
+     */
+    public void setMode(ServerMode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Get the number of event loop threads used in NIO mode
+     * @return number of event loops
+     */
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    /**
+     * Set the number of event loop threads used in NIO mode
+     * @param eventLoops number of event loops, requires eventLoops > 0
+     */
+    public void setEventLoops(int eventLoops) {
+        this.eventLoops = eventLoops;
+    }
+
+    /**
+     * Get the number of shards that process drawing requests
+     * @return number of board shards
+     */
+    public int getBoardShards() {
+        return boardShards;
+    }
+
+    /**
+     * Set the number of shards that process drawing requests
+     * @param boardShards number of board shards, requires boardShards > 0
+     */
+    public void setBoardShards(int boardShards) {
+        this.boardShards = boardShards;
+    }
+
+    /**
+     * Get the max number of messages waiting to be written to a single client
+     * @return outbound queue capacity
+     */
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    /**
+     * Set the max number of messages waiting to be written to a single client
+     * @param outboundQueueCapacity outbound queue capacity, requires outboundQueueCapacity > 0
+     */
+    public void setOutboundQueueCapacity(int outboundQueueCapacity) {
+        this.outboundQueueCapacity = outboundQueueCapacity;
+    }
+
+    /**
+     * Get what is done with a client whose outbound queue is full
+     * @return overflow policy enum
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Set what is done with a client whose outbound queue is full
+     * @param overflowPolicy overflow policy enum
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Get the max time a response is held back to be written together with later responses
+     * @return flush delay in milliseconds
+     */
+    public int getFlushDelayMillis() {
+        return flushDelayMillis;
+    }
+
+    /**
+     * Set the max time a response is held back to be written together with later responses
+     * @param flushDelayMillis flush delay in milliseconds, requires flushDelayMillis >= 0
+     */
+    public void setFlushDelayMillis(int flushDelayMillis) {
+        this.flushDelayMillis = flushDelayMillis;
+    }
+
+    /**
+     * Get the number of slots of the request queues
+     * @return request ring size
+     */
+    public int getRequestRingSize() {
+        return requestRingSize;
+    }
+
+    /**
+     * Set the number of slots of the request queues
+     * @param requestRingSize request ring size, rounded up to a power of two,
+     *        requires 0 < requestRingSize <= 2^30
+     */
+    public void setRequestRingSize(int requestRingSize) {
+        this.requestRingSize = requestRingSize;
+    }
+
+    /**
+     * Get how the processing threads wait for requests
+     * @return wait strategy enum
+     */
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * Set how the processing threads wait for requests
+     * @param waitStrategy wait strategy enum
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Get how the server checks its rep invariants
+     * @return invariant mode enum
+     */
+    public InvariantMode getInvariantMode() {
+        return invariantMode;
+    }
+
+    /**
+     * Set how the server checks its rep invariants
+     * @param invariantMode invariant mode enum
+     */
+    public void setInvariantMode(InvariantMode invariantMode) {
+        this.invariantMode = invariantMode;
+    }
+
+    /**
+     * Get the number of requests between full invariant checks in SAMPLED mode
+     * @return sample interval
+     */
+    public int getInvariantSampleInterval() {
+        return invariantSampleInterval;
+    }
+
+    /**
+     * Set the number of requests between full invariant checks in SAMPLED mode
+     * @param invariantSampleInterval sample interval, requires invariantSampleInterval > 0
+     */
+    public void setInvariantSampleInterval(int invariantSampleInterval) {
+        this.invariantSampleInterval = invariantSampleInterval;
+    }
+
+    /**
+     * Get the number of strokes between refreshes of a board's keyframe image
+     * @return keyframe interval, 0 if keyframes are not kept
+     */
+    public int getKeyframeInterval() {
+        return keyframeInterval;
+    }
+
+    /**
+     * Set the number of strokes between refreshes of a board's keyframe image
+     * @param keyframeInterval keyframe interval, 0 to not keep keyframes,
+     *        requires keyframeInterval >= 0
+     */
+    public void setKeyframeInterval(int keyframeInterval) {
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * Get the width of the keyframe images
+     * @return width in pixels
+     */
+    public int getKeyframeWidth() {
+        return keyframeWidth;
+    }
+
+    /**
+     * Get the height of the keyframe images
+     * @return height in pixels
+     */
+    public int getKeyframeHeight() {
+        return keyframeHeight;
+    }
+
+    /**
+     * Set the size of the keyframe images
+     * Strokes outside of the image are lost from the keyframe, so it should
+     * be at least as large as the clients' canvas
+     * @param width width in pixels, requires width > 0
+     * @param height height in pixels, requires height > 0
+     */
+    public void setKeyframeSize(int width, int height) {
+        this.keyframeWidth = width;
+        this.keyframeHeight = height;
+    }
+
+    /**
+     * Get the directory of the board journal
+     * @return directory path, null if boards are only kept in memory
+     */
+    public String getJournalDir() {
+        return journalDir;
+    }
+
+    /**
+     * Set the directory of the board journal, the boards in it are
+     * restored when the server starts
+     * @param journalDir directory path, null to only keep boards in memory
+     */
+    public void setJournalDir(String journalDir) {
+        this.journalDir = journalDir;
+    }
+
+    /**
+     * Get the size of each journal segment file
+     * @return segment size in bytes
+     */
+    public int getJournalSegmentSize() {
+        return journalSegmentSize;
+    }
+
+    /**
+     * Set the size of each journal segment file
+     * @param journalSegmentSize segment size in bytes, requires journalSegmentSize > 0
+     */
+    public void setJournalSegmentSize(int journalSegmentSize) {
+        this.journalSegmentSize = journalSegmentSize;
+    }
+
+    /**
+     * Get the max time between forcing the journal to disk
+     * @return flush interval in milliseconds
+     */
+    public int getJournalFlushMillis() {
+        return journalFlushMillis;
+    }
+
+    /**
+     * Set the max time between forcing the journal to disk
+     * @param journalFlushMillis flush interval in milliseconds, 0 to leave
+     *        writing it out to the OS, requires journalFlushMillis >= 0
+     */
+    public void setJournalFlushMillis(int journalFlushMillis) {
+        this.journalFlushMillis = journalFlushMillis;
+    }
+
+    /**
+     * Get the time between compactions of the boards' strokes
+     * @return compaction interval in milliseconds, 0 if boards are not compacted
+     */
+    public int getCompactIntervalMillis() {
+        return compactIntervalMillis;
+    }
+
+    /**
+     * Set the time between compactions of the boards' strokes
+     * @param compactIntervalMillis compaction interval in milliseconds, 0 to
+     *        not compact, requires compactIntervalMillis >= 0
+     */
+    public void setCompactIntervalMillis(int compactIntervalMillis) {
+        this.compactIntervalMillis = compactIntervalMillis;
+    }
+
+    /**
+     * Get the directory boards nobody uses are evicted to
+     * @return directory path, null if every board is kept in memory
+     */
+    public String getBoardDir() {
+        return boardDir;
+    }
+
+    /**
+     * Set the directory boards nobody uses are evicted to, evicted boards
+     * are loaded back when they are opened
+     * @param boardDir directory path, null to keep every board in memory
+     */
+    public void setBoardDir(String boardDir) {
+        this.boardDir = boardDir;
+    }
+
+    /**
+     * Get the time a board must go unused before it is evicted
+     * @return idle time in milliseconds
+     */
+    public long getBoardIdleMillis() {
+        return boardIdleMillis;
+    }
+
+    /**
+     * Set the time a board must go unused before it is evicted
+     * @param boardIdleMillis idle time in milliseconds, requires boardIdleMillis >= 0
+     */
+    public void setBoardIdleMillis(long boardIdleMillis) {
+        this.boardIdleMillis = boardIdleMillis;
+    }
+
+    /**
+     * Get the bytes of strokes kept in memory before boards are evicted early
+     * @return memory budget in bytes, 0 if there is no limit
+     */
+    public long getBoardCacheBytes() {
+        return boardCacheBytes;
+    }
+
+    /**
+     * Set the bytes of strokes kept in memory, above that the least recently
+     * used boards nobody is on are evicted without waiting for the idle time
+     * @param boardCacheBytes memory budget in bytes, 0 for no limit,
+     *        requires boardCacheBytes >= 0
+     */
+    public void setBoardCacheBytes(long boardCacheBytes) {
+        this.boardCacheBytes = boardCacheBytes;
+    }
+
+    /**
+     * Get the time an evicted board is kept after it was last used
+     * @return time to live in milliseconds, 0 if boards are kept forever
+     */
+    public long getBoardTtlMillis() {
+        return boardTtlMillis;
+    }
+
+    /**
+     * Set the time an evicted board is kept after it was last used
+     * @param boardTtlMillis time to live in milliseconds, 0 to keep boards
+     *        forever, requires boardTtlMillis >= 0
+     */
+    public void setBoardTtlMillis(long boardTtlMillis) {
+        this.boardTtlMillis = boardTtlMillis;
+    }
+
+    /**
+     * Get what is done with a board past its time to live
+     * @return board expiry enum
+     */
+    public BoardExpiry getBoardExpiry() {
+        return boardExpiry;
+    }
+
+    /**
+     * Set what is done with a board past its time to live
+     * @param boardExpiry board expiry enum
+     */
+    public void setBoardExpiry(BoardExpiry boardExpiry) {
+        this.boardExpiry = boardExpiry;
+    }
+
+    /**
+     * Get whether strokes are clipped to the keyframe area before they are stored
+     * @return true if strokes are clipped
+     */
+    public boolean getClipStrokes() {
+        return clipStrokes;
+    }
+
+    /**
+     * Set whether strokes are clipped to the keyframe area (the clients'
+     * canvas) before they are stored, what is drawn on the canvas stays the same
+     * @param clipStrokes true to clip strokes
+     */
+    public void setClipStrokes(boolean clipStrokes) {
+        this.clipStrokes = clipStrokes;
+    }
+
+    /**
+     * Get the tolerance strokes are simplified with before they are stored
+     * @return max distance in pixels of a dropped point, 0 if strokes are not simplified
+     */
+    public double getSimplifyTolerance() {
+        return simplifyTolerance;
+    }
+
+    /**
+     * Set the tolerance strokes are simplified with before they are stored
+     * @param simplifyTolerance max distance in pixels of a dropped point from
+     *        the simplified stroke, 0 to not simplify, requires simplifyTolerance >= 0
+     */
+    public void setSimplifyTolerance(double simplifyTolerance) {
+        this.simplifyTolerance = simplifyTolerance;
+    }
+
+    /**
+     * Get whether clients may switch to the binary protocol when they log in
+     * @return true if the binary protocol is allowed
+     */
+    public boolean getBinaryProtocol() {
+        return binaryProtocol;
+    }
+
+    /**
+     * Set whether clients may switch to the binary protocol when they log in,
+     * if not the clients that ask for it are answered in text
+     * @param binaryProtocol true to allow the binary protocol
+     */
+    public void setBinaryProtocol(boolean binaryProtocol) {
+        this.binaryProtocol = binaryProtocol;
+    }
+
+    /**
+     * Get whether clients may switch to compression when they log in
+     * @return true if compression is allowed
+     */
+    public boolean getCompression() {
+        return compression;
+    }
+
+    /**
+     * Set whether clients may switch to compression when they log in,
+     * if not the clients that ask for it are answered uncompressed
+     * @param compression true to allow compression
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Get the level what is sent to compressed connections is compressed with
+     * @return Deflater level
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Set the level what is sent to compressed connections is compressed with,
+     * higher levels compress a little better for a lot more CPU
+     * @param compressionLevel Deflater level, requires 0 <= compressionLevel <= 9
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Get the share of the CPU the server may spend compressing
+     * @return percent of one core, 0 for no limit
+     */
+    public int getCompressionBudget() {
+        return compressionBudget;
+    }
+
+    /**
+     * Set the share of the CPU the server may spend compressing, over all the
+     * connections. Past it, what is sent is not compressed until the next
+     * window of CompressionBudget.WINDOW_MILLIS
+     * @param compressionBudget percent of one core, more than 100 for several
+     *        cores, 0 for no limit, requires compressionBudget >= 0
+     */
+    public void setCompressionBudget(int compressionBudget) {
+        this.compressionBudget = compressionBudget;
+    }
+
+    /**
+     * Get whether clients may ask for a resume token when they log in
+     * @return true if sessions can be resumed
+     */
+    public boolean getResume() {
+        return resume;
+    }
+
+    /**
+     * Set whether clients may ask for a resume token when they log in, so
+     * that once reconnected they are only sent the strokes they missed.
+     * If not the clients that ask for one are not sent any
+     * @param resume true to allow resuming sessions
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Get how many of the last strokes of each board are kept for resuming
+     * @return number of strokes, 0 for none
+     */
+    public int getResumeStrokes() {
+        return resumeStrokes;
+    }
+
+    /**
+     * Set how many of the last strokes of each board are kept for resuming,
+     * see RecentStrokes. A user who missed more is sent the whole board again
+     * @param resumeStrokes number of strokes, 0 for none, requires resumeStrokes >= 0
+     */
+    public void setResumeStrokes(int resumeStrokes) {
+        this.resumeStrokes = resumeStrokes;
+    }
+
+    /**
+     * Get the time a session can be resumed after its connection closed
+     * @return time in milliseconds
+     */
+    public long getResumeTtlMillis() {
+        return resumeTtlMillis;
+    }
+
+    /**
+     * Set the time a session can be resumed after its connection closed,
+     * its resume token is forgotten afterwards
+     * @param resumeTtlMillis time in milliseconds, requires resumeTtlMillis >= 0
+     */
+    public void setResumeTtlMillis(long resumeTtlMillis) {
+        this.resumeTtlMillis = resumeTtlMillis;
+    }
+
+    /**
+     * @return true if the JVM runs with assertions enabled for this package
+     */
+    private static boolean assertionsEnabled() {
+        boolean enabled = false;
+        assert enabled = true; // only assigned when asserts run
+        return enabled;
+    }
+
+    /**
+     * Builds a configuration from command line arguments
+     * Each argument is of the form --name=value
+     *
+     * @param args command line arguments
+     * @return configuration with the given options set
+     * @throws IllegalArgumentException on unknown or badly formed options
+     */
+    public static ServerConfig fromArgs(String[] args) throws IllegalArgumentException {
+        ServerConfig config = new ServerConfig();
+
+        for (String arg : args) {
+            String[] tokens = arg.split("=");
+            if (tokens.length != 2 || !tokens[0].startsWith("--")) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            String value = tokens[1];
+            switch (tokens[0]) {
+            case "--port":
+                config.setPort(Integer.parseInt(value));
+                break;
+            case "--mode":
+                switch (value) {
+                case "thread":
+                    config.setMode(ServerMode.THREAD_PER_CONNECTION);
+                    break;
+                case "virtual":
+                    config.setMode(ServerMode.VIRTUAL_THREAD);
+                    break;
+                case "nio":
+                    config.setMode(ServerMode.NIO);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown mode: " + value);
+                }
+                break;
+            case "--event-loops":
+                config.setEventLoops(Integer.parseInt(value));
+                break;
+            case "--board-shards":
+                config.setBoardShards(Integer.parseInt(value));
+                break;
+            case "--outbound-queue":
+                config.setOutboundQueueCapacity(Integer.parseInt(value));
+                break;
+            case "--flush-delay-ms":
+                config.setFlushDelayMillis(Integer.parseInt(value));
+                break;
+            case "--request-ring":
+                config.setRequestRingSize(Integer.parseInt(value));
+                break;
+            case "--wait":
+                switch (value) {
+                case "block":
+                    config.setWaitStrategy(WaitStrategy.BLOCK);
+                    break;
+                case "yield":
+                    config.setWaitStrategy(WaitStrategy.YIELD);
+                    break;
+                case "spin":
+                    config.setWaitStrategy(WaitStrategy.BUSY_SPIN);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown wait strategy: " + value);
+                }
+                break;
+            case "--invariants":
+                switch (value) {
+                case "off":
+                    config.setInvariantMode(InvariantMode.OFF);
+                    break;
+                case "incremental":
+                    config.setInvariantMode(InvariantMode.INCREMENTAL);
+                    break;
+                case "sampled":
+                    config.setInvariantMode(InvariantMode.SAMPLED);
+                    break;
+                case "full":
+                    config.setInvariantMode(InvariantMode.FULL);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown invariant mode: " + value);
+                }
+                break;
+            case "--invariant-sample":
+                config.setInvariantSampleInterval(Integer.parseInt(value));
+                break;
+            case "--keyframe-interval":
+                config.setKeyframeInterval(Integer.parseInt(value));
+                break;
+            case "--keyframe-size":
+                String[] size = value.split("x");
+                if (size.length != 2) {
+                    throw new IllegalArgumentException("Invalid keyframe size: " + value);
+                }
+                config.setKeyframeSize(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+                break;
+            case "--journal-dir":
+                config.setJournalDir(value);
+                break;
+            case "--journal-segment-mb":
+                config.setJournalSegmentSize(Integer.parseInt(value) * 1024 * 1024);
+                break;
+            case "--journal-flush-ms":
+                config.setJournalFlushMillis(Integer.parseInt(value));
+                break;
+            case "--compact-interval-ms":
+                config.setCompactIntervalMillis(Integer.parseInt(value));
+                break;
+            case "--board-dir":
+                config.setBoardDir(value);
+                break;
+            case "--board-idle-s":
+                config.setBoardIdleMillis(Long.parseLong(value) * 1000);
+                break;
+            case "--board-cache-mb":
+                config.setBoardCacheBytes(Long.parseLong(value) * 1024 * 1024);
+                break;
+            case "--board-ttl-days":
+                config.setBoardTtlMillis(Long.parseLong(value) * 24 * 60 * 60 * 1000);
+                break;
+            case "--clip-strokes":
+                switch (value) {
+                case "on":
+                    config.setClipStrokes(true);
+                    break;
+                case "off":
+                    config.setClipStrokes(false);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown clip setting: " + value);
+                }
+                break;
+            case "--simplify-tolerance":
+                config.setSimplifyTolerance(Double.parseDouble(value));
+                break;
+            case "--binary-protocol":
+                switch (value) {
+                case "on":
+                    config.setBinaryProtocol(true);
+                    break;
+                case "off":
+                    config.setBinaryProtocol(false);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown binary protocol setting: " + value);
+                }
+                break;
+            case "--compression":
+                switch (value) {
+                case "on":
+                    config.setCompression(true);
+                    break;
+                case "off":
+                    config.setCompression(false);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown compression setting: " + value);
+                }
+                break;
+            case "--compression-level":
+                config.setCompressionLevel(Integer.parseInt(value));
+                break;
+            case "--compression-budget":
+                config.setCompressionBudget(Integer.parseInt(value));
+                break;
+            case "--resume":
+                switch (value) {
+                case "on":
+                    config.setResume(true);
+                    break;
+                case "off":
+                    config.setResume(false);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown resume setting: " + value);
+                }
+                break;
+            case "--resume-strokes":
+                config.setResumeStrokes(Integer.parseInt(value));
+                break;
+            case "--resume-ttl-s":
+                config.setResumeTtlMillis(Long.parseLong(value) * 1000);
+                break;
+            case "--board-expiry":
+                switch (value) {
+                case "archive":
+                    config.setBoardExpiry(BoardExpiry.ARCHIVE);
+                    break;
+                case "delete":
+                    config.setBoardExpiry(BoardExpiry.DELETE);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown board expiry: " + value);
+                }
+                break;
+            case "--overflow":
+                switch (value) {
+                case "drop":
+                    config.setOverflowPolicy(OverflowPolicy.DROP_CONNECTION);
+                    break;
+                case "resync":
+                    config.setOverflowPolicy(OverflowPolicy.PAUSE_AND_RESYNC);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown overflow policy: " + value);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + tokens[0]);
+            }
+        }
+        return config;
+    }
+}
@@ -0,0 +1,13 @@
+package whiteboard.server;
+
+/*
+ * List of ways the server can service client connections
+ */
+public enum ServerMode {
+    // one blocking thread per connected client (original behaviour)
+    THREAD_PER_CONNECTION,
+    // one virtual thread per connected client (needs Java 21)
+    VIRTUAL_THREAD,
+    // a small fixed set of selector event loops shared by all clients
+    NIO,
+}
@@ -0,0 +1,406 @@
+package whiteboard.server;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Reduces the points of the strokes drawn by clients before they are
+ * stored and broadcast
+ * The client sends a point for every mouse event of a drag, so strokes come
+ * with many points that are repeated or nearly on a line, and nothing stops
+ * a client from sending points far outside of the canvas. Each stroke goes
+ * through, in order:
+ *
+ * - clipping (if enabled): the parts of the stroke outside of the board,
+ *   i.e the keyframe area grown by how far the stroke's width and caps
+ *   reach, are replaced by a walk along the border of that area, so what
+ *   is drawn on the board stays the same and coordinates are brought back
+ *   to within a board size of it (a segment reaching further out moves by
+ *   less than a pixel)
+ * - removal of points repeating the point before
+ * - Ramer-Douglas-Peucker simplification (if the tolerance is above 0):
+ *   points that are within the tolerance of the line between the points
+ *   kept around them are dropped, the ends are always kept
+ *
+ * Stateless apart from the counters, so shared by all the shards
+ */
+class StrokeIngest {
+    // pixels a stroke is assumed to reach past its shape, as in BoardCompactor
+    private static final double MARGIN = 2;
+
+    private final int width;
+    private final int height;
+    private final boolean clip;
+    private final double tolerance;
+
+    // points received, removed by each step, and kept
+    private final LongAdder pointsIn = new LongAdder();
+    private final LongAdder clipped = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder simplified = new LongAdder();
+    private final LongAdder pointsOut = new LongAdder();
+
+    /**
+     * Constructor
+     * @param width width of the board in pixels
+     * @param height height of the board in pixels
+     * @param clip true to clip strokes to the board
+     * @param tolerance max distance in pixels of a dropped point from the
+     *        simplified stroke, 0 to not simplify, requires tolerance >= 0
+     */
+    StrokeIngest(int width, int height, boolean clip, double tolerance) {
+        this.width = width;
+        this.height = height;
+        this.clip = clip;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Reduces the points of a stroke
+     * @param points x and y of each point one after the other
+     * @param lineSize line size of the stroke
+     * @return x and y of each point that is kept, a new array unless no
+     *         point was changed. A stroke of 2 or more points keeps 2 or more
+     */
+    int[] process(int[] points, int lineSize) {
+        int n = points.length / 2;
+        pointsIn.add(n);
+        int[] out = points;
+        if (clip) {
+            out = clip(out, lineSize);
+            clipped.add(n - out.length / 2);
+        }
+        int before = out.length / 2;
+        out = removeDuplicates(out);
+        duplicates.add(before - out.length / 2);
+        if (tolerance > 0) {
+            before = out.length / 2;
+            out = simplify(out, tolerance);
+            simplified.add(before - out.length / 2);
+        }
+        pointsOut.add(out.length / 2);
+        return out;
+    }
+
+    /**
+     * Only clips a stroke, which takes time linear in its points, for a
+     * stroke that is not worth the simplification's time
+     * @param points x and y of each point one after the other
+     * @param lineSize line size of the stroke
+     * @return x and y of each point that is kept, a new array unless no
+     *         point was changed
+     */
+    int[] clipOnly(int[] points, int lineSize) {
+        int n = points.length / 2;
+        pointsIn.add(n);
+        int[] out = points;
+        if (clip) {
+            out = clip(out, lineSize);
+            clipped.add(n - out.length / 2);
+        }
+        pointsOut.add(out.length / 2);
+        return out;
+    }
+
+    /**
+     * @return counts of the points received ("in"), removed by clipping
+     *         ("clipped", below 0 if clipping added border points), by
+     *         duplicate removal ("duplicates") and by simplification
+     *         ("simplified"), and kept ("out")
+     */
+    HashMap<String, Long> getStats() {
+        HashMap<String, Long> stats = new HashMap<String, Long>();
+        stats.put("in", pointsIn.sum());
+        stats.put("clipped", clipped.sum());
+        stats.put("duplicates", duplicates.sum());
+        stats.put("simplified", simplified.sum());
+        stats.put("out", pointsOut.sum());
+        return stats;
+    }
+
+    /**
+     * @return points kept for each point received, 1 if no point was received
+     */
+    double getReductionRatio() {
+        long in = pointsIn.sum();
+        return in == 0 ? 1 : (double) pointsOut.sum() / in;
+    }
+
+    /**
+     * Clips a stroke to the board grown by the reach of the stroke
+     * The segments with a part on the board are kept as they are, unless
+     * they reach further out than another board size, the others are
+     * replaced by going back to where the stroke left the board and along
+     * its border to where the stroke comes back
+     *
+     * @param points x and y of each point
+     * @param lineSize line size of the stroke
+     * @return x and y of the points of the clipped stroke
+     */
+    private int[] clip(int[] points, int lineSize) {
+        int n = points.length / 2;
+        if (n == 0) return points;
+        // far enough out that nothing drawn on it, caps included, shows
+        int reach = (int) Math.ceil(Math.max(1, lineSize) * 0.7072 + MARGIN);
+        int minX = -reach;
+        int minY = -reach;
+        int maxX = width + reach;
+        int maxY = height + reach;
+        boolean inside = true;
+        for (int i = 0; i < n && inside; i++) {
+            inside = inBox(points, i, minX, minY, maxX, maxY, 0, 0);
+        }
+        if (inside) return points;
+
+        Path path = new Path(points.length + 8);
+        double[] t = new double[2];
+        // where the stroke last left the board
+        int exitX = 0;
+        int exitY = 0;
+        for (int i = 0; i + 1 < n; i++) {
+            double x0 = points[2 * i];
+            double y0 = points[2 * i + 1];
+            double dx = points[2 * i + 2] - x0;
+            double dy = points[2 * i + 3] - y0;
+            if (!clipSegment(x0, y0, dx, dy, minX, minY, maxX, maxY, t)) continue;
+            // on the border where the segment comes onto the board and leaves it
+            int ax = (int) Math.round(x0 + t[0] * dx);
+            int ay = (int) Math.round(y0 + t[0] * dy);
+            int bx = (int) Math.round(x0 + t[1] * dx);
+            int by = (int) Math.round(y0 + t[1] * dy);
+            // ends further out are replaced by the border points, the
+            // segment moves by less than a pixel
+            boolean startFar = !inBox(points, i, minX, minY, maxX, maxY, width, height);
+            boolean endFar = !inBox(points, i + 1, minX, minY, maxX, maxY, width, height);
+            int startX = startFar ? ax : points[2 * i];
+            int startY = startFar ? ay : points[2 * i + 1];
+            if (path.size() == 0) {
+                path.add(startX, startY);
+            }
+            else if (path.lastX() != startX || path.lastY() != startY) {
+                // the stroke left the board and comes back: back to the
+                // border on the way it left, along the border, and out
+                // to the start of this segment on the way it comes back
+                if (path.lastX() != exitX || path.lastY() != exitY) path.add(exitX, exitY);
+                walkBorder(path, exitX, exitY, ax, ay, minX, minY, maxX, maxY);
+                path.add(ax, ay);
+                if (ax != startX || ay != startY) path.add(startX, startY);
+            }
+            path.add(endFar ? bx : points[2 * i + 2], endFar ? by : points[2 * i + 3]);
+            exitX = bx;
+            exitY = by;
+        }
+        if (path.size() == 0) {
+            // nothing of the stroke is on the board
+            path.add(Math.max(minX, Math.min(maxX, points[0])), Math.max(minY, Math.min(maxY, points[1])));
+        }
+        return path.toArray();
+    }
+
+    /**
+     * @return true if point i is inside the rectangle grown by dx and dy on each side
+     */
+    private static boolean inBox(int[] points, int i, int minX, int minY, int maxX, int maxY,
+            int dx, int dy) {
+        long x = points[2 * i];
+        long y = points[2 * i + 1];
+        return x >= (long) minX - dx && x <= (long) maxX + dx && y >= (long) minY - dy && y <= (long) maxY + dy;
+    }
+
+    /**
+     * Clips a segment to a rectangle (Liang-Barsky)
+     * @param t set to the parameters along the segment where the visible part starts and ends
+     * @return false if no part of the segment is in the rectangle
+     */
+    private static boolean clipSegment(double x0, double y0, double dx, double dy,
+            double minX, double minY, double maxX, double maxY, double[] t) {
+        double[] p = {-dx, dx, -dy, dy};
+        double[] q = {x0 - minX, maxX - x0, y0 - minY, maxY - y0};
+        double t0 = 0;
+        double t1 = 1;
+        for (int i = 0; i < 4; i++) {
+            if (p[i] == 0) {
+                if (q[i] < 0) return false;
+                continue;
+            }
+            double r = q[i] / p[i];
+            if (p[i] < 0) {
+                if (r > t1) return false;
+                t0 = Math.max(t0, r);
+            }
+            else {
+                if (r < t0) return false;
+                t1 = Math.min(t1, r);
+            }
+        }
+        t[0] = t0;
+        t[1] = t1;
+        return true;
+    }
+
+    /**
+     * Adds the corners passed going along the border of a rectangle from
+     * one point on it to another, the shorter way around
+     */
+    private static void walkBorder(Path path, int fromX, int fromY, int toX, int toY,
+            int minX, int minY, int maxX, int maxY) {
+        long w = (long) maxX - minX;
+        long h = (long) maxY - minY;
+        long perimeter = 2 * (w + h);
+        long from = borderPosition(fromX, fromY, minX, minY, maxX, maxY);
+        long to = borderPosition(toX, toY, minX, minY, maxX, maxY);
+        long forward = Math.floorMod(to - from, perimeter);
+        boolean clockwise = forward <= perimeter - forward;
+        long length = clockwise ? forward : perimeter - forward;
+        long[] corners = {0, w, w + h, 2 * w + h};
+        int[][] cornerPoints = {{minX, minY}, {maxX, minY}, {maxX, maxY}, {minX, maxY}};
+        // at most 3 corners are passed, in order of distance
+        long[] distances = new long[4];
+        for (int c = 0; c < 4; c++) {
+            distances[c] = Math.floorMod(clockwise ? corners[c] - from : from - corners[c], perimeter);
+        }
+        boolean[] added = new boolean[4];
+        while (true) {
+            int next = -1;
+            for (int c = 0; c < 4; c++) {
+                if (!added[c] && distances[c] > 0 && distances[c] < length
+                        && (next < 0 || distances[c] < distances[next])) {
+                    next = c;
+                }
+            }
+            if (next < 0) return;
+            added[next] = true;
+            path.add(cornerPoints[next][0], cornerPoints[next][1]);
+        }
+    }
+
+    /**
+     * @return distance along the border of a rectangle, clockwise from its
+     *         top left corner, of a point on the border
+     */
+    private static long borderPosition(int x, int y, int minX, int minY, int maxX, int maxY) {
+        long w = (long) maxX - minX;
+        long h = (long) maxY - minY;
+        if (y == minY) return (long) x - minX;
+        if (x == maxX) return w + ((long) y - minY);
+        if (y == maxY) return w + h + ((long) maxX - x);
+        return 2 * w + h + ((long) maxY - y);
+    }
+
+    /**
+     * Removes the points equal to the point before
+     * @param points x and y of each point
+     * @return x and y of the points left, a stroke of 2 or more points keeps 2 or more
+     */
+    static int[] removeDuplicates(int[] points) {
+        int n = points.length / 2;
+        Path path = new Path(points.length);
+        for (int i = 0; i < n; i++) {
+            int x = points[2 * i];
+            int y = points[2 * i + 1];
+            if (i == 0 || x != path.lastX() || y != path.lastY()) path.add(x, y);
+        }
+        // a stroke of one repeated point still draws a dot
+        if (n >= 2 && path.size() == 1) path.add(path.lastX(), path.lastY());
+        return path.size() == n ? points : path.toArray();
+    }
+
+    /**
+     * Ramer-Douglas-Peucker simplification
+     * @param points x and y of each point
+     * @param tolerance max distance in pixels of a dropped point from the
+     *        segment between the points kept on either side of it
+     * @return x and y of the points kept, the first and last are always kept
+     */
+    static int[] simplify(int[] points, double tolerance) {
+        int n = points.length / 2;
+        if (n <= 2) return points;
+        boolean[] keep = new boolean[n];
+        keep[0] = true;
+        keep[n - 1] = true;
+        // ranges still to look at, as pairs of point indexes
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = n - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            double max = -1;
+            int farthest = -1;
+            for (int i = first + 1; i < last; i++) {
+                double d = distance(points, i, first, last);
+                if (d > max) {
+                    max = d;
+                    farthest = i;
+                }
+            }
+            if (farthest < 0 || max <= tolerance) continue;
+            keep[farthest] = true;
+            if (top + 4 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[top++] = first;
+            stack[top++] = farthest;
+            stack[top++] = farthest;
+            stack[top++] = last;
+        }
+        Path path = new Path(points.length);
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) path.add(points[2 * i], points[2 * i + 1]);
+        }
+        return path.size() == n ? points : path.toArray();
+    }
+
+    /**
+     * @return distance of point i from the segment between points a and b
+     */
+    private static double distance(int[] points, int i, int a, int b) {
+        double px = points[2 * i];
+        double py = points[2 * i + 1];
+        double ax = points[2 * a];
+        double ay = points[2 * a + 1];
+        double dx = points[2 * b] - ax;
+        double dy = points[2 * b + 1] - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        return Math.hypot(px - (ax + t * dx), py - (ay + t * dy));
+    }
+
+    // growable list of points
+    private static class Path {
+        private int[] xy;
+        private int size = 0;
+
+        Path(int capacity) {
+            xy = new int[Math.max(2, capacity)];
+        }
+
+        void add(int x, int y) {
+            if (2 * size + 2 > xy.length) {
+                xy = Arrays.copyOf(xy, xy.length * 2);
+            }
+            xy[2 * size] = x;
+            xy[2 * size + 1] = y;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int lastX() {
+            return xy[2 * size - 2];
+        }
+
+        int lastY() {
+            return xy[2 * size - 1];
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(xy, 2 * size);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package whiteboard.server;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+import controller.ParseMessage;
+
+/**
+ * Testing Strategy:
+ * DuplicateTest- verify repeated points are dropped, and a stroke of one repeated point keeps two
+ * SimplifyTest- verify points within the tolerance of a line are dropped, the ones farther
+ *          away and the ends are kept
+ * ClipTest- verify strokes reaching far out of the board are brought back next to it, and
+ *          draw exactly the same picture, pixel for pixel, as drawn by the keyframe
+ * ServerTest- verify a server with a tolerance stores and sends the simplified stroke and
+ *          counts the points dropped
+ */
+public class StrokeIngestTest {
+
+    @Test
+    public void DuplicateTest() {
+        assertArrayEquals(new int[] {1, 1, 2, 2, 1, 1},
+                StrokeIngest.removeDuplicates(new int[] {1, 1, 1, 1, 2, 2, 2, 2, 2, 2, 1, 1}));
+        assertArrayEquals(new int[] {5, 5, 5, 5}, StrokeIngest.removeDuplicates(new int[] {5, 5, 5, 5, 5, 5}));
+        assertArrayEquals(new int[] {5, 5}, StrokeIngest.removeDuplicates(new int[] {5, 5}));
+    }
+
+    @Test
+    public void SimplifyTest() {
+        // nearly a line, then a corner
+        int[] points = {0, 0, 10, 1, 20, 0, 30, 1, 40, 0, 40, 10, 40, 20};
+        assertArrayEquals(new int[] {0, 0, 40, 0, 40, 20}, StrokeIngest.simplify(points, 1.5));
+        assertArrayEquals(new int[] {0, 0, 10, 1, 20, 0, 30, 1, 40, 0, 40, 20},
+                StrokeIngest.simplify(points, 0.5));
+        assertArrayEquals(new int[] {3, 4, 5, 6}, StrokeIngest.simplify(new int[] {3, 4, 5, 6}, 10));
+
+        StrokeIngest ingest = new StrokeIngest(800, 600, false, 1.5);
+        assertArrayEquals(new int[] {0, 0, 40, 0, 40, 20},
+                ingest.process(new int[] {0, 0, 0, 0, 10, 1, 20, 0, 30, 1, 40, 0, 40, 10, 40, 20}, 3));
+        HashMap<String, Long> stats = ingest.getStats();
+        assertEquals(8, (long) stats.get("in"));
+        assertEquals(1, (long) stats.get("duplicates"));
+        assertEquals(4, (long) stats.get("simplified"));
+        assertEquals(3, (long) stats.get("out"));
+        assertEquals(3.0 / 8, ingest.getReductionRatio(), 1e-9);
+    }
+
+    @Test
+    public void ClipTest() {
+        StrokeIngest ingest = new StrokeIngest(800, 600, true, 0);
+        // inside, far out to the right, back in, out below and back
+        int[] clipped = ingest.process(new int[] {100, 100, 2000000000, 110, 400, 300,
+                500, -1000000, 300, -1000000, 200, 200}, 5);
+        for (int i = 0; i < clipped.length; i += 2) {
+            assertTrue(clipped[i] >= -810 && clipped[i] <= 1610);
+            assertTrue(clipped[i + 1] >= -610 && clipped[i + 1] <= 1210);
+        }
+        // nothing on the board
+        assertEquals(1, ingest.process(new int[] {-5000, -5000, -6000, 7000}, 1).length / 2);
+
+        Random random = new Random(6005);
+        StrokeStore drawn = new StrokeStore();
+        StrokeStore stored = new StrokeStore();
+        for (int s = 0; s < 500; s++) {
+            int size = random.nextInt(12);
+            int[] points = new int[2 * (2 + random.nextInt(6))];
+            for (int p = 0; p < points.length; p += 2) {
+                // half of the points off the board
+                points[p] = random.nextInt(1600) - 400;
+                points[p + 1] = random.nextInt(1200) - 300;
+            }
+            byte color = (byte) random.nextInt(6);
+            drawn.add(color, size, points, points.length / 2);
+            int[] kept = ingest.process(points, size);
+            stored.add(color, size, kept, kept.length / 2);
+        }
+        assertEquals(TestSupport.picture(drawn), TestSupport.picture(stored));
+        assertTrue(ingest.getStats().get("clipped") > 0);
+    }
+
+    @Test
+    public void ServerTest() throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.setPort(4465);
+        config.setSimplifyTolerance(1);
+        WhiteboardServer server = new WhiteboardServer(config);
+        Whiteboard board = new Whiteboard("board1");
+        ConnectionInfo connInfo = new ConnectionInfo(new OutboundQueue(16, OverflowPolicy.DROP_CONNECTION));
+        board.addUser("user1", connInfo);
+        server.processFreeDraw(connInfo, board,
+                ParseMessage.parseClientMsg("freedraw,color=red,size=5,coord=0:0;5:0;5:0;10:0;10:10"));
+
+        assertEquals(3, board.getSketches().getPointCount(0));
+        ByteBuffer[] batch = new ByteBuffer[1];
+        assertEquals(1, connInfo.getOutboundQueue().peek(batch));
+        assertEquals("freedraw,color=red,size=5,coord=0:0;10:0;10:10\n",
+                TestSupport.text(batch[0]));
+        assertEquals(5, (long) server.getIngestStats().get("in"));
+        assertEquals(0.6, server.getPointReductionRatio(), 1e-9);
+    }
+}
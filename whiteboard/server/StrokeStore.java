@@ -0,0 +1,458 @@
+package whiteboard.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import controller.BinaryProtocol;
+import controller.ClientMsg;
+
+/*
+ * Compact history of the strokes drawn on a board
+ * Replaces keeping every stroke as its free draw message text. The strokes
+ * are stored in columns of primitives: a color code and a line size per
+ * stroke, and the coordinates of all the strokes one after the other in
+ * chunks of shorts. A stroke of n points takes 9 + 4n bytes instead of its
+ * message (8 bytes per point for 3 digit coordinates, plus 34) and the
+ * objects around it. The few strokes with a coordinate that does not fit
+ * in a short are stored wide, with two shorts per coordinate
+ *
+ * The free draw messages (or the FREE_DRAW frames of the binary protocol)
+ * are encoded again from the columns when they are needed, e.g to send the
+ * board's history to a user who opens it
+ *
+ * Not thread safe, the board's lock must be held while using it
+ */
+class StrokeStore {
+    // colors a stroke can have, a stroke stores the index of its color, which
+    // is its color code in the binary protocol
+    private static final String[] COLORS = BinaryProtocol.COLORS;
+    // set in the color code of a stroke stored with two shorts per coordinate
+    private static final int WIDE = 0x40;
+    // coordinates are kept in chunks of 2^CHUNK_SHIFT shorts, so growing a
+    // long history never copies the coordinates already stored
+    private static final int CHUNK_SHIFT = 15;
+    private static final int CHUNK_SHORTS = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SHORTS - 1;
+    // first allocation of the per stroke columns and of the first chunk,
+    // most boards only ever get a few strokes
+    private static final int INITIAL_STROKES = 16;
+    private static final int INITIAL_SHORTS = 256;
+
+    // number of strokes
+    private int count = 0;
+    // per stroke columns, the first count entries are used
+    private byte[] colors = new byte[INITIAL_STROKES];
+    private int[] lineSizes = new int[INITIAL_STROKES];
+    // the coordinates of stroke i are the shorts starts[i] to starts[i+1]-1,
+    // x and y of each point one after the other, each one short or for a
+    // WIDE stroke two (high half first)
+    private int[] starts = new int[INITIAL_STROKES + 1];
+    // every chunk but the last holds CHUNK_SHORTS shorts, the last one
+    // grows up to CHUNK_SHORTS before a new chunk is started
+    private final ArrayList<short[]> chunks;
+    // true for a view, see view()
+    private final boolean readOnly;
+    // rep invariant:
+    //   0 <= (colors[i] & ~WIDE) < COLORS.length and starts[i] <= starts[i+1] for i < count
+    //   starts[0] == 0 and starts[count] is the number of shorts stored
+    //   chunks hold at least starts[count] shorts
+
+    /**
+     * Constructor, the store starts out empty
+     */
+    StrokeStore() {
+        this.chunks = new ArrayList<short[]>();
+        this.readOnly = false;
+    }
+
+    // constructor of a view
+    private StrokeStore(StrokeStore source) {
+        this.count = source.count;
+        this.colors = source.colors;
+        this.lineSizes = source.lineSizes;
+        this.starts = source.starts;
+        this.chunks = new ArrayList<short[]>(source.chunks);
+        this.readOnly = true;
+    }
+
+    /**
+     * Gets a read only view of the strokes stored so far, which can be read
+     * without holding the board's lock while strokes are added to this store
+     * Taking the view copies no strokes: strokes are never changed once
+     * added, and additions only write past them or into new arrays
+     * Must be called with the board lock held
+     *
+     * @return view of the first size() strokes
+     */
+    StrokeStore view() {
+        return new StrokeStore(this);
+    }
+
+    /**
+     * Gets the code a color is stored with
+     * @param color color name as in the free draw message
+     * @return color code
+     * @throws IllegalArgumentException if the color is not a valid free draw color
+     */
+    static byte colorCode(String color) {
+        for (int i = 0; i < COLORS.length; i++) {
+            if (COLORS[i].equals(color)) return (byte) i;
+        }
+        throw new IllegalArgumentException("Invalid color: " + color);
+    }
+
+    /**
+     * Adds a stroke from a free draw request
+     * @param msg parsed free draw request
+     * @return index of the new stroke
+     * @throws IllegalArgumentException if the color is not valid. Nothing
+     *         is added then
+     */
+    int add(ClientMsg msg) {
+        byte color = colorCode(msg.getColor());
+        return add(color, msg.getLineSize(), msg.getPoints(), msg.getPointCount());
+    }
+
+    /**
+     * Gets the points of a free draw request
+     * @param msg parsed free draw request
+     * @return x and y of each point one after the other, the array of the
+     *         message unless it is longer than its points
+     */
+    static int[] points(ClientMsg msg) {
+        int[] points = msg.getPoints();
+        int length = msg.getPointCount() * 2;
+        return points.length == length ? points : Arrays.copyOf(points, length);
+    }
+
+    /**
+     * Adds a stroke
+     * @param color color code, see colorCode()
+     * @param lineSize line size of the stroke
+     * @param points x and y of each point one after the other
+     * @param pointCount number of points, the first 2 * pointCount ints of points are used
+     * @return index of the new stroke
+     */
+    int add(byte color, int lineSize, int[] points, int pointCount) {
+        if (readOnly) {
+            throw new IllegalStateException("Can't add to a view");
+        }
+        if (color < 0 || color >= COLORS.length) {
+            throw new IllegalArgumentException("Invalid color code: " + color);
+        }
+        if (count == colors.length) {
+            colors = Arrays.copyOf(colors, count * 2);
+            lineSizes = Arrays.copyOf(lineSizes, count * 2);
+            starts = Arrays.copyOf(starts, count * 2 + 1);
+        }
+        boolean wide = false;
+        for (int i = 0; i < pointCount * 2; i++) {
+            if (points[i] != (short) points[i]) wide = true;
+        }
+        int end = starts[count];
+        ensureCapacity(end + pointCount * (wide ? 4 : 2));
+        for (int i = 0; i < pointCount * 2; i++) {
+            if (wide) {
+                put(end++, (short) (points[i] >> 16));
+            }
+            put(end++, (short) points[i]);
+        }
+        colors[count] = (byte) (wide ? color | WIDE : color);
+        lineSizes[count] = lineSize;
+        starts[count + 1] = end;
+        return count++;
+    }
+
+    /**
+     * Makes room for the given number of shorts
+     */
+    private void ensureCapacity(int shorts) {
+        while (true) {
+            int last = chunks.size() - 1;
+            if (last < 0) {
+                chunks.add(new short[INITIAL_SHORTS]);
+                continue;
+            }
+            short[] chunk = chunks.get(last);
+            if ((last << CHUNK_SHIFT) + chunk.length >= shorts) return;
+            if (chunk.length < CHUNK_SHORTS) {
+                // the first chunk starts small and doubles until it is full size
+                chunks.set(last, Arrays.copyOf(chunk, Math.min(CHUNK_SHORTS, chunk.length * 2)));
+            }
+            else {
+                chunks.add(new short[CHUNK_SHORTS]);
+            }
+        }
+    }
+
+    private void put(int index, short value) {
+        chunks.get(index >> CHUNK_SHIFT)[index & CHUNK_MASK] = value;
+    }
+
+    private short get(int index) {
+        return chunks.get(index >> CHUNK_SHIFT)[index & CHUNK_MASK];
+    }
+
+    // shorts per coordinate of the stroke
+    private int width(int stroke) {
+        return (colors[stroke] & WIDE) != 0 ? 2 : 1;
+    }
+
+    /**
+     * @return number of strokes
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * @return bytes used to store the strokes, not counting unused capacity
+     */
+    long storedBytes() {
+        // color and line size, start and 2 bytes per short
+        return count * 9L + starts[count] * 2L;
+    }
+
+    /**
+     * @param stroke index of a stroke, requires 0 <= stroke < size()
+     * @return color code of the stroke, see colorCode()
+     */
+    byte getColorCode(int stroke) {
+        return (byte) (colors[stroke] & ~WIDE);
+    }
+
+    /**
+     * @param stroke index of a stroke, requires 0 <= stroke < size()
+     * @return color name of the stroke
+     */
+    String getColor(int stroke) {
+        return COLORS[getColorCode(stroke)];
+    }
+
+    /**
+     * @param stroke index of a stroke, requires 0 <= stroke < size()
+     * @return line size of the stroke
+     */
+    int getLineSize(int stroke) {
+        return lineSizes[stroke];
+    }
+
+    /**
+     * @param stroke index of a stroke, requires 0 <= stroke < size()
+     * @return number of points of the stroke
+     */
+    int getPointCount(int stroke) {
+        return (starts[stroke + 1] - starts[stroke]) / (2 * width(stroke));
+    }
+
+    /**
+     * @param stroke index of a stroke, requires 0 <= stroke < size()
+     * @param point index of a point, requires 0 <= point < getPointCount(stroke)
+     * @return x coordinate of the point
+     */
+    int getX(int stroke, int point) {
+        return coordinate(stroke, point * 2);
+    }
+
+    /**
+     * @param stroke index of a stroke, requires 0 <= stroke < size()
+     * @param point index of a point, requires 0 <= point < getPointCount(stroke)
+     * @return y coordinate of the point
+     */
+    int getY(int stroke, int point) {
+        return coordinate(stroke, point * 2 + 1);
+    }
+
+    /**
+     * @return coordinate i of the stroke, the x and y of each point one after the other
+     */
+    private int coordinate(int stroke, int i) {
+        if (width(stroke) == 1) {
+            return get(starts[stroke] + i);
+        }
+        int index = starts[stroke] + i * 2;
+        return (get(index) << 16) | (get(index + 1) & 0xffff);
+    }
+
+    /**
+     * Encodes one stroke as its free draw message
+     * @param stroke index of a stroke, requires 0 <= stroke < size()
+     * @return the message text and line terminator
+     */
+    ByteBuffer encode(int stroke) {
+        return encode(stroke, stroke + 1);
+    }
+
+    /**
+     * Encodes a range of strokes as free draw messages, one after the other
+     * in a single buffer. The text is the same as ServerMsg.toString() of the
+     * message for each stroke, with a line terminator after each
+     * @param from index of the first stroke
+     * @param to index after the last stroke, requires 0 <= from <= to <= size()
+     * @return the messages
+     */
+    ByteBuffer encode(int from, int to) {
+        byte[] out = new byte[Math.max(estimate(from, to), 64)];
+        int length = 0;
+        for (int stroke = from; stroke < to; stroke++) {
+            out = reserve(out, length, 64);
+            length = append(out, length, "freedraw,color=");
+            length = append(out, length, getColor(stroke));
+            length = append(out, length, ",size=");
+            length = appendInt(out, length, lineSizes[stroke]);
+            length = append(out, length, ",");
+            int points = getPointCount(stroke);
+            if (points > 0) {
+                length = append(out, length, "coord=");
+                for (int p = 0; p < points; p++) {
+                    // two ints of up to 11 characters, ':' and ';'
+                    out = reserve(out, length, 24);
+                    if (p > 0) out[length++] = ';';
+                    length = appendInt(out, length, coordinate(stroke, p * 2));
+                    out[length++] = ':';
+                    length = appendInt(out, length, coordinate(stroke, p * 2 + 1));
+                }
+            }
+            out = reserve(out, length, 1);
+            out[length++] = '\n';
+        }
+        return ByteBuffer.wrap(out, 0, length);
+    }
+
+    /**
+     * Encodes one stroke as a FREE_DRAW frame of the binary protocol
+     * @param stroke index of a stroke, requires 0 <= stroke < size()
+     * @return the frame
+     */
+    ByteBuffer encodeBinary(int stroke) {
+        return encodeBinary(stroke, stroke + 1);
+    }
+
+    /**
+     * Encodes a range of strokes as FREE_DRAW frames of the binary protocol,
+     * one after the other in a single buffer. The frames are the same as
+     * BinaryProtocol.encodeStroke() of each stroke
+     * @param from index of the first stroke
+     * @param to index after the last stroke, requires 0 <= from <= to <= size()
+     * @return the frames
+     */
+    ByteBuffer encodeBinary(int from, int to) {
+        return encodeBinary(from, to, 0);
+    }
+
+    /**
+     * Encodes a range of strokes as one BATCH frame of the binary protocol,
+     * holding the frames of encodeBinary(from, to)
+     * @param from index of the first stroke
+     * @param to index after the last stroke, requires 0 <= from < to <= size()
+     * @return the frame, positioned at 0
+     */
+    ByteBuffer encodeBatch(int from, int to) {
+        // the frames are encoded after room for the batch header, which
+        // is then written right before them
+        int offset = BinaryProtocol.MAX_HEADER + 5;
+        ByteBuffer frames = encodeBinary(from, to, offset);
+        int start = BinaryProtocol.writeBatchHeader(frames.array(), offset, frames.limit() - offset, to - from);
+        return ByteBuffer.wrap(frames.array(), start, frames.limit() - start).slice();
+    }
+
+    /**
+     * Encodes a range of strokes as FREE_DRAW frames, see encodeBinary()
+     * @param offset index of the buffer the first frame starts at
+     * @return the frames, the buffer's bytes from offset to its limit
+     */
+    private ByteBuffer encodeBinary(int from, int to, int offset) {
+        // most points take 2 or 3 bytes
+        byte[] out = new byte[offset + Math.max(estimate(from, to) / 2, 64)];
+        int length = offset;
+        for (int stroke = from; stroke < to; stroke++) {
+            int points = getPointCount(stroke);
+            // the frame starts with its length, so the points are gone
+            // through twice
+            int payload = 1 + BinaryProtocol.varintLength(lineSizes[stroke])
+                    + BinaryProtocol.varintLength(points);
+            int x = 0;
+            int y = 0;
+            for (int p = 0; p < points; p++) {
+                int nextX = coordinate(stroke, p * 2);
+                int nextY = coordinate(stroke, p * 2 + 1);
+                payload += BinaryProtocol.varintLength(BinaryProtocol.zigzag(nextX - x))
+                        + BinaryProtocol.varintLength(BinaryProtocol.zigzag(nextY - y));
+                x = nextX;
+                y = nextY;
+            }
+            out = reserve(out, length, BinaryProtocol.MAX_HEADER + payload);
+            length = BinaryProtocol.writeStrokeHeader(out, length, payload, getColorCode(stroke),
+                    lineSizes[stroke], points);
+            x = 0;
+            y = 0;
+            for (int p = 0; p < points; p++) {
+                int nextX = coordinate(stroke, p * 2);
+                int nextY = coordinate(stroke, p * 2 + 1);
+                length = BinaryProtocol.writeVarint(out, length, BinaryProtocol.zigzag(nextX - x));
+                length = BinaryProtocol.writeVarint(out, length, BinaryProtocol.zigzag(nextY - y));
+                x = nextX;
+                y = nextY;
+            }
+        }
+        return ByteBuffer.wrap(out, 0, length);
+    }
+
+    /**
+     * Finds the end of a chunk of strokes that encodes to about maxBytes,
+     * so a long history can be encoded and sent a chunk at a time
+     * @param from index of the first stroke of the chunk
+     * @param to index after the last stroke that may be in the chunk,
+     *        requires 0 <= from <= to <= size()
+     * @param maxBytes bytes the chunk should reach, a chunk has at least
+     *        one stroke so a single long stroke can go over it
+     * @return index after the last stroke of the chunk, from < result <= to
+     *         unless from == to
+     */
+    int chunkEnd(int from, int to, int maxBytes) {
+        int end = from;
+        long bytes = 0;
+        while (end < to && bytes < maxBytes) {
+            bytes += estimate(end, end + 1);
+            end++;
+        }
+        return end;
+    }
+
+    // estimated length of the messages of a range of strokes, about
+    // 8 bytes per point (digits, ':' and ';') and the rest of the message
+    private int estimate(int from, int to) {
+        return (to - from) * 48 + (starts[to] - starts[from]) * 4;
+    }
+
+    // returns out, or a larger copy of it if it can't take extra more bytes after length
+    private static byte[] reserve(byte[] out, int length, int extra) {
+        if (length + extra <= out.length) return out;
+        return Arrays.copyOf(out, Math.max(length + extra, out.length * 2));
+    }
+
+    // the text written is plain ASCII
+    private static int append(byte[] out, int length, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            out[length++] = (byte) s.charAt(i);
+        }
+        return length;
+    }
+
+    // requires room for 11 bytes
+    private static int appendInt(byte[] out, int length, int value) {
+        if (value == Integer.MIN_VALUE) return append(out, length, "-2147483648");
+        if (value < 0) {
+            out[length++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) digits++;
+        for (int i = length + digits - 1; i >= length; i--) {
+            out[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return length + digits;
+    }
+}
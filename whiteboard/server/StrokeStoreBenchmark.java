@@ -0,0 +1,131 @@
+package whiteboard.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+import controller.ClientMsg;
+import controller.ClientMsgType;
+import controller.ServerMsg;
+import controller.ServerMsgType;
+
+/*
+ * Stand alone benchmark of the memory a board's history takes
+ * It is not a unit test, run it from the command line:
+ *
+ *   java whiteboard.server.StrokeStoreBenchmark --strokes=100000 --points=20
+ *
+ * --strokes strokes of --points random points each are kept the way a board
+ * used to keep them (the message strings, then the encoded messages) and in
+ * a StrokeStore. For each the heap used per stroke is reported, measured as
+ * the live heap after a GC with and without the history
+ */
+public class StrokeStoreBenchmark {
+
+    // the forms of history measured, see build()
+    private static final String[] FORMS = {"ArrayList<String>", "ArrayList<ByteBuffer>", "StrokeStore"};
+
+    private int strokes = 100000;
+    private int points = 20;
+    // the history being measured, kept reachable until the heap is measured
+    private Object history;
+
+    /**
+     * Main method, see the class comment for the options
+     * @param args command line options
+     */
+    public static void main(String[] args) {
+        StrokeStoreBenchmark bench = new StrokeStoreBenchmark();
+        for (String arg : args) {
+            String[] tokens = arg.split("=");
+            switch (tokens[0]) {
+            case "--strokes":
+                bench.strokes = Integer.parseInt(tokens[1]);
+                break;
+            case "--points":
+                bench.points = Integer.parseInt(tokens[1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        bench.run();
+    }
+
+    private void run() {
+        ClientMsg[] msgs = randomStrokes();
+        for (int form = 0; form < FORMS.length; form++) {
+            long before = liveHeap();
+            history = build(form, msgs);
+            long bytes = liveHeap() - before;
+            System.out.printf("%-24s %10.1f bytes per stroke, %,d bytes for %,d strokes of %d points%n",
+                    FORMS[form], (double) bytes / strokes, bytes, strokes, points);
+            history = null;
+        }
+    }
+
+    /**
+     * Builds the history of the strokes in one of the forms measured, the
+     * history is the only thing left reachable when this returns
+     */
+    private Object build(int form, ClientMsg[] msgs) {
+        if (form == 0) {
+            ArrayList<String> strings = new ArrayList<String>();
+            for (ClientMsg msg : msgs) {
+                strings.add(serverMsg(msg).toString());
+            }
+            return strings;
+        }
+        if (form == 1) {
+            ArrayList<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+            for (ClientMsg msg : msgs) {
+                buffers.add(ConnectionInfo.encode(serverMsg(msg).toString()));
+            }
+            return buffers;
+        }
+        StrokeStore store = new StrokeStore();
+        for (ClientMsg msg : msgs) {
+            store.add(msg);
+        }
+        return store;
+    }
+
+    private ClientMsg[] randomStrokes() {
+        Random random = new Random(42);
+        ClientMsg[] msgs = new ClientMsg[strokes];
+        for (int s = 0; s < strokes; s++) {
+            ClientMsg msg = new ClientMsg(ClientMsgType.FREE_DRAW);
+            msg.setColor("black");
+            msg.setLineSize(1 + random.nextInt(20));
+            int[] coords = new int[2 * points];
+            for (int p = 0; p < points; p++) {
+                coords[2 * p] = random.nextInt(800);
+                coords[2 * p + 1] = random.nextInt(600);
+            }
+            msg.setPoints(coords, points);
+            msgs[s] = msg;
+        }
+        return msgs;
+    }
+
+    private static ServerMsg serverMsg(ClientMsg msg) {
+        ServerMsg resp = new ServerMsg(ServerMsgType.FREE_DRAW);
+        resp.setColor(msg.getColor());
+        resp.setLineSize(msg.getLineSize());
+        resp.setPoints(msg.getPoints(), msg.getPointCount());
+        return resp;
+    }
+
+    /**
+     * @return bytes of heap in use after a few full GCs
+     */
+    private static long liveHeap() {
+        MemoryMXBean bean = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return bean.getHeapMemoryUsage().getUsed();
+    }
+}
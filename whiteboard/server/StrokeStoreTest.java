@@ -0,0 +1,99 @@
+package whiteboard.server;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import controller.ClientMsg;
+import controller.ClientMsgType;
+import controller.ServerMsg;
+import controller.ServerMsgType;
+
+/**
+ * Testing Strategy:
+ * EncodeTest- verify a stored stroke encodes to the same text as the ServerMsg for it,
+ *          including negative coordinates and every color
+ * ChunksTest- verify strokes crossing coordinate chunk boundaries, and many strokes, come
+ *          back unchanged and encode together in order
+ * InvalidStrokeTest- verify a stroke with a coordinate too big for an int is rejected
+ *          and nothing is added
+ */
+public class StrokeStoreTest {
+
+    private static ClientMsg stroke(String color, int size, String... coords) {
+        ClientMsg msg = new ClientMsg(ClientMsgType.FREE_DRAW);
+        msg.setColor(color);
+        msg.setLineSize(size);
+        ArrayList<String> coordList = new ArrayList<String>();
+        for (String c : coords) {
+            coordList.add(c);
+        }
+        msg.setCoordinateList(coordList);
+        return msg;
+    }
+
+    // text of the message the server used to broadcast for a stroke
+    private static String serverMsg(ClientMsg msg) {
+        ServerMsg resp = new ServerMsg(ServerMsgType.FREE_DRAW);
+        resp.setColor(msg.getColor());
+        resp.setLineSize(msg.getLineSize());
+        resp.setCoordinateList(msg.getCoordinateList());
+        return resp.toString() + "\n";
+    }
+
+    @Test
+    public void EncodeTest() {
+        StrokeStore store = new StrokeStore();
+        String[] colors = {"black", "red", "blue", "green", "yellow", "white"};
+        for (int i = 0; i < colors.length; i++) {
+            ClientMsg msg = stroke(colors[i], i + 1, "1:2", "-30:400", "2147483647:-2147483648");
+            assertEquals(i, store.add(msg));
+            assertEquals(serverMsg(msg), TestSupport.text(store.encode(i)));
+        }
+        assertEquals(colors.length, store.size());
+        assertEquals("red", store.getColor(1));
+        assertEquals(2, store.getLineSize(1));
+        assertEquals(3, store.getPointCount(1));
+        assertEquals(-30, store.getX(1, 1));
+        assertEquals(400, store.getY(1, 1));
+    }
+
+    @Test
+    public void ChunksTest() {
+        StrokeStore store = new StrokeStore();
+        StringBuilder expected = new StringBuilder();
+        // strokes of 1000 points go over the initial chunk and
+        // across the boundaries of the full size chunks
+        for (int s = 0; s < 100; s++) {
+            String[] coords = new String[s % 2 == 0 ? 1000 : 3];
+            for (int p = 0; p < coords.length; p++) {
+                coords[p] = s + ":" + p;
+            }
+            ClientMsg msg = stroke("blue", s, coords);
+            store.add(msg);
+            expected.append(serverMsg(msg));
+        }
+        assertEquals(100, store.size());
+        assertEquals(1000, store.getPointCount(98));
+        assertEquals(98, store.getX(98, 999));
+        assertEquals(999, store.getY(98, 999));
+        assertEquals(expected.toString(), TestSupport.text(store.encode(0, store.size())));
+        assertEquals("", TestSupport.text(store.encode(5, 5)));
+    }
+
+    @Test
+    public void InvalidStrokeTest() {
+        StrokeStore store = new StrokeStore();
+        store.add(stroke("black", 1, "1:1"));
+        try {
+            store.add(stroke("black", 1, "1:1", "2147483648:1"));
+            fail("coordinate should not fit");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(1, store.size());
+        assertEquals("freedraw,color=black,size=1,coord=1:1\n", TestSupport.text(store.encode(0, 1)));
+    }
+}
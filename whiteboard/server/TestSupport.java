@@ -0,0 +1,68 @@
+package whiteboard.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/*
+ * Helpers shared by the tests of the server package
+ */
+class TestSupport {
+
+    /**
+     * @param buf encoded text protocol messages
+     * @return the messages from the position to the limit of the buffer
+     */
+    static String text(ByteBuffer buf) {
+        return new String(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Adds a stroke to a store
+     * @param store strokes
+     * @param color color name
+     * @param size line size
+     * @param points x and y of each point
+     */
+    static void add(StrokeStore store, String color, int size, int... points) {
+        store.add(StrokeStore.colorCode(color), size, points, points.length / 2);
+    }
+
+    /**
+     * @param store strokes
+     * @return the strokes as free draw messages
+     */
+    static String text(StrokeStore store) {
+        return text(store.encode(0, store.size()));
+    }
+
+    /**
+     * Draws strokes the way the keyframe (and the client) does
+     * @param store strokes
+     * @return the picture of the strokes, as the encoded keyframe tiles
+     */
+    static ArrayList<String> picture(StrokeStore store) {
+        BoardKeyframe keyframe = new BoardKeyframe(800, 600);
+        keyframe.update(store);
+        ArrayList<String> tiles = new ArrayList<String>();
+        for (ByteBuffer tile : keyframe.getTiles()) {
+            tiles.add(text(tile));
+        }
+        return tiles;
+    }
+
+    /**
+     * Takes everything queued for a connection off its queue
+     * @param connInfo a connection that is not served
+     * @return the queued messages
+     */
+    static String received(ConnectionInfo connInfo) {
+        StringBuilder text = new StringBuilder();
+        ByteBuffer[] batch = new ByteBuffer[1];
+        while (connInfo.getOutboundQueue().peek(batch) == 1) {
+            text.append(text(batch[0]));
+            connInfo.getOutboundQueue().remove(1);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,14 @@
+package whiteboard.server;
+
+/*
+ * List of ways a thread can wait for requests on an empty RequestRing
+ */
+public enum WaitStrategy {
+    // sleep until a producer wakes the thread up, no CPU used while idle
+    BLOCK,
+    // keep checking, giving the CPU away between checks
+    YIELD,
+    // keep checking without giving the CPU away, lowest latency but
+    // uses a whole core per waiting thread
+    BUSY_SPIN,
+}
@@ -1,28 +1,63 @@
 package whiteboard.server;
 
-import java.io.PrintWriter;
-import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import controller.ClientMsg;
 
 public class Whiteboard {
     public String name;
-    public ArrayList<String> sketches;
-    public ArrayList<String> currentUsernames;
-    public HashMap<String, PrintWriter> printWriterMap = new HashMap<String, PrintWriter>();
+    // every stroke drawn on the board, kept in compact columns and
+    // encoded again as free draw messages when they are replayed
+    public StrokeStore sketches;
+    // users of the board in the order they joined, a set so that
+    // checking for and removing a user does not scan the board
+    public LinkedHashSet<String> currentUsernames;
+    public HashMap<String, ConnectionInfo> connectionMap = new HashMap<String, ConnectionInfo>();
+    // guards sketches and users, which are shared between the server's
+    // control thread and the shard thread that draws on this board
+    private final ReentrantLock lock = new ReentrantLock();
+    // shard that processes drawing requests for this board
+    private BoardShard shard;
+    // picture of the board sent to users who open it, null until the
+    // board has enough strokes or if the server keeps no keyframes
+    private BoardKeyframe keyframe = null;
+    // number of strokes of the board already compacted, and bytes of
+    // stroke storage the compactions have saved so far
+    private int compactedStrokes = 0;
+    private long reclaimedBytes = 0;
+    // time the board was last opened, left or drawn on, in milliseconds
+    // since the epoch, for evicting idle boards
+    private volatile long lastUsedMillis = System.currentTimeMillis();
+    // connections whose current board this is, whether or not their user
+    // is on it, so that checking whether the board is in use does not scan
+    // the connections. Guarded by the server lock
+    private int currentConnections = 0;
+    // strokes being drawn, by the name of the user drawing them
+    private final HashMap<String, LiveStroke> liveStrokes = new HashMap<String, LiveStroke>();
+    // sequence number of the last stroke stored on the board, the strokes
+    // are numbered from 1 in the order they are stored, whatever becomes of
+    // them in the sketches afterwards
+    private int lastSeq = 0;
+    // copies of the last strokes stored, for users who resume, null until
+    // a stroke is stored or if the server keeps none
+    private RecentStrokes recentStrokes = null;
 
     /**
      * Constructs a whiteboard
      * Add new user to currentUsernames
-     * Add user's PrintWriter to map
+     * Add user's connection to map
      * @param boardName unique name that identifies this whiteboard
      * @param username  name of user who creates the whiteboard
-     * @param print_writer PrintWriter of the user
+     * @param connInfo connection of the user
      */
-    public Whiteboard(String boardName, String username, PrintWriter print_writer){
+    Whiteboard(String boardName, String username, ConnectionInfo connInfo){
         this.name = boardName;
-        this.sketches = new ArrayList<String>();
-        this.currentUsernames = new ArrayList<String>();
-        this.addUser(username, print_writer);
+        this.sketches = new StrokeStore();
+        this.currentUsernames = new LinkedHashSet<String>();
+        this.addUser(username, connInfo);
     }
 
     /**
@@ -32,8 +67,45 @@ public class Whiteboard {
      */
     public Whiteboard(String boardName){
         this.name = boardName;
-        this.sketches = new ArrayList<String>();
-        this.currentUsernames = new ArrayList<String>();
+        this.sketches = new StrokeStore();
+        this.currentUsernames = new LinkedHashSet<String>();
+    }
+
+    /**
+     * @return lock that must be held while using the sketches or users of the board
+     */
+    public ReentrantLock getLock(){
+        return this.lock;
+    }
+
+    /**
+     * @return shard that owns this board
+     */
+    BoardShard getShard(){
+        return this.shard;
+    }
+
+    /**
+     * Sets the shard that owns this board
+     * @param shard board shard
+     */
+    void setShard(BoardShard shard){
+        this.shard = shard;
+    }
+
+    /**
+     * @return keyframe of the board, or null if it has none
+     */
+    BoardKeyframe getKeyframe(){
+        return this.keyframe;
+    }
+
+    /**
+     * Sets the keyframe of the board
+     * @param keyframe picture of the board
+     */
+    void setKeyframe(BoardKeyframe keyframe){
+        this.keyframe = keyframe;
     }
 
     /**
@@ -44,70 +116,282 @@ public class Whiteboard {
     }
 
     /**
-     * Adds a new user to the whiteboard and adds its PrintWriter to map
+     * Adds a new user to the whiteboard and adds its connection to map
      * @param newUser name of new user
-     * @param print_writer PrintWriter of new user
+     * @param connInfo connection of new user
      */
-    public void addUser(String newUser, PrintWriter print_writer){
+    void addUser(String newUser, ConnectionInfo connInfo){
         this.currentUsernames.add(newUser);
-        this.addPrintWriter(newUser, print_writer);
+        this.addConnection(newUser, connInfo);
     }
 
     /**
      * Removes specified user from the whiteboard
-     * Removes user and its corresponding PrintWriter from map
+     * Removes user and its corresponding connection from map
      * @param user name of user to be removed
      */
     public void removeUser(String user){
+        ConnectionInfo connInfo = this.connectionMap.get(user);
+        // if the user comes back in the middle of a stroke it is sent whole
+        this.removeViewer(connInfo);
         this.currentUsernames.remove(user);
-        this.removePrintWriter(user);
+        this.removeConnection(user);
     }
 
     /**
-     * @return list of usernames of all current users of the whiteboard
+     * @return usernames of all current users of the whiteboard, in the order they joined
      */
-    public ArrayList<String> getUsernames(){
+    public LinkedHashSet<String> getUsernames(){
         return this.currentUsernames;
     }
 
+    /**
+     * Checks whether a user is on the whiteboard
+     * @param username name of user
+     * @return true if the user is on the board
+     */
+    public boolean hasUser(String username){
+        return this.currentUsernames.contains(username);
+    }
+
     /**
      * Adds a new sketch to whiteboard
-     * @param newSketch a new sketch to be added to whiteboard
+     * @param newSketch free draw request for a new sketch to be added to whiteboard
+     * @return index of the sketch in getSketches()
+     * @throws IllegalArgumentException if the sketch can't be stored, see StrokeStore
+     */
+    public int addSketch(ClientMsg newSketch){
+        return this.sketches.add(newSketch);
+    }
+
+    /**
+     * Adds a new sketch to whiteboard
+     * @param color color code, see StrokeStore.colorCode()
+     * @param lineSize line size of the sketch
+     * @param points x and y of each point one after the other
+     * @param pointCount number of points
+     * @return index of the sketch in getSketches()
+     */
+    int addSketch(byte color, int lineSize, int[] points, int pointCount){
+        return this.sketches.add(color, lineSize, points, pointCount);
+    }
+
+    /**
+     * Gets the stroke a user is drawing
+     * Must be called with the board lock held
+     * @param username name of user
+     * @return the stroke, or null if the user is not drawing one
+     */
+    LiveStroke getLiveStroke(String username){
+        return this.liveStrokes.get(username);
+    }
+
+    /**
+     * Sets the stroke a user is drawing
+     * Must be called with the board lock held
+     * @param username name of user
+     * @param stroke stroke just begun
+     */
+    void putLiveStroke(String username, LiveStroke stroke){
+        this.liveStrokes.put(username, stroke);
+    }
+
+    /**
+     * Removes the stroke a user is drawing
+     * Must be called with the board lock held
+     * @param username name of user
+     * @return the stroke, or null if the user was not drawing one
+     */
+    LiveStroke removeLiveStroke(String username){
+        return this.liveStrokes.remove(username);
+    }
+
+    /**
+     * Must be called with the board lock held
+     * @return names of the users drawing a stroke
+     */
+    Set<String> getLiveStrokeUsers(){
+        return this.liveStrokes.keySet();
+    }
+
+    /**
+     * Forgets a connection as a viewer of the strokes being drawn, see
+     * LiveStroke.removeViewer()
+     * Must be called with the board lock held
+     * @param connInfo connection
+     */
+    void removeViewer(ConnectionInfo connInfo){
+        for (LiveStroke stroke : this.liveStrokes.values()) {
+            stroke.removeViewer(connInfo);
+        }
+    }
+
+    /**
+     * Numbers a stroke just stored on the board
+     * Must be called with the board lock held
+     * @return its sequence number
+     */
+    int nextSeq(){
+        return ++this.lastSeq;
+    }
+
+    /**
+     * Must be called with the board lock held
+     * @return sequence number of the last stroke stored, 0 if none was
+     */
+    int getLastSeq(){
+        return this.lastSeq;
+    }
+
+    /**
+     * Must be called with the board lock held
+     * @return copies of the last strokes stored, null if none are kept
      */
-    public void addSketch(String newSketch){
-        this.sketches.add(newSketch);
+    RecentStrokes getRecentStrokes(){
+        return this.recentStrokes;
     }
 
     /**
-     * @return all sketches on the whiteboard
+     * Sets the copies of the last strokes stored
+     * Must be called with the board lock held
+     * @param recentStrokes recent strokes
      */
-    public ArrayList<String> getSketches(){
+    void setRecentStrokes(RecentStrokes recentStrokes){
+        this.recentStrokes = recentStrokes;
+    }
+
+    /**
+     * @return all sketches on the whiteboard, null if the board is evicted
+     */
+    StrokeStore getSketches(){
         return this.sketches;
     }
 
     /**
-     * @return map where keys are usernames and values are their corresponding PrintWriters
+     * Replaces the sketches with a compacted copy that draws the same picture
+     * Must be called with the board lock held
+     * @param sketches compacted sketches
+     * @param reclaimed bytes of storage saved by the compaction
+     */
+    void setSketches(StrokeStore sketches, long reclaimed){
+        this.sketches = sketches;
+        this.compactedStrokes = sketches.size();
+        this.reclaimedBytes += reclaimed;
+    }
+
+    /**
+     * @return number of sketches that have already been compacted, the
+     *         sketches from this one on have been added since
+     */
+    int getCompactedStrokes(){
+        return this.compactedStrokes;
+    }
+
+    /**
+     * @return bytes of sketch storage saved by compacting this board so far
+     */
+    long getReclaimedBytes(){
+        return this.reclaimedBytes;
+    }
+
+    /**
+     * Checks whether the sketches of the board are in memory
+     * Must be called with the board lock held
+     * @return true if they are, false if the board was evicted to disk
+     */
+    boolean isResident(){
+        return this.sketches != null;
+    }
+
+    /**
+     * Drops the sketches, keyframe and recent strokes of a board evicted to disk
+     * Must be called with the board lock held
+     */
+    void unload(){
+        this.sketches = null;
+        this.keyframe = null;
+        this.recentStrokes = null;
+    }
+
+    /**
+     * Puts back the sketches of a board loaded from disk
+     * Must be called with the board lock held
+     * @param sketches sketches of the board, as they were evicted
+     */
+    void load(StrokeStore sketches){
+        this.sketches = sketches;
+        this.compactedStrokes = sketches.size();
+    }
+
+    /**
+     * @return time the board was last used, in milliseconds since the epoch
+     */
+    long getLastUsed(){
+        return this.lastUsedMillis;
+    }
+
+    /**
+     * Sets the time the board was last used
+     * @param millis milliseconds since the epoch
+     */
+    void setLastUsed(long millis){
+        this.lastUsedMillis = millis;
+    }
+
+    /**
+     * Records that the board is being used now
+     */
+    void touch(){
+        this.lastUsedMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Counts a connection that made this its current board
+     * Must be called with the server lock held
+     */
+    void addCurrentConnection(){
+        this.currentConnections++;
+    }
+
+    /**
+     * Counts a connection that no longer has this as its current board
+     * Must be called with the server lock held
+     */
+    void removeCurrentConnection(){
+        this.currentConnections--;
+    }
+
+    /**
+     * Must be called with the server lock held
+     * @return number of connections whose current board this is
+     */
+    int getCurrentConnections(){
+        return this.currentConnections;
+    }
+
+    /**
+     * @return map where keys are usernames and values are their corresponding connections
      */
-    public HashMap<String,PrintWriter> getPrintWriterMap(){
-        return printWriterMap;
+    HashMap<String,ConnectionInfo> getConnectionMap(){
+        return connectionMap;
 
     }
 
     /**
-     * Add new user and its corresponding PrintWriter to the map
+     * Add new user and its corresponding connection to the map
      * @param username name of user
-     * @param print_writer user's print writer object
+     * @param connInfo user's connection object
      */
-    public void addPrintWriter(String username, PrintWriter print_writer){
-        this.printWriterMap.put(username, print_writer);
+    void addConnection(String username, ConnectionInfo connInfo){
+        this.connectionMap.put(username, connInfo);
     }
 
     /**
-     * Remove user and its corresponding PrintWriter from the map
+     * Remove user and its corresponding connection from the map
      * @param username name of user to be removed
      */
-    public void removePrintWriter(String username){
-        this.printWriterMap.remove(username);
+    void removeConnection(String username){
+        this.connectionMap.remove(username);
     }
 
 }
@@ -1,22 +1,36 @@
 package whiteboard.server;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 import controller.ServerMsg;
 import controller.ServerMsgType;
 import controller.ParseMessage;
+import controller.BinaryProtocol;
 import controller.ClientMsg;
-
-import java.util.concurrent.LinkedBlockingQueue;
+import controller.ClientMsgType;
+import controller.FrameDecoder;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 /*
@@ -44,19 +58,79 @@ public class WhiteboardServer {
     // Also users on each of those boards must be currently logged in
     // and unique
 
+    // size of the reader/writer buffers of each blocking connection
+    static final int CONNECTION_BUFFER_SIZE = 1024;
+
+    private final ServerConfig config;
     private final ServerSocket serverSocket;
+    // only used in NIO mode, serverSocket is then the socket of this channel
+    private final ServerSocketChannel serverChannel;
+
+    // Index of currentWhiteboards by board name
+    private final HashMap<String, Whiteboard> boardsByName;
+    // rep invariant
+    // Holds exactly the boards of currentWhiteboards, each under its own name
 
     // A single queue that contains requests from all the clients
-    private LinkedBlockingQueue<ArrayList<Object>> msgQ;
+    private final RequestRing msgQ;
     // List of all connections
 
-    private ArrayList<ConnectionInfo> connectionList;
+    private LinkedHashSet<ConnectionInfo> connectionList;
     // rep invariant
     // connectionList maintains list of all connectionInfo objects
     // Users who are logged in should be all unique
 
-    // Object used for ensuring synchronization
-    private Object serverLock = new Object();
+    // Index of the logged in connections by user name
+    private final HashMap<String, ConnectionInfo> loggedInUsers;
+    // rep invariant
+    // Holds exactly the logged in connections of connectionList,
+    // each under its user name
+
+    // Lock used for ensuring synchronization
+    // This is a ReentrantLock rather than a monitor because the connection
+    // threads take it, and a virtual thread blocked inside a
+    // synchronized block pins its carrier thread
+    // No socket I/O happens while it is held, responses only go on the
+    // outbound queue of each connection (see ConnectionInfo.send())
+    private final ReentrantLock serverLock = new ReentrantLock();
+
+    // number of writes to client sockets, over all the connections
+    private final LongAdder socketWrites = new LongAdder();
+    // CPU spent compressing what is sent to the clients that asked for
+    // compression, and the bytes saved
+    private final CompressionBudget compressionBudget;
+    // sessions of the users who can resume them, by resume token
+    private final ResumeSessions sessions;
+
+    // runs handleConnection() in VIRTUAL_THREAD mode, null otherwise
+    private final ExecutorService virtualThreadExecutor;
+
+    // Shards that process drawing requests, each board is owned by one of them
+    // The processRequest() thread acts as the control shard and handles
+    // logins and all the board directory requests
+    private final BoardShard[] shards;
+    // shard the next new board is assigned to (boards are spread round robin)
+    private int nextShard = 0;
+
+    // journal new boards and strokes are appended to, null if the
+    // boards are only kept in memory
+    private final BoardJournal journal;
+
+    // directory boards nobody uses are evicted to, null if every board
+    // stays in memory
+    private final BoardStore boardStore;
+    // boards evicted, loaded back and removed after their time to live
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder reloads = new LongAdder();
+    private final LongAdder expiredBoards = new LongAdder();
+
+    // clips and simplifies the strokes drawn before they are stored, null
+    // if strokes are stored as they are drawn
+    private final StrokeIngest ingest;
+
+    // thread the keyframes are rendered and encoded on, off the board
+    // locks, null if the server keeps no keyframes
+    private final ExecutorService keyframeRenderer;
 
     /**
      * Creates a WhiteboardServer that listens for connections on port
@@ -64,11 +138,178 @@ public class WhiteboardServer {
      * @throws IOException
      */
     public WhiteboardServer(int port) throws IOException{
-        serverSocket = new ServerSocket(port);
+        this(configForPort(port));
+    }
+
+    /**
+     * Creates a WhiteboardServer with the given startup options
+     * @param config server configuration
+     * @throws IOException
+     * @throws UnsupportedOperationException if config asks for virtual
+     *         threads and the JVM has none, before the port is bound
+     */
+    public WhiteboardServer(ServerConfig config) throws IOException{
+        this.config = config;
+        if (config.getMode() == ServerMode.VIRTUAL_THREAD) {
+            virtualThreadExecutor = newVirtualThreadExecutor();
+        }
+        else {
+            virtualThreadExecutor = null;
+        }
+        if (config.getMode() == ServerMode.NIO) {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(config.getPort()));
+            serverSocket = serverChannel.socket();
+        }
+        else {
+            serverChannel = null;
+            serverSocket = new ServerSocket(config.getPort());
+        }
         this.currentWhiteboards = new ArrayList<Whiteboard>();
         this.currentBoardMap = new HashMap<String, ArrayList<String>>();
-        this.msgQ = new LinkedBlockingQueue<ArrayList<Object>>();
-        connectionList = new ArrayList<ConnectionInfo>();
+        this.boardsByName = new HashMap<String, Whiteboard>();
+        this.loggedInUsers = new HashMap<String, ConnectionInfo>();
+        this.msgQ = new RequestRing(config.getRequestRingSize(), config.getWaitStrategy());
+        connectionList = new LinkedHashSet<ConnectionInfo>();
+        if (config.getKeyframeInterval() > 0) {
+            keyframeRenderer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "keyframe-renderer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        else {
+            keyframeRenderer = null;
+        }
+        shards = new BoardShard[config.getBoardShards()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new BoardShard(this, i,
+                    new RequestRing(config.getRequestRingSize(), config.getWaitStrategy()));
+        }
+        if (config.getBoardDir() != null) {
+            boardStore = new BoardStore(new File(config.getBoardDir()));
+        }
+        else {
+            boardStore = null;
+        }
+        if (config.getJournalDir() != null) {
+            journal = new BoardJournal(new File(config.getJournalDir()),
+                    config.getJournalSegmentSize(), config.getJournalFlushMillis());
+            restoreBoards(journal.recover());
+        }
+        else {
+            journal = null;
+        }
+        compressionBudget = new CompressionBudget(config.getCompressionBudget());
+        sessions = new ResumeSessions(config.getResumeTtlMillis());
+        if (config.getClipStrokes() || config.getSimplifyTolerance() > 0) {
+            ingest = new StrokeIngest(config.getKeyframeWidth(), config.getKeyframeHeight(),
+                    config.getClipStrokes(), config.getSimplifyTolerance());
+        }
+        else {
+            ingest = null;
+        }
+        if (boardStore != null) restoreEvictedBoards();
+    }
+
+    /**
+     * Adds the boards restored from the journal, nobody is connected yet
+     * Boards that were evicted when the server stopped go back to being
+     * evicted, so the board cache limit holds from the start. Boards drawn
+     * on since they were last evicted get their file and then the strokes
+     * the journal has of them
+     * @param boards boards with their strokes since they were last evicted
+     *        and no users
+     * @throws IOException if the file of an evicted board is missing or
+     *         can't be read
+     */
+    private void restoreBoards(ArrayList<Whiteboard> boards) throws IOException {
+        for (Whiteboard board : boards) {
+            String name = board.getBoardName();
+            if (!journal.strokesInFile(name)) continue;
+            if (boardStore == null || !boardStore.contains(name)) {
+                throw new IOException("Board " + name + " was evicted, its file is missing from the board directory");
+            }
+            if (journal.wasEvicted(name)) {
+                board.unload();
+                board.setLastUsed(boardStore.lastModified(name));
+                continue;
+            }
+            StrokeStore sketches = boardStore.read(name);
+            StrokeStore drawn = board.getSketches();
+            int[] points = new int[0];
+            for (int i = 0; i < drawn.size(); i++) {
+                points = BoardCompactor.copy(drawn, i, points, 0);
+                sketches.add(drawn.getColorCode(i), drawn.getLineSize(i), points, drawn.getPointCount(i));
+            }
+            board.load(sketches);
+        }
+        addBoards(boards);
+    }
+
+    /**
+     * Adds restored boards to the server, nobody is connected yet
+     * @param boards boards with their strokes, or evicted, and no users
+     */
+    private void addBoards(ArrayList<Whiteboard> boards) {
+        for (Whiteboard board : boards) {
+            assignShard(board);
+            currentWhiteboards.add(board);
+            boardsByName.put(board.getBoardName(), board);
+            currentBoardMap.put(board.getBoardName(), new ArrayList<String>());
+            if (board.isResident()) updateKeyframe(board);
+        }
+    }
+
+    /**
+     * Adds the boards that were evicted to the board directory and are not
+     * known from the journal, nobody is connected yet
+     * They stay evicted until somebody opens them. With a journal they are
+     * journaled as evicted, so that the journal, which is replayed first,
+     * has every board from now on
+     */
+    private void restoreEvictedBoards() {
+        ArrayList<String> names = boardStore.names();
+        Collections.sort(names);
+        ArrayList<Whiteboard> boards = new ArrayList<Whiteboard>();
+        for (String name : names) {
+            if (boardsByName.containsKey(name)) continue;
+            Whiteboard board = new Whiteboard(name);
+            board.unload();
+            if (journal != null) {
+                journal.appendBoard(name);
+                journal.appendEviction(name);
+            }
+            board.setLastUsed(boardStore.lastModified(name));
+            boards.add(board);
+        }
+        addBoards(boards);
+    }
+
+    private static ServerConfig configForPort(int port) {
+        ServerConfig config = new ServerConfig();
+        config.setPort(port);
+        return config;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task
+     * Looked up reflectively so the server still builds and runs
+     * (in the other modes) on releases older than Java 21
+     * 
+     * @return executor service
+     * @throws UnsupportedOperationException if the JVM has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("virtual thread mode needs Java 21 or later", e);
+        }
     }
 
     /**
@@ -95,6 +336,23 @@ public class WhiteboardServer {
 
         processingThread.start();
 
+        for (BoardShard shard : shards) {
+            shard.start();
+        }
+
+        if (config.getCompactIntervalMillis() > 0) {
+            new BoardCompactor(this, config.getCompactIntervalMillis()).start();
+        }
+
+        if (boardStore != null) {
+            newBoardEvictor().start();
+        }
+
+        if (config.getMode() == ServerMode.NIO) {
+            serveNio();
+            return;
+        }
+
         // Wait for client connect requests and spawn a thread
         // to service those requests
         while (true) {
@@ -102,7 +360,7 @@ public class WhiteboardServer {
             final Socket socket = serverSocket.accept();
 
             // spawn a thread to handle the client
-            Thread thread= new Thread(new Runnable(){
+            Runnable handler = new Runnable(){
                 public void run(){
                     try {
                         handleConnection(socket);
@@ -110,79 +368,254 @@ public class WhiteboardServer {
                         e.printStackTrace(); // but don't terminate serve()
                     } 
                 }
-            });
-            thread.start();
+            };
+            if (virtualThreadExecutor != null) {
+                virtualThreadExecutor.execute(handler);
+            }
+            else {
+                Thread thread= new Thread(handler);
+                thread.start();
+            }
         }
     }
 
     /**
-     * This method receives messages from the client and puts them 
-     * on a single queue. processRequest() will take each of those
-     * requests and process them
+     * Services all the client connections from a small fixed set of
+     * selector event loops instead of a thread per connection.
+     * The first loop runs on the calling thread and also accepts connections.
+     * Never returns unless an exception is thrown.
+     * 
+     * @throws IOException if the main server socket is broken
+     */
+    private void serveNio() throws IOException {
+        NioEventLoop[] loops = new NioEventLoop[config.getEventLoops()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop(this, TimeUnit.MILLISECONDS.toNanos(config.getFlushDelayMillis()));
+        }
+        loops[0].acceptOn(serverChannel, loops);
+        for (int i = 1; i < loops.length; i++) {
+            new Thread(loops[i], "nio-loop-" + i).start();
+        }
+        loops[0].loop();
+    }
+
+    /**
+     * This method receives messages from the client and hands them
+     * to receiveLine() which puts them on a single queue. 
+     * processRequest() will take each of those requests and process them
      * 
      * @param socket connection to the client
      * @throws IOException
      */
     private void handleConnection(Socket socket) throws IOException {
-        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-        ClientMsg recvdMsg = null;
+        // keep the per connection buffers small, most connections are idle
+        // and in virtual thread mode there can be tens of thousands of them
+        InputStream in = socket.getInputStream();
+        byte[] buffer = new byte[CONNECTION_BUFFER_SIZE];
 
         // connInfo object contains connection status and other info 
-        // like socket out stream, user name etc for this particular connection
-        ConnectionInfo connInfo = new ConnectionInfo();
-        connInfo.setPrintWriter(out);
-
-        synchronized(serverLock) {
-            connectionList.add(connInfo);
+        // like outbound queue, user name etc for this particular connection
+        ConnectionInfo connInfo = newConnection();
+        FrameDecoder decoder = newDecoder(connInfo);
+
+        // responses are written by a separate writer, so a client that
+        // does not read only ever blocks its own writer
+        ConnectionWriter writer = new ConnectionWriter(socket, connInfo,
+                CONNECTION_BUFFER_SIZE, TimeUnit.MILLISECONDS.toNanos(config.getFlushDelayMillis()));
+        connInfo.getOutboundQueue().setListener(writer);
+        if (virtualThreadExecutor != null) {
+            virtualThreadExecutor.execute(writer);
+        }
+        else {
+            Thread thread = new Thread(writer);
+            thread.setDaemon(true);
+            thread.start();
         }
 
+        registerConnection(connInfo);
+
         try {
-            // now wait to read the request from the client
-            for (String line = in.readLine(); line != null; line = in.readLine()) {
-                // Since we need to pass both connection info and the received message
-                // to processRequest() and since only one object can be added to the queue
-                // at a time, we create an ArrayList object and add both to that list
-                ArrayList<Object> reqInfo;
-
-                // Now parse the received request and in case of error
-                // send error message back and continue to wait for next request
-                try {
-                    recvdMsg = ParseMessage.parseClientMsg(line);
-                }
-                catch (RuntimeException e) { // catches parser exceptions
-                    StringBuilder sb = new StringBuilder("");
-                    sb.append("error,");
-                    sb.append(e.getMessage());
-                    synchronized(serverLock) {
-                        // send the parser error message to the client
-                        connInfo.getPrintWriter().println(sb.toString());
-                    }
-                    continue;
-                }
-                reqInfo = new ArrayList<Object>();
+            // now wait to read the requests from the client
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                decoder.decode(buffer, 0, n);
+            }
+        }
+        catch (IOException e) { 
+            // connection failure or malformed frame, clean up below
+        }
+        finally {
+            // the client either closed the connection or it failed
+            connectionClosed(connInfo);
+            socket.close();
+        }
+    }
 
-                reqInfo.add(connInfo);
-                reqInfo.add(recvdMsg);
+    /**
+     * Creates the connection object for a newly connected client, with
+     * an outbound queue as configured. The caller sets the queue's listener
+     * and then registers the connection
+     * 
+     * @return connection object describing client connection
+     */
+    ConnectionInfo newConnection() {
+        OutboundQueue queue = new OutboundQueue(config.getOutboundQueueCapacity(), config.getOverflowPolicy(),
+                socketWrites);
+        final ConnectionInfo connInfo = new ConnectionInfo(queue);
+        queue.setResyncHandler(new Runnable() {
+            public void run() {
+                resync(connInfo);
+            }
+        });
+        queue.setDrainHandler(new Runnable() {
+            public void run() {
+                HistoryStream.sendNext(connInfo);
+            }
+        });
+        return connInfo;
+    }
 
-                // add it to the message queue to get processed
-                // Once this object is put on the queue, this thread does not access them
-                // anymore except in case of exception (see catch block below)
-                msgQ.add(reqInfo);
+    /**
+     * Creates the decoder of the bytes received from a client, it hands the
+     * requests to receiveLine() and receiveStroke()
+     * 
+     * @param connInfo connection object describing client connection
+     * @return decoder, to be used by whichever thread services the connection
+     */
+    FrameDecoder newDecoder(final ConnectionInfo connInfo) {
+        return new FrameDecoder() {
+            @Override
+            protected void line(String line) {
+                receiveLine(connInfo, line);
+                // a login may have switched the connection, the bytes after it follow suit
+                if (connInfo.isBinary()) setBinary();
+                if (connInfo.isCompressed()) setCompressed();
+            }
 
+            @Override
+            protected void stroke(byte color, int lineSize, int[] points, int pointCount) {
+                receiveStroke(connInfo, color, lineSize, points, pointCount);
             }
+        };
+    }
+
+    /**
+     * Adds a newly connected client to the list of connections
+     * Called by whichever thread services the connection
+     * 
+     * @param connInfo connection object describing client connection
+     */
+    void registerConnection(ConnectionInfo connInfo) {
+        serverLock.lock();
+        try {
+            connectionList.add(connInfo);
         }
-        catch (IOException e) { 
-            // Since the connInfo and recvdMsg objects are being accessed by the
-            // processRequest thread, we need to synchronize access for thread safety
-            synchronized (serverLock) {
-                // on connection failure, need to clean up
-                connInfo.setLoggedIn(false);
-                // If user was connected to any board, disconnect that
-                detachUserFromBoard(connInfo.getWhiteboard(), connInfo.getUserName(), connInfo);
-                connectionList.remove(connInfo);
+        finally {
+            serverLock.unlock();
+        }
+    }
+
+    /**
+     * Parses one line received from the client and puts the request
+     * on the message queue. In case of a parse error, the error message
+     * is sent back and the line is dropped
+     * Called by whichever thread services the connection
+     * 
+     * The first login asking for the binary protocol switches the connection to it
+     * (if the server allows it): the client is sent a last text line to say
+     * so, and the requests after the login are frames (see BinaryProtocol)
+     * One asking for compression likewise switches the connection to it,
+     * after the binary protocol if it asked for both (see StreamCompression)
+     * 
+     * @param connInfo connection object describing client connection
+     * @param line request line without the line terminator
+     */
+    void receiveLine(ConnectionInfo connInfo, String line) {
+        ClientMsg recvdMsg;
+
+        // Now parse the received request and in case of error
+        // send error message back and continue to wait for next request
+        try {
+            recvdMsg = ParseMessage.parseClientMsg(line);
+        }
+        catch (RuntimeException e) { // catches parser exceptions
+            StringBuilder sb = new StringBuilder("");
+            sb.append("error,");
+            sb.append(e.getMessage());
+            // send the parser error message to the client
+            // the outbound queue is thread safe, so this needs no server lock
+            connInfo.send(sb.toString());
+            return;
+        }
+        // switched by the first login whether or not it goes through, the
+        // framing is the connection's and the client may try another name.
+        // The reply to the login, and to any request before it, is sent
+        // in the protocol the connection has when it is queued
+        if (recvdMsg.getType() == ClientMsgType.LOGIN && connInfo.receivedLogin()
+                && recvdMsg.getProtocol() >= BinaryProtocol.VERSION && config.getBinaryProtocol()) {
+            // a later version is answered with the latest one known here
+            connInfo.switchToBinary(Math.min(recvdMsg.getProtocol(), BinaryProtocol.BATCH_VERSION));
+        }
+        if (recvdMsg.getType() == ClientMsgType.LOGIN && recvdMsg.getCompression() != null
+                && config.getCompression() && !connInfo.isCompressed()) {
+            connInfo.startCompression(config.getCompressionLevel(), compressionBudget);
+        }
+        // add it to the message queue to get processed, the connection info
+        // and the parsed message travel together in one of the queue's envelopes
+        // Once the request is put on the queue, the connection thread does not access them
+        // anymore except in case of exception (see connectionClosed() below)
+        msgQ.publish(connInfo, recvdMsg, null);
+    }
+
+    /**
+     * Puts a stroke received as a frame of the binary protocol on the
+     * message queue, as the free draw request it stands for
+     * Called by whichever thread services the connection
+     * 
+     * @param connInfo connection object describing client connection
+     * @param color color code
+     * @param lineSize line size
+     * @param points x and y of each point one after the other
+     * @param pointCount number of points
+     */
+    void receiveStroke(ConnectionInfo connInfo, byte color, int lineSize, int[] points, int pointCount) {
+        ClientMsg recvdMsg = new ClientMsg(ClientMsgType.FREE_DRAW);
+        recvdMsg.setColor(BinaryProtocol.COLORS[color]);
+        recvdMsg.setLineSize(lineSize);
+        // the decoder reuses its array for the next stroke
+        recvdMsg.setPoints(Arrays.copyOf(points, 2 * pointCount), pointCount);
+        msgQ.publish(connInfo, recvdMsg, null);
+    }
+
+    /**
+     * Cleans up after a client whose connection was closed or failed
+     * Called by whichever thread services the connection
+     * 
+     * @param connInfo connection object describing client connection
+     */
+    void connectionClosed(ConnectionInfo connInfo) {
+        // Since the connInfo and recvdMsg objects are being accessed by the
+        // processRequest thread, we need to synchronize access for thread safety
+        serverLock.lock();
+        try {
+            if (connInfo.isClosed()) return;
+            connInfo.setClosed();
+            // on connection failure, need to clean up
+            connInfo.getOutboundQueue().close();
+            if (connInfo.isLoggedIn()) {
+                loggedInUsers.remove(connInfo.getUserName());
             }
+            connInfo.setLoggedIn(false);
+            // If user was connected to any board, disconnect that
+            detachUserFromBoard(connInfo.getWhiteboard(), connInfo.getUserName(), connInfo);
+            connectionList.remove(connInfo);
+            // the client may reconnect and resume its session
+            if (connInfo.getSession() != null) {
+                sessions.disconnected(connInfo.getSession());
+                connInfo.setSession(null);
+            }
+        }
+        finally {
+            serverLock.unlock();
         }
     }
 
@@ -192,25 +625,39 @@ public class WhiteboardServer {
      * on all the requests, thread safety is easier to accomplish
      * Only during error handling of socket connections in handleConnection(),
      * we need to synchronize access as cleanup procedure needs to be run. 
-     * To facilitate that, we use a single object lock on which all accesses are
+     * To facilitate that, we use a single lock on which all accesses are
      * synchronized
+     * 
+     * Drawing requests are the exception, they are handed to the shard
+     * that owns the user's board (see dispatchFreeDraw()). Anything that
+     * touches the users or sketches of a board also takes that board's lock
      * @throws InterruptedException
      */
     public void processRequest() throws InterruptedException {
-        ArrayList<Object> req;
+        RequestEnvelope req;
         ConnectionInfo connInfo;
         ClientMsg msg;
+        InvariantMode invariantMode = config.getInvariantMode();
+        // requests processed since the last full check in SAMPLED mode
+        int uncheckedRequests = 0;
 
         while (true) {
-            // The req will contain 2 objects, the connection info and the parsed message object
+            // The req contains the connection info and the parsed message object
+            // it is only valid until the next take()
             req = msgQ.take();
 
             try {
                 // acquire the single global lock to protect the integrity of the white board server
-                synchronized (serverLock) {
+                serverLock.lock();
+                try {
 
-                    connInfo = (ConnectionInfo)req.get(0);
-                    msg = (ClientMsg)req.get(1);
+                    connInfo = req.getConnectionInfo();
+                    msg = req.getMsg();
+
+                    // the connection went away while the request was queued
+                    if (connInfo.isClosed()) continue;
+                    // board the user was on before the request, it may be left by it
+                    Whiteboard boardBefore = connInfo.getWhiteboard();
 
                     switch (msg.getType()) {
                     case LOGIN:
@@ -226,7 +673,10 @@ public class WhiteboardServer {
                         processCloseBoard(connInfo, msg);
                         break;
                     case FREE_DRAW:
-                        processFreeDraw(connInfo, msg);
+                    case STROKE_BEGIN:
+                    case STROKE_APPEND:
+                    case STROKE_END:
+                        dispatchFreeDraw(connInfo, msg);
                         break;
                     case LOGOUT:
                         processLogout(connInfo, msg);
@@ -236,9 +686,24 @@ public class WhiteboardServer {
 
                     }
 
+                    // Make sure the request kept the server's rep invariants,
+                    // checking only what it touched
+                    if (invariantMode == InvariantMode.INCREMENTAL || invariantMode == InvariantMode.SAMPLED) {
+                        checkRep(connInfo, boardBefore);
+                    }
+                }
+                finally {
+                    serverLock.unlock();
                 }
                 // Make sure that the server's rep invariants are preserved
-                checkRep();
+                if (invariantMode == InvariantMode.FULL) {
+                    checkRep();
+                }
+                else if (invariantMode == InvariantMode.SAMPLED &&
+                        ++uncheckedRequests >= config.getInvariantSampleInterval()) {
+                    uncheckedRequests = 0;
+                    checkRep();
+                }
             }
             catch (Exception e) {
                 // There may be exception as the above methods send responses
@@ -261,15 +726,26 @@ public class WhiteboardServer {
         if (connInfo.isLoggedIn()) return;
 
         String newUserName = msg.getUserName();
+        boolean resume = msg.getResume() != null && config.getResume();
+        // session the client carries on with, if its token is still good
+        ResumeSession session = null;
+        if (resume && !msg.getResume().equals(ClientMsg.NEW_SESSION)) {
+            session = sessions.find(msg.getResume(), newUserName);
+        }
         // if the name being used is already logged in, fail the request
-        for (ConnectionInfo cInfo : connectionList) {
-            // need to avoid looking at the current connection
-            // while checking other connections, only look for users who are logged in
-            if (cInfo != connInfo && cInfo.isLoggedIn() &&
-                    cInfo.getUserName().equals(newUserName)) {
+        // (this connection is not logged in, so it can't be the one found)
+        if (loggedInUsers.containsKey(newUserName)) {
+            ConnectionInfo old = loggedInUsers.get(newUserName);
+            if (session != null && session.getConnection() == old) {
+                // the client reconnected before its old connection was seen
+                // to fail, the old one is logged out and the session moves over
+                old.setSession(null);
+                processLogout(old, null);
+            }
+            else {
                 ServerMsg resp = new ServerMsg(ServerMsgType.DUPLICATE_NAME);
                 resp.setUserName(newUserName);
-                connInfo.getPrintWriter().println(resp);
+                connInfo.send(resp);
 
                 return;
             }
@@ -277,11 +753,22 @@ public class WhiteboardServer {
         // can login successfully now
         connInfo.setLoggedIn(true);
         connInfo.setUserName(newUserName);
+        loggedInUsers.put(newUserName, connInfo);
 
         ServerMsg resp = new ServerMsg(ServerMsgType.BOARD_LIST);
         // send the list of all boards to the client
         resp.setBoardCollaboratorsList(currentBoardMap);
-        connInfo.getPrintWriter().println(resp);
+        connInfo.send(resp);
+
+        if (resume) {
+            // a token that is no longer good gets a new session
+            if (session == null) session = sessions.create(newUserName, connInfo);
+            session.setConnection(connInfo, 0);
+            connInfo.setSession(session);
+            ServerMsg token = new ServerMsg(ServerMsgType.SESSION);
+            token.setToken(session.getToken());
+            connInfo.send(token);
+        }
     }
 
     /**
@@ -298,22 +785,28 @@ public class WhiteboardServer {
         }
         String boardName = msg.getBoardName();
         // If, white board is already created, fail the request
-        for (Whiteboard wb: currentWhiteboards) {
-            if (wb.getBoardName().equals(boardName)) {
-                ServerMsg resp = new ServerMsg(ServerMsgType.BOARD_EXISTS);
-                resp.setBoardName(msg.getBoardName());
-                connInfo.getPrintWriter().println(resp);
-                return;
-            }
+        if (boardsByName.containsKey(boardName)) {
+            ServerMsg resp = new ServerMsg(ServerMsgType.BOARD_EXISTS);
+            resp.setBoardName(msg.getBoardName());
+            connInfo.send(resp);
+            return;
         }
         // Now create the board
         Whiteboard newBoard = new Whiteboard(boardName);
+        assignShard(newBoard);
         currentWhiteboards.add(newBoard); //update board list
+        boardsByName.put(boardName, newBoard);
         ArrayList<String> userList = new ArrayList<String>(); // empty user list
         currentBoardMap.put(boardName, userList); //update board map
+        if (journal != null) journal.appendBoard(boardName);
         // set board name in connection info for this client
         connInfo.setWhiteboard(newBoard);
 
+        // let everybody add the board to their board list
+        ServerMsg created = new ServerMsg(ServerMsgType.BOARD_CREATED);
+        created.setBoardName(boardName);
+        broadcast(created);
+
     }
 
     /**
@@ -323,7 +816,6 @@ public class WhiteboardServer {
      */
     public void processOpenBoard (ConnectionInfo connInfo, ClientMsg msg) {
 
-        boolean isNewBoard = true;
         if (!connInfo.isLoggedIn()) {
             // Send error message to the client
             sendNotLoggedInErrorMessage(connInfo);
@@ -332,41 +824,55 @@ public class WhiteboardServer {
         String boardName = msg.getBoardName();
         String userName = connInfo.getUserName();
 
-        for (Whiteboard board : currentWhiteboards){
-            if (board.getBoardName().equals(boardName)){
-                isNewBoard = false;
-            }
-        }
-        if (isNewBoard) {
+        if (!boardsByName.containsKey(boardName)) {
             processNewBoard(connInfo,msg);
         }
 
 
-        // Go through the list of all the boards and add the user to an 
-        // existing board. If board does not exist, we ignore the request
-        for (Whiteboard board : currentWhiteboards){
-            if (board.getBoardName().equals(boardName)){
-                connInfo.setWhiteboard(board);
-                // if board is already opened by the user, don't add the user again
-                if (!board.getUsernames().contains(userName)) {
-                    board.addUser(userName, connInfo.getPrintWriter()); //update board list 
-                    currentBoardMap.get(boardName).add(userName); //update board map
-                }
-                ServerMsg resp = new ServerMsg(ServerMsgType.BOARD_LIST);
-                resp.setBoardCollaboratorsList(currentBoardMap);
-                // Broadcast the list of boards and users on it to all
-                for (ConnectionInfo cInfo: connectionList) {
-                    cInfo.getPrintWriter().println(resp);
+        // Look up the board and add the user to it
+        // If board does not exist, or can't be loaded back, we answer that it
+        // does not exist and the user stays on its current board
+        Whiteboard board = boardsByName.get(boardName);
+        if (board != null) {
+            boolean loaded;
+            // the board's shard may be drawing on it right now, hold the board
+            // lock so the user gets either a stroke in the sketch list or
+            // as a broadcast, but not both and not neither
+            board.getLock().lock();
+            try {
+                // an evicted board is loaded back before anybody sees it
+                loaded = ensureLoaded(board);
+                if (loaded) {
+                    connInfo.setWhiteboard(board);
+                    board.touch();
+                    // if board is already opened by the user, don't add the user again
+                    if (!board.hasUser(userName)) {
+                        board.addUser(userName, connInfo); //update board list 
+                        currentBoardMap.get(boardName).add(userName); //update board map
+
+                        // Broadcast the new user of the board to all, including
+                        // the user itself so it can show the users of its new board
+                        ServerMsg joined = new ServerMsg(ServerMsgType.USER_JOINED);
+                        joined.setBoardName(boardName);
+                        joined.setUserName(userName);
+                        broadcast(joined);
+                    }
+                    // send user's current board's sketch list, or only the
+                    // strokes it missed if it is reopening it
+                    sendSketches(connInfo, msg.getSeq());
+                    if (connInfo.getSession() != null) connInfo.getSession().setBoard(board);
                 }
-                // send user's current board's sketch list
-                sendSketches(connInfo);
-                return;
             }
+            finally {
+                board.getLock().unlock();
+            }
+            if (loaded) return;
         }
-        // if it gets here, the board does not exist and user is trying to open it
+        // if it gets here, the board does not exist (or is unreadable) and
+        // user is trying to open it
         ServerMsg resp = new ServerMsg(ServerMsgType.BOARD_NOT_EXIST);
         resp.setBoardName(msg.getBoardName());
-        connInfo.getPrintWriter().println(resp);
+        connInfo.send(resp);
 
     }
 
@@ -390,36 +896,471 @@ public class WhiteboardServer {
     }
 
     /**
-     * Process free draw requests
+     * Hands a free draw request, or a partial message of a stroke being drawn,
+     * to the shard that owns the user's current board
+     * Runs on the control thread with the server lock held, so the board seen
+     * here reflects all the earlier requests from this connection
      * 
      * @param connInfo connection object describing client connection
      * @param msg object containing parsed request from client
      */
-    public void processFreeDraw (ConnectionInfo connInfo, ClientMsg msg) {
+    private void dispatchFreeDraw (ConnectionInfo connInfo, ClientMsg msg) {
         // If user not logged in or not opened a whiteboard, ignore request
         if (!connInfo.isLoggedIn() || connInfo.getWhiteboard() == null) 
             return; 
 
-        if (!connInfo.isLoggedIn()) {
-            // Send error message to the client
-            sendNotLoggedInErrorMessage(connInfo);
-            return;
+        Whiteboard currentBoard = connInfo.getWhiteboard();
+        currentBoard.getShard().submit(connInfo, msg, currentBoard);
+    }
+
+    /**
+     * Process free draw requests
+     * Runs on the shard thread that owns the board
+     * 
+     * @param connInfo connection object describing client connection
+     * @param currentBoard board the user was on when the request was dispatched
+     * @param msg object containing parsed request from client
+     */
+    public void processFreeDraw (ConnectionInfo connInfo, Whiteboard currentBoard, ClientMsg msg) {
+        // clipped and simplified before taking the lock, it only needs the request
+        int[] points = ingest == null ? null : ingest.process(StrokeStore.points(msg), msg.getLineSize());
+        currentBoard.getLock().lock();
+        try {
+            // the user may have left and the board been evicted since the
+            // request was dispatched, the stroke is dropped if it can't be
+            // loaded back
+            if (!ensureLoaded(currentBoard)) return;
+            currentBoard.touch();
+            // Update the board with the most recent update from the client
+            int stroke;
+            if (points == null) {
+                stroke = currentBoard.addSketch(msg);
+            }
+            else {
+                stroke = currentBoard.addSketch(StrokeStore.colorCode(msg.getColor()), msg.getLineSize(),
+                        points, points.length / 2);
+            }
+            publishStroke(currentBoard, stroke, null);
         }
-        if (connInfo.getWhiteboard() == null) { 
-            return; //ignore
+        finally {
+            currentBoard.getLock().unlock();
         }
-        Whiteboard currentBoard = connInfo.getWhiteboard();
+    }
 
-        // Update the board with the most recent update from the client
-        currentBoard.addSketch(msg.toString());
+    /**
+     * Process the partial messages of a stroke being drawn (strokebegin,
+     * strokeappend and strokeend). The points are passed on to the other users
+     * of the board as they come, so they see the stroke being drawn, and the
+     * stroke is added to the board's sketches when it ends, see LiveStroke
+     * A stroke nobody else saw is clipped and simplified after the board
+     * lock is released
+     * Runs on the shard thread that owns the board
+     * 
+     * @param connInfo connection object describing client connection
+     * @param currentBoard board the user was on when the request was dispatched
+     * @param msg object containing parsed request from client
+     */
+    public void processLiveStroke (ConnectionInfo connInfo, Whiteboard currentBoard, ClientMsg msg) {
+        String userName = connInfo.getUserName();
+        // stroke that ended, stored once the lock is released
+        LiveStroke ended = null;
+        currentBoard.getLock().lock();
+        try {
+            // the user left the board since the request was dispatched, the
+            // stroke was stored then. The board is in memory as long as
+            // somebody is on it
+            if (currentBoard.getConnectionMap().get(userName) != connInfo) return;
+            currentBoard.touch();
+            LiveStroke stroke = currentBoard.getLiveStroke(userName);
+            switch (msg.getType()) {
+            case STROKE_BEGIN:
+                // a stroke the client did not end is stored as it is
+                if (stroke != null) ended = endLiveStroke(currentBoard, userName, null);
+                stroke = new LiveStroke(connInfo, StrokeStore.colorCode(msg.getColor()), msg.getLineSize());
+                stroke.append(msg.getPoints(), msg.getPointCount());
+                currentBoard.putLiveStroke(userName, stroke);
+                ServerMsg begin = new ServerMsg(ServerMsgType.STROKE_BEGIN);
+                begin.setUserName(userName);
+                begin.setColor(msg.getColor());
+                begin.setLineSize(msg.getLineSize());
+                begin.setPoints(msg.getPoints(), msg.getPointCount());
+                sendLive(currentBoard, stroke, begin, true);
+                break;
+            case STROKE_APPEND:
+                if (stroke == null) return;
+                stroke.append(msg.getPoints(), msg.getPointCount());
+                ServerMsg append = new ServerMsg(ServerMsgType.STROKE_APPEND);
+                append.setUserName(userName);
+                append.setPoints(msg.getPoints(), msg.getPointCount());
+                sendLive(currentBoard, stroke, append, false);
+                if (stroke.isFull()) ended = endLiveStroke(currentBoard, userName, null);
+                break;
+            case STROKE_END:
+                if (stroke == null) return;
+                if (msg.getPoints() != null) stroke.append(msg.getPoints(), msg.getPointCount());
+                ended = endLiveStroke(currentBoard, userName, msg);
+                break;
+            default:
+            }
+        }
+        finally {
+            currentBoard.getLock().unlock();
+        }
+        if (ended != null) storeLiveStroke(currentBoard, ended, true);
+    }
+
+    /**
+     * Ends the stroke a user is drawing: tells the users who saw it being
+     * drawn, and takes it off the board's strokes being drawn
+     * Must be called with the board lock held
+     * 
+     * @param board whiteboard the stroke is drawn on
+     * @param userName user drawing the stroke, requires a stroke in progress
+     * @param msg strokeend request, its last points are passed on with the
+     *        end, or null if the stroke ends for another reason
+     * @return the stroke, to be added to the board's sketches with
+     *         storeLiveStroke() once the board lock is released
+     */
+    private LiveStroke endLiveStroke(Whiteboard board, String userName, ClientMsg msg) {
+        LiveStroke stroke = board.removeLiveStroke(userName);
+        ServerMsg end = new ServerMsg(ServerMsgType.STROKE_END);
+        end.setUserName(userName);
+        if (msg != null) end.setPoints(msg.getPoints(), msg.getPointCount());
+        sendLive(board, stroke, end, false);
+        return stroke;
+    }
+
+    /**
+     * Adds a stroke that ended to the board's sketches and sends it to the
+     * users of the board who did not see it being drawn
+     * A stroke other users saw being drawn is stored as they drew it, they
+     * are not sent it again. Any other is clipped and simplified first,
+     * without the board lock, it may have up to LiveStroke.MAX_POINTS points
+     * Must be called without the board lock held
+     * 
+     * @param board whiteboard the stroke was drawn on
+     * @param stroke stroke returned by endLiveStroke()
+     * @param simplify false to only clip the stroke
+     */
+    private void storeLiveStroke(Whiteboard board, LiveStroke stroke, boolean simplify) {
+        int[] points = stroke.getPoints();
+        if (ingest != null && !stroke.isForwarded()) {
+            if (simplify) {
+                points = ingest.process(points, stroke.getLineSize());
+            }
+            else {
+                points = ingest.clipOnly(points, stroke.getLineSize());
+            }
+        }
+        board.getLock().lock();
+        try {
+            // its user may have left and the board been evicted meanwhile
+            if (!ensureLoaded(board)) return;
+            int index = board.addSketch(stroke.getColorCode(), stroke.getLineSize(), points, points.length / 2);
+            publishStroke(board, index, stroke);
+        }
+        finally {
+            board.getLock().unlock();
+        }
+    }
+
+    /**
+     * Sends a partial message of a stroke being drawn to the users of the
+     * board that see the stroke being drawn, the user drawing it excepted
+     * The message is encoded once for each protocol, as in broadcast()
+     * Must be called with the board lock held
+     * 
+     * @param board whiteboard the stroke is drawn on
+     * @param stroke stroke being drawn
+     * @param msg message to send
+     * @param begin true for the strokebegin, the users it is sent to become
+     *        the viewers of the stroke
+     */
+    private void sendLive(Whiteboard board, LiveStroke stroke, ServerMsg msg, boolean begin) {
+        if (begin) stroke.addViewer(stroke.getOwner());
+        ByteBuffer encoded = null;
+        ByteBuffer binaryEncoded = null;
+        for (String username : board.currentUsernames) {
+            ConnectionInfo member = board.getConnectionMap().get(username);
+            if (member == stroke.getOwner()) continue;
+            if (begin) {
+                // users still being sent the board's history get the stroke
+                // from there once it is stored
+                if (HistoryStream.isStreaming(member, board)) continue;
+                stroke.addViewer(member);
+            }
+            else if (!stroke.isViewer(member)) {
+                continue;
+            }
+            if (member.isBinary()) {
+                if (binaryEncoded == null) binaryEncoded = ConnectionInfo.encodeFrame(msg);
+                member.send(binaryEncoded);
+            }
+            else {
+                if (encoded == null) encoded = ConnectionInfo.encode(msg);
+                member.send(encoded);
+            }
+        }
+    }
+
+    /**
+     * Journals a stroke just added to a board's sketches, sends it to the
+     * users of the board and brings the keyframe up to date
+     * Must be called with the board lock held
+     * 
+     * @param board whiteboard
+     * @param stroke index of the stroke in the board's sketches
+     * @param live the stroke as it was drawn, its viewers already have it,
+     *        or null for a free draw request, which everybody is sent
+     */
+    private void publishStroke(Whiteboard board, int stroke, LiveStroke live) {
+        // journaled before anybody sees it, this only copies it into the
+        // mapped journal, the flusher forces it to disk later
+        if (journal != null) {
+            journal.appendStroke(board.getBoardName(), board.getSketches(), stroke);
+        }
+        // the stroke is encoded once from the board's history for each
+        // protocol in use on the board, the same bytes are handed to
+        // every user of the board that speaks it
+        ByteBuffer sketch = null;
+        ByteBuffer binarySketch = null;
+        // the stroke's sequence number, kept with a copy of the stroke for
+        // the users who reconnect, and sent after it to those who can
+        int seq = board.nextSeq();
+        if (config.getResumeStrokes() > 0) {
+            if (board.getRecentStrokes() == null) {
+                board.setRecentStrokes(new RecentStrokes(config.getResumeStrokes()));
+            }
+            board.getRecentStrokes().add(seq, board.getSketches(), stroke);
+        }
+        ByteBuffer marker = null;
+        ByteBuffer binaryMarker = null;
         // we can return the message as-is back to all the clients 
         // connected to this board so they can update their screens
-        for (String username: currentBoard.currentUsernames){
-            PrintWriter printWriter = currentBoard.getPrintWriterMap().get(username);
-            printWriter.println(msg.toString());
+        for (String username: board.currentUsernames){
+            ConnectionInfo member = board.getConnectionMap().get(username);
+            // users still being sent the board's history get it from there
+            if (HistoryStream.isStreaming(member, board)) continue;
+            if (live == null || !live.isViewer(member)) {
+                if (member.isBinary()) {
+                    if (binarySketch == null) binarySketch = board.getSketches().encodeBinary(stroke);
+                    member.send(binarySketch);
+                }
+                else {
+                    if (sketch == null) sketch = board.getSketches().encode(stroke);
+                    member.send(sketch);
+                }
+            }
+            if (member.getSession() == null) continue;
+            if (member.isBinary()) {
+                if (binaryMarker == null) binaryMarker = ConnectionInfo.encodeFrame(sequence(board, seq));
+                member.send(binaryMarker);
+            }
+            else {
+                if (marker == null) marker = ConnectionInfo.encode(sequence(board, seq));
+                member.send(marker);
+            }
+        }
+        updateKeyframe(board);
+    }
+
+    /**
+     * Brings the board's keyframe up to date once keyframe interval strokes
+     * have been drawn since it was last updated (if the server keeps keyframes)
+     * The tiles are rendered and encoded on the keyframe thread from a view
+     * of the strokes, so neither the shard nor the control thread waits for
+     * them. If a render is already under way the strokes wait for the next one
+     * Must be called with the board lock held
+     * 
+     * @param board whiteboard
+     */
+    private void updateKeyframe(final Whiteboard board) {
+        int interval = config.getKeyframeInterval();
+        if (interval <= 0) return;
+        BoardKeyframe keyframe = board.getKeyframe();
+        int drawn = keyframe == null ? 0 : keyframe.getStrokeCount();
+        if (board.getSketches().size() - drawn < interval) return;
+        if (keyframe == null) {
+            keyframe = new BoardKeyframe(config.getKeyframeWidth(), config.getKeyframeHeight());
+            board.setKeyframe(keyframe);
+        }
+        if (keyframe.isRendering()) return;
+        keyframe.setRendering(true);
+        final BoardKeyframe rendered = keyframe;
+        final StrokeStore view = board.getSketches().view();
+        keyframeRenderer.execute(new Runnable() {
+            @Override
+            public void run() {
+                renderKeyframe(board, rendered, view);
+            }
+        });
+    }
+
+    /**
+     * Renders a keyframe on the keyframe thread and swaps its tiles in,
+     * unless the keyframe was dropped from the board meanwhile
+     * Must be called without the board lock held
+     * 
+     * @param board whiteboard
+     * @param keyframe keyframe of the board when the render was handed over
+     * @param view view of the board's strokes at that time
+     */
+    private void renderKeyframe(Whiteboard board, BoardKeyframe keyframe, StrokeStore view) {
+        boolean done = false;
+        try {
+            keyframe.render(view);
+            done = true;
+        }
+        finally {
+            board.getLock().lock();
+            try {
+                if (done && board.getKeyframe() == keyframe) keyframe.publish();
+                keyframe.setRendering(false);
+            }
+            finally {
+                board.getLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Loads an evicted board back from the board directory
+     * Must be called with the board lock held
+     * 
+     * @param board whiteboard, nothing is done if it is in memory
+     * @return true if the board is in memory, false if it can't be read
+     *         (it stays evicted)
+     */
+    private boolean ensureLoaded(Whiteboard board) {
+        if (board.isResident()) return true;
+        try {
+            board.load(boardStore.read(board.getBoardName()));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        reloads.increment();
+        updateKeyframe(board);
+        return true;
+    }
+
+    /**
+     * Checks whether anybody is on a board or still has it as their
+     * current board (and may draw on it)
+     * Must be called with the server lock held
+     * 
+     * @param board whiteboard
+     * @return true if the board is in use
+     */
+    private boolean inUse(Whiteboard board) {
+        return !board.getUsernames().isEmpty() || board.getCurrentConnections() > 0;
+    }
+
+    /**
+     * Checks whether a board is in use, so it can't be evicted
+     * @param board whiteboard
+     * @return true if anybody is on the board or has it as their current board
+     */
+    boolean isBoardInUse(Whiteboard board) {
+        serverLock.lock();
+        try {
+            return inUse(board);
+        }
+        finally {
+            serverLock.unlock();
+        }
+    }
+
+    /**
+     * Drops the strokes of a board written to the board directory, unless
+     * somebody came to the board or drew on it since they were written
+     * 
+     * @param board whiteboard
+     * @param written strokes of the board that were written
+     * @param count number of strokes that were written
+     * @return true if the board was evicted
+     */
+    boolean finishEviction(Whiteboard board, StrokeStore written, int count) {
+        serverLock.lock();
+        try {
+            if (inUse(board)) return false;
+            board.getLock().lock();
+            try {
+                if (board.getSketches() != written || written.size() != count) return false;
+                board.unload();
+                // a restart recovers the board as evicted as well
+                if (journal != null) journal.appendEviction(board.getBoardName());
+            }
+            finally {
+                board.getLock().unlock();
+            }
+            evictions.increment();
+            return true;
+        }
+        finally {
+            serverLock.unlock();
         }
     }
 
+    /**
+     * Removes an evicted board past its time to live from the server, tells
+     * every logged in user it is gone, and archives or deletes its file
+     * The file is only touched once the locks are released, so logins and
+     * the board list don't wait on the disk. Only the evictor thread writes
+     * board files, so a board of the same name made meanwhile can't have
+     * one yet. If the file can't be removed it is left behind, a server
+     * restarted without a journal lists the board again until it expires
+     * 
+     * @param board whiteboard
+     * @return true if the board was removed, false if it is in use, in
+     *         memory or already gone
+     */
+    boolean expireBoard(Whiteboard board) {
+        String boardName = board.getBoardName();
+        serverLock.lock();
+        try {
+            if (boardsByName.get(boardName) != board || inUse(board)) return false;
+            board.getLock().lock();
+            try {
+                if (board.isResident()) return false;
+            }
+            finally {
+                board.getLock().unlock();
+            }
+            currentWhiteboards.remove(board);
+            boardsByName.remove(boardName);
+            currentBoardMap.remove(boardName);
+            if (journal != null) journal.appendRemoval(boardName);
+            expiredBoards.increment();
+
+            ServerMsg removed = new ServerMsg(ServerMsgType.BOARD_REMOVED);
+            removed.setBoardName(boardName);
+            broadcast(removed);
+        }
+        finally {
+            serverLock.unlock();
+        }
+        try {
+            if (config.getBoardExpiry() == BoardExpiry.ARCHIVE) {
+                boardStore.archive(boardName);
+            }
+            else {
+                boardStore.delete(boardName);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    /**
+     * @return evictor of the boards of this server, requires a board directory
+     */
+    BoardEvictor newBoardEvictor() {
+        return new BoardEvictor(this, boardStore, config.getBoardIdleMillis(),
+                config.getBoardCacheBytes(), config.getBoardTtlMillis());
+    }
+
     /**
      * Process logout request
      * 
@@ -433,7 +1374,13 @@ public class WhiteboardServer {
         Whiteboard currentBoard = connInfo.getWhiteboard();
         String userName = connInfo.getUserName();
         connInfo.setLoggedIn(false);
+        loggedInUsers.remove(userName);
         detachUserFromBoard (currentBoard, userName, connInfo );
+        // the user is done, the session can't be resumed
+        if (connInfo.getSession() != null) {
+            sessions.remove(connInfo.getSession());
+            connInfo.setSession(null);
+        }
 
         connInfo.setUserName(null);
 
@@ -442,32 +1389,105 @@ public class WhiteboardServer {
     private void sendNotLoggedInErrorMessage(ConnectionInfo connInfo) {
         // Send error message to the client
         ServerMsg resp = new ServerMsg(ServerMsgType.NOT_LOGGED_IN);
-        connInfo.getPrintWriter().println(resp);
+        connInfo.send(resp);
 
     }
     /**
-     * Builds a string with all the existing sketches so the new user can
-     * recreate the board to its most recent state
+     * Sends the strokes a user reopening its board after reconnecting
+     * missed, if they are all among the board's recent strokes, or else all
+     * the sketches as sendSketches(ConnectionInfo) does
+     * The user is first told which: the sequence number it has, or 0 if
+     * the whole board is sent again and it has to start over
+     * Must be called with the board lock held
+     *
+     * @param connInfo connection object describing client connection
+     * @param since sequence number of the last stroke the user has, -1
+     *        if it is not reopening the board
+     */
+    private void sendSketches(ConnectionInfo connInfo, int since) {
+        Whiteboard board = connInfo.getWhiteboard();
+        ResumeSession session = connInfo.getSession();
+        if (since < 0 || session == null) {
+            sendSketches(connInfo);
+            return;
+        }
+        RecentStrokes recent = board.getRecentStrokes();
+        // the sequence numbers are only meaningful for the very board the
+        // user had, not one of the same name made since
+        boolean missed = session.getBoard() == board
+                && (since == board.getLastSeq() || (recent != null && recent.covers(since)));
+        connInfo.send(sequence(board, missed ? since : 0));
+        if (!missed) {
+            sendSketches(connInfo);
+            return;
+        }
+        HistoryStream.cancel(connInfo, board);
+        if (since < board.getLastSeq()) recent.send(connInfo, since);
+        connInfo.send(sequence(board, board.getLastSeq()));
+    }
+
+    /**
+     * Sends all the existing sketches so the new user can recreate the
+     * board to its most recent state. If the board has a keyframe its tiles
+     * are sent followed by the sketches drawn since, otherwise all the
+     * sketches. The sketches are streamed a chunk at a time as the user
+     * reads them, see HistoryStream
+     * Must be called with the board lock held
      *  
      * @param connInfo connection object describing client connection
      */
     private void sendSketches(ConnectionInfo connInfo) {
-        StringBuilder sb = new StringBuilder("");
-        // each stroke from client is maintained as a sketch (which
-        // itself is a string
-        int numSketches = connInfo.getWhiteboard().getSketches().size();
+        Whiteboard board = connInfo.getWhiteboard();
+        BoardKeyframe keyframe = board.getKeyframe();
+        int from = 0;
+        if (keyframe != null) {
+            // the tiles are already encoded and shared by everybody
+            for (ByteBuffer tile : keyframe.getTiles(connInfo.isBinary())) {
+                connInfo.send(tile);
+            }
+            from = keyframe.getStrokeCount();
+        }
 
-        // return if board is empty
-        if (numSketches == 0) return;
+        // each stroke from client is maintained as a sketch
+        HistoryStream.start(connInfo, board, from);
 
-        for (String sketch: connInfo.getWhiteboard().getSketches()){
-            sb.append(sketch);
-            if (--numSketches > 0) // the last new line is sent as part of socket write
-                sb.append("\n");
-        }
+    }
 
-        connInfo.getPrintWriter().println(sb.toString());
+    /**
+     * Makes the message telling a user who can resume its session that it
+     * was sent every stroke of a board up to a sequence number
+     *
+     * @param board whiteboard
+     * @param seq sequence number
+     * @return the message
+     */
+    static ServerMsg sequence(Whiteboard board, int seq) {
+        ServerMsg msg = new ServerMsg(ServerMsgType.SEQUENCE);
+        msg.setBoardName(board.getBoardName());
+        msg.setSeq(seq);
+        return msg;
+    }
 
+    /**
+     * Sends a message to every logged in user. The message is encoded once
+     * for each protocol and the same bytes are queued for everybody
+     * Must be called with the server lock held
+     * 
+     * @param msg message to send
+     */
+    private void broadcast(ServerMsg msg) {
+        ByteBuffer encoded = null;
+        ByteBuffer binaryEncoded = null;
+        for (ConnectionInfo cInfo : loggedInUsers.values()) {
+            if (cInfo.isBinary()) {
+                if (binaryEncoded == null) binaryEncoded = ConnectionInfo.encodeFrame(msg);
+                cInfo.send(binaryEncoded);
+            }
+            else {
+                if (encoded == null) encoded = ConnectionInfo.encode(msg);
+                cInfo.send(encoded);
+            }
+        }
     }
 
     /**
@@ -480,142 +1500,259 @@ public class WhiteboardServer {
     public void detachUserFromBoard(Whiteboard currentBoard, String userName, ConnectionInfo connInfo) {
 
         if (currentBoard != null) {
-            if (userName != null) {
-                currentBoard.removeUser(userName);
-                currentBoardMap.get(currentBoard.getBoardName()).remove(userName);
-            }
-            // broadcast the changes in board user list to others
-            // connected to this board including this user if he/she 
-            // still connected. This method can also be called from
-            // handleConnection in case of socket error
-            ServerMsg resp = new ServerMsg(ServerMsgType.BOARD_LIST);
-            resp.setBoardCollaboratorsList(currentBoardMap);
-
-            if (connInfo.isLoggedIn())
-                connInfo.getPrintWriter().println(resp);
-            for (String uName: currentBoard.currentUsernames){
-                PrintWriter printWriter = currentBoard.getPrintWriterMap().get(uName);
-                printWriter.println(resp);
+            // stroke the user was drawing, stored once the lock is released
+            LiveStroke ended = null;
+            currentBoard.getLock().lock();
+            try {
+                HistoryStream.cancel(connInfo, currentBoard);
+                // the user may have only created the board without opening it
+                if (userName != null && currentBoard.hasUser(userName)) {
+                    // a stroke the user was drawing is stored as drawn so far
+                    if (currentBoard.getLiveStroke(userName) != null) {
+                        ended = endLiveStroke(currentBoard, userName, null);
+                    }
+                    currentBoard.removeUser(userName);
+                    currentBoardMap.get(currentBoard.getBoardName()).remove(userName);
+                    // idle from now on
+                    currentBoard.touch();
+
+                    // broadcast the change in board user list to all the
+                    // logged in users, including this user if he/she is still
+                    // logged in. This method can also be called from
+                    // connectionClosed in case of socket error
+                    ServerMsg left = new ServerMsg(ServerMsgType.USER_LEFT);
+                    left.setBoardName(currentBoard.getBoardName());
+                    left.setUserName(userName);
+                    broadcast(left);
+                }
+            }
+            finally {
+                currentBoard.getLock().unlock();
             }
+            // not simplified, this is the control thread
+            if (ended != null) storeLiveStroke(currentBoard, ended, false);
             connInfo.setWhiteboard(null);
         }
     }
 
     /**
-     * Main method that starts the white board server
-     * @param args
+     * Sends a client the current state again after its outbound queue was
+     * paused because it overflowed. Messages were dropped while the queue
+     * was paused, so the client gets the board list and the full sketch list
+     * of its board, strokes it already has are simply drawn again
+     * Called by the I/O side of the connection once the queue has drained
+     * 
+     * @param connInfo connection object describing client connection
      */
-    public static void main(String[] args) {
-        int port = 4444; // default port
+    void resync(ConnectionInfo connInfo) {
+        serverLock.lock();
         try {
-            runWhiteboardServer(port);
-        } catch (IOException e) {
-            e.printStackTrace();
+            Whiteboard board = connInfo.getWhiteboard();
+            // hold the board lock so no stroke is broadcast between
+            // resuming the queue and sending the sketch list
+            if (board != null) board.getLock().lock();
+            try {
+                connInfo.getOutboundQueue().resume();
+                if (connInfo.isClosed() || !connInfo.isLoggedIn()) return;
+
+                ServerMsg resp = new ServerMsg(ServerMsgType.BOARD_LIST);
+                resp.setBoardCollaboratorsList(currentBoardMap);
+                connInfo.send(resp);
+                if (board != null && board.hasUser(connInfo.getUserName())) {
+                    sendSketches(connInfo);
+                    // partial strokes may have been dropped, the strokes
+                    // being drawn are sent whole when they are stored
+                    board.removeViewer(connInfo);
+                }
+            }
+            finally {
+                if (board != null) board.getLock().unlock();
+            }
+        }
+        finally {
+            serverLock.unlock();
         }
     }
 
     /**
-     * Start WhiteboardServer running on the specified port
-     * @param port The network port on which the server should listen.
+     * Reports how much the compactor has saved on each board
+     * @return map where keys are board names and values are the bytes of
+     *         sketch storage reclaimed by compacting the board
      */
-    public static void runWhiteboardServer(int port) throws IOException {
-        final WhiteboardServer server = new WhiteboardServer(port);
-        server.serve();
+    public HashMap<String, Long> getReclaimedBytes() {
+        HashMap<String, Long> reclaimed = new HashMap<String, Long>();
+        for (Whiteboard board : getWhiteboardsSnapshot()) {
+            board.getLock().lock();
+            try {
+                reclaimed.put(board.getBoardName(), board.getReclaimedBytes());
+            }
+            finally {
+                board.getLock().unlock();
+            }
+        }
+        return reclaimed;
     }
 
-    /*
-     *  Private utility class that is used to contain status
-     *  about each client connection
-     *  It tracks whether user is logged in or not, user name
-     *  white board they are working on
+    /**
+     * Reports how far behind each logged in client is
+     * @return map where keys are usernames and values are the number of
+     *         messages waiting in their outbound queue
      */
-    private class ConnectionInfo {
-        private PrintWriter out;
-        private Whiteboard board;
-        private boolean loggedIn;
-        private String username;
-
-        /**
-         * Constructor
-         */
-        public ConnectionInfo() {
-            this.out = null;
-            this.board = null;
-            this.loggedIn = false;
-            this.username = null;
+    public HashMap<String, Integer> getOutboundQueueDepths() {
+        HashMap<String, Integer> depths = new HashMap<String, Integer>();
+        serverLock.lock();
+        try {
+            for (ConnectionInfo cInfo : connectionList) {
+                if (cInfo.isLoggedIn()) {
+                    depths.put(cInfo.getUserName(), cInfo.getOutboundQueue().size());
+                }
+            }
         }
-
-        /**
-         * Set method for setting Connection to socket output stream
-         * @param out Connection to socket output stream
-         */
-        public void setPrintWriter (PrintWriter out) {
-            this.out = out;
+        finally {
+            serverLock.unlock();
         }
+        return depths;
+    }
 
-        /**
-         * Get method for getting Connection to socket output stream
-         * @return Connection to socket output stream
-         */
-        public PrintWriter getPrintWriter() {
-            return this.out;
-        }
+    /**
+     * @return number of boards evicted to the board directory so far
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
 
-        /**
-         * Set the whiteboard that this user is currently using
-         * @param board
-         */
-        public void setWhiteboard (Whiteboard board) {
-            this.board = board;
-        }
+    /**
+     * @return number of evicted boards loaded back so far
+     */
+    public long getReloads() {
+        return reloads.sum();
+    }
 
-        /**
-         * Get current whiteboard that this user is connected to
-         * @return whiteboard
-         */
-        public Whiteboard getWhiteboard() {
-            return this.board;
-        }
+    /**
+     * @return number of boards removed after their time to live so far
+     */
+    public long getExpiredBoards() {
+        return expiredBoards.sum();
+    }
 
-        /**
-         * Set the user name
-         * @param username string
-         */
-        public void setUserName (String username) {
-            this.username = username;
-        }
+    /**
+     * Reports how many points of the strokes drawn were dropped before
+     * storing them, see StrokeIngest
+     * @return map where keys are "in" (points received), "clipped",
+     *         "duplicates", "simplified" (points dropped by each step) and
+     *         "out" (points stored), empty if strokes are stored as drawn
+     */
+    public HashMap<String, Long> getIngestStats() {
+        return ingest == null ? new HashMap<String, Long>() : ingest.getStats();
+    }
 
-        /**
-         * Get the user name
-         * @return user name string
-         */
-        public String getUserName() {
-            return this.username;
-        }
+    /**
+     * @return points stored for each point of the strokes drawn, 1 if
+     *         strokes are stored as drawn
+     */
+    public double getPointReductionRatio() {
+        return ingest == null ? 1 : ingest.getReductionRatio();
+    }
 
-        /**
-         * Check whether user is logged in
-         * @return
-         */
-        public boolean isLoggedIn () {
-            return loggedIn;
-        }
+    /**
+     * Reports what compression did for the clients that asked for it
+     * @return map where keys are "in" (bytes of the messages sent), "out"
+     *         (bytes written for them) and "stored" (batches sent without
+     *         compressing them, the CPU budget being spent)
+     */
+    public HashMap<String, Long> getCompressionStats() {
+        HashMap<String, Long> stats = new HashMap<String, Long>();
+        stats.put("in", compressionBudget.getBytesIn());
+        stats.put("out", compressionBudget.getBytesOut());
+        stats.put("stored", compressionBudget.getStoredBatches());
+        return stats;
+    }
+
+    /**
+     * @return number of writes to client sockets so far, over all the connections
+     */
+    public long getSocketWrites() {
+        return socketWrites.sum();
+    }
 
-        /**
-         * Set the status of user logged in or not
-         * @param loggedIn boolean
-         */
-        public void setLoggedIn(boolean loggedIn) {
-            this.loggedIn = loggedIn;
+    /**
+     * Main method that starts the white board server
+     * @param args
+     */
+    public static void main(String[] args) {
+        // port 4444 and thread per connection unless options say otherwise
+        // e.g --mode=nio --event-loops=4
+        ServerConfig config = ServerConfig.fromArgs(args);
+        try {
+            runWhiteboardServer(config);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
+    /**
+     * Start WhiteboardServer running on the specified port
+     * @param port The network port on which the server should listen.
+     */
+    public static void runWhiteboardServer(int port) throws IOException {
+        runWhiteboardServer(configForPort(port));
+    }
+
+    /**
+     * Start WhiteboardServer running with the given startup options
+     * @param config server configuration
+     */
+    public static void runWhiteboardServer(ServerConfig config) throws IOException {
+        final WhiteboardServer server = new WhiteboardServer(config);
+        server.serve();
+    }
+
     /**
      * Adds a new Whiteboard object to server
      * @param newWhiteboard new whiteboard being added to server
      */
     public void addWhiteboard(Whiteboard newWhiteboard){
-        this.currentWhiteboards.add(newWhiteboard);
+        serverLock.lock();
+        try {
+            assignShard(newWhiteboard);
+            this.currentWhiteboards.add(newWhiteboard);
+            this.boardsByName.put(newWhiteboard.getBoardName(), newWhiteboard);
+            if (journal != null) {
+                journal.appendBoard(newWhiteboard.getBoardName());
+                StrokeStore sketches = newWhiteboard.getSketches();
+                for (int i = 0; i < sketches.size(); i++) {
+                    journal.appendStroke(newWhiteboard.getBoardName(), sketches, i);
+                }
+            }
+        }
+        finally {
+            serverLock.unlock();
+        }
+    }
+
+    /**
+     * Makes one of the shards the owner of a new board
+     * Must be called with the server lock held
+     * @param board new whiteboard
+     */
+    private void assignShard(Whiteboard board) {
+        board.setShard(shards[nextShard]);
+        nextShard = (nextShard + 1) % shards.length;
+    }
+
+    /**
+     * Copies the list of whiteboards, for threads other than the
+     * processing thread to go through
+     * @return copy of the list of current whiteboards
+     */
+    ArrayList<Whiteboard> getWhiteboardsSnapshot(){
+        serverLock.lock();
+        try {
+            return new ArrayList<Whiteboard>(this.currentWhiteboards);
+        }
+        finally {
+            serverLock.unlock();
+        }
     }
 
     /**
@@ -638,9 +1775,13 @@ public class WhiteboardServer {
      * 4. Verify each of the white boards that the connection object refers to
      *    is present in the list of boards maintained by the server
      * 5. Verify each of the boards and userlists on the currentBoardMap are valid
+     * 6. Verify the user name and board name indexes agree with the
+     *    connection list and the board list, and each board's member set
+     *    agrees with its userlist in currentBoardMap
      */
     public void checkRep() {
-        synchronized (serverLock) {
+        serverLock.lock();
+        try {
             // by using sets, we are making sure there are only unique users/boards
             // on the server
             Set<String> loggedUsers = new HashSet<String>();
@@ -655,10 +1796,17 @@ public class WhiteboardServer {
                 }
             }
 
+            // check the index of logged in users holds exactly those connections
+            assert(loggedInUsers.size() == loggedUsers.size());
+            for (Map.Entry<String, ConnectionInfo> entry : loggedInUsers.entrySet()) {
+                ConnectionInfo cInfo = entry.getValue();
+                assert(cInfo.isLoggedIn() && entry.getKey().equals(cInfo.getUserName()));
+                assert(connectionList.contains(cInfo));
+            }
+
             // check users on each of those boards are actually currently logged in
             for (Whiteboard wb : currentWhiteboards) {
-                ArrayList<String> userlist = wb.getUsernames();
-                for (String name : userlist) {
+                for (String name : wb.getUsernames()) {
                     assert(loggedUsers.contains(name));
                 }
             }
@@ -667,15 +1815,28 @@ public class WhiteboardServer {
             for (Whiteboard wb : currentWhiteboards) {
                 assert(whiteboards.add(wb));
                 assert(boardNames.add(wb.getBoardName()));
+                // and that the board index holds the same boards
+                assert(boardsByName.get(wb.getBoardName()) == wb);
             }
+            assert(boardsByName.size() == currentWhiteboards.size());
 
             // Now walk through connectionlist and ensure that each of the 
             // whiteboards that the user is referring to are present in the 
             // current whiteboards
+            // and that each board counts the connections whose current board it is
+            HashMap<Whiteboard, Integer> current = new HashMap<Whiteboard, Integer>();
             for (ConnectionInfo cInfo : connectionList) {
                 if (cInfo.isLoggedIn() && cInfo.getWhiteboard() != null) {
                     assert(whiteboards.contains(cInfo.getWhiteboard()));
                 }
+                if (cInfo.getWhiteboard() != null) {
+                    Integer count = current.get(cInfo.getWhiteboard());
+                    current.put(cInfo.getWhiteboard(), count == null ? 1 : count + 1);
+                }
+            }
+            for (Whiteboard wb : currentWhiteboards) {
+                Integer count = current.get(wb);
+                assert(wb.getCurrentConnections() == (count == null ? 0 : count));
             }
 
             // Verify currentBoardMap which is used to send each client BOARD_LIST message
@@ -684,7 +1845,10 @@ public class WhiteboardServer {
                 String bName = entry.getKey(); // board name is key
                 assert(boardNames.contains(bName));
                 ArrayList<String> ulist = entry.getValue(); // user list is the value
+                // the list must have the same users as the board itself
+                assert(ulist.size() == boardsByName.get(bName).getUsernames().size());
                 for (String s : ulist) {
+                    assert(boardsByName.get(bName).hasUser(s));
                     // we will add this user to a set and make sure that no user is present in 
                     // more than one board as they can work on only one board at a time
                     assert(allUsers.add(s));
@@ -693,5 +1857,65 @@ public class WhiteboardServer {
                 }
             }
         }
+        finally {
+            serverLock.unlock();
+        }
+    }
+
+    /**
+     * Incremental version of checkRep(), checks only what one request could
+     * have changed: the connection that sent it and the boards it was on before
+     * and after the request. Costs O(users on those boards) instead of O(all users)
+     * Must be called with the server lock held
+     * 
+     * Here, we check the following
+     * 1. If the connection is logged in, the user name index maps its name to it,
+     *    otherwise the index does not hold it
+     * 2. The board the connection refers to is one of the server's boards
+     * 3. The users of each of the two boards are logged in, and the board's
+     *    member set agrees with its userlist in currentBoardMap
+     * 
+     * @param connInfo connection the request came from
+     * @param boardBefore board the connection referred to before the request, or null
+     */
+    private void checkRep(ConnectionInfo connInfo, Whiteboard boardBefore) {
+        if (connInfo.isLoggedIn()) {
+            assert(loggedInUsers.get(connInfo.getUserName()) == connInfo);
+        }
+        else if (connInfo.getUserName() != null) {
+            assert(loggedInUsers.get(connInfo.getUserName()) != connInfo);
+        }
+        Whiteboard board = connInfo.getWhiteboard();
+        if (board != null) {
+            assert(boardsByName.get(board.getBoardName()) == board);
+            checkBoardRep(board);
+        }
+        if (boardBefore != null && boardBefore != board) {
+            checkBoardRep(boardBefore);
+        }
+    }
+
+    /**
+     * Checks the users of one board, see checkRep(ConnectionInfo, Whiteboard)
+     * @param board whiteboard
+     */
+    private void checkBoardRep(Whiteboard board) {
+        board.getLock().lock();
+        try {
+            ArrayList<String> ulist = currentBoardMap.get(board.getBoardName());
+            if (ulist == null) return; // added through addWhiteboard(), nobody joined yet
+            assert(ulist.size() == board.getUsernames().size());
+            for (String name : ulist) {
+                assert(board.hasUser(name));
+                assert(loggedInUsers.containsKey(name));
+            }
+            // only users on the board draw on it
+            for (String name : board.getLiveStrokeUsers()) {
+                assert(board.hasUser(name));
+            }
+        }
+        finally {
+            board.getLock().unlock();
+        }
     }
 }
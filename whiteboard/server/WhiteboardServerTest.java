@@ -3,23 +3,37 @@ package whiteboard.server;
 import static org.junit.Assert.*;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import java.util.HashMap;
+import java.util.zip.DeflaterOutputStream;
 
+import org.junit.Assume;
 import org.junit.Test;
 
 
+import controller.BinaryProtocol;
 import controller.ClientMsg;
 import controller.ClientMsgType;
+import controller.FrameDecoder;
 import controller.ParseMessage;
 import controller.ServerMsg;
 import controller.ServerMsgType;
+import controller.StreamCompression;
 
 
 /** 
@@ -38,6 +52,44 @@ import controller.ServerMsgType;
  *          - verify that multiple boards can be created on server
  *          - verify that clients can switch boards
  *          - verify that when a client draws on board, server only sends new sketch to clients on that board
+ * NioModeTest- verify that the NIO server mode speaks the same protocol, including
+ *          lines that arrive split across several TCP segments
+ * VirtualModeTest- on Java 21 and later, verify that the virtual thread mode speaks the same
+ *          protocol (skipped on older releases)
+ * VirtualModeUnsupportedTest- before Java 21, verify that asking for the virtual thread mode
+ *          fails with UnsupportedOperationException, leaving the port free (skipped on 21+)
+ * FlushDelayTest- verify that with a flush delay in both the blocking and NIO modes all the
+ *          responses still arrive, in order
+ * InvariantModeTest- verify that the incremental rep invariant checks hold (checked together
+ *          with a full check after every request) while users draw, switch boards and log out
+ * KeyframeTest- verify that with keyframes a user opening a board gets the keyframe tiles and
+ *          only the strokes drawn after the keyframe
+ * JournalTest- verify that a server started on the journal of another gets its boards and strokes
+ * BinaryProtocolTest- verify that in both the blocking and NIO modes a client can switch to the
+ *          binary protocol at login, and draw with a text client on the same board, each
+ *          getting the other's strokes in its own protocol
+ * BinaryProtocolOffTest- verify that a server not allowing the binary protocol answers in text
+ * BinarySwitchTest- verify that only the first login switches a connection to the binary protocol,
+ *          and that the replies queued after the switch line are frames
+ * MixedBoardTest- verify that a stroke is encoded once per protocol, the same bytes going to
+ *          every user of the board speaking it
+ * LiveStrokeTest- verify that the points of a stroke being drawn are passed on right away to the
+ *          users who saw it begin, that it is stored when it ends or its user leaves, and that
+ *          users who opened the board in the middle of it are sent it whole
+ * LiveIngestTest- verify that a stroke watched as it was drawn is stored as drawn, so the picture
+ *          its viewers drew is the picture a user opening the board later draws, and that a
+ *          stroke nobody watched is simplified
+ * CompressionTest- verify that in both the blocking and NIO modes clients can switch to compression
+ *          at login, in text and with the binary protocol, and draw on a board with each other
+ * CompressionOffTest- verify that a server not allowing compression answers uncompressed
+ * CompressionBudgetTest- verify that the batches written to a compressed connection decode back to
+ *          the messages queued, and are stored rather than compressed while the CPU budget is spent
+ * BatchHistoryTest- verify that a user who takes batch frames is sent the history of a board as a
+ *          batch, which decodes to the same strokes as the frames sent to a user who does not
+ * ResumeTest- verify that a user asking for a resume token gets one and a sequence number after each
+ *          stroke, that logging in again with the token takes the session over, even from a
+ *          connection not yet seen to fail, and that reopening the board from a sequence number
+ *          sends only the strokes missed, or the whole board once they are no longer all kept
  */
 public class WhiteboardServerTest {
 
@@ -161,8 +213,9 @@ public class WhiteboardServerTest {
      * Run server on port 4447
      * Create a client
      * Client logs in with username "user1" and server responds with a BOARD_LIST message
-     * Client creates and opens a new board "board1" and server responds with BOARD_LIST
-     * Client closes board1 and server responds by sending client a BOARD_LIST message
+     * Client creates and opens a new board "board1" and server responds with BOARD_CREATED
+     * and USER_JOINED messages
+     * Client closes board1 and server responds by sending client a USER_LEFT message
      * Client logs out. Server removes client from board1.
      */
     @Test
@@ -196,25 +249,16 @@ public class WhiteboardServerTest {
             openBoardMsg.setBoardName("board1");
             out.println(openBoardMsg);
 
-            // server should respond with BOARD_LIST message 
-            HashMap<String, ArrayList<String>> boardlist = new HashMap<String, ArrayList<String>>();
-            ArrayList<String> userlist1 = new ArrayList<String>();
-            userlist1.add("user1");
-            boardlist.put("board1", userlist1); 
-            ServerMsg recvdMsg2 = ParseMessage.parseServerMsg(nextNonEmptyLine(in));
-            assertEquals(ServerMsgType.BOARD_LIST, recvdMsg2.getType());
-            assertEquals(boardlist, recvdMsg2.getBoardCollaboratorsList()); //boardlist should contain [board1=use1]
+            // server should announce the new board and its new user
+            checkPresence(in, ServerMsgType.BOARD_CREATED, "board1", null);
+            checkPresence(in, ServerMsgType.USER_JOINED, "board1", "user1");
 
             // client closes board1
             ClientMsg closeBoardMsg = new ClientMsg(ClientMsgType.CLOSE_BOARD);
             out.println(closeBoardMsg);
 
-            // server responds by sending an updated BOARD_LIST message to all users on that board
-            userlist1.remove("user1");
-            boardlist.put("board1", userlist1); // remove user1 from board1
-            ServerMsg recvdMsg3 = ParseMessage.parseServerMsg(nextNonEmptyLine(in));
-            assertEquals(ServerMsgType.BOARD_LIST, recvdMsg3.getType());
-            assertEquals(boardlist, recvdMsg3.getBoardCollaboratorsList()); //boardlist should contain [board1=]
+            // server responds by announcing user1 left board1 to all logged in users
+            checkPresence(in, ServerMsgType.USER_LEFT, "board1", "user1");
 
             socket.close();
         } catch (SocketTimeoutException e) {
@@ -226,7 +270,8 @@ public class WhiteboardServerTest {
      * Run server on port 4448
      * Create a client
      * Client logs in with username "user1" and server responds with a BOARD_LIST message
-     * Client creates and opens a new board "board1" and server responds with BOARD_LIST
+     * Client creates and opens a new board "board1" and server responds with BOARD_CREATED
+     * and USER_JOINED messages
      * Client sends FREEDRAW message and server propagates sketch back to client.
      */
     @Test
@@ -260,14 +305,9 @@ public class WhiteboardServerTest {
             openBoardMsg.setBoardName("board1");
             out.println(openBoardMsg);
 
-            // server should respond with BOARD_LIST message 
-            HashMap<String, ArrayList<String>> boardlist = new HashMap<String, ArrayList<String>>();
-            ArrayList<String> userlist1 = new ArrayList<String>();
-            userlist1.add("user1");
-            boardlist.put("board1", userlist1); 
-            ServerMsg recvdMsg2 = ParseMessage.parseServerMsg(nextNonEmptyLine(in));
-            assertEquals(ServerMsgType.BOARD_LIST, recvdMsg2.getType());
-            assertEquals(boardlist, recvdMsg2.getBoardCollaboratorsList()); //boardlist should contain [board1=[use1]]
+            // server should announce the new board and its new user
+            checkPresence(in, ServerMsgType.BOARD_CREATED, "board1", null);
+            checkPresence(in, ServerMsgType.USER_JOINED, "board1", "user1");
 
             // client sends FREE_DRAW message
             ClientMsg freeDrawMsg = new ClientMsg(ClientMsgType.FREE_DRAW);
@@ -295,7 +335,8 @@ public class WhiteboardServerTest {
      * Run server on port 4449
      * Create a client
      * Client logs in with username "user1" and server responds with correct BOARD_LIST message
-     * Client creates and opens a new board "board1" and server responds with correct BOARD_LIST.
+     * Client creates and opens a new board "board1" and server responds with BOARD_CREATED
+     * and USER_JOINED messages
      * Client logs out. Server removes client from board1.
      * Client logs in again with username "user1" and server should responds with correct BOARD_LIST message.
      */
@@ -330,14 +371,9 @@ public class WhiteboardServerTest {
             openBoardMsg.setBoardName("board1");
             out.println(openBoardMsg);
 
-            // server should respond with BOARD_LIST message 
-            HashMap<String, ArrayList<String>> boardlist = new HashMap<String, ArrayList<String>>();
-            ArrayList<String> userlist1 = new ArrayList<String>();
-            userlist1.add("user1");
-            boardlist.put("board1", userlist1); 
-            ServerMsg recvdMsg2 = ParseMessage.parseServerMsg(nextNonEmptyLine(in));
-            assertEquals(ServerMsgType.BOARD_LIST, recvdMsg2.getType());
-            assertEquals(boardlist, recvdMsg2.getBoardCollaboratorsList()); //boardlist should contain [board1=use1]
+            // server should announce the new board and its new user
+            checkPresence(in, ServerMsgType.BOARD_CREATED, "board1", null);
+            checkPresence(in, ServerMsgType.USER_JOINED, "board1", "user1");
 
             // Client sends logout message
             ClientMsg logOutMsg = new ClientMsg(ClientMsgType.LOGOUT);
@@ -348,8 +384,9 @@ public class WhiteboardServerTest {
             out.println(loginMsg2);
 
             // server should respond with BOARD_LIST message
-            userlist1.remove("user1");
-            boardlist.put("board1", userlist1);
+            // (the logged out user was not told it left board1)
+            HashMap<String, ArrayList<String>> boardlist = new HashMap<String, ArrayList<String>>();
+            boardlist.put("board1", new ArrayList<String>());
             ServerMsg recvdMsg3 = ParseMessage.parseServerMsg(nextNonEmptyLine(in));
             assertEquals(ServerMsgType.BOARD_LIST, recvdMsg3.getType());
             assertEquals(boardlist, recvdMsg3.getBoardCollaboratorsList()); //boardlist should contain [board1=[]]
@@ -365,15 +402,17 @@ public class WhiteboardServerTest {
      * Create two clients
      * Client1 logs in with username "user1", and server responds with a BOARD_LIST message
      * Client2 logs in with username "user2", and server responds with a BOARD_LIST message
-     * Client1 creates and opens a new board "board1", and server sends BOARD_LIST to both clients
-     * Client2 creates and opens a new board "board2", and server sends BOARD_LIST to both clients
+     * Client1 creates and opens a new board "board1", and server sends BOARD_CREATED and
+     * USER_JOINED to both clients
+     * Client2 creates and opens a new board "board2", and server sends BOARD_CREATED and
+     * USER_JOINED to both clients
      * Client1 draws on board1, and server propagates sketch to client1 only.
-     * Client2 closes board2, and server sends BOARD_LIST to client2
-     * Client2 opens used board board1 and server updates BOARD_LIST for both clients
+     * Client2 closes board2, and server sends USER_LEFT to both clients
+     * Client2 opens used board board1 and server sends USER_JOINED to both clients
      * Server also sends client2 current sketch on board1
      * Client2 draws on board1, and server propagates new sketch to both clients
-     * Client1 closes board1, and server updates BOARD_LIST for both clients
-     * Client2 closes board1, and server updates BOARD_LIST for client2 only
+     * Client1 closes board1, and server sends USER_LEFT to both clients
+     * Client2 closes board1, and server sends USER_LEFT to both clients
      * Client1 logs out
      * Client2 logs out
      */
@@ -425,17 +464,11 @@ public class WhiteboardServerTest {
             c1OpenBoard1Msg.setBoardName("board1");
             out1.println(c1OpenBoard1Msg);
 
-            // server should updated BOARD_LIST to both clients
-            HashMap<String, ArrayList<String>> boardlist = new HashMap<String, ArrayList<String>>();
-            ArrayList<String> userlist1 = new ArrayList<String>();
-            userlist1.add("user1");
-            boardlist.put("board1", userlist1); 
-            ServerMsg c1RecvdMsg2 = ParseMessage.parseServerMsg(nextNonEmptyLine(in1));
-            assertEquals(ServerMsgType.BOARD_LIST, c1RecvdMsg2.getType());
-            assertEquals(boardlist, c1RecvdMsg2.getBoardCollaboratorsList()); //boardlist should contain [board1=[use1]]
-            ServerMsg c2RecvdMsg2 = ParseMessage.parseServerMsg(nextNonEmptyLine(in2));
-            assertEquals(ServerMsgType.BOARD_LIST, c2RecvdMsg2.getType());
-            assertEquals(boardlist, c2RecvdMsg2.getBoardCollaboratorsList()); //boardlist should contain [board1=[use1]]
+            // server should announce board1 and user1 on it to both clients
+            checkPresence(in1, ServerMsgType.BOARD_CREATED, "board1", null);
+            checkPresence(in1, ServerMsgType.USER_JOINED, "board1", "user1");
+            checkPresence(in2, ServerMsgType.BOARD_CREATED, "board1", null);
+            checkPresence(in2, ServerMsgType.USER_JOINED, "board1", "user1");
 
             // client2 creates board2 by sending NEW_BOARD message
             ClientMsg c2NewBoard2Msg = new ClientMsg(ClientMsgType.NEW_BOARD);
@@ -447,16 +480,11 @@ public class WhiteboardServerTest {
             c2OpenBoard2Msg.setBoardName("board2");
             out2.println(c2OpenBoard2Msg);
 
-            // server should updated BOARD_LIST to both clients
-            ArrayList<String> userlist2 = new ArrayList<String>();
-            userlist2.add("user2");
-            boardlist.put("board2", userlist2);
-            ServerMsg c1RecvdMsg3 = ParseMessage.parseServerMsg(nextNonEmptyLine(in1));
-            assertEquals(ServerMsgType.BOARD_LIST, c1RecvdMsg3.getType());
-            assertEquals(boardlist, c1RecvdMsg3.getBoardCollaboratorsList()); //boardlist should contain [board1=[user1], board2=[user2]]
-            ServerMsg c2RecvdMsg3 = ParseMessage.parseServerMsg(nextNonEmptyLine(in2));
-            assertEquals(ServerMsgType.BOARD_LIST, c2RecvdMsg3.getType());
-            assertEquals(boardlist, c2RecvdMsg3.getBoardCollaboratorsList()); //boardlist should contain [board1=[user1], board2=[user2]]
+            // server should announce board2 and user2 on it to both clients
+            checkPresence(in1, ServerMsgType.BOARD_CREATED, "board2", null);
+            checkPresence(in1, ServerMsgType.USER_JOINED, "board2", "user2");
+            checkPresence(in2, ServerMsgType.BOARD_CREATED, "board2", null);
+            checkPresence(in2, ServerMsgType.USER_JOINED, "board2", "user2");
 
             // client1 draws on board1 by sending FREE_DRAW message
             ClientMsg freeDrawMsg = new ClientMsg(ClientMsgType.FREE_DRAW);
@@ -481,28 +509,18 @@ public class WhiteboardServerTest {
             ClientMsg c2CloseBoard2Msg = new ClientMsg(ClientMsgType.CLOSE_BOARD);
             out2.println(c2CloseBoard2Msg);
 
-            // server responds by sending an updated BOARD_LIST message to client2 only
-            // because client 2 is the only user on board2
-            userlist2.remove("user2");
-            boardlist.put("board2", userlist2);
-            ServerMsg c2RecvdMsg4 = ParseMessage.parseServerMsg(nextNonEmptyLine(in2));
-            assertEquals(ServerMsgType.BOARD_LIST, c2RecvdMsg4.getType());
-            assertEquals(boardlist, c2RecvdMsg4.getBoardCollaboratorsList()); //boardlist should contain [board1=[user1], board2=[]]
+            // server announces user2 left board2 to both clients
+            checkPresence(in1, ServerMsgType.USER_LEFT, "board2", "user2");
+            checkPresence(in2, ServerMsgType.USER_LEFT, "board2", "user2");
 
             // client2 opens board1 by sending OPEN_BOARD message
             ClientMsg c2OpenBoard1Msg = new ClientMsg(ClientMsgType.OPEN_BOARD);
             c2OpenBoard1Msg.setBoardName("board1");
             out2.println(c2OpenBoard1Msg);
 
-            // server should updated BOARD_LIST to both clients
-            userlist1.add("user2");
-            boardlist.put("board1", userlist1);
-            ServerMsg c1RecvdMsg5 = ParseMessage.parseServerMsg(nextNonEmptyLine(in1));
-            assertEquals(ServerMsgType.BOARD_LIST, c1RecvdMsg5.getType());
-            assertEquals(boardlist, c1RecvdMsg5.getBoardCollaboratorsList()); //boardlist should contain [board1=[user1, user2], board2=[]]
-            ServerMsg c2RecvdMsg5 = ParseMessage.parseServerMsg(nextNonEmptyLine(in2));
-            assertEquals(boardlist, c2RecvdMsg5.getBoardCollaboratorsList()); //boardlist should contain [board1=[user1, user2], board2=[]]
-            assertEquals(ServerMsgType.BOARD_LIST, c2RecvdMsg5.getType());
+            // server should announce user2 on board1 to both clients
+            checkPresence(in1, ServerMsgType.USER_JOINED, "board1", "user2");
+            checkPresence(in2, ServerMsgType.USER_JOINED, "board1", "user2");
 
             // server should send client2 current the current sketch on board1
             ServerMsg c2RecvdMsg6 = ParseMessage.parseServerMsg(nextNonEmptyLine(in2));
@@ -530,27 +548,18 @@ public class WhiteboardServerTest {
             ClientMsg c1CloseBoard1Msg = new ClientMsg(ClientMsgType.CLOSE_BOARD);
             out1.println(c1CloseBoard1Msg);
 
-            // server responds by sending an updated BOARD_LIST message to both clients
-            userlist1.remove("user1");
-            boardlist.put("board1", userlist1);
-            ServerMsg c1RecvdMsg7 = ParseMessage.parseServerMsg(nextNonEmptyLine(in1));
-            assertEquals(ServerMsgType.BOARD_LIST, c1RecvdMsg7.getType());
-            assertEquals(boardlist, c1RecvdMsg7.getBoardCollaboratorsList()); //boardlist should contain [board1=[user2], board2=[]]
-            ServerMsg c2RecvdMsg8 = ParseMessage.parseServerMsg(nextNonEmptyLine(in2));
-            assertEquals(ServerMsgType.BOARD_LIST, c2RecvdMsg8.getType());
-            assertEquals(boardlist, c2RecvdMsg8.getBoardCollaboratorsList()); //boardlist should contain [board1=[user2], board2=[]]
+            // server announces user1 left board1 to both clients
+            checkPresence(in1, ServerMsgType.USER_LEFT, "board1", "user1");
+            checkPresence(in2, ServerMsgType.USER_LEFT, "board1", "user1");
 
             // client2 closes board1
             ClientMsg c2CloseBoard1Msg = new ClientMsg(ClientMsgType.CLOSE_BOARD);
             out2.println(c2CloseBoard1Msg);
 
-            // server responds by sending an updated BOARD_LIST message to client2 only
-            // because client 2 is the only user on board1
-            userlist1.remove("user2");
-            boardlist.put("board1", userlist1);
-            ServerMsg c2RecvdMsg9 = ParseMessage.parseServerMsg(nextNonEmptyLine(in2));
-            assertEquals(ServerMsgType.BOARD_LIST, c2RecvdMsg9.getType());
-            assertEquals(boardlist, c2RecvdMsg9.getBoardCollaboratorsList()); //boardlist should contain [board1=[], board2=[]]
+            // server announces user2 left board1 to both clients, client1 is
+            // still logged in although it is not on any board
+            checkPresence(in1, ServerMsgType.USER_LEFT, "board1", "user2");
+            checkPresence(in2, ServerMsgType.USER_LEFT, "board1", "user2");
 
             // client1 sends logout message
             ClientMsg logOut1Msg = new ClientMsg(ClientMsgType.LOGOUT);
@@ -569,12 +578,962 @@ public class WhiteboardServerTest {
     }
 
 
+    /* NIO server mode
+     * Run server on port 4451 in NIO mode
+     * Create a client
+     * Client logs in with username "user1" and server responds with a BOARD_LIST message
+     * Client creates and opens a new board "board1" and server responds with BOARD_CREATED
+     * and USER_JOINED messages
+     * Client sends FREEDRAW message in two pieces and server propagates sketch back to client.
+     * A second client opens board1 and server sends it the current sketch
+     */
+    @Test
+    public void NioModeTest() throws InterruptedException, IOException {
+        ServerConfig config = new ServerConfig();
+        config.setPort(4451);
+        config.setMode(ServerMode.NIO);
+        config.setEventLoops(2);
+        startServer(config);
+        Thread.sleep(100); // Avoid race condition where we try to connect to server too early
+        Socket socket1;
+        Socket socket2;
+        try {
+            socket1 = new Socket("localhost",4451);
+            socket1.setSoTimeout(3000);
+            BufferedReader in1 = new BufferedReader(new InputStreamReader(socket1.getInputStream()));
+            PrintWriter out1 = new PrintWriter(socket1.getOutputStream(),true);
+
+            // client sends LOGIN message
+            ClientMsg loginMsg = new ClientMsg(ClientMsgType.LOGIN);
+            loginMsg.setUserName("user1");
+            out1.println(loginMsg);
+
+            // server should respond with BOARD_LIST message
+            ServerMsg recvdMsg1 = ParseMessage.parseServerMsg(nextNonEmptyLine(in1));
+            assertEquals(ServerMsgType.BOARD_LIST, recvdMsg1.getType());
+            assertEquals(null, recvdMsg1.getBoardCollaboratorsList()); //boardlist should be empty
+
+            // client sends NEW_BOARD and OPEN_BOARD messages
+            ClientMsg newBoardMsg = new ClientMsg(ClientMsgType.NEW_BOARD);
+            newBoardMsg.setBoardName("board1");
+            out1.println(newBoardMsg);
+            ClientMsg openBoardMsg = new ClientMsg(ClientMsgType.OPEN_BOARD);
+            openBoardMsg.setBoardName("board1");
+            out1.println(openBoardMsg);
+
+            // server should announce the new board and its new user
+            checkPresence(in1, ServerMsgType.BOARD_CREATED, "board1", null);
+            checkPresence(in1, ServerMsgType.USER_JOINED, "board1", "user1");
+
+            // client sends FREE_DRAW message split in two writes
+            out1.print("freedraw,color=black,size=10,co");
+            out1.flush();
+            Thread.sleep(50);
+            out1.println("ord=1:1;1:2;1:3;2:3");
+
+            // server should respond by propagating the sketch back to user
+            ServerMsg recvdMsg3 = ParseMessage.parseServerMsg(nextNonEmptyLine(in1));
+            assertEquals(ServerMsgType.FREE_DRAW, recvdMsg3.getType());
+            assertEquals("[1:1, 1:2, 1:3, 2:3]", recvdMsg3.getCoordinateList().toString());
+
+            // second client logs in and opens board1
+            socket2 = new Socket("localhost",4451);
+            socket2.setSoTimeout(3000);
+            BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+            PrintWriter out2 = new PrintWriter(socket2.getOutputStream(),true);
+            ClientMsg loginMsg2 = new ClientMsg(ClientMsgType.LOGIN);
+            loginMsg2.setUserName("user2");
+            out2.println(loginMsg2);
+            ServerMsg c2RecvdMsg1 = ParseMessage.parseServerMsg(nextNonEmptyLine(in2));
+            assertEquals(ServerMsgType.BOARD_LIST, c2RecvdMsg1.getType());
+            out2.println(openBoardMsg);
+
+            // server announces user2 on board1 and then sends the current sketch on board1
+            checkPresence(in2, ServerMsgType.USER_JOINED, "board1", "user2");
+            ServerMsg c2RecvdMsg3 = ParseMessage.parseServerMsg(nextNonEmptyLine(in2));
+            assertEquals(ServerMsgType.FREE_DRAW, c2RecvdMsg3.getType());
+
+            socket1.close();
+            socket2.close();
+        } catch (SocketTimeoutException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* Virtual thread server mode
+     * Skipped before Java 21
+     * Run server on port 4481 in virtual thread mode
+     * Two clients log in, client 1 creates and opens board1 and draws on it, client 2 opens board1
+     * Client 1 gets its stroke back and client 2 gets the current sketch
+     */
+    @Test
+    public void VirtualModeTest() throws InterruptedException, IOException {
+        Assume.assumeTrue(Runtime.version().feature() >= 21);
+        ServerConfig config = new ServerConfig();
+        config.setPort(4481);
+        config.setMode(ServerMode.VIRTUAL_THREAD);
+        startServer(config);
+        Thread.sleep(100); // Avoid race condition where we try to connect to server too early
+        try {
+            Socket socket1 = new Socket("localhost", 4481);
+            socket1.setSoTimeout(3000);
+            BufferedReader in1 = new BufferedReader(new InputStreamReader(socket1.getInputStream()));
+            PrintWriter out1 = new PrintWriter(socket1.getOutputStream(), true);
+            out1.println("login,user=user1");
+            assertEquals(ServerMsgType.BOARD_LIST, ParseMessage.parseServerMsg(nextNonEmptyLine(in1)).getType());
+            out1.println("new,whiteboard=board1");
+            out1.println("open,whiteboard=board1");
+            checkPresence(in1, ServerMsgType.BOARD_CREATED, "board1", null);
+            checkPresence(in1, ServerMsgType.USER_JOINED, "board1", "user1");
+            out1.println("freedraw,color=black,size=10,coord=1:1;1:2;1:3;2:3");
+            ServerMsg echo = ParseMessage.parseServerMsg(nextNonEmptyLine(in1));
+            assertEquals(ServerMsgType.FREE_DRAW, echo.getType());
+            assertEquals("[1:1, 1:2, 1:3, 2:3]", echo.getCoordinateList().toString());
+
+            Socket socket2 = new Socket("localhost", 4481);
+            socket2.setSoTimeout(3000);
+            BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+            PrintWriter out2 = new PrintWriter(socket2.getOutputStream(), true);
+            out2.println("login,user=user2");
+            assertEquals(ServerMsgType.BOARD_LIST, ParseMessage.parseServerMsg(nextNonEmptyLine(in2)).getType());
+            out2.println("open,whiteboard=board1");
+            checkPresence(in2, ServerMsgType.USER_JOINED, "board1", "user2");
+            ServerMsg sketch = ParseMessage.parseServerMsg(nextNonEmptyLine(in2));
+            assertEquals(ServerMsgType.FREE_DRAW, sketch.getType());
+            assertEquals("[1:1, 1:2, 1:3, 2:3]", sketch.getCoordinateList().toString());
+
+            socket1.close();
+            socket2.close();
+        } catch (SocketTimeoutException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* Virtual thread server mode, unsupported
+     * Skipped on Java 21 and later
+     * Creating a server on port 4482 in virtual thread mode throws UnsupportedOperationException
+     * and port 4482 can still be bound afterwards
+     */
+    @Test
+    public void VirtualModeUnsupportedTest() throws IOException {
+        Assume.assumeTrue(Runtime.version().feature() < 21);
+        ServerConfig config = new ServerConfig();
+        config.setPort(4482);
+        config.setMode(ServerMode.VIRTUAL_THREAD);
+        try {
+            new WhiteboardServer(config);
+            fail("virtual thread mode started without virtual threads");
+        } catch (UnsupportedOperationException e) {
+            assertEquals("virtual thread mode needs Java 21 or later", e.getMessage());
+        }
+        new ServerSocket(4482).close();
+    }
+
+    /* Flush Delay
+     * Run servers on port 4452 (thread per connection) and 4453 (NIO), both holding
+     * responses back for up to 20 ms
+     * Client logs in, opens board1 and draws 20 strokes without waiting
+     * Server echoes all 20 strokes in the order they were drawn
+     */
+    @Test
+    public void FlushDelayTest() throws InterruptedException, IOException {
+        ServerConfig config = new ServerConfig();
+        config.setPort(4452);
+        config.setFlushDelayMillis(20);
+        startServer(config);
+        ServerConfig nioConfig = new ServerConfig();
+        nioConfig.setPort(4453);
+        nioConfig.setMode(ServerMode.NIO);
+        nioConfig.setFlushDelayMillis(20);
+        startServer(nioConfig);
+        Thread.sleep(100); // Avoid race condition where we try to connect to server too early
+        checkStrokesEchoedInOrder(4452);
+        checkStrokesEchoedInOrder(4453);
+    }
+
+    /* Invariant Modes
+     * Run server on port 4454 in SAMPLED mode with a full check after every request
+     * (an assert failing in the checks stops the server, so the client would time out)
+     * Client draws on board3, switches to board2, draws there and logs out
+     * Second client then logs in with the same name and draws on board1
+     */
+    @Test
+    public void InvariantModeTest() throws InterruptedException, IOException {
+        ServerConfig config = new ServerConfig();
+        config.setPort(4454);
+        config.setInvariantMode(InvariantMode.SAMPLED);
+        config.setInvariantSampleInterval(1);
+        startServer(config);
+        Thread.sleep(100); // Avoid race condition where we try to connect to server too early
+        Socket socket = new Socket("localhost", 4454);
+        try {
+            socket.setSoTimeout(3000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(),true);
+            out.println("login,user=user1");
+            assertEquals(ServerMsgType.BOARD_LIST, ParseMessage.parseServerMsg(nextNonEmptyLine(in)).getType());
+            out.println("open,whiteboard=board3");
+            checkPresence(in, ServerMsgType.BOARD_CREATED, "board3", null);
+            checkPresence(in, ServerMsgType.USER_JOINED, "board3", "user1");
+            out.println("freedraw,color=red,size=2,coord=1:1");
+            assertEquals(ServerMsgType.FREE_DRAW, ParseMessage.parseServerMsg(nextNonEmptyLine(in)).getType());
+            out.println("close");
+            checkPresence(in, ServerMsgType.USER_LEFT, "board3", "user1");
+            out.println("open,whiteboard=board2");
+            checkPresence(in, ServerMsgType.BOARD_CREATED, "board2", null);
+            checkPresence(in, ServerMsgType.USER_JOINED, "board2", "user1");
+            out.println("freedraw,color=red,size=2,coord=2:2");
+            assertEquals(ServerMsgType.FREE_DRAW, ParseMessage.parseServerMsg(nextNonEmptyLine(in)).getType());
+            out.println("logout");
+        } catch (SocketTimeoutException e) {
+            throw new RuntimeException(e);
+        } finally {
+            socket.close();
+        }
+        Thread.sleep(100); // let the server clean up the first connection
+        checkStrokesEchoedInOrder(4454);
+    }
+
+    /* Keyframes
+     * Run server on port 4455 keeping a keyframe of each board every 2 strokes
+     * Client1 opens board1 and draws 3 strokes, the first 2 go in the keyframe,
+     * which is rendered in the background
+     * Client2 opens board1 and server sends it the keyframe tile the strokes are in
+     * and then the third stroke
+     */
+    @Test
+    public void KeyframeTest() throws InterruptedException, IOException {
+        ServerConfig config = new ServerConfig();
+        config.setPort(4455);
+        config.setKeyframeInterval(2);
+        startServer(config);
+        Thread.sleep(100); // Avoid race condition where we try to connect to server too early
+        Socket socket1 = new Socket("localhost", 4455);
+        Socket socket2 = new Socket("localhost", 4455);
+        try {
+            socket1.setSoTimeout(3000);
+            BufferedReader in1 = new BufferedReader(new InputStreamReader(socket1.getInputStream()));
+            PrintWriter out1 = new PrintWriter(socket1.getOutputStream(),true);
+            out1.println("login,user=user1");
+            assertEquals(ServerMsgType.BOARD_LIST, ParseMessage.parseServerMsg(nextNonEmptyLine(in1)).getType());
+            out1.println("open,whiteboard=board1");
+            checkPresence(in1, ServerMsgType.BOARD_CREATED, "board1", null);
+            checkPresence(in1, ServerMsgType.USER_JOINED, "board1", "user1");
+            for (int i = 1; i <= 3; i++) {
+                out1.println("freedraw,color=red,size=5,coord=10:" + (10 * i) + ";100:" + (10 * i));
+                assertEquals(ServerMsgType.FREE_DRAW, ParseMessage.parseServerMsg(nextNonEmptyLine(in1)).getType());
+            }
+            Thread.sleep(1000); // let the server render the keyframe in the background
+
+            socket2.setSoTimeout(3000);
+            BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+            PrintWriter out2 = new PrintWriter(socket2.getOutputStream(),true);
+            out2.println("login,user=user2");
+            assertEquals(ServerMsgType.BOARD_LIST, ParseMessage.parseServerMsg(nextNonEmptyLine(in2)).getType());
+            out2.println("open,whiteboard=board1");
+            checkPresence(in2, ServerMsgType.USER_JOINED, "board1", "user2");
+            ServerMsg tile = ParseMessage.parseServerMsg(nextNonEmptyLine(in2));
+            assertEquals(ServerMsgType.KEYFRAME, tile.getType());
+            assertEquals(0, tile.getTileX());
+            assertEquals(0, tile.getTileY());
+            ServerMsg stroke = ParseMessage.parseServerMsg(nextNonEmptyLine(in2));
+            assertEquals(ServerMsgType.FREE_DRAW, stroke.getType());
+            assertEquals("[10:30, 100:30]", stroke.getCoordinateList().toString());
+        } catch (SocketTimeoutException e) {
+            throw new RuntimeException(e);
+        } finally {
+            socket1.close();
+            socket2.close();
+        }
+    }
+
+    /* Journal
+     * Run server on port 4456 with a journal
+     * Client1 creates board1 and board2 and draws 2 strokes on board1
+     * A server started on port 4457 with the same journal has both boards,
+     * board1 with the 2 strokes and no users
+     */
+    @Test
+    public void JournalTest() throws InterruptedException, IOException {
+        File dir = Files.createTempDirectory("journal").toFile();
+        ServerConfig config = new ServerConfig();
+        config.setPort(4456);
+        config.setJournalDir(dir.getPath());
+        startServer(config);
+        Thread.sleep(100); // Avoid race condition where we try to connect to server too early
+        Socket socket = new Socket("localhost", 4456);
+        try {
+            socket.setSoTimeout(3000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(),true);
+            out.println("login,user=user1");
+            assertEquals(ServerMsgType.BOARD_LIST, ParseMessage.parseServerMsg(nextNonEmptyLine(in)).getType());
+            out.println("new,whiteboard=board2");
+            checkPresence(in, ServerMsgType.BOARD_CREATED, "board2", null);
+            out.println("open,whiteboard=board1");
+            checkPresence(in, ServerMsgType.BOARD_CREATED, "board1", null);
+            checkPresence(in, ServerMsgType.USER_JOINED, "board1", "user1");
+            out.println("freedraw,color=red,size=5,coord=10:10;100:10");
+            out.println("freedraw,color=blue,size=1,coord=-3:70000");
+            assertEquals(ServerMsgType.FREE_DRAW, ParseMessage.parseServerMsg(nextNonEmptyLine(in)).getType());
+            assertEquals(ServerMsgType.FREE_DRAW, ParseMessage.parseServerMsg(nextNonEmptyLine(in)).getType());
+        } catch (SocketTimeoutException e) {
+            throw new RuntimeException(e);
+        } finally {
+            socket.close();
+        }
+
+        ServerConfig restartConfig = new ServerConfig();
+        restartConfig.setPort(4457);
+        restartConfig.setJournalDir(dir.getPath());
+        WhiteboardServer restarted = new WhiteboardServer(restartConfig);
+        ArrayList<Whiteboard> boards = restarted.getWhiteboards();
+        assertEquals(2, boards.size());
+        assertEquals("board2", boards.get(0).getBoardName());
+        assertEquals("board1", boards.get(1).getBoardName());
+        StrokeStore sketches = boards.get(1).getSketches();
+        assertEquals(2, sketches.size());
+        assertEquals(70000, sketches.getY(1, 0));
+        assertTrue(boards.get(1).getUsernames().isEmpty());
+    }
+
+    /* Binary Protocol
+     * Run servers on port 4466 (thread per connection) and 4467 (NIO)
+     * A binary client logs in asking for the binary protocol, and opens board1
+     * A text client opens board1 too
+     * Each draws a stroke, and both get both strokes in their own protocol
+     */
+    @Test
+    public void BinaryProtocolTest() throws InterruptedException, IOException {
+        startServer(4466);
+        ServerConfig nioConfig = new ServerConfig();
+        nioConfig.setPort(4467);
+        nioConfig.setMode(ServerMode.NIO);
+        startServer(nioConfig);
+        Thread.sleep(100); // Avoid race condition where we try to connect to server too early
+        checkBinaryAndTextClients(4466);
+        checkBinaryAndTextClients(4467);
+    }
+
+    /* Binary Protocol Off
+     * Run server on port 4468 not allowing the binary protocol
+     * Client logs in asking for the binary protocol, and is answered in text
+     */
+    @Test
+    public void BinaryProtocolOffTest() throws InterruptedException, IOException {
+        ServerConfig config = new ServerConfig();
+        config.setPort(4468);
+        config.setBinaryProtocol(false);
+        startServer(config);
+        Thread.sleep(100); // Avoid race condition where we try to connect to server too early
+        Socket socket = new Socket("localhost", 4468);
+        try {
+            socket.setSoTimeout(3000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(),true);
+            out.println("login,user=user1,protocol=2");
+            assertEquals(ServerMsgType.BOARD_LIST, ParseMessage.parseServerMsg(nextNonEmptyLine(in)).getType());
+            out.println("open,whiteboard=board1");
+            checkPresence(in, ServerMsgType.BOARD_CREATED, "board1", null);
+        } finally {
+            socket.close();
+        }
+    }
+
+    /* Binary Switch
+     * Server is not served, the lines are handed to it as if read from two connections
+     * The first logs in asking for the binary protocol, the second logs in in text then asks for it
+     */
+    @Test
+    public void BinarySwitchTest() throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.setPort(4476);
+        WhiteboardServer server = new WhiteboardServer(config);
+        ConnectionInfo first = new ConnectionInfo(new OutboundQueue(16, OverflowPolicy.DROP_CONNECTION));
+        server.receiveLine(first, "login,user=user1,protocol=2");
+        assertTrue(first.isBinary());
+        first.send(new ServerMsg(ServerMsgType.DUPLICATE_NAME));
+        ByteBuffer[] batch = new ByteBuffer[2];
+        assertEquals(2, first.getOutboundQueue().peek(batch));
+        assertEquals(BinaryProtocol.SWITCH_LINE + "\n",
+                new String(batch[0].array(), 0, batch[0].limit(), StandardCharsets.UTF_8));
+        assertEquals(BinaryProtocol.TEXT, batch[1].get(0));
+
+        ConnectionInfo second = new ConnectionInfo(new OutboundQueue(16, OverflowPolicy.DROP_CONNECTION));
+        server.receiveLine(second, "login,user=user2");
+        server.receiveLine(second, "login,user=user2,protocol=2");
+        assertFalse(second.isBinary());
+        assertEquals("", TestSupport.received(second));
+    }
+
+    /* Mixed Board
+     * Server is not served, two binary users and a text user are on board1
+     * A stroke is drawn, the binary users are sent the same frame and the text user the text
+     */
+    @Test
+    public void MixedBoardTest() throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.setPort(4469);
+        WhiteboardServer server = new WhiteboardServer(config);
+        ConnectionInfo[] users = new ConnectionInfo[3];
+        for (int u = 0; u < users.length; u++) {
+            users[u] = new ConnectionInfo(new OutboundQueue(16, OverflowPolicy.DROP_CONNECTION));
+            if (u < 2) users[u].setBinary();
+            server.processLogin(users[u], ParseMessage.parseClientMsg("login,user=user" + u));
+            server.processOpenBoard(users[u], ParseMessage.parseClientMsg("open,whiteboard=board1"));
+        }
+        for (ConnectionInfo user : users) {
+            user.getOutboundQueue().remove(user.getOutboundQueue().size());
+        }
+        server.processFreeDraw(users[2], users[2].getWhiteboard(),
+                ParseMessage.parseClientMsg("freedraw,color=blue,size=3,coord=10:20;12:19"));
+
+        ByteBuffer[] sent = new ByteBuffer[3];
+        for (int u = 0; u < users.length; u++) {
+            ByteBuffer[] batch = new ByteBuffer[1];
+            assertEquals(1, users[u].getOutboundQueue().peek(batch));
+            sent[u] = batch[0];
+        }
+        assertSame(sent[0].array(), sent[1].array());
+        assertEquals(BinaryProtocol.encodeStroke((byte) 2, 3, new int[] {10, 20, 12, 19}, 2), sent[0]);
+        assertEquals("freedraw,color=blue,size=3,coord=10:20;12:19\n",
+                new String(sent[2].array(), 0, sent[2].limit(), StandardCharsets.UTF_8));
+    }
+
+    /* Strokes drawn incrementally
+     * The server is not served, the requests are processed by hand
+     * user0 draws, user1 is on the board from the start, user2 opens it in the middle of the stroke
+     */
+    @Test
+    public void LiveStrokeTest() throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.setPort(4470);
+        WhiteboardServer server = new WhiteboardServer(config);
+        ConnectionInfo[] users = new ConnectionInfo[3];
+        for (int u = 0; u < users.length; u++) {
+            users[u] = new ConnectionInfo(new OutboundQueue(16, OverflowPolicy.DROP_CONNECTION));
+            server.processLogin(users[u], ParseMessage.parseClientMsg("login,user=user" + u));
+        }
+        for (int u = 0; u < 2; u++) {
+            server.processOpenBoard(users[u], ParseMessage.parseClientMsg("open,whiteboard=board1"));
+        }
+        Whiteboard board = users[0].getWhiteboard();
+        clearQueues(users);
+
+        server.processLiveStroke(users[0], board,
+                ParseMessage.parseClientMsg("strokebegin,color=red,size=4,coord=1:1;2:2"));
+        server.processLiveStroke(users[0], board, ParseMessage.parseClientMsg("strokeappend,coord=3:3"));
+        assertEquals(0, board.getSketches().size());
+        assertEquals("", TestSupport.received(users[0]));
+        assertEquals("strokebegin,user=user0,color=red,size=4,coord=1:1;2:2\n"
+                + "strokeappend,user=user0,coord=3:3\n", TestSupport.received(users[1]));
+
+        server.processOpenBoard(users[2], ParseMessage.parseClientMsg("open,whiteboard=board1"));
+        clearQueues(users);
+        server.processLiveStroke(users[0], board, ParseMessage.parseClientMsg("strokeappend,coord=4:4"));
+        server.processLiveStroke(users[0], board, ParseMessage.parseClientMsg("strokeend,coord=5:5"));
+        assertEquals(1, board.getSketches().size());
+        assertEquals(5, board.getSketches().getPointCount(0));
+        assertEquals("", TestSupport.received(users[0]));
+        assertEquals("strokeappend,user=user0,coord=4:4\nstrokeend,user=user0,coord=5:5\n", TestSupport.received(users[1]));
+        assertEquals("freedraw,color=red,size=4,coord=1:1;2:2;3:3;4:4;5:5\n", TestSupport.received(users[2]));
+
+        // ended without a strokeend when its user leaves, nothing after that is drawn
+        server.processLiveStroke(users[1], board,
+                ParseMessage.parseClientMsg("strokebegin,color=blue,size=1,coord=7:7;8:8"));
+        clearQueues(users);
+        server.processCloseBoard(users[1], ParseMessage.parseClientMsg("close"));
+        server.processLiveStroke(users[1], board, ParseMessage.parseClientMsg("strokeappend,coord=9:9"));
+        assertEquals(2, board.getSketches().size());
+        assertEquals(2, board.getSketches().getPointCount(1));
+        assertTrue(TestSupport.received(users[0]).startsWith("strokeend,user=user1\n"));
+    }
+
+    /* Live Ingest
+     * Server clipping and simplifying strokes is not served, user0 and user1 are on board1
+     * user0 draws a stroke reaching out of the board, with points on a line, that user1 watches
+     * user2 then opens board1, and user0 draws a stroke nobody watches on board2
+     */
+    @Test
+    public void LiveIngestTest() throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.setPort(4480);
+        config.setClipStrokes(true);
+        config.setSimplifyTolerance(1);
+        WhiteboardServer server = new WhiteboardServer(config);
+        ConnectionInfo[] users = new ConnectionInfo[3];
+        for (int u = 0; u < users.length; u++) {
+            users[u] = new ConnectionInfo(new OutboundQueue(64, OverflowPolicy.DROP_CONNECTION));
+            server.processLogin(users[u], ParseMessage.parseClientMsg("login,user=user" + u));
+        }
+        for (int u = 0; u < 2; u++) {
+            server.processOpenBoard(users[u], ParseMessage.parseClientMsg("open,whiteboard=board1"));
+        }
+        Whiteboard board = users[0].getWhiteboard();
+        clearQueues(users);
+
+        server.processLiveStroke(users[0], board,
+                ParseMessage.parseClientMsg("strokebegin,color=blue,size=6,coord=10:10;20:20;30:30;40:40"));
+        server.processLiveStroke(users[0], board,
+                ParseMessage.parseClientMsg("strokeappend,coord=5000:40;5000:-3000;100:100"));
+        server.processLiveStroke(users[0], board,
+                ParseMessage.parseClientMsg("strokeappend,coord=110:100;120:100;130:100"));
+        server.processLiveStroke(users[0], board, ParseMessage.parseClientMsg("strokeend,coord=140:100"));
+        assertEquals(1, board.getSketches().size());
+
+        // the stroke as user1 drew it, from the partial messages
+        String[] lines = TestSupport.received(users[1]).split("\n");
+        assertEquals(4, lines.length);
+        ServerMsg begin = ParseMessage.parseServerMsg(lines[0]);
+        int[] drawn = Arrays.copyOf(begin.getPoints(), 2 * begin.getPointCount());
+        for (int i = 1; i < lines.length; i++) {
+            ServerMsg part = ParseMessage.parseServerMsg(lines[i]);
+            int start = drawn.length;
+            drawn = Arrays.copyOf(drawn, start + 2 * part.getPointCount());
+            System.arraycopy(part.getPoints(), 0, drawn, start, 2 * part.getPointCount());
+        }
+        StrokeStore viewer = new StrokeStore();
+        TestSupport.add(viewer, begin.getColor(), begin.getLineSize(), drawn);
+
+        // the stroke as user2 draws it when it opens the board
+        server.processOpenBoard(users[2], ParseMessage.parseClientMsg("open,whiteboard=board1"));
+        StrokeStore joiner = new StrokeStore();
+        for (String line : TestSupport.received(users[2]).split("\n")) {
+            if (!line.startsWith("freedraw")) continue;
+            ServerMsg stroke = ParseMessage.parseServerMsg(line);
+            TestSupport.add(joiner, stroke.getColor(), stroke.getLineSize(),
+                    Arrays.copyOf(stroke.getPoints(), 2 * stroke.getPointCount()));
+        }
+        assertEquals(1, joiner.size());
+        assertEquals(TestSupport.picture(viewer), TestSupport.picture(joiner));
+        // stored as drawn
+        assertEquals(11, board.getSketches().getPointCount(0));
+
+        server.processOpenBoard(users[0], ParseMessage.parseClientMsg("open,whiteboard=board2"));
+        Whiteboard board2 = users[0].getWhiteboard();
+        server.processLiveStroke(users[0], board2,
+                ParseMessage.parseClientMsg("strokebegin,color=red,size=2,coord=0:0;1:0;2:0"));
+        server.processLiveStroke(users[0], board2, ParseMessage.parseClientMsg("strokeend,coord=3:0;4:0"));
+        assertEquals(2, board2.getSketches().getPointCount(0));
+    }
+
+    /* Batch frames
+     * Server is not served, user0 draws on board1, then user1 (protocol 3) and user2 (protocol 2) open it
+     * user1 gets the history as one batch frame, holding the frames user2 gets one by one
+     */
+    @Test
+    public void BatchHistoryTest() throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.setPort(4474);
+        WhiteboardServer server = new WhiteboardServer(config);
+        ConnectionInfo[] users = new ConnectionInfo[3];
+        for (int u = 0; u < users.length; u++) {
+            users[u] = new ConnectionInfo(new OutboundQueue(16, OverflowPolicy.DROP_CONNECTION));
+            server.processLogin(users[u], ParseMessage.parseClientMsg("login,user=user" + u));
+        }
+        users[1].setBinary(BinaryProtocol.BATCH_VERSION);
+        users[2].setBinary();
+        assertTrue(users[1].takesBatches());
+        assertFalse(users[2].takesBatches());
+        server.processOpenBoard(users[0], ParseMessage.parseClientMsg("open,whiteboard=board1"));
+        for (int i = 0; i < 5; i++) {
+            server.processFreeDraw(users[0], users[0].getWhiteboard(),
+                    ParseMessage.parseClientMsg("freedraw,color=green,size=" + i + ",coord=1:2;3:" + i));
+        }
+        clearQueues(users);
+        server.processOpenBoard(users[1], ParseMessage.parseClientMsg("open,whiteboard=board1"));
+        server.processOpenBoard(users[2], ParseMessage.parseClientMsg("open,whiteboard=board1"));
+
+        final ArrayList<String> strokes = new ArrayList<String>();
+        FrameDecoder decoder = new FrameDecoder() {
+            @Override
+            protected void line(String line) {
+            }
+
+            @Override
+            protected void stroke(byte color, int lineSize, int[] points, int pointCount) {
+                strokes.add(color + "," + lineSize + "," + Arrays.toString(Arrays.copyOf(points, pointCount * 2)));
+            }
+        };
+        decoder.setBinary();
+        boolean batched = false;
+        ByteBuffer[] batch = new ByteBuffer[1];
+        while (users[1].getOutboundQueue().peek(batch) == 1) {
+            if (batch[0].get(0) == BinaryProtocol.BATCH) batched = true;
+            decoder.decode(batch[0].duplicate());
+            users[1].getOutboundQueue().remove(1);
+        }
+        assertTrue(batched);
+        ArrayList<String> batchStrokes = new ArrayList<String>(strokes);
+        assertEquals(5, batchStrokes.size());
+        strokes.clear();
+        while (users[2].getOutboundQueue().peek(batch) == 1) {
+            assertTrue(batch[0].get(0) != BinaryProtocol.BATCH);
+            decoder.decode(batch[0].duplicate());
+            users[2].getOutboundQueue().remove(1);
+        }
+        assertEquals(batchStrokes, strokes);
+    }
+
+    /* Resumable sessions
+     * Server is not served and keeps 2 to 4 recent strokes, user0 draws on board1 and user1 views it
+     * user1 logs in again with its token while still logged in, reopens board1 from the last stroke
+     * it got and is sent the 2 strokes it missed. Its connection then closes, 5 more strokes are
+     * drawn, and when it reopens board1 it is sent all 8
+     */
+    @Test
+    public void ResumeTest() throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.setPort(4475);
+        config.setResumeStrokes(2);
+        WhiteboardServer server = new WhiteboardServer(config);
+        ConnectionInfo[] users = new ConnectionInfo[2];
+        for (int u = 0; u < users.length; u++) {
+            users[u] = new ConnectionInfo(new OutboundQueue(64, OverflowPolicy.DROP_CONNECTION));
+        }
+        server.processLogin(users[0], ParseMessage.parseClientMsg("login,user=user0"));
+        server.processLogin(users[1], ParseMessage.parseClientMsg("login,user=user1,resume=new"));
+        String text = TestSupport.received(users[1]);
+        int start = text.indexOf("session,token=");
+        assertTrue(start >= 0);
+        String token = ParseMessage.parseServerMsg(text.substring(start, text.length() - 1)).getToken();
+        assertEquals(32, token.length());
+        for (ConnectionInfo user : users) {
+            server.processOpenBoard(user, ParseMessage.parseClientMsg("open,whiteboard=board1"));
+        }
+        assertTrue(TestSupport.received(users[1]).endsWith("seq,whiteboard=board1,seq=0\n"));
+        server.processFreeDraw(users[0], users[0].getWhiteboard(),
+                ParseMessage.parseClientMsg("freedraw,color=red,size=1,coord=1:1"));
+        assertFalse(TestSupport.received(users[0]).contains("seq,"));
+        assertEquals("freedraw,color=red,size=1,coord=1:1\nseq,whiteboard=board1,seq=1\n", TestSupport.received(users[1]));
+        for (int i = 2; i <= 3; i++) {
+            server.processFreeDraw(users[0], users[0].getWhiteboard(),
+                    ParseMessage.parseClientMsg("freedraw,color=red,size=" + i + ",coord=1:1"));
+        }
+        clearQueues(users);
+
+        // the client reconnected before its old connection was seen to fail
+        ConnectionInfo again = new ConnectionInfo(new OutboundQueue(64, OverflowPolicy.DROP_CONNECTION));
+        server.processLogin(again, ParseMessage.parseClientMsg("login,user=user1,resume=" + token));
+        assertTrue(again.isLoggedIn());
+        assertFalse(users[1].isLoggedIn());
+        assertTrue(TestSupport.received(again).endsWith("session,token=" + token + "\n"));
+        server.processOpenBoard(again, ParseMessage.parseClientMsg("open,whiteboard=board1,seq=1"));
+        assertTrue(TestSupport.received(again).endsWith("seq,whiteboard=board1,seq=1\n"
+                + "freedraw,color=red,size=2,coord=1:1\nfreedraw,color=red,size=3,coord=1:1\n"
+                + "seq,whiteboard=board1,seq=3\n"));
+        server.connectionClosed(users[1]);
+
+        // too many strokes missed, the whole board is sent again
+        server.connectionClosed(again);
+        for (int i = 4; i <= 8; i++) {
+            server.processFreeDraw(users[0], users[0].getWhiteboard(),
+                    ParseMessage.parseClientMsg("freedraw,color=red,size=" + i + ",coord=1:1"));
+        }
+        ConnectionInfo last = new ConnectionInfo(new OutboundQueue(64, OverflowPolicy.DROP_CONNECTION));
+        server.processLogin(last, ParseMessage.parseClientMsg("login,user=user1,resume=" + token));
+        assertTrue(TestSupport.received(last).endsWith("session,token=" + token + "\n"));
+        server.processOpenBoard(last, ParseMessage.parseClientMsg("open,whiteboard=board1,seq=3"));
+        text = TestSupport.received(last);
+        assertTrue(text.contains("seq,whiteboard=board1,seq=0\nfreedraw,color=red,size=1,coord=1:1\n"));
+        assertTrue(text.endsWith("freedraw,color=red,size=8,coord=1:1\nseq,whiteboard=board1,seq=8\n"));
+
+        // a token that is not known any more gets a new session
+        server.processLogout(last, ParseMessage.parseClientMsg("logout"));
+        server.processLogin(last, ParseMessage.parseClientMsg("login,user=user1,resume=" + token));
+        text = TestSupport.received(last);
+        assertTrue(text.contains("session,token="));
+        assertFalse(text.contains(token));
+    }
+
+    // empties the outbound queues of connections that are not served
+    private static void clearQueues(ConnectionInfo[] users) {
+        for (ConnectionInfo user : users) {
+            user.getOutboundQueue().remove(user.getOutboundQueue().size());
+        }
+    }
+
+    /* Compression
+     * Run servers on port 4471 (thread per connection) and 4472 (NIO)
+     * A text client and a binary client log in asking for compression, and open board1
+     * Each draws strokes, and both get all the strokes in their own protocol
+     */
+    @Test
+    public void CompressionTest() throws InterruptedException, IOException {
+        startServer(4471);
+        ServerConfig nioConfig = new ServerConfig();
+        nioConfig.setPort(4472);
+        nioConfig.setMode(ServerMode.NIO);
+        startServer(nioConfig);
+        Thread.sleep(100); // Avoid race condition where we try to connect to server too early
+        checkCompressedClients(4471);
+        checkCompressedClients(4472);
+    }
+
+    /* Compression Off
+     * Run server on port 4473 not allowing compression
+     * Client logs in asking for compression, and is answered uncompressed
+     */
+    @Test
+    public void CompressionOffTest() throws InterruptedException, IOException {
+        ServerConfig config = new ServerConfig();
+        config.setPort(4473);
+        config.setCompression(false);
+        startServer(config);
+        Thread.sleep(100); // Avoid race condition where we try to connect to server too early
+        Socket socket = new Socket("localhost", 4473);
+        try {
+            socket.setSoTimeout(3000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(),true);
+            out.println("login,user=user1,compress=deflate");
+            assertEquals(ServerMsgType.BOARD_LIST, ParseMessage.parseServerMsg(nextNonEmptyLine(in)).getType());
+            out.println("open,whiteboard=board1");
+            checkPresence(in, ServerMsgType.BOARD_CREATED, "board1", null);
+        } finally {
+            socket.close();
+        }
+    }
+
+    /* Compression Budget
+     * Server is not served, a connection switched to compression is sent messages
+     * The batches written for it decode back to the messages, the switch line
+     * first. Once the budget is spent the batches are stored, and still decode
+     */
+    @Test
+    public void CompressionBudgetTest() throws IOException {
+        CompressionBudget budget = new CompressionBudget(1);
+        ConnectionInfo connInfo = new ConnectionInfo(new OutboundQueue(64, OverflowPolicy.DROP_CONNECTION));
+        connInfo.send("boardlist,whiteboard=;");
+        connInfo.startCompression(6, budget);
+        assertTrue(connInfo.isCompressed());
+        final ArrayList<String> lines = new ArrayList<String>();
+        FrameDecoder decoder = new FrameDecoder() {
+            @Override
+            protected void line(String line) {
+                lines.add(line);
+                if (line.equals(StreamCompression.SWITCH_LINE)) setCompressed();
+            }
+
+            @Override
+            protected void stroke(byte color, int lineSize, int[] points, int pointCount) {
+            }
+        };
+        ArrayList<String> expected = new ArrayList<String>();
+        expected.add("boardlist,whiteboard=;");
+        expected.add(StreamCompression.SWITCH_LINE);
+        ByteBuffer[] batch = new ByteBuffer[64];
+        long[] written = new long[2];
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 40; i++) {
+                String line = "freedraw,color=red,size=2,coord=" + i + ":" + (i + 1) + ";" + (i + 2) + ":" + i;
+                connInfo.send(line);
+                expected.add(line);
+            }
+            int count = connInfo.getOutboundQueue().peek(batch);
+            ByteBuffer out = connInfo.getCompressor().encode(batch, count);
+            written[round] = out.remaining();
+            decoder.decode(out);
+            connInfo.getOutboundQueue().remove(count);
+            assertEquals(expected, lines);
+            // far more than the 1ms allowed per window
+            budget.spent(1000000000L, 0, 0, false);
+        }
+        assertEquals(1, budget.getStoredBatches());
+        assertTrue(written[0] < written[1]);
+        assertTrue(budget.getBytesOut() < budget.getBytesIn());
+        connInfo.getCompressor().close();
+    }
+
+    // Utility function that has a compressed text client and a compressed binary client
+    // draw on the same board
+    private static void checkCompressedClients(int port) throws IOException {
+        Socket socket1 = new Socket("localhost", port);
+        Socket socket2 = new Socket("localhost", port);
+        try {
+            socket1.setSoTimeout(3000);
+            socket2.setSoTimeout(3000);
+            BinaryClient client1 = new BinaryClient(socket1);
+            BinaryClient client2 = new BinaryClient(socket2);
+
+            client1.send("login,user=user1,compress=deflate");
+            assertEquals(StreamCompression.SWITCH_LINE, client1.next());
+            assertEquals(ServerMsgType.BOARD_LIST, ParseMessage.parseServerMsg(client1.next()).getType());
+            client1.compress();
+            client1.send("open,whiteboard=board1");
+            assertEquals("boardcreated,whiteboard=board1", client1.next());
+            assertEquals("userjoined,whiteboard=board1,user=user1", client1.next());
+
+            // the binary switch comes first, the compression switch is a frame
+            client2.send("login,user=user2,protocol=2,compress=deflate");
+            assertEquals(BinaryProtocol.SWITCH_LINE, client2.next());
+            assertEquals(StreamCompression.SWITCH_LINE, client2.next());
+            assertEquals(ServerMsgType.BOARD_LIST, ParseMessage.parseServerMsg(client2.next()).getType());
+            client2.compress();
+            client2.send(BinaryProtocol.encodeText("open,whiteboard=board1"));
+            assertEquals("userjoined,whiteboard=board1,user=user2", client2.next());
+            assertEquals("userjoined,whiteboard=board1,user=user2", client1.next());
+
+            client2.send(BinaryProtocol.encodeStroke((byte) 1, 5, new int[] {100, 100, 98, 103, -5, 70000}, 3));
+            assertEquals("1,5,[100, 100, 98, 103, -5, 70000]", client2.next());
+            assertEquals("freedraw,color=red,size=5,coord=100:100;98:103;-5:70000", client1.next());
+            for (int i = 0; i < 50; i++) {
+                client1.send("freedraw,color=white,size=20,coord=" + i + ":2;3:" + i);
+            }
+            for (int i = 0; i < 50; i++) {
+                assertEquals("freedraw,color=white,size=20,coord=" + i + ":2;3:" + i, client1.next());
+                assertEquals("5,20,[" + i + ", 2, 3, " + i + "]", client2.next());
+            }
+        } catch (SocketTimeoutException e) {
+            throw new RuntimeException(e);
+        } finally {
+            socket1.close();
+            socket2.close();
+        }
+    }
+
+    // Utility function that has a binary and a text client draw on the same board
+    private static void checkBinaryAndTextClients(int port) throws IOException {
+        Socket socket1 = new Socket("localhost", port);
+        Socket socket2 = new Socket("localhost", port);
+        try {
+            socket1.setSoTimeout(3000);
+            socket2.setSoTimeout(3000);
+            BinaryClient client1 = new BinaryClient(socket1);
+            BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+            PrintWriter out2 = new PrintWriter(socket2.getOutputStream(),true);
+
+            // asked for in text, the answers are frames after the switch line
+            client1.out.write("login,user=user1,protocol=2\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals(BinaryProtocol.SWITCH_LINE, client1.next());
+            assertEquals(ServerMsgType.BOARD_LIST, ParseMessage.parseServerMsg(client1.next()).getType());
+            client1.send(BinaryProtocol.encodeText("open,whiteboard=board1"));
+            assertEquals("boardcreated,whiteboard=board1", client1.next());
+            assertEquals("userjoined,whiteboard=board1,user=user1", client1.next());
+
+            out2.println("login,user=user2");
+            assertEquals(ServerMsgType.BOARD_LIST, ParseMessage.parseServerMsg(nextNonEmptyLine(in2)).getType());
+            out2.println("open,whiteboard=board1");
+            checkPresence(in2, ServerMsgType.USER_JOINED, "board1", "user2");
+            assertEquals("userjoined,whiteboard=board1,user=user2", client1.next());
+
+            client1.send(BinaryProtocol.encodeStroke((byte) 1, 5, new int[] {100, 100, 98, 103, -5, 70000}, 3));
+            assertEquals("1,5,[100, 100, 98, 103, -5, 70000]", client1.next());
+            assertEquals("freedraw,color=red,size=5,coord=100:100;98:103;-5:70000", nextNonEmptyLine(in2));
+            out2.println("freedraw,color=white,size=20,coord=1:2;3:4");
+            assertEquals("freedraw,color=white,size=20,coord=1:2;3:4", nextNonEmptyLine(in2));
+            assertEquals("5,20,[1, 2, 3, 4]", client1.next());
+        } catch (SocketTimeoutException e) {
+            throw new RuntimeException(e);
+        } finally {
+            socket1.close();
+            socket2.close();
+        }
+    }
+
+    // Client of the binary protocol, the messages it receives are kept as text
+    // lines, and strokes as "color code,size,[points]". It also follows the
+    // switch to compression
+    private static class BinaryClient extends FrameDecoder {
+        private final InputStream in;
+        private OutputStream out;
+        private final ArrayDeque<String> received = new ArrayDeque<String>();
+
+        BinaryClient(Socket socket) throws IOException {
+            this.in = socket.getInputStream();
+            this.out = socket.getOutputStream();
+        }
+
+        void send(ByteBuffer frame) throws IOException {
+            out.write(frame.array(), frame.position(), frame.remaining());
+            out.flush();
+        }
+
+        void send(String line) throws IOException {
+            send(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+
+        // compresses what is sent from now on
+        void compress() {
+            out = new DeflaterOutputStream(out, StreamCompression.newDeflater(1), true);
+        }
+
+        // the next message received
+        String next() throws IOException {
+            byte[] buffer = new byte[1024];
+            while (received.isEmpty()) {
+                int n = in.read(buffer);
+                if (n < 0) throw new IOException("Connection closed");
+                decode(buffer, 0, n);
+            }
+            return received.poll();
+        }
+
+        @Override
+        protected void line(String line) {
+            received.add(line);
+            if (line.equals(BinaryProtocol.SWITCH_LINE)) setBinary();
+            if (line.equals(StreamCompression.SWITCH_LINE)) setCompressed();
+        }
+
+        @Override
+        protected void stroke(byte color, int lineSize, int[] points, int pointCount) {
+            received.add(color + "," + lineSize + "," + Arrays.toString(Arrays.copyOf(points, pointCount * 2)));
+        }
+    }
+
+    // Utility function that draws strokes without waiting and checks the echoes
+    private static void checkStrokesEchoedInOrder(int port) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        try {
+            socket.setSoTimeout(3000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(),true);
+
+            out.println("login,user=user1");
+            assertEquals(ServerMsgType.BOARD_LIST, ParseMessage.parseServerMsg(nextNonEmptyLine(in)).getType());
+            out.println("open,whiteboard=board1");
+            // opening a board that does not exist yet creates it
+            checkPresence(in, ServerMsgType.BOARD_CREATED, "board1", null);
+            checkPresence(in, ServerMsgType.USER_JOINED, "board1", "user1");
+
+            for (int i = 0; i < 20; i++) {
+                out.println("freedraw,color=red,size=2,coord=" + i + ":" + i);
+            }
+            for (int i = 0; i < 20; i++) {
+                ServerMsg recvdMsg = ParseMessage.parseServerMsg(nextNonEmptyLine(in));
+                assertEquals(ServerMsgType.FREE_DRAW, recvdMsg.getType());
+                assertEquals("[" + i + ":" + i + "]", recvdMsg.getCoordinateList().toString());
+            }
+        } catch (SocketTimeoutException e) {
+            throw new RuntimeException(e);
+        } finally {
+            socket.close();
+        }
+    }
+
+    // Utility function that reads the next message and checks it is the given board or user event
+    private static void checkPresence(BufferedReader in, ServerMsgType type, String board, String user)
+            throws IOException {
+        ServerMsg recvdMsg = ParseMessage.parseServerMsg(nextNonEmptyLine(in));
+        assertEquals(type, recvdMsg.getType());
+        assertEquals(board, recvdMsg.getBoardName());
+        assertEquals(user, recvdMsg.getUserName());
+    }
+
     // Utility function to start the WhiteboardServer
     private static void startServer(final int port) {
+        ServerConfig config = new ServerConfig();
+        config.setPort(port);
+        startServer(config);
+    }
+
+    // Utility function to start the WhiteboardServer with the given options
+    private static void startServer(final ServerConfig config) {
         new Thread(new Runnable() {
             public void run() {
                 try {
-                    WhiteboardServer.runWhiteboardServer(port);
+                    WhiteboardServer.runWhiteboardServer(config);
                 } catch (Exception e) {
                     e.printStackTrace();
                     return;